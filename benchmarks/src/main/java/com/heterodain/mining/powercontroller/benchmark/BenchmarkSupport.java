@@ -0,0 +1,40 @@
+package com.heterodain.mining.powercontroller.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * ベンチマークの準備処理
+ */
+public class BenchmarkSupport {
+    /**
+     * フィールドインジェクションの代わりに値を設定
+     *
+     * @param target 設定先
+     * @param name   フィールド名
+     * @param value  値
+     */
+    public static void inject(Object target, String name, Object value) {
+        try {
+            var field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * クラスパス上のリソース読み込み
+     *
+     * @param name リソース名
+     * @return 内容
+     */
+    public static byte[] resource(String name) {
+        try (var is = BenchmarkSupport.class.getResourceAsStream("/" + name)) {
+            return is.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.heterodain.mining.powercontroller.config;
+
+import java.util.concurrent.TimeUnit;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties.PowerCondition;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 電源制御の条件判定
+ *
+ * 計測値は集計結果と同じくボクシングされた値で渡す。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PowerConditionBenchmark {
+    private PowerCondition condition;
+
+    private Double power;
+    private Double soc;
+    private Double voltage;
+    private STAGE stage;
+
+    @Setup
+    public void setup() {
+        condition = new PowerCondition();
+        condition.setPower(300D);
+        condition.setVoltage(26.5D);
+        condition.setSoc(80D);
+        condition.setStage(STAGE.FLOAT);
+
+        power = 250D;
+        soc = 85D;
+        voltage = 26.8D;
+        stage = STAGE.BOOST;
+    }
+
+    @Benchmark
+    public boolean graterEqual() {
+        return condition.graterEqual(power, soc, voltage, stage);
+    }
+
+    @Benchmark
+    public boolean lessEqual() {
+        return condition.lessEqual(power, soc, voltage, stage);
+    }
+}
@@ -0,0 +1,117 @@
+package com.heterodain.mining.powercontroller.fake;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Ambientの代替サーバー
+ *
+ * /channels/{id}/dataarray(POST)と/channels/{id}/data(GET、dateで日付を指定)を実装する。
+ * ライトキー・リードキーを検証し、送信されたデータを保持して日付毎に返す。
+ */
+public class FakeAmbientServer extends FakeServer {
+    private static final Pattern DATAARRAY_PATH = Pattern.compile("/channels/(\\d+)/dataarray");
+    private static final Pattern DATA_PATH = Pattern.compile("/channels/(\\d+)/data");
+    /** 取得時のタイムスタンプの形式 */
+    private static final DateTimeFormatter CREATED_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    private final int channelId;
+    private final String readKey;
+    private final String writeKey;
+    /** 送信されたデータ(createdはUTC) */
+    private final List<ObjectNode> datas = new ArrayList<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param channelId チャネルID
+     * @param readKey   リードキー
+     * @param writeKey  ライトキー
+     * @throws IOException
+     */
+    public FakeAmbientServer(int channelId, String readKey, String writeKey) throws IOException {
+        this.channelId = channelId;
+        this.readKey = readKey;
+        this.writeKey = writeKey;
+    }
+
+    /**
+     * 送信されたデータ件数
+     *
+     * @return 件数
+     */
+    public synchronized int getDataCount() {
+        return datas.size();
+    }
+
+    @Override
+    protected String basePath() {
+        return "/api/v2";
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange, String path, String body) throws IOException {
+        var method = exchange.getRequestMethod();
+        var dataarray = DATAARRAY_PATH.matcher(path);
+        if (dataarray.matches() && "POST".equals(method) && Integer.parseInt(dataarray.group(1)) == channelId) {
+            var json = om.readTree(body);
+            if (!writeKey.equals(json.path("writeKey").asText())) {
+                respond(exchange, 403, null);
+                return;
+            }
+            synchronized (this) {
+                json.path("data").forEach(data -> datas.add((ObjectNode) data));
+            }
+            respond(exchange, 200, null);
+            return;
+        }
+
+        var data = DATA_PATH.matcher(path);
+        if (data.matches() && "GET".equals(method) && Integer.parseInt(data.group(1)) == channelId) {
+            var query = query(exchange.getRequestURI().getRawQuery());
+            if (!readKey.equals(query.get("readKey")) || query.get("date") == null) {
+                respond(exchange, 403, null);
+                return;
+            }
+            var date = LocalDate.parse(query.get("date"));
+            var result = om.createArrayNode();
+            synchronized (this) {
+                for (var point : datas) {
+                    var created = LocalDateTime.parse(point.path("created").asText());
+                    if (created.toLocalDate().equals(date)) {
+                        var copy = point.deepCopy();
+                        copy.put("created", created.atOffset(ZoneOffset.UTC).format(CREATED_FORMAT));
+                        result.add(copy);
+                    }
+                }
+            }
+            respond(exchange, 200, result);
+            return;
+        }
+        respond(exchange, 404, null);
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        var result = new HashMap<String, String>();
+        if (rawQuery != null) {
+            for (var pair : rawQuery.split("&")) {
+                var i = pair.indexOf('=');
+                if (i > 0) {
+                    result.put(pair.substring(0, i), pair.substring(i + 1));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+package com.heterodain.mining.powercontroller.fake;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Hive APIの代替サーバー
+ *
+ * /farms/{id}/oc(GET)と/farms/{id}/workers/{id}(GET/PATCH)を実装する。Authorizationヘッダーのトークンを検証する。
+ * ワーカーは1台で、PATCHで変更したoc_idを保持する。
+ */
+public class FakeHiveServer extends FakeServer {
+    private static final Pattern OC_PATH = Pattern.compile("/farms/(\\d+)/oc");
+    private static final Pattern WORKER_PATH = Pattern.compile("/farms/(\\d+)/workers/(\\d+)");
+
+    private final int farmId;
+    private final int workerId;
+    private final String personalToken;
+    /** OCプロファイル(キーはID、値は名前) */
+    private final Map<Integer, String> ocProfiles = new LinkedHashMap<>();
+
+    /** ワーカーのOCプロファイルID */
+    @Getter
+    @Setter
+    private volatile int ocId;
+
+    /**
+     * コンストラクタ
+     *
+     * @param farmId        ファームID
+     * @param workerId      ワーカーID
+     * @param personalToken パーソナルAPIトークン
+     * @param ocProfiles    OCプロファイル名(IDは1からの連番、ワーカーには最初のプロファイルを設定する)
+     * @throws IOException
+     */
+    public FakeHiveServer(int farmId, int workerId, String personalToken, String... ocProfiles) throws IOException {
+        this.farmId = farmId;
+        this.workerId = workerId;
+        this.personalToken = personalToken;
+        for (int i = 0; i < ocProfiles.length; i++) {
+            this.ocProfiles.put(i + 1, ocProfiles[i]);
+        }
+        this.ocId = 1;
+    }
+
+    @Override
+    protected String basePath() {
+        return "/api/v2";
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange, String path, String body) throws IOException {
+        if (!("Bearer " + personalToken).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            respond(exchange, 401, "{\"message\":\"Unauthenticated.\"}");
+            return;
+        }
+
+        var method = exchange.getRequestMethod();
+        var oc = OC_PATH.matcher(path);
+        if (oc.matches() && "GET".equals(method)) {
+            if (Integer.parseInt(oc.group(1)) != farmId) {
+                respond(exchange, 404, null);
+                return;
+            }
+            var data = new ArrayList<Map<String, Object>>();
+            ocProfiles.forEach((id, name) -> data.add(Map.of("id", id, "name", name, "options", Map.of())));
+            respond(exchange, 200, Map.of("data", data));
+            return;
+        }
+
+        var worker = WORKER_PATH.matcher(path);
+        if (!worker.matches() || Integer.parseInt(worker.group(1)) != farmId
+                || Integer.parseInt(worker.group(2)) != workerId) {
+            respond(exchange, 404, null);
+            return;
+        }
+        if ("GET".equals(method)) {
+            respond(exchange, 200, Map.of("id", workerId, "name", "fake-worker", "oc_id", ocId));
+        } else if ("PATCH".equals(method)) {
+            var newOcId = om.readTree(body).path("oc_id").asInt();
+            if (!ocProfiles.containsKey(newOcId)) {
+                respond(exchange, 422, Map.of("message", "The selected oc id is invalid.", "errors", List.of()));
+                return;
+            }
+            ocId = newOcId;
+            respond(exchange, 200, Map.of("id", workerId, "oc_id", ocId));
+        } else {
+            respond(exchange, 405, null);
+        }
+    }
+}
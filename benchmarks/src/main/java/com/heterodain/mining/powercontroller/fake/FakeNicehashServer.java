@@ -0,0 +1,137 @@
+package com.heterodain.mining.powercontroller.fake;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.apache.commons.codec.binary.Hex;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Nicehash APIの代替サーバー
+ *
+ * /time、/mining/rigs2(GET/POST)を実装する。rigs2はHMAC-SHA256の署名とX-Time(サーバー時刻との差が5分以内)を検証し、
+ * 不正な場合は本番と同じく401を返す。リグは1台で、POWER_MODEの変更を保持する。
+ */
+public class FakeNicehashServer extends FakeServer {
+    /** 許容する時刻のずれ(ミリ秒) */
+    private static final long MAX_TIME_DIFF = 5 * 60 * 1000;
+
+    private final String orgId;
+    private final String apiKey;
+    private final String apiSecret;
+    private final String rigId;
+
+    /** サーバー時刻のずれ(ミリ秒) */
+    @Getter
+    @Setter
+    private volatile long clockSkew;
+    /** リグのPower Mode */
+    @Getter
+    @Setter
+    private volatile String rigPowerMode = "HIGH";
+
+    /**
+     * コンストラクタ
+     *
+     * @param orgId     オーガニゼーションID
+     * @param apiKey    APIキー
+     * @param apiSecret APIシークレットキー
+     * @param rigId     リグID
+     * @throws IOException
+     */
+    public FakeNicehashServer(String orgId, String apiKey, String apiSecret, String rigId) throws IOException {
+        this.orgId = orgId;
+        this.apiKey = apiKey;
+        this.apiSecret = apiSecret;
+        this.rigId = rigId;
+    }
+
+    @Override
+    protected String basePath() {
+        return "/api/v2";
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange, String path, String body) throws IOException {
+        var method = exchange.getRequestMethod();
+        if ("/time".equals(path) && "GET".equals(method)) {
+            respond(exchange, 200, Map.of("serverTime", now()));
+            return;
+        }
+        if (!"/mining/rigs2".equals(path)) {
+            respond(exchange, 404, null);
+            return;
+        }
+
+        if (!verify(exchange, body)) {
+            respond(exchange, 401, "{\"error_id\":\"fake\",\"errors\":[{\"code\":2000,\"message\":\"Invalid session\"}]}");
+            return;
+        }
+
+        if ("GET".equals(method)) {
+            var rig = Map.of("rigId", rigId, "name", "fake-rig", "minerStatus", "MINING", "rigPowerMode",
+                    rigPowerMode, "devices", List.of());
+            respond(exchange, 200, Map.of("miningRigs", List.of(rig)));
+        } else if ("POST".equals(method)) {
+            var json = om.readTree(body);
+            if (!rigId.equals(json.path("rigId").asText()) || !"POWER_MODE".equals(json.path("action").asText())) {
+                respond(exchange, 200, Map.of("success", false, "message", "unsupported action"));
+                return;
+            }
+            rigPowerMode = json.path("options").path(0).asText();
+            respond(exchange, 200, Map.of("success", true));
+        } else {
+            respond(exchange, 405, null);
+        }
+    }
+
+    /**
+     * 署名の検証
+     */
+    private boolean verify(HttpExchange exchange, String body) {
+        var headers = exchange.getRequestHeaders();
+        var time = headers.getFirst("X-Time");
+        var nonce = headers.getFirst("X-Nonce");
+        var auth = headers.getFirst("X-Auth");
+        if (time == null || nonce == null || auth == null || !orgId.equals(headers.getFirst("X-Organization-Id"))
+                || !auth.startsWith(apiKey + ":")) {
+            return false;
+        }
+        try {
+            if (Math.abs(Long.parseLong(time) - now()) > MAX_TIME_DIFF) {
+                return false;
+            }
+
+            var uri = exchange.getRequestURI();
+            var sb = new StringBuilder().append(apiKey).append('\0').append(time).append('\0').append(nonce)
+                    .append('\0').append('\0').append(orgId).append('\0').append('\0')
+                    .append(exchange.getRequestMethod()).append('\0').append(uri.getPath()).append('\0');
+            if (uri.getQuery() != null) {
+                sb.append(uri.getQuery());
+            }
+            if (!body.isEmpty()) {
+                sb.append('\0').append(body);
+            }
+
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(apiSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            var digest = Hex.encodeHexString(mac.doFinal(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            return auth.equals(apiKey + ":" + digest);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private long now() {
+        return System.currentTimeMillis() + clockSkew;
+    }
+}
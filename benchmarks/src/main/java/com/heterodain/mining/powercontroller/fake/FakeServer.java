@@ -0,0 +1,214 @@
+package com.heterodain.mining.powercontroller.fake;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * 外部APIの代替サーバー(ローカルで起動する)
+ *
+ * 全ての要求に、設定した遅延・エラー率・レート制限を適用してから各APIの処理を行う。
+ * 遅延は要求毎のスレッドで待つため、同時に受けた要求の遅延は重ならない。
+ */
+public abstract class FakeServer implements Closeable {
+    /** JSONパーサー */
+    protected final ObjectMapper om = new ObjectMapper();
+
+    /** 障害の設定(実行中に変更してよい) */
+    @Getter
+    private final Faults faults = new Faults();
+    /** 受けた要求数 */
+    private final AtomicLong requests = new AtomicLong();
+    /** エラーを返した要求数(設定したエラー率による) */
+    private final AtomicLong injectedErrors = new AtomicLong();
+    /** レート制限で拒否した要求数 */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /** レート制限の残り(トークンバケット) */
+    private double tokens;
+    /** レート制限の前回補充時刻(System.nanoTime) */
+    private long refilledAt = System.nanoTime();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * コンストラクタ(ループバックの空きポートで起動する)
+     *
+     * @throws IOException
+     */
+    protected FakeServer() throws IOException {
+        executor = Executors.newCachedThreadPool(r -> {
+            var thread = new Thread(r, getClass().getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::dispatch);
+        server.start();
+    }
+
+    /**
+     * APIのベースURL(サービス設定のbaseUrlに設定する)
+     *
+     * @return ベースURL
+     */
+    public String getBaseUrl() {
+        var address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort() + basePath();
+    }
+
+    /**
+     * 受けた要求数
+     *
+     * @return 要求数
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * エラーを返した要求数(設定したエラー率による)
+     *
+     * @return 要求数
+     */
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * レート制限で拒否した要求数
+     *
+     * @return 要求数
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * APIのパスの接頭辞
+     *
+     * @return 接頭辞
+     */
+    protected abstract String basePath();
+
+    /**
+     * APIの処理
+     *
+     * @param exchange 要求
+     * @param path     接頭辞を除いたパス
+     * @param body     リクエストボディ(ない場合は空文字列)
+     * @throws IOException
+     */
+    protected abstract void handle(HttpExchange exchange, String path, String body) throws IOException;
+
+    /**
+     * 応答の送信
+     *
+     * @param exchange 要求
+     * @param status   レスポンスコード
+     * @param body     レスポンスボディ(JSONに変換する。nullの場合はボディなし)
+     * @throws IOException
+     */
+    protected void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        var bytes = body instanceof String ? ((String) body).getBytes(StandardCharsets.UTF_8)
+                : om.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+            var faults = this.faults;
+            if (!acquire(faults.getRateLimit())) {
+                throttled.incrementAndGet();
+                respond(exchange, 429, "{\"error\":\"rate limited\"}");
+                return;
+            }
+
+            var random = ThreadLocalRandom.current();
+            var latency = faults.getLatency() + (faults.getLatencyJitter() > 0 ? random.nextLong(faults.getLatencyJitter() + 1) : 0);
+            if (latency > 0) {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            }
+
+            if (random.nextDouble() < faults.getErrorRate()) {
+                injectedErrors.incrementAndGet();
+                respond(exchange, 503, "{\"error\":\"injected\"}");
+                return;
+            }
+
+            var path = exchange.getRequestURI().getPath();
+            if (!path.startsWith(basePath())) {
+                respond(exchange, 404, null);
+                return;
+            }
+            handle(exchange, path.substring(basePath().length()), body);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, null);
+        }
+    }
+
+    /**
+     * レート制限(1秒あたりの要求数、0以下は無制限)の判定
+     */
+    private synchronized boolean acquire(double rateLimit) {
+        if (rateLimit <= 0) {
+            return true;
+        }
+        var now = System.nanoTime();
+        tokens = Math.min(rateLimit, tokens + (now - refilledAt) / 1e9 * rateLimit);
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * 障害の設定
+     */
+    @Data
+    public static class Faults {
+        /** 応答の遅延(ミリ秒) */
+        private volatile long latency;
+        /** 遅延のばらつき(ミリ秒、0～この値を遅延に加える) */
+        private volatile long latencyJitter;
+        /** 503を返す割合(0～1) */
+        private volatile double errorRate;
+        /** 1秒あたりの要求数の上限(超えた場合は429を返す。0は無制限) */
+        private volatile double rateLimit;
+    }
+}
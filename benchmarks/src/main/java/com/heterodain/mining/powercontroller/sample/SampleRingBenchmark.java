@@ -0,0 +1,93 @@
+package com.heterodain.mining.powercontroller.sample;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 計測データの集計(SampleRing/WindowSummary)
+ *
+ * size=20は1分間、size=300は15分間(3秒間隔)のデータ数。
+ * threeSecは3秒値をそのまま集計し、tieredは本体と同じく3秒値を1分値に集計してから1分値を集計する。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SampleRingBenchmark {
+    /** 1分間のデータ数(3秒間隔) */
+    private static final int PER_MINUTE = 20;
+
+    @Param({ "20", "300" })
+    private int size;
+
+    private RealtimeData[] datas;
+    private SampleRing threeSecDatas;
+    private SampleRing oneMinDatas;
+    private WindowSummary oneMinSummary;
+    private WindowSummary summary;
+
+    @Setup
+    public void setup() {
+        var random = new Random(1);
+        datas = new RealtimeData[size];
+        for (int i = 0; i < size; i++) {
+            var data = new RealtimeData();
+            data.setPvPower(200D + random.nextDouble() * 100D);
+            data.setBattVolt(25D + random.nextDouble() * 2D);
+            data.setLoadPower(150D + random.nextDouble() * 50D);
+            data.setBattSOC(60D + random.nextInt(10));
+            data.setStage(random.nextInt(10) == 0 ? STAGE.FLOAT : STAGE.BOOST);
+            data.setDuration(3D);
+            datas[i] = data;
+        }
+        threeSecDatas = new SampleRing("3秒値", 512);
+        oneMinDatas = new SampleRing("1分値", 32);
+        oneMinSummary = new WindowSummary();
+        summary = new WindowSummary();
+    }
+
+    @Benchmark
+    public WindowSummary threeSec() {
+        for (int i = 0; i < size; i++) {
+            threeSecDatas.add(i * 3000L, datas[i]);
+        }
+        var upTo = threeSecDatas.mark();
+        threeSecDatas.summarize(upTo, summary);
+        threeSecDatas.consume(upTo);
+        return summary;
+    }
+
+    @Benchmark
+    public WindowSummary tiered() {
+        for (int i = 0; i < size; i++) {
+            threeSecDatas.add(i * 3000L, datas[i]);
+            if ((i + 1) % PER_MINUTE == 0) {
+                var upTo = threeSecDatas.mark();
+                threeSecDatas.summarize(upTo, oneMinSummary);
+                threeSecDatas.consume(upTo);
+                oneMinDatas.add(i * 3000L, oneMinSummary);
+            }
+        }
+        var upTo = oneMinDatas.mark();
+        oneMinDatas.summarize(upTo, summary);
+        oneMinDatas.consume(upTo);
+        return summary;
+    }
+}
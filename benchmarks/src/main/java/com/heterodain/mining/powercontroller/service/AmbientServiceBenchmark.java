@@ -0,0 +1,63 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.io.ByteArrayOutputStream;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.mining.powercontroller.benchmark.BenchmarkSupport;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.Ambient;
+import com.heterodain.mining.powercontroller.service.AmbientService.Point;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ambientへの送信データ構築(3分毎の送信と同じ5項目、1回の送信にまとめるデータ数毎)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AmbientServiceBenchmark {
+    @Param({ "1", "20" })
+    private int points;
+
+    private AmbientService service;
+    private Ambient config;
+    private List<Point> batch;
+    private ByteArrayOutputStream buffer;
+
+    @Setup
+    public void setup() {
+        service = new AmbientService();
+        BenchmarkSupport.inject(service, "om", new ObjectMapper());
+        config = new Ambient(99999, "0123456789abcdef", "fedcba9876543210", "http://ambidata.io/api/v2");
+        var ts = ZonedDateTime.now();
+        batch = new ArrayList<>();
+        for (int i = 0; i < points; i++) {
+            batch.add(new Point(ts.plusMinutes(3 * i), null, new Double[] { 312.5D, 26.84D, 248.1D, 87D, 11D }));
+        }
+        buffer = new ByteArrayOutputStream(1024);
+    }
+
+    @Benchmark
+    public int writePayload() throws Exception {
+        buffer.reset();
+        service.writePayload(config, batch, buffer);
+        return buffer.size();
+    }
+}
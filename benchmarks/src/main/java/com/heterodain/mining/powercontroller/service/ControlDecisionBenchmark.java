@@ -0,0 +1,171 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.mining.powercontroller.benchmark.BenchmarkSupport;
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.HiveApi;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.NicehashApi;
+import com.heterodain.mining.powercontroller.fake.FakeHiveServer;
+import com.heterodain.mining.powercontroller.fake.FakeNicehashServer;
+import com.heterodain.mining.powercontroller.fake.FakeServer;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedHttpClient;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PowerMode/PowerLimit制御(tdpControl)の1回の判断の所要時間(代替サーバーを使用)
+ *
+ * Nicehash(リグ状態の取得とPower Modeの変更)とHive(OCプロファイルの取得と変更)を並行して行い、両方が完了するまでの時間を測る。
+ * 1回毎に上げる・下げるを交互に行うので、毎回変更が発生する。キャッシュと再試行・サーキットブレーカーの設定は本番と同じ。
+ *
+ * <ul>
+ * <li>healthy - 遅延20ms</li>
+ * <li>slow - 遅延100～400ms</li>
+ * <li>flaky - 遅延20ms、30%の要求が503</li>
+ * <li>throttled - 遅延20ms、1秒あたり4要求まで(超えると429)</li>
+ * <li>down - 全ての要求が503(サーキットブレーカーが開いた後は送信せずに失敗する)</li>
+ * </ul>
+ *
+ * 失敗した判断の数はfailedに出力する。
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ControlDecisionBenchmark {
+    @Param({ "healthy", "slow", "flaky", "throttled", "down" })
+    private String scenario;
+
+    private FakeNicehashServer nicehashServer;
+    private FakeHiveServer hiveServer;
+    private NicehashService nicehashService;
+    private HiveService hiveService;
+    private NicehashApi nicehashConfig;
+    private HiveApi hiveConfig;
+    private ControlProperties.Power powerConfig;
+    private boolean turnUp;
+
+    /**
+     * 判断の結果
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcome {
+        public long succeeded;
+        public long failed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            succeeded = 0;
+            failed = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        nicehashServer = new FakeNicehashServer("fake-org", "fake-key", "fake-secret", "fake-rig");
+        hiveServer = new FakeHiveServer(1, 2, "fake-token", "low", "high");
+        applyScenario(nicehashServer.getFaults());
+        applyScenario(hiveServer.getFaults());
+
+        nicehashConfig = new NicehashApi("fake-org", "fake-key", "fake-secret", "fake-rig",
+                nicehashServer.getBaseUrl());
+        hiveConfig = new HiveApi();
+        hiveConfig.setFarmId(1);
+        hiveConfig.setWorkerId(2);
+        hiveConfig.setPersonalToken("fake-token");
+        hiveConfig.setBaseUrl(hiveServer.getBaseUrl());
+        powerConfig = new ControlProperties.Power();
+        powerConfig.setHighProfileName("high");
+        powerConfig.setLowProfileName("low");
+
+        var om = new ObjectMapper();
+        var serviceProperties = new ServiceProperties();
+        var metricsRegistry = new MetricsRegistry();
+        var httpClient = new InstrumentedHttpClient(
+                HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(15)).build(), metricsRegistry);
+        var remoteApiPolicy = new RemoteApiPolicy();
+        BenchmarkSupport.inject(remoteApiPolicy, "httpClient", httpClient);
+        BenchmarkSupport.inject(remoteApiPolicy, "serviceProperties", serviceProperties);
+        BenchmarkSupport.inject(remoteApiPolicy, "metricsRegistry", metricsRegistry);
+
+        nicehashService = new NicehashService();
+        hiveService = new HiveService();
+        for (var service : new Object[] { nicehashService, hiveService }) {
+            BenchmarkSupport.inject(service, "remoteApiPolicy", remoteApiPolicy);
+            BenchmarkSupport.inject(service, "om", om);
+            BenchmarkSupport.inject(service, "serviceProperties", serviceProperties);
+            BenchmarkSupport.inject(service, "metricsRegistry", metricsRegistry);
+        }
+        nicehashService.init();
+        hiveService.init();
+    }
+
+    @TearDown
+    public void tearDown() {
+        nicehashServer.close();
+        hiveServer.close();
+    }
+
+    @Benchmark
+    public void decide(Outcome outcome) {
+        turnUp = !turnUp;
+        var powerMode = turnUp ? nicehashService.turnUpPowerModeAsync(nicehashConfig)
+                : nicehashService.turnDownPowerModeAsync(nicehashConfig);
+        var powerLimit = turnUp ? hiveService.turnUpPowerLimitAsync(hiveConfig, powerConfig)
+                : hiveService.turnDownPowerLimitAsync(hiveConfig, powerConfig);
+        try {
+            CompletableFuture.allOf(powerMode, powerLimit).join();
+            outcome.succeeded++;
+        } catch (RuntimeException e) {
+            outcome.failed++;
+        }
+    }
+
+    private void applyScenario(FakeServer.Faults faults) {
+        switch (scenario) {
+        case "healthy":
+            faults.setLatency(20);
+            break;
+        case "slow":
+            faults.setLatency(100);
+            faults.setLatencyJitter(300);
+            break;
+        case "flaky":
+            faults.setLatency(20);
+            faults.setErrorRate(0.3);
+            break;
+        case "throttled":
+            faults.setLatency(20);
+            faults.setRateLimit(4);
+            break;
+        case "down":
+            faults.setErrorRate(1);
+            break;
+        default:
+            throw new IllegalArgumentException(scenario);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.heterodain.mining.powercontroller.benchmark.BenchmarkSupport;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.NicehashApi;
+import com.heterodain.mining.powercontroller.service.NicehashService.RigStatus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Nicehash APIの認証ヘッダー構築とリグ情報の解析
+ *
+ * rigs2.jsonは3リグ×7デバイスのレスポンス。rigs=60の場合はリグを複製して大きなレスポンスにする。
+ * 対象のリグは中央にあり、streamingは対象のリグの後を読まない。treeは変更前の実装(全体をJsonNodeに読み込む)。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NicehashServiceBenchmark {
+    private static final URI RIGS2_URI = URI.create("https://api2.nicehash.com/api/v2/mining/rigs2");
+
+    @Param({ "3", "60" })
+    private int rigs;
+
+    private NicehashService service;
+    private ObjectMapper om;
+    private NicehashApi config;
+    private byte[] rigs2;
+
+    @Setup
+    public void setup() throws Exception {
+        om = new ObjectMapper();
+        service = new NicehashService();
+        BenchmarkSupport.inject(service, "om", om);
+        config = new NicehashApi("12345678-90ab-cdef-1234-567890abcdef", "abcdef01-2345-6789-abcd-ef0123456789",
+                "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef01234567",
+                "target-rig", "https://api2.nicehash.com/api/v2");
+        rigs2 = createRigs2(rigs);
+    }
+
+    @Benchmark
+    public Map<String, String> createAuthHeader() throws Exception {
+        return service.createAuthHeader(config, "1637650000000", "GET", RIGS2_URI, null);
+    }
+
+    @Benchmark
+    public RigStatus parseRigStatusStreaming() throws Exception {
+        return service.parseRigStatus(new ByteArrayInputStream(rigs2), config.getRigId());
+    }
+
+    @Benchmark
+    public RigStatus parseRigStatusTree() throws Exception {
+        var json = om.readTree(new ByteArrayInputStream(rigs2));
+        var rigsJson = (ArrayNode) json.get("miningRigs");
+        for (var rigJson : rigsJson) {
+            var rigStatus = om.treeToValue(rigJson, RigStatus.class);
+            if (config.getRigId().equals(rigStatus.getRigId())) {
+                return rigStatus;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 指定したリグ数のレスポンスを作る(対象のリグは中央)
+     */
+    private byte[] createRigs2(int count) throws Exception {
+        var json = (ObjectNode) om.readTree(BenchmarkSupport.resource("rigs2.json"));
+        var templates = (ArrayNode) json.get("miningRigs");
+        var rigsJson = om.createArrayNode();
+        for (int i = 0; i < count; i++) {
+            var rig = (ObjectNode) templates.get(i % templates.size()).deepCopy();
+            rig.put("rigId", i == count / 2 ? "target-rig" : String.format("0-rig%019d", i));
+            rigsJson.add(rig);
+        }
+        json.set("miningRigs", rigsJson);
+        return om.writeValueAsBytes(json);
+    }
+}
@@ -4,11 +4,12 @@ import java.net.http.HttpClient;
 import java.time.Duration;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedHttpClient;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedTaskScheduler;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 /**
  * コンポーネント設定
@@ -31,38 +32,27 @@ public class AppConfig {
     /**
      * タスクスケジューラーの設定
      * 
+     * @param metricsRegistry メトリクス
      * @return タスクスケジューラー
      */
     @Bean
-    public ThreadPoolTaskScheduler taskScheduler() {
-        var taskScheduler = new ThreadPoolTaskScheduler();
+    public InstrumentedTaskScheduler taskScheduler(MetricsRegistry metricsRegistry) {
+        var taskScheduler = new InstrumentedTaskScheduler(metricsRegistry);
         taskScheduler.setPoolSize(5); // 5スレッド同時実行
         taskScheduler.setThreadNamePrefix("task");
         return taskScheduler;
     }
 
-    /**
-     * タスク実行の設定
-     * 
-     * @return タスク実行
-     */
-    @Bean
-    public ThreadPoolTaskExecutor taskExecutor() {
-        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
-        pool.setCorePoolSize(1); // 1スレッド同時実行
-        pool.setWaitForTasksToCompleteOnShutdown(false);
-        pool.setThreadNamePrefix("exec");
-        pool.initialize();
-        return pool;
-    }
-
     /**
      * Httpクライアント
      * 
+     * @param metricsRegistry メトリクス
      * @return Httpクライアント
      */
     @Bean
-    public HttpClient httpClient() {
-        return HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(DEFAULT_HTTP_CONNECTION_TIMEOUT)).build();
+    public HttpClient httpClient(MetricsRegistry metricsRegistry) {
+        var httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(DEFAULT_HTTP_CONNECTION_TIMEOUT))
+                .build();
+        return new InstrumentedHttpClient(httpClient, metricsRegistry);
     }
 }
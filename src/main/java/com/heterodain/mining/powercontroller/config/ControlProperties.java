@@ -1,6 +1,10 @@
 package com.heterodain.mining.powercontroller.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+import com.heterodain.mining.powercontroller.service.NicehashService.POWER_MODE;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -20,6 +24,10 @@ public class ControlProperties {
     private Fan fan;
     /** バッテリーヒーターの設定 */
     private BatteryHeater batteryHeater;
+    /** サンプリング間隔の設定 */
+    private Sampling sampling = new Sampling();
+    /** 発電量予測の設定 */
+    private Forecast forecast = new Forecast();
 
     /**
      * 電源制御の設定
@@ -37,6 +45,54 @@ public class ControlProperties {
         private String lowProfileName;
         /** 調整感度(ワット) */
         private Double hysteresis;
+        /** OCプロファイル名の段階(低い順、省略時は低電力設定・高電力設定の2段階) */
+        private List<String> profileLadder = new ArrayList<>();
+        /** Power Modeの段階(低い順) */
+        private List<POWER_MODE> powerModeLadder = new ArrayList<>(List.of(POWER_MODE.LOW, POWER_MODE.MEDIUM,
+                POWER_MODE.HIGH));
+        /** 段階の制御設定 */
+        private Ladder ladder = new Ladder();
+        /** 複数のマイニングリグへの割り当ての設定 */
+        private Allocation allocation = new Allocation();
+
+        /**
+         * OCプロファイル名の段階取得
+         *
+         * @return OCプロファイル名(低い順)
+         */
+        public List<String> profileLadderNames() {
+            return profileLadder.isEmpty() ? List.of(lowProfileName, highProfileName) : profileLadder;
+        }
+    }
+
+    /**
+     * 電力の段階の制御設定
+     */
+    @Data
+    public static class Ladder {
+        /** 発電電力に合う段階に直接変更する場合はtrue(falseの場合は15分毎に一段ずつ変更) */
+        private boolean enabled = true;
+        /** 変更してから次に判断するまでの最小間隔(秒、この間に段階毎の消費電力を学習する) */
+        private Integer minInterval = 120;
+        /** 誤差が小さい場合に判断する最大間隔(秒) */
+        private Integer maxInterval = 900;
+        /** 未学習の段階の1段あたりの消費電力の差の見込み(W) */
+        private Double defaultStepWatts = 30D;
+        /** 段階毎の消費電力の学習率(0～1) */
+        private Double learningRate = 0.3;
+    }
+
+    /**
+     * 複数のマイニングリグへの割り当ての設定
+     */
+    @Data
+    public static class Allocation {
+        /** 2台目以降のリグを起動する間隔(秒、突入電流が重ならないように1台ずつ起動する) */
+        private Integer stagger = 120;
+        /** 起動したリグを停止しない最短時間(秒) */
+        private Integer minOnTime = 900;
+        /** 停止したリグを起動しない最短時間(秒、シャットダウン中に電源スイッチを押さないように) */
+        private Integer minOffTime = 300;
     }
 
     /**
@@ -52,6 +108,14 @@ public class ControlProperties {
         private Double soc;
         /** 充電ステージ */
         private STAGE stage;
+        /** 電圧の判定に使う統計値(MEAN:平均, MIN:最小、判定方法がWINDOWの場合のみ) */
+        private STATISTIC voltageStatistic = STATISTIC.MEAN;
+        /** 判定方法(WINDOW:1分毎に集計値で判定, SAMPLE:計測毎に判定) */
+        private EVALUATION evaluation = EVALUATION.WINDOW;
+        /** 条件を満たし続けてから電源を切り替えるまでの時間(秒) */
+        private Integer debounce = 0;
+        /** この条件で電源を切り替えた後、逆の切り替えをしない時間(秒) */
+        private Integer hold = 0;
 
         /** 引数の値が設定値以上かどうか */
         public boolean graterEqual(Double _power, Double _soc, Double _voltage, STAGE _stage) {
@@ -90,6 +154,23 @@ public class ControlProperties {
         }
     }
 
+    /**
+     * 判定に使う統計値
+     */
+    public static enum STATISTIC {
+        MEAN, MIN;
+    }
+
+    /**
+     * 電源制御の条件の判定方法
+     */
+    public static enum EVALUATION {
+        /** 1分毎に集計値で判定 */
+        WINDOW,
+        /** 計測毎(通常3秒毎)に計測値で判定 */
+        SAMPLE;
+    }
+
     /**
      * ファン制御の設定
      */
@@ -111,4 +192,44 @@ public class ControlProperties {
         /** 制御時間帯 */
         private String[] hourRange;
     }
-}
\ No newline at end of file
+
+    /**
+     * サンプリング間隔の設定
+     */
+    @Data
+    public static class Sampling {
+        /** 通常時の間隔(ミリ秒) */
+        private Integer normalInterval = 3000;
+        /** 電源ON/OFF前後・しきい値付近の間隔(ミリ秒) */
+        private Integer fastInterval = 500;
+        /** 夜間(発電なし・リグ停止中)の間隔(ミリ秒) */
+        private Integer slowInterval = 30000;
+        /** 電源ON/OFF後に高速サンプリングを続ける時間(秒) */
+        private Integer transitionDuration = 60;
+        /** しきい値付近とみなす電圧の幅(V) */
+        private Double voltageMargin = 0.2;
+        /** しきい値付近とみなす発電電力の幅(W) */
+        private Double powerMargin = 10D;
+        /** しきい値付近とみなす残量の幅(%) */
+        private Double socMargin = 2D;
+    }
+
+    /**
+     * 発電量予測の設定
+     */
+    @Data
+    public static class Forecast {
+        /** PowerMode/PowerLimit制御に予測値を使う場合はtrue */
+        private boolean enabled = true;
+        /** 予測する時間(分、現在から何分後の発電電力で判断するか) */
+        private Integer horizon = 30;
+        /** 現在の発電状況の平滑化の時定数(分) */
+        private Integer smoothing = 10;
+        /** 現在の発電状況が予測に影響する時間の目安(分、これより先は時刻毎の傾向に近づく) */
+        private Integer persistence = 60;
+        /** 時刻毎の傾向を学習する日数 */
+        private Integer profileDays = 14;
+        /** 時刻毎の傾向として有効とみなす最小の発電電力(W) */
+        private Double minProfilePower = 10D;
+    }
+}
@@ -1,17 +1,27 @@
 package com.heterodain.mining.powercontroller.config;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
+import com.heterodain.mining.powercontroller.config.DeviceProperties.HARDWARE;
+import com.heterodain.mining.powercontroller.config.DeviceProperties.TRANSPORT;
 import com.heterodain.mining.powercontroller.device.BatteryHeaterDevice;
 import com.heterodain.mining.powercontroller.device.CoolingFanDevice;
+import com.heterodain.mining.powercontroller.device.HardwareBackend;
 import com.heterodain.mining.powercontroller.device.Lm75aDevice;
 import com.heterodain.mining.powercontroller.device.MiningRigDevice;
+import com.heterodain.mining.powercontroller.device.MiningRigGroup;
+import com.heterodain.mining.powercontroller.device.ModbusTransport;
+import com.heterodain.mining.powercontroller.device.Pi4jHardwareBackend;
+import com.heterodain.mining.powercontroller.device.PvControllerBus;
 import com.heterodain.mining.powercontroller.device.PvControllerDevice;
 import com.heterodain.mining.powercontroller.device.RaspberryPiDevice;
-import com.pi4j.io.gpio.PinPullResistance;
-import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.gpio.RaspiPin;
-import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+import com.heterodain.mining.powercontroller.device.RaspberryPiDevice.Hardware;
+import com.heterodain.mining.powercontroller.device.SerialModbusTransport;
+import com.heterodain.mining.powercontroller.device.SimulatedHardwareBackend;
+import com.heterodain.mining.powercontroller.device.SimulatedModbusTransport;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedModbusTransport;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -23,80 +33,130 @@ import org.springframework.context.annotation.Configuration;
 public class DeviceConfig {
 
     /**
-     * マイニングリグデバイス
+     * GPIO/I2Cの実装
+     * 
+     * @param deviceProperties デバイス設定
+     * @return GPIO/I2Cの実装
+     */
+    @Bean
+    public HardwareBackend hardwareBackend(DeviceProperties deviceProperties) {
+        if (deviceProperties.getHardware() == HARDWARE.SIMULATOR) {
+            return new SimulatedHardwareBackend(deviceProperties.getHardwareSimulator(),
+                    deviceProperties.getAllRigs());
+        }
+        return new Pi4jHardwareBackend();
+    }
+
+    /**
+     * 初期化済みのGPIOピンとI2Cデバイス(全ピンを並行して初期化する)
      * 
      * @param raspberryPiDevice ラズベリーパイデバイス
-     * @return マイニングリグデバイス
+     * @param deviceProperties  デバイス設定
+     * @return 初期化済みのGPIOピンとI2Cデバイス
      * @throws InterruptedException
+     * @throws IOException
+     */
+    @Bean
+    public Hardware hardware(RaspberryPiDevice raspberryPiDevice, DeviceProperties deviceProperties)
+            throws InterruptedException, IOException {
+        return raspberryPiDevice.provision(deviceProperties.getGpio(), deviceProperties.getAllRigs(),
+                deviceProperties.getLm75a().getAddress());
+    }
+
+    /**
+     * 負荷出力に接続した全マイニングリグ
+     * 
+     * @param hardware         初期化済みのGPIOピン
+     * @param deviceProperties デバイス設定
+     * @return 全マイニングリグ(優先度の高い順)
      */
-    // TODO GPIOピン番号の設定化
     @Bean
-    public MiningRigDevice miningRigDevice(RaspberryPiDevice raspberryPiDevice) throws InterruptedException {
-        var statusGpio = raspberryPiDevice.initInputGPIO(RaspiPin.GPIO_00, "PC_POWER_STATUS",
-                PinPullResistance.PULL_DOWN);
-        var swGipo = raspberryPiDevice.initOutputGPIO(RaspiPin.GPIO_25, "PC_POWER_SW", PinState.LOW);
-        return new MiningRigDevice(statusGpio, swGipo);
+    public MiningRigGroup miningRigGroup(Hardware hardware, DeviceProperties deviceProperties) {
+        var rigConfigs = deviceProperties.getAllRigs();
+        var rigs = new ArrayList<MiningRigDevice>();
+        for (int i = 0; i < rigConfigs.size(); i++) {
+            rigs.add(new MiningRigDevice(rigConfigs.get(i).getName(), hardware.getPcPowerStatuses().get(i),
+                    hardware.getPcPowerSws().get(i)));
+        }
+        return new MiningRigGroup(rigs);
     }
 
     /**
      * 冷却FANデバイス
      * 
-     * @param raspberryPiDevice ラズベリーパイデバイス
+     * @param hardware 初期化済みのGPIOピン
      * @return 冷却FANデバイス
-     * @throws InterruptedException
      */
-    // TODO GPIOピン番号の設定化
     @Bean
-    public CoolingFanDevice coolingFanDevice(RaspberryPiDevice raspberryPiDevice) throws InterruptedException {
-        var gpio = raspberryPiDevice.initOutputGPIO(RaspiPin.GPIO_02, "FAN_POWER_SW", PinState.LOW);
-        return new CoolingFanDevice(gpio);
+    public CoolingFanDevice coolingFanDevice(Hardware hardware) {
+        return new CoolingFanDevice(hardware.getFanPowerSw());
     }
 
     /**
      * バッテリーヒーターデバイス
      * 
-     * @param raspberryPiDevice ラズベリーパイデバイス
+     * @param hardware 初期化済みのGPIOピン
      * @return バッテリーヒーターデバイス
-     * @throws InterruptedException
      */
-    // TODO GPIOピン番号の設定化
     @Bean
-    public BatteryHeaterDevice batteryHeaterDevice(RaspberryPiDevice raspberryPiDevice) throws InterruptedException {
-        var gpio = raspberryPiDevice.initOutputGPIO(RaspiPin.GPIO_24, "BATT_HEATER_SW", PinState.LOW);
-        return new BatteryHeaterDevice(gpio);
+    public BatteryHeaterDevice batteryHeaterDevice(Hardware hardware) {
+        return new BatteryHeaterDevice(hardware.getBattHeaterSw());
     }
 
     /**
      * Epeverチャージコントローラデバイス
      * 
-     * @param raspberryPiDevice ラズベリーパイデバイス
-     * @param deviceProperties  デバイス設定
-     * @return
-     * @throws InterruptedException
+     * @param hardware         初期化済みのGPIOピン
+     * @param deviceProperties デバイス設定
+     * @return Epeverチャージコントローラデバイス
+     */
+    @Bean
+    public PvControllerDevice pvControllerDevice(Hardware hardware, DeviceProperties deviceProperties) {
+        var pvcConfig = deviceProperties.getPvController();
+        return new PvControllerDevice(pvcConfig.getUnitId(), pvcConfig.getRetries(), hardware.getLoadPowerRegSw());
+    }
+
+    /**
+     * チャージコントローラーとの通信路
+     * 
+     * @param deviceProperties デバイス設定
+     * @param metricsRegistry  メトリクス
+     * @return チャージコントローラーとの通信路
      */
-    // TODO GPIOピン番号の設定化
     @Bean
-    public PvControllerDevice pvControllerDevice(RaspberryPiDevice raspberryPiDevice, DeviceProperties deviceProperties)
-            throws InterruptedException {
-        var loadPowerRegisterSw = raspberryPiDevice.initOutputGPIO(RaspiPin.GPIO_27, "LOAD_POWER_REG_SW", PinState.LOW);
-        var unitId = deviceProperties.getPvController().getUnitId();
-        return new PvControllerDevice(unitId, loadPowerRegisterSw);
+    public ModbusTransport modbusTransport(DeviceProperties deviceProperties, MetricsRegistry metricsRegistry) {
+        var pvcConfig = deviceProperties.getPvController();
+        ModbusTransport transport;
+        if (pvcConfig.getTransport() == TRANSPORT.SIMULATOR) {
+            transport = new SimulatedModbusTransport(pvcConfig.getSimulator(), pvcConfig.getAllUnitIds(),
+                    pvcConfig.getTimeout());
+        } else {
+            transport = new SerialModbusTransport(pvcConfig.getComPort(), pvcConfig.getTimeout());
+        }
+        return new InstrumentedModbusTransport(transport, metricsRegistry);
+    }
+
+    /**
+     * RS485バス上の全チャージコントローラー
+     * 
+     * @param pvControllerDevice Epeverチャージコントローラデバイス
+     * @param deviceProperties   デバイス設定
+     * @return RS485バス上の全チャージコントローラー
+     */
+    @Bean
+    public PvControllerBus pvControllerBus(PvControllerDevice pvControllerDevice, DeviceProperties deviceProperties) {
+        var unitIds = deviceProperties.getPvController().getAllUnitIds();
+        return new PvControllerBus(pvControllerDevice, unitIds);
     }
 
     /**
      * 温度センサーデバイス
      * 
-     * @param raspberryPiDevice ラズベリーパイデバイス
-     * @param deviceProperties  デバイス設定
+     * @param hardware 初期化済みのI2Cデバイス
      * @return 温度センサーデバイス
-     * @throws UnsupportedBusNumberException
-     * @throws IOException
      */
     @Bean
-    public Lm75aDevice lm75aDevice(RaspberryPiDevice raspberryPiDevice, DeviceProperties deviceProperties)
-            throws UnsupportedBusNumberException, IOException {
-        var address = deviceProperties.getLm75a().getAddress();
-        var i2cdevice = raspberryPiDevice.initI2cDevice(address);
-        return new Lm75aDevice(i2cdevice);
+    public Lm75aDevice lm75aDevice(Hardware hardware) {
+        return new Lm75aDevice(hardware.getLm75a());
     }
 }
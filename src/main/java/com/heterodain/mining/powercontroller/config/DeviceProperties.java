@@ -1,5 +1,8 @@
 package com.heterodain.mining.powercontroller.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
@@ -16,16 +19,161 @@ public class DeviceProperties {
     private PvController pvController;
     /** LM75Aの設定 */
     private Lm75A lm75a;
+    /** GPIO/I2Cの実装 */
+    private HARDWARE hardware = HARDWARE.PI4J;
+    /** GPIOの設定 */
+    private Gpio gpio = new Gpio();
+    /** マイニングリグの設定(優先度の高い順、省略時はgpioのピンで1台) */
+    private List<Rig> rigs = new ArrayList<>();
+    /** GPIO/I2Cのシミュレーターの設定 */
+    private HardwareSimulator hardwareSimulator = new HardwareSimulator();
+
+    /**
+     * 全マイニングリグの設定取得
+     * 
+     * @return マイニングリグの設定(優先度の高い順、名前の省略時は"rig"+設定順)
+     */
+    public List<Rig> getAllRigs() {
+        if (!rigs.isEmpty()) {
+            for (int i = 0; i < rigs.size(); i++) {
+                if (rigs.get(i).getName() == null) {
+                    rigs.get(i).setName("rig" + (i + 1));
+                }
+            }
+            return rigs;
+        }
+        var rig = new Rig();
+        rig.setName("rig");
+        rig.setPcPowerStatus(gpio.getPcPowerStatus());
+        rig.setPcPowerSw(gpio.getPcPowerSw());
+        return List.of(rig);
+    }
+
+    /**
+     * GPIO/I2Cの実装
+     */
+    public static enum HARDWARE {
+        /** ラズベリーパイ実機(pi4j) */
+        PI4J,
+        /** シミュレーター */
+        SIMULATOR;
+    }
+
+    /**
+     * チャージコントローラーの通信路
+     */
+    public static enum TRANSPORT {
+        /** RS485シリアル接続 */
+        SERIAL,
+        /** シミュレーター */
+        SIMULATOR;
+    }
 
     /**
      * チャージコントローラーの設定情報
      */
     @Data
     public static class PvController {
+        /* 通信路 */
+        private TRANSPORT transport = TRANSPORT.SERIAL;
         /* シリアル通信ポート名 */
         private String comPort;
-        /* RS485のユニットID */
+        /* RS485のユニットID(負荷出力を制御するユニット) */
         private Integer unitId;
+        /* 同一バス上の全ユニットID(省略時はunitIdのみ) */
+        private List<Integer> unitIds;
+        /* 応答タイムアウト(ミリ秒) */
+        private Integer timeout = 500;
+        /* 1回の通信の最大試行回数 */
+        private Integer retries = 2;
+
+        /* シミュレーターの設定 */
+        private Simulator simulator = new Simulator();
+
+        /**
+         * ポーリング対象の全ユニットID取得
+         * 
+         * @return 全ユニットID
+         */
+        public List<Integer> getAllUnitIds() {
+            return unitIds == null || unitIds.isEmpty() ? List.of(unitId) : unitIds;
+        }
+    }
+
+    /**
+     * チャージコントローラーのシミュレーターの設定情報
+     */
+    @Data
+    public static class Simulator {
+        /** 応答遅延(ミリ秒) */
+        private Integer latency = 20;
+        /** 応答しないユニットID */
+        private List<Integer> offlineUnitIds = List.of();
+        /** 時刻毎の発電電力("HH:mm=W"、間は線形補間) */
+        private List<String> pvProfile = List.of("05:00=0", "08:00=150", "12:00=400", "16:00=150", "19:00=0");
+        /** 負荷出力ON時の負荷電力(W) */
+        private Double loadPower = 250D;
+        /** PV電圧(V) */
+        private Double pvVoltage = 60D;
+        /** バッテリー容量(Wh) */
+        private Double batteryCapacity = 2400D;
+        /** バッテリー残量の初期値(%) */
+        private Double initialSoc = 60D;
+        /** 残量0%時の電圧(V) */
+        private Double emptyVoltage = 24.0;
+        /** 残量100%時の電圧(V) */
+        private Double fullVoltage = 27.6;
+        /** 開始時刻("HH:mm"、省略時は現在時刻) */
+        private String startTime;
+        /** 時間の進み方(1.0で実時間) */
+        private Double timeScale = 1D;
+    }
+
+    /**
+     * GPIOの設定情報
+     */
+    @Data
+    public static class Gpio {
+        /** PC電源状態監視用のピン番号(WiringPi) */
+        private Integer pcPowerStatus = 0;
+        /** PC電源オンオフ制御用のピン番号(WiringPi) */
+        private Integer pcPowerSw = 25;
+        /** 冷却FAN制御用のピン番号(WiringPi) */
+        private Integer fanPowerSw = 2;
+        /** バッテリーヒーター制御用のピン番号(WiringPi) */
+        private Integer battHeaterSw = 24;
+        /** 負荷出力抵抗制御用のピン番号(WiringPi) */
+        private Integer loadPowerRegSw = 27;
+        /** 初期化のタイムアウト(秒) */
+        private Integer provisionTimeout = 120;
+    }
+
+    /**
+     * マイニングリグの設定情報
+     */
+    @Data
+    public static class Rig {
+        /** 名前(ログ・メトリクスのラベル) */
+        private String name;
+        /** PC電源状態監視用のピン番号(WiringPi) */
+        private Integer pcPowerStatus;
+        /** PC電源オンオフ制御用のピン番号(WiringPi) */
+        private Integer pcPowerSw;
+        /** NicehashのリグID(省略時、リグが1台の場合はservice.nicehash-api.rig-id) */
+        private String rigId;
+        /** Hive OSのワーカーID(省略時、リグが1台の場合はservice.hive-api.worker-id) */
+        private Integer workerId;
+    }
+
+    /**
+     * GPIO/I2Cのシミュレーターの設定情報
+     */
+    @Data
+    public static class HardwareSimulator {
+        /** 起動時のPC電源状態 */
+        private boolean pcPowerOn = false;
+        /** 温度センサーの温度(℃) */
+        private Double temperature = 20D;
     }
 
     /**
@@ -0,0 +1,21 @@
+package com.heterodain.mining.powercontroller.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ * メトリクス公開の設定
+ */
+@Component
+@ConfigurationProperties("metrics")
+@Data
+public class MetricsProperties {
+    /** 公開する場合はtrue */
+    private boolean enabled = true;
+    /** 待ち受けアドレス */
+    private String address = "127.0.0.1";
+    /** 待ち受けポート */
+    private Integer port = 9464;
+}
@@ -20,6 +20,10 @@ public class ServiceProperties {
     private NicehashApi nicehashApi;
     /** Hive APIの設定 */
     private HiveApi hiveApi;
+    /** 外部APIのキャッシュの設定 */
+    private Cache cache = new Cache();
+    /** 外部APIの呼び出しの設定 */
+    private Resilience resilience = new Resilience();
 
     /**
      * Ambientの設定情報
@@ -34,6 +38,8 @@ public class ServiceProperties {
         private String readKey;
         /** ライトキー */
         private String writeKey;
+        /** APIのベースURL */
+        private String baseUrl = "http://ambidata.io/api/v2";
     }
 
     /**
@@ -51,6 +57,18 @@ public class ServiceProperties {
         private String apiSecret;
         /** リグID */
         private String rigId;
+        /** APIのベースURL */
+        private String baseUrl = "https://api2.nicehash.com/api/v2";
+
+        /**
+         * リグIDだけを変えた設定を作成
+         * 
+         * @param rigId リグID
+         * @return API接続設定
+         */
+        public NicehashApi withRigId(String rigId) {
+            return new NicehashApi(orgId, apiKey, apiSecret, rigId, baseUrl);
+        }
     }
 
     /**
@@ -64,5 +82,58 @@ public class ServiceProperties {
         private Integer workerId;
         /** パーソナルAPIトークン */
         private String personalToken;
+        /** APIのベースURL */
+        private String baseUrl = "https://api2.hiveos.farm/api/v2";
+
+        /**
+         * ワーカーIDだけを変えた設定を作成
+         * 
+         * @param workerId ワーカーID
+         * @return API接続設定
+         */
+        public HiveApi withWorkerId(Integer workerId) {
+            var config = new HiveApi();
+            config.setFarmId(farmId);
+            config.setWorkerId(workerId);
+            config.setPersonalToken(personalToken);
+            config.setBaseUrl(baseUrl);
+            return config;
+        }
+    }
+
+    /**
+     * 外部APIのキャッシュの設定情報
+     */
+    @Data
+    public static class Cache {
+        /** リグ状態(Nicehash)の有効期限(秒) */
+        private Integer rigStatusTtl = 60;
+        /** ワーカーのOCプロファイルID(Hive)の有効期限(秒) */
+        private Integer workerTtl = 60;
+        /** OCプロファイル一覧(Hive)の有効期限(秒) */
+        private Integer ocProfilesTtl = 3600;
+    }
+
+    /**
+     * 外部APIの呼び出し(期限・再試行・同時送信数・サーキットブレーカー)の設定情報
+     */
+    @Data
+    public static class Resilience {
+        /** 呼び出し全体の期限(秒、再試行を含む) */
+        private Integer deadline = 20;
+        /** 1回の試行のタイムアウト(秒) */
+        private Integer attemptTimeout = 10;
+        /** 最大再試行回数 */
+        private Integer maxRetries = 2;
+        /** 再試行の待ち時間の基準値(ミリ秒、再試行毎に倍にする) */
+        private Long baseBackoff = 500L;
+        /** 再試行の待ち時間の上限(ミリ秒) */
+        private Long maxBackoff = 5000L;
+        /** ホスト毎の最大同時送信数 */
+        private Integer maxConcurrentPerHost = 2;
+        /** サーキットブレーカーが開くまでの連続失敗回数 */
+        private Integer failureThreshold = 5;
+        /** サーキットブレーカーが開いている時間(秒) */
+        private Integer openDuration = 60;
     }
-}
\ No newline at end of file
+}
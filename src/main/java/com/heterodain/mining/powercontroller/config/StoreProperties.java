@@ -0,0 +1,79 @@
+package com.heterodain.mining.powercontroller.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ * ローカル保存の設定
+ */
+@Component
+@ConfigurationProperties("store")
+@Data
+public class StoreProperties {
+    /** 計測データ保存の設定 */
+    private Samples samples = new Samples();
+    /** 送信データのスプールの設定 */
+    private Spool spool = new Spool();
+    /** Ambientの過去データのキャッシュの設定 */
+    private AmbientHistory ambientHistory = new AmbientHistory();
+    /** 発電電力の予測の学習状態の保存の設定 */
+    private Forecast forecast = new Forecast();
+
+    /**
+     * 計測データ保存の設定
+     */
+    @Data
+    public static class Samples {
+        /** 保存する場合はtrue */
+        private boolean enabled = true;
+        /** 保存先ディレクトリ */
+        private String directory = "data/samples";
+        /** 保存期間(日) - 生データ */
+        private Integer rawRetentionDays = 7;
+        /** 保存期間(日) - 1分値 */
+        private Integer minuteRetentionDays = 90;
+        /** 保存期間(日) - 15分値 */
+        private Integer fifteenMinutesRetentionDays = 400;
+        /** 保存期間(日) - 1時間値 */
+        private Integer hourRetentionDays = 3650;
+    }
+
+    /**
+     * 送信データのスプールの設定
+     */
+    @Data
+    public static class Spool {
+        /** スプールする場合はtrue */
+        private boolean enabled = true;
+        /** 保存先ディレクトリ */
+        private String directory = "data/spool";
+        /** セグメントファイルのサイズ(KB) */
+        private Integer segmentSize = 256;
+        /** 合計サイズの上限(MB) */
+        private Integer maxSize = 16;
+    }
+
+    /**
+     * Ambientの過去データのキャッシュの設定
+     */
+    @Data
+    public static class AmbientHistory {
+        /** キャッシュする場合はtrue */
+        private boolean enabled = true;
+        /** 保存先ディレクトリ */
+        private String directory = "data/ambient";
+    }
+
+    /**
+     * 発電電力の予測の学習状態の保存の設定
+     */
+    @Data
+    public static class Forecast {
+        /** 保存する場合はtrue */
+        private boolean enabled = true;
+        /** 保存先ディレクトリ */
+        private String directory = "data/forecast";
+    }
+}
@@ -0,0 +1,117 @@
+package com.heterodain.mining.powercontroller.config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 計測データの出力先(シンク)の設定
+ */
+@Component
+@ConfigurationProperties("telemetry")
+@Data
+public class TelemetryProperties {
+    /** Ambient(service.ambientの接続設定を使う) */
+    private Ambient ambient = new Ambient();
+    /** CSVファイル */
+    private Csv csv = new Csv();
+    /** InfluxDBラインプロトコル(UDP) */
+    private Influx influx = new Influx();
+    /** MQTTブローカー */
+    private Mqtt mqtt = new Mqtt();
+
+    /**
+     * キューが一杯の場合の扱い
+     */
+    public static enum OVERFLOW {
+        /** 最も古いデータを破棄して追加 */
+        DROP_OLDEST,
+        /** 追加するデータを破棄 */
+        DROP_NEWEST;
+    }
+
+    /**
+     * シンク共通の設定
+     */
+    @Data
+    public static class Sink {
+        /** 出力する場合はtrue */
+        private boolean enabled;
+        /** 出力間隔(秒、この間の1分値を平均して出力) */
+        private Integer interval = 60;
+        /** 出力待ちのキューの長さ */
+        private Integer queueCapacity = 16;
+        /** キューが一杯の場合の扱い */
+        private OVERFLOW overflow = OVERFLOW.DROP_OLDEST;
+        /** 出力する項目(省略時は全項目) */
+        private List<String> fields = new ArrayList<>();
+    }
+
+    /**
+     * Ambientの設定
+     */
+    @Data
+    @EqualsAndHashCode(callSuper = true)
+    public static class Ambient extends Sink {
+        public Ambient() {
+            setEnabled(true);
+            setInterval(180);
+            setFields(new ArrayList<>(List.of("pvPower", "battVolt", "loadPower", "powerMode", "battTemp")));
+        }
+    }
+
+    /**
+     * CSVファイルの設定
+     */
+    @Data
+    @EqualsAndHashCode(callSuper = true)
+    public static class Csv extends Sink {
+        /** 出力先ディレクトリ(1日1ファイル) */
+        private String directory = "data/telemetry";
+    }
+
+    /**
+     * InfluxDBラインプロトコル(UDP)の設定
+     */
+    @Data
+    @EqualsAndHashCode(callSuper = true)
+    public static class Influx extends Sink {
+        /** 送信先ホスト */
+        private String host = "localhost";
+        /** 送信先ポート */
+        private Integer port = 8089;
+        /** メジャーメント名 */
+        private String measurement = "pv_controller";
+        /** タグ */
+        private Map<String, String> tags = new LinkedHashMap<>();
+    }
+
+    /**
+     * MQTTブローカーの設定
+     */
+    @Data
+    @EqualsAndHashCode(callSuper = true)
+    public static class Mqtt extends Sink {
+        /** ブローカーのホスト */
+        private String host = "localhost";
+        /** ブローカーのポート */
+        private Integer port = 1883;
+        /** クライアントID */
+        private String clientId = "mining-power-controller";
+        /** ユーザー名 */
+        private String username;
+        /** パスワード */
+        private String password;
+        /** トピック */
+        private String topic = "mining-power-controller/telemetry";
+        /** 保持メッセージにする場合はtrue */
+        private boolean retain;
+    }
+}
@@ -1,7 +1,5 @@
 package com.heterodain.mining.powercontroller.device;
 
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
-
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -12,7 +10,7 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class BatteryHeaterDevice {
     /** バッテリーヒーター制御用のGPIO */
-    private GpioPinDigitalOutput battHeaterSw;
+    private DigitalOutputPin battHeaterSw;
 
     /**
      * 稼働状態取得
@@ -1,7 +1,5 @@
 package com.heterodain.mining.powercontroller.device;
 
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
-
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -12,7 +10,7 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class CoolingFanDevice {
     /** 冷却FAN制御用のGPIO */
-    private GpioPinDigitalOutput fanPowerSw;
+    private DigitalOutputPin fanPowerSw;
 
     /**
      * 稼働状態取得
@@ -36,7 +34,7 @@ public class CoolingFanDevice {
      * 停止
      */
     public void stop() {
-        log.info("冷却ファンを始動します。");
+        log.info("冷却ファンを停止します。");
 
         fanPowerSw.low();
     }
@@ -0,0 +1,13 @@
+package com.heterodain.mining.powercontroller.device;
+
+/**
+ * デジタル入力ピン
+ */
+public interface DigitalInputPin {
+    /**
+     * 入力状態取得
+     *
+     * @return true:HIGH, false:LOW
+     */
+    boolean isHigh();
+}
@@ -0,0 +1,23 @@
+package com.heterodain.mining.powercontroller.device;
+
+/**
+ * デジタル出力ピン
+ */
+public interface DigitalOutputPin {
+    /**
+     * HIGH出力
+     */
+    void high();
+
+    /**
+     * LOW出力
+     */
+    void low();
+
+    /**
+     * 出力状態取得
+     *
+     * @return true:HIGH, false:LOW
+     */
+    boolean isHigh();
+}
@@ -0,0 +1,50 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.io.IOException;
+
+/**
+ * GPIO/I2Cのハードウェア実装
+ */
+public interface HardwareBackend {
+    /**
+     * ハードウェアが使用可能かどうか(起動直後の準備完了確認)
+     *
+     * @return 使用可能な場合はtrue
+     */
+    boolean isReady();
+
+    /**
+     * 出力ピンの初期化
+     *
+     * @param pin     ピン番号(WiringPi)
+     * @param name    ピン名
+     * @param initial 初期状態(true:HIGH)
+     * @return 出力ピン
+     * @throws IOException
+     */
+    DigitalOutputPin provisionOutput(int pin, String name, boolean initial) throws IOException;
+
+    /**
+     * 入力ピンの初期化(プルダウン)
+     *
+     * @param pin  ピン番号(WiringPi)
+     * @param name ピン名
+     * @return 入力ピン
+     * @throws IOException
+     */
+    DigitalInputPin provisionInput(int pin, String name) throws IOException;
+
+    /**
+     * I2Cデバイスに接続(バス1)
+     *
+     * @param address アドレス
+     * @return I2Cデバイス
+     * @throws IOException
+     */
+    I2cDevice openI2c(int address) throws IOException;
+
+    /**
+     * 終了処理
+     */
+    void shutdown();
+}
@@ -0,0 +1,19 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.io.IOException;
+
+/**
+ * I2Cデバイス
+ */
+public interface I2cDevice {
+    /**
+     * データ読み込み
+     *
+     * @param buffer 読み込み先
+     * @param offset 読み込み先の開始位置
+     * @param size   読み込むバイト数
+     * @return 読み込んだバイト数
+     * @throws IOException
+     */
+    int read(byte[] buffer, int offset, int size) throws IOException;
+}
@@ -4,8 +4,6 @@ import java.io.IOException;
 
 import javax.xml.bind.DatatypeConverter;
 
-import com.pi4j.io.i2c.I2CDevice;
-
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -16,7 +14,7 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class Lm75aDevice {
     /** I2Cデバイス */
-    private I2CDevice device;
+    private I2cDevice device;
 
     /**
      * 現在の温度取得
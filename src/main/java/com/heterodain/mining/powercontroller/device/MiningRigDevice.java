@@ -1,9 +1,7 @@
 package com.heterodain.mining.powercontroller.device;
 
-import com.pi4j.io.gpio.GpioPinDigitalInput;
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
-
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -12,10 +10,13 @@ import lombok.extern.slf4j.Slf4j;
 @AllArgsConstructor
 @Slf4j
 public class MiningRigDevice {
+    /** 名前 */
+    @Getter
+    private String name;
     /** 電源状態監視用GPIO */
-    private GpioPinDigitalInput pcPowerStatus;
+    private DigitalInputPin pcPowerStatus;
     /** 電源オンオフ制御用GPIO */
-    private GpioPinDigitalOutput pcPowerSw;
+    private DigitalOutputPin pcPowerSw;
 
     /**
      * 稼働状態取得
@@ -27,28 +28,20 @@ public class MiningRigDevice {
     }
 
     /**
-     * 起動
+     * 電源スイッチを押す(起動・停止とも、押してから約300ミリ秒後にreleasePowerSwitch()で離す)
      * 
-     * @throws InterruptedException
+     * @param start 起動の場合はtrue、停止の場合はfalse(ログ出力のみに使用)
      */
-    public void start() throws InterruptedException {
-        log.info("マイニングリグを起動します。");
+    public void pressPowerSwitch(boolean start) {
+        log.info("マイニングリグ({})を{}します。", name, start ? "起動" : "停止");
 
         pcPowerSw.high();
-        Thread.sleep(300);
-        pcPowerSw.low();
     }
 
     /**
-     * 停止
-     * 
-     * @throws InterruptedException
+     * 電源スイッチを離す
      */
-    public void stop() throws InterruptedException {
-        log.info("マイニングリグを停止します。");
-
-        pcPowerSw.high();
-        Thread.sleep(300);
+    public void releasePowerSwitch() {
         pcPowerSw.low();
     }
 }
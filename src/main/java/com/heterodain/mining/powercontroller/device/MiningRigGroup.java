@@ -0,0 +1,46 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * 負荷出力に接続した全マイニングリグ
+ *
+ * 先頭のリグ(主リグ)は電源ON/OFFの条件で負荷出力と共に起動・停止し、2台目以降は余剰電力に応じて起動・停止する。
+ */
+public class MiningRigGroup {
+    /** マイニングリグ(優先度の高い順) */
+    @Getter
+    private final List<MiningRigDevice> rigs;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param rigs マイニングリグ(優先度の高い順、1台以上)
+     */
+    public MiningRigGroup(List<MiningRigDevice> rigs) {
+        if (rigs.isEmpty()) {
+            throw new IllegalArgumentException("マイニングリグが設定されていません。");
+        }
+        this.rigs = List.copyOf(rigs);
+    }
+
+    /**
+     * 主リグ取得
+     * 
+     * @return 先頭のマイニングリグ
+     */
+    public MiningRigDevice getPrimary() {
+        return rigs.get(0);
+    }
+
+    /**
+     * 稼働状態取得
+     * 
+     * @return いずれかのリグが電源ONの場合はtrue
+     */
+    public boolean isAnyStarted() {
+        return rigs.stream().anyMatch(MiningRigDevice::isStarted);
+    }
+}
@@ -0,0 +1,219 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 入力レジスタの読み込みプラン
+ *
+ * 必要なレジスタの集合を、できるだけ少ない連続領域の読み込み要求(ReadInputRegistersRequest)にまとめる。
+ * 隙間がmaxGap以下のレジスタは1つの要求に結合する。
+ * 結合した領域に未定義のレジスタが含まれていて機器が例外応答を返した場合は、その領域だけ分割して読み直し、以降は分割後のプランを使う。
+ */
+@Slf4j
+public class ModbusReadPlan {
+    /** 1要求で読み込める最大レジスタ数(Modbus仕様) */
+    private static final int MAX_REGISTERS_PER_REQUEST = 125;
+
+    /** 読み込むレジスタアドレス(昇順) */
+    private final int[] addresses;
+    /** 先頭アドレス */
+    @Getter
+    private final int baseAddress;
+    /** 読み込み要求の一覧 */
+    private volatile List<Block> blocks;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maxGap    結合するレジスタ間の最大の隙間(レジスタ数)
+     * @param addresses 読み込むレジスタアドレス
+     */
+    public ModbusReadPlan(int maxGap, int... addresses) {
+        this.addresses = Arrays.stream(addresses).distinct().sorted().toArray();
+        this.baseAddress = this.addresses[0];
+        this.blocks = Collections.unmodifiableList(plan(this.addresses, maxGap));
+
+        log.debug("Modbus読み込みプラン: {}", blocks);
+    }
+
+    /**
+     * 読み込み要求の一覧取得
+     *
+     * @return 読み込み要求の一覧
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * 読み込み結果を格納するバッファを生成
+     *
+     * @return バッファ(インデックスは先頭アドレスからのオフセット)
+     */
+    public int[] newBuffer() {
+        return new int[addresses[addresses.length - 1] - baseAddress + 1];
+    }
+
+    /**
+     * プランに従ってレジスタを読み込む
+     *
+     * @param transport 通信路
+     * @param unitId    RS485ユニットID
+     * @param retries   最大試行回数
+     * @param buffer    読み込み結果を格納するバッファ
+     * @throws ModbusException
+     */
+    public void read(ModbusTransport transport, int unitId, int retries, int[] buffer) throws ModbusException {
+        var current = blocks;
+        for (var block : current) {
+            try {
+                readBlock(transport, unitId, retries, block, buffer);
+            } catch (ModbusSlaveException e) {
+                if (block.getSegments().size() <= 1) {
+                    throw e;
+                }
+
+                // 結合した領域が読めない場合は、分割して読み直す
+                log.warn("レジスタ0x{}～の結合読み込みに失敗したため、分割して読み込みます。", Integer.toHexString(block.getStart()));
+                for (var segment : block.getSegments()) {
+                    readBlock(transport, unitId, retries, segment, buffer);
+                }
+                split(block);
+            }
+        }
+    }
+
+    /**
+     * バッファから16bit値取得
+     *
+     * @param buffer  バッファ
+     * @param address レジスタアドレス
+     * @return 値
+     */
+    public int get(int[] buffer, int address) {
+        return buffer[address - baseAddress];
+    }
+
+    /**
+     * バッファから32bit値取得(下位ワードが先)
+     *
+     * @param buffer  バッファ
+     * @param address 下位ワードのレジスタアドレス
+     * @return 値
+     */
+    public long getLong(int[] buffer, int address) {
+        return get(buffer, address) + (long) get(buffer, address + 1) * 0x10000;
+    }
+
+    /**
+     * 1要求分の読み込み
+     */
+    private void readBlock(ModbusTransport transport, int unitId, int retries, Block block, int[] buffer)
+            throws ModbusException {
+        var req = new ReadInputRegistersRequest(block.getStart(), block.getCount());
+        req.setUnitID(unitId);
+
+        var res = (ReadInputRegistersResponse) transport.execute(req, retries);
+        var offset = block.getStart() - baseAddress;
+        for (int i = 0; i < block.getCount(); i++) {
+            buffer[offset + i] = res.getRegisterValue(i);
+        }
+    }
+
+    /**
+     * 結合した領域を分割したプランに置き換える
+     */
+    private synchronized void split(Block block) {
+        var newBlocks = new ArrayList<Block>();
+        for (var b : blocks) {
+            if (b == block) {
+                newBlocks.addAll(b.getSegments());
+            } else {
+                newBlocks.add(b);
+            }
+        }
+        blocks = Collections.unmodifiableList(newBlocks);
+
+        log.info("Modbus読み込みプランを変更しました: {}", blocks);
+    }
+
+    /**
+     * 読み込み要求の組み立て
+     */
+    private static List<Block> plan(int[] addresses, int maxGap) {
+        // 隙間なく連続するレジスタをセグメントにまとめる
+        var segments = new ArrayList<Block>();
+        int start = addresses[0];
+        int end = start;
+        for (int i = 1; i < addresses.length; i++) {
+            if (addresses[i] == end + 1 && addresses[i] - start < MAX_REGISTERS_PER_REQUEST) {
+                end = addresses[i];
+            } else {
+                segments.add(new Block(start, end - start + 1, List.of()));
+                start = end = addresses[i];
+            }
+        }
+        segments.add(new Block(start, end - start + 1, List.of()));
+
+        // 隙間が小さいセグメント同士を1つの要求に結合する
+        var blocks = new ArrayList<Block>();
+        var group = new ArrayList<Block>();
+        for (var segment : segments) {
+            if (!group.isEmpty()) {
+                var first = group.get(0);
+                var last = group.get(group.size() - 1);
+                var gap = segment.getStart() - (last.getStart() + last.getCount());
+                var count = segment.getStart() + segment.getCount() - first.getStart();
+                if (gap > maxGap || count > MAX_REGISTERS_PER_REQUEST) {
+                    blocks.add(merge(group));
+                    group.clear();
+                }
+            }
+            group.add(segment);
+        }
+        blocks.add(merge(group));
+
+        return blocks;
+    }
+
+    /**
+     * セグメントの結合
+     */
+    private static Block merge(List<Block> group) {
+        if (group.size() == 1) {
+            return group.get(0);
+        }
+        var first = group.get(0);
+        var last = group.get(group.size() - 1);
+        return new Block(first.getStart(), last.getStart() + last.getCount() - first.getStart(), List.copyOf(group));
+    }
+
+    /**
+     * 読み込み要求1件分の領域
+     */
+    @AllArgsConstructor
+    @Getter
+    @ToString
+    public static class Block {
+        /** 先頭アドレス */
+        private int start;
+        /** レジスタ数 */
+        private int count;
+        /** 結合前のセグメント(結合していない場合は空) */
+        @ToString.Exclude
+        private List<Block> segments;
+    }
+}
@@ -0,0 +1,34 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.io.IOException;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * Modbus RTUの通信路
+ */
+public interface ModbusTransport {
+    /**
+     * 接続
+     *
+     * @throws IOException
+     */
+    void open() throws IOException;
+
+    /**
+     * 要求を送信して応答を受信
+     *
+     * @param request 要求(ユニットID設定済み)
+     * @param retries 最大試行回数
+     * @return 応答
+     * @throws ModbusException
+     */
+    ModbusResponse execute(ModbusRequest request, int retries) throws ModbusException;
+
+    /**
+     * 切断
+     */
+    void close();
+}
@@ -0,0 +1,103 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CFactory;
+import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * pi4jによるGPIO/I2Cの実装(ラズベリーパイ実機)
+ */
+@Slf4j
+public class Pi4jHardwareBackend implements HardwareBackend {
+    /** GPIOのデバイスファイル(起動直後はudevによる権限設定が終わるまで使えない) */
+    private static final Path GPIO_MEM = Paths.get("/dev/gpiomem");
+
+    @Override
+    public boolean isReady() {
+        if (!Files.isReadable(GPIO_MEM) || !Files.isWritable(GPIO_MEM)) {
+            return false;
+        }
+        try {
+            GpioFactory.getInstance();
+            return true;
+        } catch (RuntimeException | LinkageError e) {
+            log.debug("GPIOの準備ができていません。: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public DigitalOutputPin provisionOutput(int pin, String name, boolean initial) throws IOException {
+        var state = initial ? PinState.HIGH : PinState.LOW;
+        try {
+            var result = GpioFactory.getInstance().provisionDigitalOutputPin(RaspiPin.getPinByAddress(pin), name,
+                    state);
+            result.setShutdownOptions(true, state);
+            return new OutputPin(result);
+        } catch (RuntimeException e) {
+            throw new IOException(name + "の初期化に失敗しました。", e);
+        }
+    }
+
+    @Override
+    public DigitalInputPin provisionInput(int pin, String name) throws IOException {
+        try {
+            var result = GpioFactory.getInstance().provisionDigitalInputPin(RaspiPin.getPinByAddress(pin), name,
+                    PinPullResistance.PULL_DOWN);
+            return result::isHigh;
+        } catch (RuntimeException e) {
+            throw new IOException(name + "の初期化に失敗しました。", e);
+        }
+    }
+
+    @Override
+    public I2cDevice openI2c(int address) throws IOException {
+        try {
+            var device = I2CFactory.getInstance(I2CBus.BUS_1).getDevice(address);
+            return device::read;
+        } catch (UnsupportedBusNumberException e) {
+            throw new IOException("I2Cバスが使用できません。", e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        GpioFactory.getInstance().shutdown();
+    }
+
+    /**
+     * pi4jの出力ピン
+     */
+    @AllArgsConstructor
+    private static class OutputPin implements DigitalOutputPin {
+        private final GpioPinDigitalOutput pin;
+
+        @Override
+        public void high() {
+            pin.high();
+        }
+
+        @Override
+        public void low() {
+            pin.low();
+        }
+
+        @Override
+        public boolean isHigh() {
+            return pin.isHigh();
+        }
+    }
+}
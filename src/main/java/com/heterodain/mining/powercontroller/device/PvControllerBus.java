@@ -0,0 +1,155 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * RS485バス上の複数のPVコントローラーのポーリング
+ *
+ * 全ユニットを間を空けずに順番に読み込む(Modbus RTUは半二重のため、要求の重ね合わせはできない)。
+ * 応答しないユニットは、連続失敗回数に応じてポーリングを間引き(最大MAX_SKIP周期)、他のユニットの読み込みを遅らせないようにする。
+ * 読み込めなかったユニットは、最後に読み込めたデータが MAX_CARRY_MILLIS 以内であればその値を引き継いで合算し、
+ * それより古い場合は合算から外す。どちらの場合も、結果は不完全なデータ({@link BusData#isComplete()}がfalse)とする。
+ * 合算から外したユニットがある場合、合算値はそのユニットの分だけ小さくなるため、電源制御の判定には使えない。
+ */
+@Slf4j
+public class PvControllerBus {
+    /** 応答しないユニットをスキップする最大周期数 */
+    private static final int MAX_SKIP = 32;
+    /** 読み込めなかったユニットの値を引き継ぐ最大時間(ミリ秒) */
+    private static final long MAX_CARRY_MILLIS = 60 * 1000;
+
+    /** PVコントローラーデバイス */
+    private final PvControllerDevice device;
+    /** ユニット毎の状態 */
+    private final Map<Integer, UnitState> units = new LinkedHashMap<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param device  PVコントローラーデバイス
+     * @param unitIds ポーリングするユニットID
+     */
+    public PvControllerBus(PvControllerDevice device, List<Integer> unitIds) {
+        this.device = device;
+        unitIds.forEach(unitId -> units.put(unitId, new UnitState()));
+    }
+
+    /**
+     * ポーリングするユニット数取得
+     *
+     * @return ユニット数
+     */
+    public int getUnitCount() {
+        return units.size();
+    }
+
+    /**
+     * 全ユニットのリアルタイム情報取得
+     *
+     * @param transport 通信路
+     * @return ユニット毎のデータと合算値(1台も読み込めなかった場合はnull)。読み込めなかったユニットは最後の値を引き継ぐ
+     */
+    public synchronized BusData readAll(ModbusTransport transport) {
+        var now = System.currentTimeMillis();
+        var datas = new LinkedHashMap<Integer, RealtimeData>();
+        var carried = new TreeSet<Integer>();
+        var dropped = new TreeSet<Integer>();
+        var read = false;
+        for (var entry : units.entrySet()) {
+            var unitId = entry.getKey();
+            var state = entry.getValue();
+            if (state.skip > 0) {
+                state.skip--;
+            } else {
+                try {
+                    state.last = device.readCurrent(transport, unitId);
+                    state.lastTime = now;
+                    if (state.failures > 0) {
+                        log.info("PVコントローラー(unitId={})の通信が復旧しました。", unitId);
+                    }
+                    state.failures = 0;
+                    state.dropped = false;
+                    datas.put(unitId, state.last);
+                    read = true;
+                    continue;
+                } catch (Exception e) {
+                    state.failures++;
+                    state.skip = Math.min(1 << Math.min(state.failures - 1, 5), MAX_SKIP);
+                    log.warn("PVコントローラー(unitId={})へのアクセスに失敗しました。{}周期スキップします。: {}", unitId, state.skip,
+                            e.getMessage());
+                }
+            }
+
+            // 読み込めなかったユニットは、最後の値を引き継ぐ(古すぎる場合は合算から外す)
+            if (state.last != null && now - state.lastTime <= MAX_CARRY_MILLIS) {
+                log.debug("PVコントローラー(unitId={})の値を引き継ぎます。経過={}ms", unitId, now - state.lastTime);
+                datas.put(unitId, state.last.copy());
+                carried.add(unitId);
+            } else {
+                if (!state.dropped) {
+                    log.warn("PVコントローラー(unitId={})の最新値がないため、合算から外します。", unitId);
+                    state.dropped = true;
+                }
+                dropped.add(unitId);
+            }
+        }
+
+        if (!read) {
+            return null;
+        }
+        return new BusData(Collections.unmodifiableMap(datas), RealtimeData.combine(datas.values()),
+                Collections.unmodifiableSet(carried), Collections.unmodifiableSet(dropped));
+    }
+
+    /**
+     * ユニットの通信状態
+     */
+    private static class UnitState {
+        /** 連続失敗回数 */
+        private int failures;
+        /** 残りスキップ周期数 */
+        private int skip;
+        /** 最後に読み込めたデータ */
+        private RealtimeData last;
+        /** 最後に読み込めた時刻(エポックミリ秒) */
+        private long lastTime;
+        /** 合算から外したことを通知済みの場合はtrue */
+        private boolean dropped;
+    }
+
+    /**
+     * バス全体の読み込み結果
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class BusData {
+        /** ユニット毎のデータ */
+        private Map<Integer, RealtimeData> units;
+        /** 合算値 */
+        private RealtimeData combined;
+        /** 読み込めず、最後の値を引き継いだユニットID(ユニット毎のデータに含む) */
+        private Set<Integer> carriedUnits;
+        /** 読み込めず、合算から外したユニットID(ユニット毎のデータに含まない) */
+        private Set<Integer> droppedUnits;
+
+        /**
+         * 全ユニットを読み込めたかどうか
+         *
+         * @return 全ユニットを読み込めた場合はtrue
+         */
+        public boolean isComplete() {
+            return carriedUnits.isEmpty() && droppedUnits.isEmpty();
+        }
+    }
+}
@@ -1,17 +1,15 @@
 package com.heterodain.mining.powercontroller.device;
 
-import java.util.List;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.ghgande.j2mod.modbus.ModbusException;
-import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
 import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
 import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
-import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
-import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
 import com.ghgande.j2mod.modbus.msg.WriteCoilRequest;
 import com.ghgande.j2mod.modbus.msg.WriteCoilResponse;
-import com.ghgande.j2mod.modbus.net.SerialConnection;
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -25,10 +23,40 @@ import lombok.extern.slf4j.Slf4j;
 @AllArgsConstructor
 @Slf4j
 public class PvControllerDevice {
-    /** RS485ユニットID */
+    /** 発電電力(L,H) */
+    private static final int REG_PV_POWER = 0x3102;
+    /** バッテリー電圧 */
+    private static final int REG_BATT_VOLT = 0x3104;
+    /** 負荷電力(L,H) */
+    private static final int REG_LOAD_POWER = 0x310E;
+    /** バッテリー残量 */
+    private static final int REG_BATT_SOC = 0x311A;
+    /** 充電ステータス */
+    private static final int REG_CHARGING_STATUS = 0x3201;
+
+    /** リアルタイム情報として読み込むレジスタ */
+    private static final int[] REALTIME_REGISTERS = { REG_PV_POWER, REG_PV_POWER + 1, REG_BATT_VOLT, REG_LOAD_POWER,
+            REG_LOAD_POWER + 1, REG_BATT_SOC, REG_CHARGING_STATUS };
+    /** 充電ステージ(インデックスは充電ステータスのビット値) */
+    private static final STAGE[] STAGES = STAGE.values();
+
+    /** RS485ユニットID(負荷出力を制御するユニット) */
     private int unitId;
+    /** 1回の通信の最大試行回数 */
+    private int retries;
     /** 負荷出力抵抗制御用GPIO */
-    private GpioPinDigitalOutput loadPowerRegisterSw;
+    private DigitalOutputPin loadPowerRegisterSw;
+    /**
+     * ユニット毎のリアルタイム情報の読み込みプラン
+     *
+     * 0x3102～0x311A(25レジスタ)を1要求にまとめ、3要求/周期を2要求/周期にする。
+     * 115200bps 8N1(1文字86.8us, フレーム間隔1.75ms)でのバス占有時間は、
+     * 75文字+6フレーム間隔=約17.0ms → 78文字+4フレーム間隔=約13.8ms、加えて機器の応答待ちが3回→2回になる。
+     * 結合読み込みを拒否したユニットのプランだけが分割されるよう、ユニット毎に持つ。
+     */
+    private final Map<Integer, ModbusReadPlan> readPlans = new HashMap<>();
+    /** ユニット毎のレジスタ読み込みバッファ */
+    private final Map<Integer, int[]> registerBuffers = new HashMap<>();
 
     /**
      * 負荷出力抵抗ON
@@ -51,44 +79,34 @@ public class PvControllerDevice {
     /**
      * リアルタイム情報取得
      * 
-     * @param conn シリアル接続
+     * @param transport 通信路
      * @return リアルタイム情報
      * @throws ModbusException
      */
-    public synchronized RealtimeData readCurrent(SerialConnection conn) throws ModbusException {
-        // 電力と電圧の瞬時値取得
-        var req = new ReadInputRegistersRequest(0x3100, 16);
-        req.setUnitID(unitId);
-        var tr = new ModbusSerialTransaction(conn);
-        tr.setRequest(req);
-        tr.execute();
+    public RealtimeData readCurrent(ModbusTransport transport) throws ModbusException {
+        return readCurrent(transport, unitId);
+    }
 
-        var res = (ReadInputRegistersResponse) tr.getResponse();
+    /**
+     * リアルタイム情報取得
+     * 
+     * @param transport 通信路
+     * @param unitId    RS485ユニットID
+     * @return リアルタイム情報
+     * @throws ModbusException
+     */
+    public synchronized RealtimeData readCurrent(ModbusTransport transport, int unitId) throws ModbusException {
+        // 電力・電圧の瞬時値、バッテリー残量、充電ステージをまとめて取得
+        var plan = readPlans.computeIfAbsent(unitId, k -> new ModbusReadPlan(16, REALTIME_REGISTERS));
+        var registers = registerBuffers.computeIfAbsent(unitId, k -> plan.newBuffer());
+        plan.read(transport, unitId, retries, registers);
 
         var data = new RealtimeData();
-        data.pvPower = ((double) res.getRegisterValue(2) + res.getRegisterValue(3) * 0x10000) / 100;
-        data.loadPower = ((double) res.getRegisterValue(14) + res.getRegisterValue(15) * 0x10000) / 100;
-        data.battVolt = ((double) res.getRegisterValue(4)) / 100;
-
-        // バッテリー残量取得
-        req = new ReadInputRegistersRequest(0x311A, 1);
-        req.setUnitID(unitId);
-        tr = new ModbusSerialTransaction(conn);
-        tr.setRequest(req);
-        tr.execute();
-
-        res = (ReadInputRegistersResponse) tr.getResponse();
-        data.battSOC = ((double) res.getRegisterValue(0));
-
-        // 充電ステージ取得
-        req = new ReadInputRegistersRequest(0x3201, 1);
-        req.setUnitID(unitId);
-        tr = new ModbusSerialTransaction(conn);
-        tr.setRequest(req);
-        tr.execute();
-
-        res = (ReadInputRegistersResponse) tr.getResponse();
-        data.stage = STAGE.values()[(res.getRegisterValue(0) >> 2) & 0x0003];
+        data.pvPower = ((double) plan.getLong(registers, REG_PV_POWER)) / 100;
+        data.loadPower = ((double) plan.getLong(registers, REG_LOAD_POWER)) / 100;
+        data.battVolt = ((double) plan.get(registers, REG_BATT_VOLT)) / 100;
+        data.battSOC = ((double) plan.get(registers, REG_BATT_SOC));
+        data.stage = STAGES[(plan.get(registers, REG_CHARGING_STATUS) >> 2) & 0x0003];
 
         log.trace("{}", data);
 
@@ -98,18 +116,14 @@ public class PvControllerDevice {
     /**
      * 負荷出力スイッチ状態取得
      * 
-     * @param conn シリアル接続
+     * @param transport 通信路
      * @return true:スイッチON,false:スイッチOFF
      * @throws ModbusException
      */
-    public synchronized boolean readLoadSwitch(SerialConnection conn) throws ModbusException {
+    public synchronized boolean readLoadSwitch(ModbusTransport transport) throws ModbusException {
         var req = new ReadCoilsRequest(2, 1);
         req.setUnitID(unitId);
-        ModbusSerialTransaction tr = new ModbusSerialTransaction(conn);
-        tr.setRequest(req);
-        tr.execute();
-
-        var res = (ReadCoilsResponse) tr.getResponse();
+        var res = (ReadCoilsResponse) transport.execute(req, retries);
         log.trace("Coil={}", res.getCoilStatus(0));
 
         return res.getCoilStatus(0);
@@ -118,22 +132,18 @@ public class PvControllerDevice {
     /**
      * 負荷出力スイッチON/OFF
      * 
-     * @param conn シリアル接続
+     * @param transport 通信路
      * @param sw   ture:スイッチON,false:スイッチOFF
      * @throws ModbusException
      */
-    public synchronized void changeLoadSwith(SerialConnection conn, boolean sw)
+    public synchronized void changeLoadSwith(ModbusTransport transport, boolean sw)
             throws ModbusException {
         log.info("負荷出力を{}します。", sw ? "ON" : "OFF");
 
         var req = new WriteCoilRequest(2, sw);
         req.setUnitID(unitId);
         // req.setDataLength(1);
-        ModbusSerialTransaction tr = new ModbusSerialTransaction(conn);
-        tr.setRequest(req);
-        tr.execute();
-
-        var res = (WriteCoilResponse) tr.getResponse();
+        var res = (WriteCoilResponse) transport.execute(req, retries);
         log.trace("Coil={}", res.getCoil());
     }
 
@@ -154,22 +164,42 @@ public class PvControllerDevice {
         private Double battSOC;
         /** 充電ステージ */
         private STAGE stage;
+        /** データが代表する期間(秒) */
+        private Double duration;
 
         /**
-         * データの平均値取得
+         * コピー作成(データが代表する期間は含めない)
+         *
+         * @return コピー
+         */
+        public RealtimeData copy() {
+            var copy = new RealtimeData();
+            copy.pvPower = pvPower;
+            copy.battVolt = battVolt;
+            copy.loadPower = loadPower;
+            copy.battSOC = battSOC;
+            copy.stage = stage;
+            return copy;
+        }
+
+        /**
+         * 複数のチャージコントローラーのデータを合算
+         * 
+         * 発電電力・負荷電力は合計、バッテリー電圧・残量・充電ステージは最も低い値を採用する。
          * 
-         * @param datas データ
-         * @return 平均値
+         * @param datas チャージコントローラー毎のデータ
+         * @return 合算値
          */
-        public static RealtimeData summary(List<RealtimeData> datas) {
-            var summary = new RealtimeData();
-            summary.setPvPower(datas.stream().mapToDouble(RealtimeData::getPvPower).average().orElse(0D));
-            summary.setBattVolt(datas.stream().mapToDouble(RealtimeData::getBattVolt).average().orElse(0D));
-            summary.setLoadPower(datas.stream().mapToDouble(RealtimeData::getLoadPower).average().orElse(0D));
-            summary.setBattSOC(datas.stream().mapToDouble(RealtimeData::getBattSOC).average().orElse(0D));
-            summary.setStage(datas.stream().map(d -> d.getStage()).reduce((a, b) -> b).orElse(null));
-
-            return summary;
+        public static RealtimeData combine(Collection<RealtimeData> datas) {
+            var combined = new RealtimeData();
+            combined.setPvPower(datas.stream().mapToDouble(RealtimeData::getPvPower).sum());
+            combined.setLoadPower(datas.stream().mapToDouble(RealtimeData::getLoadPower).sum());
+            combined.setBattVolt(datas.stream().mapToDouble(RealtimeData::getBattVolt).min().orElse(0D));
+            combined.setBattSOC(datas.stream().mapToDouble(RealtimeData::getBattSOC).min().orElse(0D));
+            combined.setStage(datas.stream().map(RealtimeData::getStage)
+                    .min(Comparator.comparingInt(STAGE::getIndex)).orElse(null));
+
+            return combined;
         }
     }
 
@@ -1,73 +1,181 @@
 package com.heterodain.mining.powercontroller.device;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-import com.pi4j.io.gpio.GpioFactory;
-import com.pi4j.io.gpio.GpioPinDigitalInput;
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
-import com.pi4j.io.gpio.Pin;
-import com.pi4j.io.gpio.PinPullResistance;
-import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
-import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+import com.heterodain.mining.powercontroller.config.DeviceProperties.Gpio;
+import com.heterodain.mining.powercontroller.config.DeviceProperties.Rig;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * ラズベリーパイデバイス
+ *
+ * GPIOが使用可能になるまで短い間隔で確認してから、全ピンとI2Cデバイスを並行して初期化する。
+ * 初期化に失敗したピンは、間隔を倍にしながら(最大MAX_BACKOFFミリ秒)タイムアウトまでリトライする。
  */
 @Component
 @Slf4j
 public class RaspberryPiDevice {
+    /** リトライ間隔の初期値(ミリ秒) */
+    private static final long MIN_BACKOFF = 50;
+    /** リトライ間隔の最大値(ミリ秒) */
+    private static final long MAX_BACKOFF = 2000;
 
-    public synchronized GpioPinDigitalOutput initOutputGPIO(Pin pin, String name, PinState initial)
-            throws InterruptedException {
-        log.info("GPIOを初期化します。{}", pin);
+    @Autowired
+    private HardwareBackend hardwareBackend;
 
-        var gpioController = GpioFactory.getInstance();
-        while (true) {
-            Thread.sleep(3000);
-            try {
-                var result = gpioController.provisionDigitalOutputPin(pin, name, initial);
-                result.setShutdownOptions(true, initial);
-                return result;
-            } catch (Exception e) {
-                log.warn("", e);
-                log.warn("{}の初期化に失敗しました。リトライします。", pin);
+    /**
+     * 全GPIOピンとI2Cデバイスの初期化
+     *
+     * @param gpio       GPIOの設定
+     * @param rigs       マイニングリグの設定
+     * @param i2cAddress 温度センサーのI2Cアドレス
+     * @return 初期化したピンとデバイス
+     * @throws InterruptedException
+     * @throws IOException          タイムアウトまでに初期化できなかった場合
+     */
+    public Hardware provision(Gpio gpio, List<Rig> rigs, int i2cAddress) throws InterruptedException, IOException {
+        var start = System.currentTimeMillis();
+        var deadline = start + gpio.getProvisionTimeout() * 1000L;
+
+        awaitReady(deadline);
+
+        var executor = Executors.newFixedThreadPool(4 + rigs.size() * 2);
+        try {
+            var pcPowerStatuses = new ArrayList<CompletableFuture<DigitalInputPin>>();
+            var pcPowerSws = new ArrayList<CompletableFuture<DigitalOutputPin>>();
+            for (var rig : rigs) {
+                // リグが1台の場合は従来どおりのピン名
+                var suffix = rigs.size() == 1 ? "" : "(" + rig.getName() + ")";
+                pcPowerStatuses.add(CompletableFuture.supplyAsync(() -> retry("PC_POWER_STATUS" + suffix, deadline,
+                        () -> hardwareBackend.provisionInput(rig.getPcPowerStatus(), "PC_POWER_STATUS" + suffix)),
+                        executor));
+                pcPowerSws.add(provisionOutput(rig.getPcPowerSw(), "PC_POWER_SW" + suffix, deadline, executor));
+            }
+            var fanPowerSw = provisionOutput(gpio.getFanPowerSw(), "FAN_POWER_SW", deadline, executor);
+            var battHeaterSw = provisionOutput(gpio.getBattHeaterSw(), "BATT_HEATER_SW", deadline, executor);
+            var loadPowerRegSw = provisionOutput(gpio.getLoadPowerRegSw(), "LOAD_POWER_REG_SW", deadline, executor);
+            var lm75a = CompletableFuture.supplyAsync(() -> retry(String.format("I2C(0x%02x)", i2cAddress),
+                    deadline, () -> hardwareBackend.openI2c(i2cAddress)), executor);
+
+            var statuses = new ArrayList<DigitalInputPin>();
+            for (var pcPowerStatus : pcPowerStatuses) {
+                statuses.add(pcPowerStatus.get());
+            }
+            var switches = new ArrayList<DigitalOutputPin>();
+            for (var pcPowerSw : pcPowerSws) {
+                switches.add(pcPowerSw.get());
             }
+            var result = new Hardware(statuses, switches, fanPowerSw.get(), battHeaterSw.get(), loadPowerRegSw.get(),
+                    lm75a.get());
+            log.info("GPIOとI2Cデバイスを初期化しました。({}ms)", System.currentTimeMillis() - start);
+            return result;
+
+        } catch (ExecutionException e) {
+            var cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    public synchronized GpioPinDigitalInput initInputGPIO(Pin pin, String name, PinPullResistance pull)
-            throws InterruptedException {
-        log.info("GPIOを初期化します。{}", pin);
+    public synchronized void shutdown() {
+        log.info("GPIOをシャットダウンします。");
 
-        var gpioController = GpioFactory.getInstance();
-        while (true) {
-            Thread.sleep(3000);
-            try {
-                return gpioController.provisionDigitalInputPin(pin, name, pull);
-            } catch (Exception e) {
-                log.warn("", e);
-                log.warn("{}の初期化に失敗しました。リトライします。", pin);
+        hardwareBackend.shutdown();
+    }
+
+    /**
+     * GPIOが使用可能になるまで待つ
+     */
+    private void awaitReady(long deadline) throws InterruptedException, IOException {
+        var backoff = MIN_BACKOFF;
+        while (!hardwareBackend.isReady()) {
+            if (System.currentTimeMillis() + backoff > deadline) {
+                throw new IOException("GPIOが使用可能になりませんでした。");
             }
+            log.debug("GPIOの準備を待っています。");
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
         }
     }
 
-    public I2CDevice initI2cDevice(int address) throws UnsupportedBusNumberException, IOException {
-        log.info("I2Cデバイスに接続します。address={}", String.format("0x%02x", address));
+    /**
+     * 出力ピンの初期化(LOW)
+     */
+    private CompletableFuture<DigitalOutputPin> provisionOutput(int pin, String name, long deadline,
+            Executor executor) {
+        return CompletableFuture.supplyAsync(
+                () -> retry(name, deadline, () -> hardwareBackend.provisionOutput(pin, name, false)), executor);
+    }
+
+    /**
+     * 初期化が成功するまでリトライ
+     */
+    private <T> T retry(String name, long deadline, Provisioner<T> provisioner) {
+        log.info("{}を初期化します。", name);
+
+        var backoff = MIN_BACKOFF;
+        while (true) {
+            try {
+                return provisioner.provision();
+            } catch (IOException e) {
+                if (System.currentTimeMillis() + backoff > deadline) {
+                    throw new CompletionException(e);
+                }
+                log.warn("{}の初期化に失敗しました。{}ms後にリトライします。: {}", name, backoff, e.getMessage());
+            }
 
-        var bus = I2CFactory.getInstance(I2CBus.BUS_1);
-        return bus.getDevice(address);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(new IOException(name + "の初期化が中断されました。", e));
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
     }
 
-    public synchronized void shutdown() {
-        log.info("GPIOをシャットダウンします。");
+    /**
+     * 1つのピン(デバイス)の初期化処理
+     */
+    @FunctionalInterface
+    private static interface Provisioner<T> {
+        T provision() throws IOException;
+    }
 
-        GpioFactory.getInstance().shutdown();
+    /**
+     * 初期化したピンとデバイス
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class Hardware {
+        /** PC電源状態監視用GPIO(リグの設定順) */
+        private List<DigitalInputPin> pcPowerStatuses;
+        /** PC電源オンオフ制御用GPIO(リグの設定順) */
+        private List<DigitalOutputPin> pcPowerSws;
+        /** 冷却FAN制御用GPIO */
+        private DigitalOutputPin fanPowerSw;
+        /** バッテリーヒーター制御用GPIO */
+        private DigitalOutputPin battHeaterSw;
+        /** 負荷出力抵抗制御用GPIO */
+        private DigitalOutputPin loadPowerRegSw;
+        /** 温度センサーのI2Cデバイス */
+        private I2cDevice lm75a;
     }
 }
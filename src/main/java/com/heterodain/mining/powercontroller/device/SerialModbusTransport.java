@@ -0,0 +1,71 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.io.IOException;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.SerialConnection;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * RS485シリアル接続によるModbus RTUの通信路
+ */
+@Slf4j
+public class SerialModbusTransport implements ModbusTransport {
+    /** シリアル通信ポート名 */
+    private final String comPort;
+    /** 応答タイムアウト(ミリ秒) */
+    private final int timeout;
+    /** RS485シリアル接続 */
+    private SerialConnection conn;
+
+    /**
+     * コンストラクタ
+     *
+     * @param comPort シリアル通信ポート名
+     * @param timeout 応答タイムアウト(ミリ秒)
+     */
+    public SerialModbusTransport(String comPort, int timeout) {
+        this.comPort = comPort;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void open() throws IOException {
+        log.info("PVコントローラーに接続します。port={}", comPort);
+
+        var serialParam = new SerialParameters();
+        serialParam.setPortName(comPort);
+        serialParam.setBaudRate(115200);
+        serialParam.setDatabits(8);
+        serialParam.setParity("None");
+        serialParam.setStopbits(1);
+        serialParam.setEncoding("rtu");
+        serialParam.setEcho(false);
+        conn = new SerialConnection(serialParam);
+        conn.open();
+        conn.setTimeout(timeout);
+    }
+
+    @Override
+    public ModbusResponse execute(ModbusRequest request, int retries) throws ModbusException {
+        var tr = new ModbusSerialTransaction(conn);
+        tr.setRetries(retries);
+        tr.setRequest(request);
+        tr.execute();
+        return tr.getResponse();
+    }
+
+    @Override
+    public void close() {
+        if (conn != null) {
+            log.info("PVコントローラーを切断します。");
+            conn.close();
+            conn = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.heterodain.mining.powercontroller.config.DeviceProperties.HardwareSimulator;
+import com.heterodain.mining.powercontroller.config.DeviceProperties.Rig;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * メモリ上でGPIO/I2Cを模擬する実装(ラズベリーパイ以外での動作確認用)
+ *
+ * 出力ピンは状態を保持するだけで、PC電源スイッチのパルス(HIGH→LOW)で同じリグのPC電源状態の入力ピンを反転させる。
+ * LM75Aは設定した温度を返す。
+ */
+@Slf4j
+public class SimulatedHardwareBackend implements HardwareBackend {
+    /** シミュレーター設定 */
+    private final HardwareSimulator config;
+    /** PC電源スイッチのピン番号毎の、PC電源状態のピン番号 */
+    private final Map<Integer, Integer> powerStatusPins = new HashMap<>();
+    /** ピン番号毎の状態 */
+    private final Map<Integer, Boolean> states = new ConcurrentHashMap<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param config シミュレーター設定
+     * @param rigs   マイニングリグの設定
+     */
+    public SimulatedHardwareBackend(HardwareSimulator config, List<Rig> rigs) {
+        this.config = config;
+        for (var rig : rigs) {
+            powerStatusPins.put(rig.getPcPowerSw(), rig.getPcPowerStatus());
+            states.put(rig.getPcPowerStatus(), config.isPcPowerOn());
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public DigitalOutputPin provisionOutput(int pin, String name, boolean initial) {
+        states.put(pin, initial);
+        return new DigitalOutputPin() {
+            @Override
+            public void high() {
+                set(pin, name, true);
+            }
+
+            @Override
+            public void low() {
+                set(pin, name, false);
+            }
+
+            @Override
+            public boolean isHigh() {
+                return states.get(pin);
+            }
+        };
+    }
+
+    @Override
+    public DigitalInputPin provisionInput(int pin, String name) {
+        states.putIfAbsent(pin, false);
+        return () -> states.get(pin);
+    }
+
+    @Override
+    public I2cDevice openI2c(int address) {
+        return (buffer, offset, size) -> {
+            // LM75Aの温度レジスタ(1/256℃単位の16bit)
+            var raw = (int) Math.round(config.getTemperature() * 256D);
+            var bytes = new byte[] { (byte) (raw >> 8), (byte) raw };
+            var length = Math.min(size, bytes.length);
+            System.arraycopy(bytes, 0, buffer, offset, length);
+            return length;
+        };
+    }
+
+    @Override
+    public void shutdown() {
+        states.clear();
+    }
+
+    /**
+     * 出力ピンの状態変更
+     */
+    private void set(int pin, String name, boolean high) {
+        var previous = states.put(pin, high);
+        log.debug("シミュレーター: {}={}", name, high ? "HIGH" : "LOW");
+
+        var statusPin = powerStatusPins.get(pin);
+        if (statusPin != null && Boolean.TRUE.equals(previous) && !high) {
+            states.compute(statusPin, (k, v) -> !Boolean.TRUE.equals(v));
+            log.debug("シミュレーター: {}のパルスでPC電源={}", name, states.get(statusPin) ? "ON" : "OFF");
+        }
+    }
+}
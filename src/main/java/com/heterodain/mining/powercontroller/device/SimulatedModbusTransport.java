@@ -0,0 +1,277 @@
+package com.heterodain.mining.powercontroller.device;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.WriteCoilRequest;
+import com.ghgande.j2mod.modbus.msg.WriteCoilResponse;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
+import com.heterodain.mining.powercontroller.config.DeviceProperties.Simulator;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Epeverチャージコントローラーのシミュレーター
+ *
+ * 実機で使っている入力レジスタ(0x3100～0x311F, 0x3200～0x3202)とコイル(2:負荷出力)を模擬する。
+ * 発電電力は時刻毎の発電量カーブを線形補間し、バッテリー残量は(発電電力-負荷電力)を積算して求める。
+ * 応答遅延を設定でき、オフラインに設定したユニットは応答タイムアウトになる。
+ */
+@Slf4j
+public class SimulatedModbusTransport implements ModbusTransport {
+    /** 負荷出力のコイル番号 */
+    private static final int LOAD_COIL = 2;
+
+    /** シミュレーター設定 */
+    private final Simulator config;
+    /** 応答タイムアウト(ミリ秒) */
+    private final int timeout;
+    /** 時刻毎の発電電力(W) */
+    private final NavigableMap<Integer, Double> pvProfile = new TreeMap<>();
+    /** ユニット毎の状態 */
+    private final Map<Integer, UnitModel> units = new HashMap<>();
+    /** オフラインのユニットID */
+    private final Set<Integer> offlineUnitIds;
+    /** シミュレーション開始時の実時刻 */
+    private long startRealTime;
+    /** シミュレーション開始時の模擬時刻 */
+    private LocalDateTime startSimTime;
+
+    /**
+     * コンストラクタ
+     *
+     * @param config  シミュレーター設定
+     * @param unitIds 模擬するユニットID
+     * @param timeout 応答タイムアウト(ミリ秒)
+     */
+    public SimulatedModbusTransport(Simulator config, Iterable<Integer> unitIds, int timeout) {
+        this.config = config;
+        this.timeout = timeout;
+        this.offlineUnitIds = Set.copyOf(config.getOfflineUnitIds());
+        for (var point : config.getPvProfile()) {
+            var kv = point.split("=");
+            pvProfile.put(LocalTime.parse(kv[0].trim()).toSecondOfDay(), Double.parseDouble(kv[1].trim()));
+        }
+        for (var unitId : unitIds) {
+            units.put(unitId, new UnitModel(config.getInitialSoc()));
+        }
+    }
+
+    @Override
+    public synchronized void open() {
+        log.info("PVコントローラーのシミュレーターを開始します。units={}", units.keySet());
+
+        startRealTime = System.currentTimeMillis();
+        startSimTime = config.getStartTime() == null ? LocalDateTime.now()
+                : LocalDateTime.now().with(LocalTime.parse(config.getStartTime()));
+        units.values().forEach(unit -> unit.lastUpdate = startSimTime);
+    }
+
+    @Override
+    public ModbusResponse execute(ModbusRequest request, int retries) throws ModbusException {
+        var unit = units.get(request.getUnitID());
+        if (unit == null || offlineUnitIds.contains(request.getUnitID())) {
+            sleep(timeout);
+            throw new ModbusIOException("I/O exception - failed to read response for request [%s]",
+                    request.getHexMessage());
+        }
+        sleep(config.getLatency());
+
+        ModbusResponse response;
+        synchronized (this) {
+            unit.update(now());
+            response = respond(unit, request);
+        }
+        response.setUnitID(request.getUnitID());
+        return response;
+    }
+
+    @Override
+    public void close() {
+        log.info("PVコントローラーのシミュレーターを終了します。");
+    }
+
+    /**
+     * 要求に応じた応答の生成
+     */
+    private ModbusResponse respond(UnitModel unit, ModbusRequest request) throws ModbusException {
+        if (request instanceof ReadInputRegistersRequest) {
+            var req = (ReadInputRegistersRequest) request;
+            var registers = new InputRegister[req.getWordCount()];
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = new SimpleInputRegister(unit.readRegister(req.getReference() + i));
+            }
+            return new ReadInputRegistersResponse(registers);
+
+        } else if (request instanceof ReadCoilsRequest) {
+            var req = (ReadCoilsRequest) request;
+            var res = new ReadCoilsResponse(req.getBitCount());
+            for (int i = 0; i < req.getBitCount(); i++) {
+                res.setCoilStatus(i, req.getReference() + i == LOAD_COIL && unit.loadOn);
+            }
+            return res;
+
+        } else if (request instanceof WriteCoilRequest) {
+            var req = (WriteCoilRequest) request;
+            if (req.getReference() != LOAD_COIL) {
+                throw new ModbusSlaveException(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+            }
+            unit.loadOn = req.getCoil();
+            log.debug("シミュレーター: unitId={} 負荷出力={}", request.getUnitID(), unit.loadOn ? "ON" : "OFF");
+            return new WriteCoilResponse(req.getReference(), req.getCoil());
+        }
+
+        throw new ModbusSlaveException(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+    }
+
+    /**
+     * 現在の模擬時刻
+     */
+    private LocalDateTime now() {
+        var elapsed = (long) ((System.currentTimeMillis() - startRealTime) * config.getTimeScale());
+        return startSimTime.plusNanos(elapsed * 1_000_000L);
+    }
+
+    /**
+     * 模擬時刻の発電電力(W)
+     */
+    private double pvPowerAt(LocalDateTime time) {
+        if (pvProfile.isEmpty()) {
+            return 0D;
+        }
+        var sec = time.toLocalTime().toSecondOfDay();
+        var lower = pvProfile.floorEntry(sec);
+        var upper = pvProfile.ceilingEntry(sec);
+        if (lower == null) {
+            return upper.getValue();
+        }
+        if (upper == null || upper.getKey().equals(lower.getKey())) {
+            return lower.getValue();
+        }
+        var ratio = (double) (sec - lower.getKey()) / (upper.getKey() - lower.getKey());
+        return lower.getValue() + (upper.getValue() - lower.getValue()) * ratio;
+    }
+
+    private static void sleep(long millis) throws ModbusIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("interrupted", e);
+        }
+    }
+
+    /**
+     * 1ユニット分の状態
+     */
+    private class UnitModel {
+        /** バッテリー残量(%) */
+        private double soc;
+        /** 負荷出力 */
+        private boolean loadOn;
+        /** 発電電力(W) */
+        private double pvPower;
+        /** 負荷電力(W) */
+        private double loadPower;
+        /** 充電ステージ */
+        private STAGE stage = STAGE.NO_CHARGING;
+        /** 最終更新時刻(模擬時刻) */
+        private LocalDateTime lastUpdate;
+
+        UnitModel(double soc) {
+            this.soc = soc;
+        }
+
+        /**
+         * 経過時間分の充放電を反映
+         */
+        void update(LocalDateTime now) {
+            var hours = Duration.between(lastUpdate, now).toMillis() / 3_600_000D;
+            lastUpdate = now;
+
+            loadPower = loadOn ? config.getLoadPower() : 0D;
+            var available = pvPowerAt(now);
+            // 満充電時は負荷分だけ発電する
+            pvPower = soc >= 100D ? Math.min(available, loadPower) : available;
+            soc += (pvPower - loadPower) * hours / config.getBatteryCapacity() * 100D;
+            soc = Math.max(0D, Math.min(100D, soc));
+
+            if (pvPower <= 0D) {
+                stage = STAGE.NO_CHARGING;
+            } else if (soc >= 100D) {
+                stage = STAGE.FLOAT;
+            } else {
+                stage = STAGE.BOOST;
+            }
+        }
+
+        /**
+         * 入力レジスタの値(実機の単位・倍率に合わせる)
+         */
+        int readRegister(int address) throws ModbusSlaveException {
+            var battVolt = config.getEmptyVoltage() + (config.getFullVoltage() - config.getEmptyVoltage()) * soc / 100D
+                    + (stage == STAGE.NO_CHARGING ? 0D : 0.3D);
+            var pvVolt = pvPower > 0D ? config.getPvVoltage() : 0D;
+            var pv = Math.round(pvPower * 100);
+            var load = Math.round(loadPower * 100);
+            switch (address) {
+            case 0x3100:
+                return (int) Math.round(pvVolt * 100);
+            case 0x3101:
+                return pvVolt > 0D ? (int) Math.round(pvPower / pvVolt * 100) : 0;
+            case 0x3102:
+                return (int) (pv & 0xFFFF);
+            case 0x3103:
+                return (int) (pv >> 16);
+            case 0x3104:
+            case 0x310C:
+                return (int) Math.round(battVolt * 100);
+            case 0x3105:
+                return (int) Math.round(pvPower / battVolt * 100);
+            case 0x3106:
+                return (int) (pv & 0xFFFF);
+            case 0x3107:
+                return (int) (pv >> 16);
+            case 0x310D:
+                return (int) Math.round(loadPower / battVolt * 100);
+            case 0x310E:
+                return (int) (load & 0xFFFF);
+            case 0x310F:
+                return (int) (load >> 16);
+            case 0x3110:
+            case 0x3111:
+                return 2500;
+            case 0x311A:
+                return (int) Math.round(soc);
+            case 0x3201:
+                return stage.ordinal() << 2;
+            default:
+                if ((address >= 0x3100 && address <= 0x311F) || (address >= 0x3200 && address <= 0x3202)) {
+                    return 0;
+                }
+                throw new ModbusSlaveException(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+            }
+        }
+    }
+}
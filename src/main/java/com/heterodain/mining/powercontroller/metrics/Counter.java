@@ -0,0 +1,41 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * カウンター
+ */
+public class Counter implements Metric {
+    /** 値 */
+    private final LongAdder value = new LongAdder();
+
+    /**
+     * 1加算
+     */
+    public void inc() {
+        value.increment();
+    }
+
+    /**
+     * 値の加算
+     *
+     * @param amount 加算する値
+     */
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    /**
+     * 現在値取得
+     *
+     * @return 現在値
+     */
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+        Metric.sample(out, name, labels, null, get());
+    }
+}
@@ -0,0 +1,25 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * ゲージ(出力時に現在値を取得する)
+ */
+public class Gauge implements Metric {
+    /** 現在値の取得処理 */
+    private final DoubleSupplier value;
+
+    /**
+     * コンストラクタ
+     *
+     * @param value 現在値の取得処理
+     */
+    public Gauge(DoubleSupplier value) {
+        this.value = value;
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+        Metric.sample(out, name, labels, null, value.getAsDouble());
+    }
+}
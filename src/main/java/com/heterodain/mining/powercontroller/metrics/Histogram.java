@@ -0,0 +1,83 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ヒストグラム(固定バケット)
+ *
+ * バケット毎の件数は累積せずに保持し、出力時に累積する。記録はバケットの線形探索と加算だけで、オブジェクトを生成しない。
+ */
+public class Histogram implements Metric {
+    /** 処理時間用のバケット(秒) */
+    public static final double[] TIME_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+            5, 10, 30, 60 };
+
+    /** バケットの上限値(昇順) */
+    private final double[] bounds;
+    /** バケット毎の件数(最後は上限なし) */
+    private final LongAdder[] counts;
+    /** 合計値 */
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * コンストラクタ
+     *
+     * @param bounds バケットの上限値(昇順)
+     */
+    public Histogram(double[] bounds) {
+        this.bounds = bounds;
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 値の記録
+     *
+     * @param value 値
+     */
+    public void observe(double value) {
+        var i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * 経過時間の記録(秒に換算)
+     *
+     * @param nanos 経過時間(ナノ秒)
+     */
+    public void observeNanos(long nanos) {
+        observe(nanos / 1_000_000_000D);
+    }
+
+    /**
+     * 記録件数取得
+     *
+     * @return 記録件数
+     */
+    public long getCount() {
+        var total = 0L;
+        for (var count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+        var cumulative = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i].sum();
+            var le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+            Metric.sample(out, name + "_bucket", labels, "le=\"" + le + "\"", cumulative);
+        }
+        Metric.sample(out, name + "_sum", labels, null, sum.sum());
+        Metric.sample(out, name + "_count", labels, null, cumulative);
+    }
+}
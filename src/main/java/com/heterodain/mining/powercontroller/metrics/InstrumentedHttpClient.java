@@ -0,0 +1,132 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.PushPromiseHandler;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * 計測付きのHTTPクライアント
+ *
+ * 送信先ホスト・メソッド毎に、応答時間、ステータスコード毎の応答数、通信エラー数を記録する。
+ */
+public class InstrumentedHttpClient extends HttpClient {
+    /** 計測対象のHTTPクライアント */
+    private final HttpClient delegate;
+    /** メトリクス */
+    private final MetricsRegistry metricsRegistry;
+
+    /**
+     * コンストラクタ
+     *
+     * @param delegate        計測対象のHTTPクライアント
+     * @param metricsRegistry メトリクス
+     */
+    public InstrumentedHttpClient(HttpClient delegate, MetricsRegistry metricsRegistry) {
+        this.delegate = delegate;
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> responseBodyHandler)
+            throws IOException, InterruptedException {
+        var start = System.nanoTime();
+        try {
+            var response = delegate.send(request, responseBodyHandler);
+            record(request, response, null, System.nanoTime() - start);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            record(request, null, e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+            BodyHandler<T> responseBodyHandler) {
+        var start = System.nanoTime();
+        return delegate.sendAsync(request, responseBodyHandler)
+                .whenComplete((response, e) -> record(request, response, e, System.nanoTime() - start));
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> responseBodyHandler,
+            PushPromiseHandler<T> pushPromiseHandler) {
+        var start = System.nanoTime();
+        return delegate.sendAsync(request, responseBodyHandler, pushPromiseHandler)
+                .whenComplete((response, e) -> record(request, response, e, System.nanoTime() - start));
+    }
+
+    private void record(HttpRequest request, HttpResponse<?> response, Throwable error, long nanos) {
+        var host = String.valueOf(request.uri().getHost());
+        var method = request.method();
+        metricsRegistry.histogram("http_client_request_duration_seconds", "外部APIの応答時間", Histogram.TIME_BUCKETS,
+                "host", host, "method", method).observeNanos(nanos);
+        if (response != null) {
+            metricsRegistry.counter("http_client_responses_total", "外部APIのステータスコード毎の応答数", "host", host,
+                    "method", method, "status", Integer.toString(response.statusCode())).inc();
+        } else {
+            var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            metricsRegistry.counter("http_client_errors_total", "外部APIの通信エラー数", "host", host, "method", method,
+                    "error", cause.getClass().getSimpleName()).inc();
+        }
+    }
+
+    @Override
+    public Optional<CookieHandler> cookieHandler() {
+        return delegate.cookieHandler();
+    }
+
+    @Override
+    public Optional<Duration> connectTimeout() {
+        return delegate.connectTimeout();
+    }
+
+    @Override
+    public Redirect followRedirects() {
+        return delegate.followRedirects();
+    }
+
+    @Override
+    public Optional<ProxySelector> proxy() {
+        return delegate.proxy();
+    }
+
+    @Override
+    public SSLContext sslContext() {
+        return delegate.sslContext();
+    }
+
+    @Override
+    public SSLParameters sslParameters() {
+        return delegate.sslParameters();
+    }
+
+    @Override
+    public Optional<Authenticator> authenticator() {
+        return delegate.authenticator();
+    }
+
+    @Override
+    public Version version() {
+        return delegate.version();
+    }
+
+    @Override
+    public Optional<Executor> executor() {
+        return delegate.executor();
+    }
+}
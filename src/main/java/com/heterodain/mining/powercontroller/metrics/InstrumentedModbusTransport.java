@@ -0,0 +1,105 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.heterodain.mining.powercontroller.device.ModbusTransport;
+
+/**
+ * 計測付きのModbus通信路
+ *
+ * ユニットID・ファンクションコード毎に、1回の通信(リトライを含む)の往復時間と結果(正常・タイムアウト・CRCエラー・例外応答・その他)を記録する。
+ */
+public class InstrumentedModbusTransport implements ModbusTransport {
+    /** 通信結果 */
+    private static enum RESULT {
+        OK, TIMEOUT, CRC, SLAVE_EXCEPTION, ERROR;
+    }
+
+    /** 計測対象の通信路 */
+    private final ModbusTransport delegate;
+    /** メトリクス */
+    private final MetricsRegistry metricsRegistry;
+    /** ユニットID・ファンクションコード毎のメトリクス */
+    private final Map<Integer, RequestMetrics> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param delegate        計測対象の通信路
+     * @param metricsRegistry メトリクス
+     */
+    public InstrumentedModbusTransport(ModbusTransport delegate, MetricsRegistry metricsRegistry) {
+        this.delegate = delegate;
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public void open() throws IOException {
+        delegate.open();
+    }
+
+    @Override
+    public ModbusResponse execute(ModbusRequest request, int retries) throws ModbusException {
+        var unitId = request.getUnitID();
+        var function = request.getFunctionCode();
+        var requestMetrics = metrics.computeIfAbsent(unitId << 8 | function,
+                k -> new RequestMetrics(Integer.toString(unitId), Integer.toString(function)));
+
+        var start = System.nanoTime();
+        try {
+            var response = delegate.execute(request, retries);
+            requestMetrics.record(RESULT.OK, System.nanoTime() - start);
+            return response;
+        } catch (ModbusException e) {
+            requestMetrics.record(classify(e), System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private static RESULT classify(ModbusException e) {
+        if (e instanceof ModbusSlaveException) {
+            return RESULT.SLAVE_EXCEPTION;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("CRC")) {
+                return RESULT.CRC;
+            }
+        }
+        // j2modは応答を受信できなかった場合にModbusIOExceptionを投げる
+        return e instanceof ModbusIOException ? RESULT.TIMEOUT : RESULT.ERROR;
+    }
+
+    /**
+     * ユニットID・ファンクションコード毎のメトリクス
+     */
+    private class RequestMetrics {
+        private final Histogram rtt;
+        private final Counter[] results = new Counter[RESULT.values().length];
+
+        RequestMetrics(String unitId, String function) {
+            rtt = metricsRegistry.histogram("modbus_request_duration_seconds", "Modbus通信の往復時間(リトライを含む)",
+                    Histogram.TIME_BUCKETS, "unit", unitId, "function", function);
+            for (var result : RESULT.values()) {
+                results[result.ordinal()] = metricsRegistry.counter("modbus_requests_total", "Modbus通信の結果毎の回数",
+                        "unit", unitId, "function", function, "result", result.name().toLowerCase());
+            }
+        }
+
+        void record(RESULT result, long nanos) {
+            rtt.observeNanos(nanos);
+            results[result.ordinal()].inc();
+        }
+    }
+}
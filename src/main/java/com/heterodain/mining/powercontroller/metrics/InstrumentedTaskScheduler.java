@@ -0,0 +1,167 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledFuture;
+
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.ScheduledMethodRunnable;
+
+/**
+ * 定期実行タスクの計測付きタスクスケジューラー
+ *
+ * タスク毎に処理時間、予定時刻からの遅れ、超過回数、失敗回数を記録する。
+ * 超過は、トリガー(cron)・固定間隔のタスクでは次の予定時刻を過ぎて終わった場合、固定遅延のタスクでは処理時間が遅延時間を超えた場合とする。
+ * タスク名は@Scheduledメソッドの「クラス名.メソッド名」で、それ以外はschedule(String, Runnable, Trigger)で指定する。
+ */
+public class InstrumentedTaskScheduler extends ThreadPoolTaskScheduler {
+    private static final long serialVersionUID = 1L;
+
+    /** トリガーで実行するタスク */
+    private static final long TRIGGER = -1;
+
+    /** メトリクス */
+    private final transient MetricsRegistry metricsRegistry;
+
+    /**
+     * コンストラクタ
+     *
+     * @param metricsRegistry メトリクス
+     */
+    public InstrumentedTaskScheduler(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * 名前を付けてトリガーで実行
+     *
+     * @param name    タスク名
+     * @param task    タスク
+     * @param trigger トリガー
+     * @return 実行予定
+     */
+    public ScheduledFuture<?> schedule(String name, Runnable task, Trigger trigger) {
+        var timed = new TimedTask(name, task, TRIGGER, false);
+        return super.schedule(timed, context -> {
+            var next = trigger.nextExecutionTime(context);
+            if (next != null) {
+                timed.plan(next.getTime());
+            }
+            return next;
+        });
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable task, Trigger trigger) {
+        return schedule(nameOf(task), task, trigger);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, Date startTime, long period) {
+        var timed = new TimedTask(nameOf(task), task, period, true);
+        timed.plan(startTime.getTime());
+        return super.scheduleAtFixedRate(timed, startTime, period);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period) {
+        var timed = new TimedTask(nameOf(task), task, period, true);
+        timed.plan(System.currentTimeMillis());
+        return super.scheduleAtFixedRate(timed, period);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, Date startTime, long delay) {
+        var timed = new TimedTask(nameOf(task), task, delay, false);
+        timed.plan(startTime.getTime());
+        return super.scheduleWithFixedDelay(timed, startTime, delay);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay) {
+        var timed = new TimedTask(nameOf(task), task, delay, false);
+        timed.plan(System.currentTimeMillis());
+        return super.scheduleWithFixedDelay(timed, delay);
+    }
+
+    private static String nameOf(Runnable task) {
+        if (task instanceof ScheduledMethodRunnable) {
+            var method = ((ScheduledMethodRunnable) task).getMethod();
+            return method.getDeclaringClass().getSimpleName() + "." + method.getName();
+        }
+        return task.getClass().getSimpleName();
+    }
+
+    /**
+     * 計測付きのタスク
+     */
+    private class TimedTask implements Runnable {
+        private final Runnable task;
+        /** 間隔(ミリ秒、トリガーの場合はTRIGGER) */
+        private final long period;
+        /** 固定間隔の場合はtrue、固定遅延の場合はfalse */
+        private final boolean fixedRate;
+
+        private final Histogram duration;
+        private final Histogram lag;
+        private final Counter overruns;
+        private final Counter failures;
+
+        /** 今回の予定時刻 */
+        private volatile long planned;
+        /** 前回の予定時刻 */
+        private volatile long previous;
+
+        TimedTask(String name, Runnable task, long period, boolean fixedRate) {
+            this.task = task;
+            this.period = period;
+            this.fixedRate = fixedRate;
+            duration = metricsRegistry.histogram("task_duration_seconds", "定期実行タスクの処理時間",
+                    Histogram.TIME_BUCKETS, "task", name);
+            lag = metricsRegistry.histogram("task_lag_seconds", "定期実行タスクの予定時刻からの遅れ", Histogram.TIME_BUCKETS,
+                    "task", name);
+            overruns = metricsRegistry.counter("task_overruns_total", "定期実行タスクが次の予定時刻を超過した回数", "task", name);
+            failures = metricsRegistry.counter("task_failures_total", "定期実行タスクが例外で終了した回数", "task", name);
+        }
+
+        void plan(long time) {
+            previous = planned;
+            planned = time;
+        }
+
+        @Override
+        public void run() {
+            var start = System.currentTimeMillis();
+            var startNanos = System.nanoTime();
+            var plannedTime = planned;
+            lag.observe(Math.max(0L, start - plannedTime) / 1000D);
+
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                failures.inc();
+                throw e;
+            } finally {
+                duration.observeNanos(System.nanoTime() - startNanos);
+
+                var end = System.currentTimeMillis();
+                if (period == TRIGGER) {
+                    var previousTime = previous;
+                    if (previousTime > 0 && end > plannedTime + (plannedTime - previousTime)) {
+                        overruns.inc();
+                    }
+                } else if (fixedRate) {
+                    if (end > plannedTime + period) {
+                        overruns.inc();
+                    }
+                    plan(plannedTime + period);
+                } else {
+                    if (end - start > period) {
+                        overruns.inc();
+                    }
+                    plan(end + period);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+/**
+ * メトリクス
+ */
+public interface Metric {
+    /**
+     * Prometheusのテキスト形式で出力
+     *
+     * @param out    出力先
+     * @param name   メトリクス名
+     * @param labels ラベル(「k="v",...」形式、なしの場合は空文字)
+     */
+    void write(StringBuilder out, String name, String labels);
+
+    /**
+     * 1行出力
+     *
+     * @param out    出力先
+     * @param name   メトリクス名
+     * @param labels ラベル
+     * @param extra  追加のラベル(なしの場合はnull)
+     * @param value  値
+     */
+    static void sample(StringBuilder out, String name, String labels, String extra, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                out.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
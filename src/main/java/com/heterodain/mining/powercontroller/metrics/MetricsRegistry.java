@@ -0,0 +1,108 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * メトリクスの登録・出力
+ *
+ * メトリクスはメトリクス名とラベルの組み合わせ毎に1つ生成し、以降は同じインスタンスを返す。
+ * 頻繁に記録する箇所では、取得したインスタンスを保持して使うこと。
+ */
+@Component
+public class MetricsRegistry {
+    /** メトリクス名毎のメトリクス(出力順を固定するため名前順) */
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * カウンター取得
+     *
+     * @param name   メトリクス名
+     * @param help   説明
+     * @param labels ラベル(名前と値の組を交互に指定)
+     * @return カウンター
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) get(name, help, "counter", labels, Counter::new);
+    }
+
+    /**
+     * ヒストグラム取得
+     *
+     * @param name    メトリクス名
+     * @param help    説明
+     * @param buckets バケットの上限値(昇順)
+     * @param labels  ラベル(名前と値の組を交互に指定)
+     * @return ヒストグラム
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) get(name, help, "histogram", labels, () -> new Histogram(buckets));
+    }
+
+    /**
+     * ゲージ登録(同じ名前とラベルで登録済みの場合は、登録済みのゲージを返す)
+     *
+     * @param name   メトリクス名
+     * @param help   説明
+     * @param value  現在値の取得処理
+     * @param labels ラベル(名前と値の組を交互に指定)
+     * @return ゲージ
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier value, String... labels) {
+        return (Gauge) get(name, help, "gauge", labels, () -> new Gauge(value));
+    }
+
+    /**
+     * Prometheusのテキスト形式で出力
+     *
+     * @param out 出力先
+     */
+    public void write(StringBuilder out) {
+        for (var entry : families.entrySet()) {
+            var family = entry.getValue();
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+            for (var child : family.children.entrySet()) {
+                child.getValue().write(out, entry.getKey(), child.getKey());
+            }
+        }
+    }
+
+    private Metric get(String name, String help, String type, String[] labels, Supplier<Metric> factory) {
+        var family = families.computeIfAbsent(name, k -> new Family(help, type, new ConcurrentSkipListMap<>()));
+        return family.children.computeIfAbsent(labelText(labels), k -> factory.get());
+    }
+
+    private static String labelText(String[] labels) {
+        var text = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+
+    /**
+     * 同じメトリクス名のメトリクス
+     */
+    @AllArgsConstructor
+    private static class Family {
+        /** 説明 */
+        private final String help;
+        /** 種類 */
+        private final String type;
+        /** ラベル毎のメトリクス */
+        private final ConcurrentMap<String, Metric> children;
+    }
+}
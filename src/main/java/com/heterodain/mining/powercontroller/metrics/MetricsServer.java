@@ -0,0 +1,81 @@
+package com.heterodain.mining.powercontroller.metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.heterodain.mining.powercontroller.config.MetricsProperties;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * メトリクスの公開(GET /metrics、Prometheusのテキスト形式)
+ *
+ * JDK標準のHTTPサーバーを1スレッドで動かす。リクエストがない間は何もしない。
+ */
+@Component
+@Slf4j
+public class MetricsServer {
+    /** Content-Type */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Autowired
+    private MetricsProperties metricsProperties;
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** HTTPサーバー */
+    private HttpServer server;
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (!metricsProperties.isEnabled()) {
+            return;
+        }
+
+        var address = new InetSocketAddress(metricsProperties.getAddress(), metricsProperties.getPort());
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        log.info("メトリクスを公開します。http://{}:{}/metrics", metricsProperties.getAddress(),
+                metricsProperties.getPort());
+    }
+
+    /**
+     * 終了処理
+     */
+    @PreDestroy
+    public void destroy() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            var text = new StringBuilder(8192);
+            metricsRegistry.write(text);
+            var body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.heterodain.mining.powercontroller.sample;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 計測データのリングバッファ
+ *
+ * 項目毎のプリミティブ配列に格納する固定長のバッファ。書き込み・読み込みはそれぞれ1スレッド(同時に実行されないタスク)から行う前提で、
+ * 書き込み位置の公開だけでスレッド間の受け渡しを行うため、ロックもオブジェクト生成も発生しない。
+ * バッファが一杯のときは新しいデータを破棄する。
+ *
+ * 1行には統計量(件数・重み・平均・偏差平方和・最小・最大・充電ステージ毎の件数)を格納する。
+ * 計測データ1件は件数1の統計量として格納するので、どの集計段階のデータも同じ形式でWindowSummaryにマージできる。
+ */
+@Slf4j
+public class SampleRing {
+    /** 充電ステージなし */
+    private static final int NO_STAGE = -1;
+    /** 充電ステージ(values()は呼び出し毎に配列を複製するため保持する) */
+    private static final STAGE[] STAGES = STAGE.values();
+    /** 充電ステージの種類数 */
+    private static final int STAGE_COUNT = STAGES.length;
+
+    /** バッファ名(ログ用) */
+    private final String name;
+    /** インデックスのマスク */
+    private final int mask;
+
+    /** 計測時刻(エポックミリ秒) */
+    private final long[] time;
+    /** データ件数 */
+    private final long[] count;
+    /** 重み(データが代表する期間(秒)) */
+    private final double[] weight;
+    /** 発電電力(W) */
+    private final Columns pvPower;
+    /** バッテリー電圧(V) */
+    private final Columns battVolt;
+    /** 負荷電力(W) */
+    private final Columns loadPower;
+    /** バッテリー残量(%) */
+    private final Columns battSOC;
+    /** 充電ステージ毎のデータ件数([ordinal][行]) */
+    private final long[][] stageCounts;
+    /** 最後の充電ステージ(ordinal) */
+    private final int[] lastStage;
+
+    /** 次の書き込み位置(書き込み完了後に公開) */
+    private final AtomicLong head = new AtomicLong();
+    /** 次の読み込み位置 */
+    private volatile long tail;
+    /** 破棄したデータ数 */
+    private long dropped;
+    /** 読み込み時の作業領域 */
+    private final long[] stageWork = new long[STAGE_COUNT];
+
+    /**
+     * コンストラクタ
+     *
+     * @param name     バッファ名
+     * @param capacity 容量(2のべき乗に切り上げる)
+     */
+    public SampleRing(String name, int capacity) {
+        var size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.name = name;
+        this.mask = size - 1;
+        this.time = new long[size];
+        this.count = new long[size];
+        this.weight = new double[size];
+        this.pvPower = new Columns(size);
+        this.battVolt = new Columns(size);
+        this.loadPower = new Columns(size);
+        this.battSOC = new Columns(size);
+        this.stageCounts = new long[STAGE_COUNT][size];
+        this.lastStage = new int[size];
+    }
+
+    /**
+     * 計測データ追加(書き込みスレッドのみ)
+     *
+     * @param ts   計測時刻(エポックミリ秒)
+     * @param data 計測データ
+     * @return 追加できた場合はtrue
+     */
+    public boolean add(long ts, RealtimeData data) {
+        var seq = head.get();
+        if (isFull(seq)) {
+            return false;
+        }
+
+        var i = (int) seq & mask;
+        time[i] = ts;
+        count[i] = 1;
+        weight[i] = data.getDuration() == null ? 1D : data.getDuration();
+        pvPower.set(i, data.getPvPower());
+        battVolt.set(i, data.getBattVolt());
+        loadPower.set(i, data.getLoadPower());
+        battSOC.set(i, data.getBattSOC());
+        var stage = data.getStage() == null ? NO_STAGE : data.getStage().ordinal();
+        for (int s = 0; s < STAGE_COUNT; s++) {
+            stageCounts[s][i] = s == stage ? 1 : 0;
+        }
+        lastStage[i] = stage;
+
+        head.lazySet(seq + 1);
+        return true;
+    }
+
+    /**
+     * 集計済みの統計量追加(書き込みスレッドのみ)
+     *
+     * @param ts      集計時刻(エポックミリ秒)
+     * @param summary 統計量
+     * @return 追加できた場合はtrue
+     */
+    public boolean add(long ts, WindowSummary summary) {
+        var seq = head.get();
+        if (isFull(seq)) {
+            return false;
+        }
+
+        var i = (int) seq & mask;
+        time[i] = ts;
+        count[i] = summary.getCount();
+        weight[i] = summary.getDuration();
+        pvPower.set(i, summary.getPvPower());
+        battVolt.set(i, summary.getBattVolt());
+        loadPower.set(i, summary.getLoadPower());
+        battSOC.set(i, summary.getBattSOC());
+        for (int s = 0; s < STAGE_COUNT; s++) {
+            stageCounts[s][i] = summary.getStageHistogram()[s];
+        }
+        lastStage[i] = summary.getLastStage() == null ? NO_STAGE : summary.getLastStage().ordinal();
+
+        head.lazySet(seq + 1);
+        return true;
+    }
+
+    /**
+     * 未読データがないかどうか
+     *
+     * @return 未読データがない場合はtrue
+     */
+    public boolean isEmpty() {
+        return head.get() == tail;
+    }
+
+    /**
+     * 現在の書き込み位置取得(読み込みスレッドで、集計範囲の終端として使う)
+     *
+     * @return 書き込み位置
+     */
+    public long mark() {
+        return head.get();
+    }
+
+    /**
+     * 未読データの統計量取得(読み込みスレッドのみ。データは消費しない)
+     *
+     * @param upTo 集計範囲の終端(mark()の値)
+     * @param out  統計量の格納先(初期化してから集計する)
+     * @return 未読データがあった場合はtrue
+     */
+    public boolean summarize(long upTo, WindowSummary out) {
+        out.reset();
+
+        var from = tail;
+        if (from >= upTo) {
+            return false;
+        }
+
+        for (var seq = from; seq < upTo; seq++) {
+            mergeRow((int) seq & mask, out);
+        }
+        return true;
+    }
+
+    /**
+     * 未読データを1行ずつ読み出して消費(読み込みスレッドのみ)
+     *
+     * @param upTo    読み出す範囲の終端(mark()の値)
+     * @param work    1行分の統計量の格納先(行毎に初期化して再利用する)
+     * @param handler 1行分の処理
+     * @return 読み出した行数
+     */
+    public int drain(long upTo, WindowSummary work, RowHandler handler) {
+        var from = tail;
+        for (var seq = from; seq < upTo; seq++) {
+            var i = (int) seq & mask;
+            work.reset();
+            mergeRow(i, work);
+            handler.accept(time[i], work);
+        }
+        tail = Math.max(from, upTo);
+        return (int) Math.max(0, upTo - from);
+    }
+
+    /**
+     * 指定位置までのデータを消費(読み込みスレッドのみ)
+     *
+     * @param upTo 消費する範囲の終端(mark()の値)
+     */
+    public void consume(long upTo) {
+        tail = upTo;
+    }
+
+    /**
+     * 1行分の統計量をマージ
+     */
+    private void mergeRow(int i, WindowSummary out) {
+        pvPower.mergeTo(i, count[i], weight[i], out.getPvPower());
+        battVolt.mergeTo(i, count[i], weight[i], out.getBattVolt());
+        loadPower.mergeTo(i, count[i], weight[i], out.getLoadPower());
+        battSOC.mergeTo(i, count[i], weight[i], out.getBattSOC());
+        for (int s = 0; s < STAGE_COUNT; s++) {
+            stageWork[s] = stageCounts[s][i];
+        }
+        out.mergeStages(stageWork, lastStage[i] == NO_STAGE ? null : STAGES[lastStage[i]]);
+    }
+
+    /**
+     * バッファが一杯かどうか(一杯の場合は破棄件数を記録)
+     */
+    private boolean isFull(long seq) {
+        if (seq - tail <= mask) {
+            return false;
+        }
+        if (dropped++ % 100 == 0) {
+            log.warn("{}のバッファが一杯のため、データを破棄しました。(累計{}件)", name, dropped);
+        }
+        return true;
+    }
+
+    /**
+     * 1行分の処理
+     */
+    @FunctionalInterface
+    public static interface RowHandler {
+        /**
+         * 1行分の処理
+         *
+         * @param time    計測時刻(エポックミリ秒)
+         * @param summary 統計量(呼び出し後に再利用されるので保持しないこと)
+         */
+        void accept(long time, WindowSummary summary);
+    }
+
+    /**
+     * 1項目分の統計量の列
+     */
+    private static class Columns {
+        private final double[] mean;
+        private final double[] m2;
+        private final double[] min;
+        private final double[] max;
+
+        Columns(int size) {
+            mean = new double[size];
+            m2 = new double[size];
+            min = new double[size];
+            max = new double[size];
+        }
+
+        void set(int i, double value) {
+            mean[i] = value;
+            m2[i] = 0D;
+            min[i] = value;
+            max[i] = value;
+        }
+
+        void set(int i, SampleStats stats) {
+            mean[i] = stats.getMean();
+            m2[i] = stats.getM2();
+            min[i] = stats.getMin();
+            max[i] = stats.getMax();
+        }
+
+        void mergeTo(int i, long count, double weight, SampleStats out) {
+            out.merge(count, weight, mean[i], m2[i], min[i], max[i]);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.heterodain.mining.powercontroller.sample;
+
+import lombok.Getter;
+
+/**
+ * 1項目分の逐次統計量
+ *
+ * 重み付きのWelford法で平均・分散を1件O(1)で更新する。別の統計量とのマージ(Chanの方法)にも対応する。
+ */
+@Getter
+public class SampleStats {
+    /** データ件数 */
+    private long count;
+    /** 重みの合計 */
+    private double weight;
+    /** 平均値 */
+    private double mean;
+    /** 偏差平方和 */
+    private double m2;
+    /** 最小値 */
+    private double min = Double.NaN;
+    /** 最大値 */
+    private double max = Double.NaN;
+
+    /**
+     * データ追加
+     *
+     * @param value 値
+     * @param w     重み
+     */
+    public void add(double value, double w) {
+        if (w <= 0D) {
+            return;
+        }
+
+        count++;
+        weight += w;
+        var delta = value - mean;
+        mean += delta * w / weight;
+        m2 += w * delta * (value - mean);
+        min = count == 1 ? value : Math.min(min, value);
+        max = count == 1 ? value : Math.max(max, value);
+    }
+
+    /**
+     * 統計量のマージ
+     *
+     * @param other 統計量
+     */
+    public void merge(SampleStats other) {
+        merge(other.count, other.weight, other.mean, other.m2, other.min, other.max);
+    }
+
+    /**
+     * 統計量のマージ
+     *
+     * @param oCount  データ件数
+     * @param oWeight 重みの合計
+     * @param oMean   平均値
+     * @param oM2     偏差平方和
+     * @param oMin    最小値
+     * @param oMax    最大値
+     */
+    public void merge(long oCount, double oWeight, double oMean, double oM2, double oMin, double oMax) {
+        if (oCount == 0 || oWeight <= 0D) {
+            return;
+        }
+        if (count == 0) {
+            count = oCount;
+            weight = oWeight;
+            mean = oMean;
+            m2 = oM2;
+            min = oMin;
+            max = oMax;
+            return;
+        }
+
+        var total = weight + oWeight;
+        var delta = oMean - mean;
+        mean += delta * oWeight / total;
+        m2 += oM2 + delta * delta * weight * oWeight / total;
+        weight = total;
+        count += oCount;
+        min = Math.min(min, oMin);
+        max = Math.max(max, oMax);
+    }
+
+    /**
+     * 分散(重み付きの母分散)
+     *
+     * @return 分散
+     */
+    public double getVariance() {
+        return weight > 0D ? m2 / weight : 0D;
+    }
+
+    /**
+     * 初期化
+     */
+    public void reset() {
+        count = 0;
+        weight = 0D;
+        mean = 0D;
+        m2 = 0D;
+        min = Double.NaN;
+        max = Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mean=%.2f,min=%.2f,max=%.2f,var=%.3f,n=%d", mean, min, max, getVariance(), count);
+    }
+}
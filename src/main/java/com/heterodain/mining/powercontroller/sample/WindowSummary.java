@@ -0,0 +1,155 @@
+package com.heterodain.mining.powercontroller.sample;
+
+import java.util.Arrays;
+
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+
+import lombok.Getter;
+
+/**
+ * 集計期間内の計測データの統計量
+ *
+ * 計測データ1件をO(1)で取り込み、下位の集計期間(3秒値→1分値→15分値)の統計量をマージできる。
+ * 重みには各データが代表する期間(秒)を使う。
+ */
+@Getter
+public class WindowSummary {
+    /** 発電電力(W) */
+    private final SampleStats pvPower = new SampleStats();
+    /** バッテリー電圧(V) */
+    private final SampleStats battVolt = new SampleStats();
+    /** 負荷電力(W) */
+    private final SampleStats loadPower = new SampleStats();
+    /** バッテリー残量(%) */
+    private final SampleStats battSOC = new SampleStats();
+    /** 充電ステージ毎のデータ件数(インデックスはordinal) */
+    private final long[] stageHistogram = new long[STAGE.values().length];
+    /** 最後の充電ステージ */
+    private STAGE lastStage;
+
+    /**
+     * 計測データ追加
+     *
+     * @param data 計測データ
+     */
+    public void add(RealtimeData data) {
+        var w = data.getDuration() == null ? 1D : data.getDuration();
+        pvPower.add(data.getPvPower(), w);
+        battVolt.add(data.getBattVolt(), w);
+        loadPower.add(data.getLoadPower(), w);
+        battSOC.add(data.getBattSOC(), w);
+        if (data.getStage() != null) {
+            stageHistogram[data.getStage().ordinal()]++;
+            lastStage = data.getStage();
+        }
+    }
+
+    /**
+     * 統計量のマージ
+     *
+     * @param other 統計量
+     */
+    public void merge(WindowSummary other) {
+        pvPower.merge(other.pvPower);
+        battVolt.merge(other.battVolt);
+        loadPower.merge(other.loadPower);
+        battSOC.merge(other.battSOC);
+        for (int i = 0; i < stageHistogram.length; i++) {
+            stageHistogram[i] += other.stageHistogram[i];
+        }
+        if (other.lastStage != null) {
+            lastStage = other.lastStage;
+        }
+    }
+
+    /**
+     * 充電ステージのマージ(保存済みの集計値からの復元用)
+     *
+     * @param stage 充電ステージ
+     * @param count データ件数
+     */
+    public void mergeStage(STAGE stage, long count) {
+        if (stage != null) {
+            stageHistogram[stage.ordinal()] += count;
+            lastStage = stage;
+        }
+    }
+
+    /**
+     * 充電ステージのマージ(SampleRingからの復元用)
+     *
+     * @param histogram 充電ステージ毎のデータ件数
+     * @param last      最後の充電ステージ
+     */
+    void mergeStages(long[] histogram, STAGE last) {
+        for (int i = 0; i < stageHistogram.length; i++) {
+            stageHistogram[i] += histogram[i];
+        }
+        if (last != null) {
+            lastStage = last;
+        }
+    }
+
+    /**
+     * データ件数
+     *
+     * @return データ件数
+     */
+    public long getCount() {
+        return pvPower.getCount();
+    }
+
+    /**
+     * 集計期間(秒)
+     *
+     * @return 各データが代表する期間の合計
+     */
+    public double getDuration() {
+        return pvPower.getWeight();
+    }
+
+    /**
+     * 集計期間内に充電ステージが変化したかどうか
+     *
+     * @return 複数の充電ステージが含まれている場合はtrue
+     */
+    public boolean isStageChanged() {
+        return Arrays.stream(stageHistogram).filter(c -> c > 0).count() > 1;
+    }
+
+    /**
+     * 平均値をRealtimeDataに変換(充電ステージは最後の値)
+     *
+     * @return 平均値
+     */
+    public RealtimeData toRealtimeData() {
+        var data = new RealtimeData();
+        data.setPvPower(pvPower.getMean());
+        data.setBattVolt(battVolt.getMean());
+        data.setLoadPower(loadPower.getMean());
+        data.setBattSOC(battSOC.getMean());
+        data.setStage(lastStage);
+        data.setDuration(getDuration());
+        return data;
+    }
+
+    /**
+     * 初期化
+     */
+    public void reset() {
+        pvPower.reset();
+        battVolt.reset();
+        loadPower.reset();
+        battSOC.reset();
+        Arrays.fill(stageHistogram, 0);
+        lastStage = null;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowSummary(pvPower=" + pvPower + ", battVolt=" + battVolt + ", loadPower=" + loadPower
+                + ", battSOC=" + battSOC + ", stages=" + Arrays.toString(stageHistogram) + ", lastStage=" + lastStage
+                + ")";
+    }
+}
@@ -1,29 +1,43 @@
 package com.heterodain.mining.powercontroller.service;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.heterodain.mining.powercontroller.config.ServiceProperties.Ambient;
+import com.heterodain.mining.powercontroller.store.AmbientHistoryStore;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -34,19 +48,31 @@ import lombok.extern.slf4j.Slf4j;
 public class AmbientService {
     /** UTCタイムゾーン */
     private static final ZoneId UTC = ZoneId.of("UTC");
-    /** HTTP読み込みタイムアウト(秒) */
-    private static final int READ_TIMEOUT = 30;
+    /** 同一チャネルへの送信間隔(ミリ秒) */
+    private static final long SEND_INTERVAL = 6000;
+    /** 送信データの項目名 */
+    private static final String[] DATA_FIELD_NAMES = { "d1", "d2", "d3", "d4", "d5", "d6", "d7", "d8" };
+    /** データ取得の最大同時実行数 */
+    private static final int MAX_CONCURRENT_READS = 2;
+    /** 1回の送信にまとめる最大データ数 */
+    private static final int MAX_BATCH_SIZE = 100;
 
-    /** Httpクライアント */
+    /** 外部APIの呼び出し */
     @Autowired
-    private HttpClient httpClient;
+    private RemoteApiPolicy remoteApiPolicy;
 
     /** JSONパーサー */
     @Autowired
     private ObjectMapper om;
 
-    /** チャネルごとの前回送信時刻 */
-    private Map<Integer, Long> lastSendTimes = new ConcurrentHashMap<>();
+    /** 過去データのキャッシュ */
+    @Autowired
+    private AmbientHistoryStore historyStore;
+
+    /** チャネルごとの送信キュー */
+    private Map<Integer, ChannelQueue> channelQueues = new ConcurrentHashMap<>();
+    /** データ取得の同時実行数の制限 */
+    private final AsyncLimiter readLimiter = new AsyncLimiter(MAX_CONCURRENT_READS);
 
     /**
      * チャネルにデータ送信
@@ -60,53 +86,69 @@ public class AmbientService {
      */
     public void send(Ambient config, ZonedDateTime ts, String comment, Double... datas)
             throws IOException, InterruptedException {
+        Futures.await(sendAsync(config, ts, comment, datas));
+    }
 
-        synchronized (config) {
-            // チャネルへの送信間隔が6秒以上になるように調整 (同一チャネルへの送信は5秒以上間隔を空ける必要がある)
-            var lastSendTime = lastSendTimes.get(config.getChannelId());
-            if (lastSendTime != null) {
-                var diff = System.currentTimeMillis() - lastSendTime;
-                if (diff < 6000) {
-                    Thread.sleep(6000 - diff);
-                }
-            }
-
-            // 送信するJSONを構築
-            var rootNode = om.createObjectNode();
-            rootNode.put("writeKey", config.getWriteKey());
-
-            var dataArrayNode = om.createArrayNode();
-            var dataNode = om.createObjectNode();
-            var utcTs = ts.withZoneSameInstant(UTC).toLocalDateTime();
-            dataNode.put("created", utcTs.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            for (int i = 1; i <= datas.length; i++) {
-                if (datas[i - 1] != null) {
-                    dataNode.put("d" + i, datas[i - 1]);
-                }
-            }
-            if (comment != null) {
-                dataNode.put("cmnt", comment);
-            }
-            dataArrayNode.add(dataNode);
-            rootNode.set("data", dataArrayNode);
-
-            var payload = om.writeValueAsString(rootNode);
+    /**
+     * チャネルにデータ送信(非同期)
+     * 
+     * データはチャネルの送信キューに入れてすぐに戻る。送信間隔を待つ間に溜まったデータは、まとめて1回で送信する。
+     * 
+     * @param config  API接続設定
+     * @param ts      タイムスタンプ
+     * @param comment コメント
+     * @param datas   送信データ(最大8個)
+     * @return 送信結果(このデータを含む送信が完了した時点で完了する)
+     */
+    public CompletableFuture<Void> sendAsync(Ambient config, ZonedDateTime ts, String comment, Double... datas) {
+        return channelQueues.computeIfAbsent(config.getChannelId(), channelId -> new ChannelQueue(config))
+                .offer(new Point(ts, comment, datas));
+    }
 
-            // HTTP POST
-            var uri = URI.create("http://ambidata.io/api/v2/channels/" + config.getChannelId() + "/dataarray");
-            log.trace("request > [POST] {}", uri);
-            log.trace("payload > {}", payload);
+    /**
+     * チャネルに複数のデータを送信(非同期)
+     * 
+     * 全データを同時にキューに入れるため、送信間隔が空いていれば1回で送信される。
+     * 
+     * @param config API接続設定
+     * @param points 送信データ(時刻順)
+     * @return 送信結果(全データの送信が完了した時点で完了する)
+     */
+    public CompletableFuture<Void> sendAllAsync(Ambient config, List<Point> points) {
+        return channelQueues.computeIfAbsent(config.getChannelId(), channelId -> new ChannelQueue(config))
+                .offerAll(points);
+    }
 
-            var request = HttpRequest.newBuilder(uri)
-                    .version(HttpClient.Version.HTTP_1_1)
-                    .POST(HttpRequest.BodyPublishers.ofString(payload, StandardCharsets.UTF_8))
-                    .header("Content-Type", "application/json").timeout(Duration.ofSeconds(READ_TIMEOUT)).build();
-            var response = httpClient.send(request, BodyHandlers.discarding());
-            if (response.statusCode() != 200) {
-                throw new IOException("Ambient Response Code " + response.statusCode());
+    /**
+     * 送信するJSONを構築
+     * 
+     * @param config API接続設定
+     * @param points 送信データ
+     * @param out    出力先
+     * @throws IOException
+     */
+    void writePayload(Ambient config, List<Point> points, OutputStream out) throws IOException {
+        try (var generator = om.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("writeKey", config.getWriteKey());
+            generator.writeArrayFieldStart("data");
+            for (var point : points) {
+                generator.writeStartObject();
+                var utcTs = point.getTs().withZoneSameInstant(UTC).toLocalDateTime();
+                generator.writeStringField("created", utcTs.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                var datas = point.getDatas();
+                for (int i = 1; i <= datas.length; i++) {
+                    if (datas[i - 1] != null) {
+                        generator.writeNumberField(DATA_FIELD_NAMES[i - 1], datas[i - 1]);
+                    }
+                }
+                if (point.getComment() != null) {
+                    generator.writeStringField("cmnt", point.getComment());
+                }
+                generator.writeEndObject();
             }
-
-            lastSendTimes.put(config.getChannelId(), System.currentTimeMillis());
+            generator.writeEndArray();
+            generator.writeEndObject();
         }
     }
 
@@ -120,25 +162,154 @@ public class AmbientService {
      * @throws InterruptedException
      */
     public List<ReadData> read(Ambient config, LocalDate date) throws IOException, InterruptedException {
+        return Futures.await(readAsync(config, date));
+    }
+
+    /**
+     * 1日分のデータ取得(非同期)
+     * 
+     * @param config API接続設定
+     * @param date   日付
+     * @return 1日分のデータ
+     */
+    public CompletableFuture<List<ReadData>> readAsync(Ambient config, LocalDate date) {
+        var result = new ArrayList<ReadData>();
+        return queryAsync(config, date, date, result::add).thenApply(v -> result);
+    }
+
+    /**
+     * 期間を指定してデータ取得
+     * 
+     * @param config   API接続設定
+     * @param from     開始日
+     * @param to       終了日(この日を含む)
+     * @param consumer データ1件毎の処理(日付順。同じ日のデータはAmbientが返した順)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void query(Ambient config, LocalDate from, LocalDate to, Consumer<ReadData> consumer)
+            throws IOException, InterruptedException {
+        Futures.await(queryAsync(config, from, to, consumer));
+    }
+
+    /**
+     * 期間を指定してデータ取得(非同期)
+     * 
+     * 確定した日のデータはローカルのキャッシュから読み込み、キャッシュにない日だけをAmbientから取得する。
+     * 複数の日の取得は並行して行う(同時に取得するのは最大MAX_CONCURRENT_READS日)。
+     * データは1日分ずつ、日付順にconsumerに渡す(リストにまとめない)。
+     * 
+     * @param config   API接続設定
+     * @param from     開始日
+     * @param to       終了日(この日を含む)
+     * @param consumer データ1件毎の処理(日付順。同じ日のデータはAmbientが返した順)
+     * @return 全データを処理した時点で完了する
+     */
+    public CompletableFuture<Void> queryAsync(Ambient config, LocalDate from, LocalDate to,
+            Consumer<ReadData> consumer) {
+        var delivery = CompletableFuture.<Void>completedFuture(null);
+        for (var date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            delivery = delivery.thenCombine(loadDay(config, date), (v, day) -> {
+                try {
+                    AmbientHistoryStore.decode(day, consumer);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                return null;
+            });
+        }
+        return delivery;
+    }
+
+    /**
+     * 1日分のデータ取得(キャッシュにあればキャッシュから、なければAmbientから取得して確定した日ならキャッシュする)
+     */
+    private CompletableFuture<byte[]> loadDay(Ambient config, LocalDate date) {
+        try {
+            var cached = historyStore.load(config.getChannelId(), date);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        } catch (IOException e) {
+            log.warn("Ambientのデータのキャッシュの読み込みに失敗しました。date={}", date, e);
+        }
+
+        return readLimiter.submit(() -> fetchDay(config, date)).thenApply(day -> {
+            // 前日以前の分は、再送(スプール)で後から追加される可能性があるため、2日前以前だけをキャッシュする
+            if (date.isBefore(LocalDate.now().minusDays(1))) {
+                historyStore.save(config.getChannelId(), date, day);
+            }
+            return day;
+        });
+    }
 
+    /**
+     * Ambientから1日分のデータを取得し、バイナリ形式に変換
+     */
+    private CompletableFuture<byte[]> fetchDay(Ambient config, LocalDate date) {
         // HTTP GET
         var uri = URI.create(
-                "http://ambidata.io/api/v2/channels/" + config.getChannelId() + "/data?readKey=" + config.getReadKey()
+                config.getBaseUrl() + "/channels/" + config.getChannelId() + "/data?readKey=" + config.getReadKey()
                         + "&date=" + date.format(DateTimeFormatter.ISO_DATE));
         log.trace("request > [GET] {}", uri);
 
-        var request = HttpRequest.newBuilder(uri).GET().version(HttpClient.Version.HTTP_1_1)
-                .timeout(Duration.ofSeconds(READ_TIMEOUT))
-                .build();
-        var response = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.statusCode() != 200) {
-            throw new IOException("Ambient Response Code " + response.statusCode());
+        return remoteApiPolicy.send(() -> HttpRequest.newBuilder(uri).GET().version(HttpClient.Version.HTTP_1_1),
+                BodyHandlers.ofByteArray(), true).thenApply(Futures.checked(response -> {
+            if (response.statusCode() != 200) {
+                throw new IOException("Ambient Response Code " + response.statusCode());
+            }
+            return parseDay(response.body());
+        }));
+    }
+
+    /**
+     * 1日分のレスポンス(JSON配列)を読みながらバイナリ形式に変換(ReadDataは生成しない)
+     * 
+     * @param body レスポンス
+     * @return 1日分のデータ(バイナリ形式)
+     * @throws IOException
+     */
+    byte[] parseDay(byte[] body) throws IOException {
+        var writer = new AmbientHistoryStore.DayWriter();
+        var datas = new Double[8];
+        try (var parser = om.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Ambient Response is not an array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String created = null;
+                String comment = null;
+                Arrays.fill(datas, null);
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var name = parser.getCurrentName();
+                    var token = parser.nextToken();
+                    var index = dataIndexOf(name);
+                    if ("created".equals(name)) {
+                        created = parser.getValueAsString();
+                    } else if ("cmnt".equals(name)) {
+                        comment = parser.getValueAsString();
+                    } else if (index >= 0 && token.isNumeric()) {
+                        datas[index] = parser.getDoubleValue();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (created != null) {
+                    writer.add(created, datas, comment);
+                }
+            }
         }
+        return writer.toByteArray();
+    }
 
-        try (var is = response.body()) {
-            return om.readValue(is, new TypeReference<List<ReadData>>() {
-            });
+    /**
+     * 項目名(d1～d8)から送信データの位置を取得
+     */
+    private static int dataIndexOf(String name) {
+        if (name.length() == 2 && name.charAt(0) == 'd' && name.charAt(1) >= '1' && name.charAt(1) <= '8') {
+            return name.charAt(1) - '1';
         }
+        return -1;
     }
 
     @Data
@@ -154,5 +325,199 @@ public class AmbientService {
         private Double d7;
         private Double d8;
         private String cmnt;
+
+        /**
+         * 項目番号を指定して値を設定
+         * 
+         * @param index 項目番号(1～8)
+         * @param value 値
+         */
+        public void set(int index, Double value) {
+            switch (index) {
+            case 1:
+                d1 = value;
+                break;
+            case 2:
+                d2 = value;
+                break;
+            case 3:
+                d3 = value;
+                break;
+            case 4:
+                d4 = value;
+                break;
+            case 5:
+                d5 = value;
+                break;
+            case 6:
+                d6 = value;
+                break;
+            case 7:
+                d7 = value;
+                break;
+            case 8:
+                d8 = value;
+                break;
+            default:
+                throw new IllegalArgumentException("index=" + index);
+            }
+        }
+    }
+
+    /**
+     * 送信データ
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class Point {
+        /** タイムスタンプ */
+        private ZonedDateTime ts;
+        /** コメント */
+        private String comment;
+        /** 送信データ(最大8個) */
+        private Double[] datas;
+    }
+
+    /**
+     * 送信待ちのデータ
+     */
+    @AllArgsConstructor
+    private static class Pending {
+        private final Point point;
+        private final CompletableFuture<Void> future;
+    }
+
+    /**
+     * チャネルの送信キュー
+     * 
+     * 同時に実行する送信は1つだけ。前回の送信から送信間隔(6秒)が経っていなければ、タイマーで送信を予約する。
+     * 送信データのJSONは、チャネル毎に使い回すバッファに書き込む。
+     */
+    private class ChannelQueue {
+        /** API接続設定 */
+        private final Ambient config;
+        /** 送信先 */
+        private final URI uri;
+        /** 送信待ちのデータ */
+        private final Deque<Pending> pendings = new ArrayDeque<>();
+        /** 送信データのバッファ */
+        private final PayloadBuffer buffer = new PayloadBuffer();
+        /** 送信中または送信を予約済みの場合はtrue */
+        private boolean busy;
+        /** 前回の送信完了時刻 */
+        private long lastSendTime;
+
+        ChannelQueue(Ambient config) {
+            this.config = config;
+            this.uri = URI.create(config.getBaseUrl() + "/channels/" + config.getChannelId() + "/dataarray");
+        }
+
+        /**
+         * 送信データをキューに入れる
+         */
+        synchronized CompletableFuture<Void> offer(Point point) {
+            var future = new CompletableFuture<Void>();
+            pendings.add(new Pending(point, future));
+            if (!busy) {
+                busy = true;
+                schedule();
+            }
+            return future;
+        }
+
+        /**
+         * 複数の送信データをキューに入れる
+         */
+        synchronized CompletableFuture<Void> offerAll(List<Point> points) {
+            var futures = points.stream().map(this::offer).toArray(CompletableFuture[]::new);
+            return CompletableFuture.allOf(futures);
+        }
+
+        /**
+         * 送信間隔を空けて送信を予約する
+         */
+        private void schedule() {
+            // チャネルへの送信間隔が6秒以上になるように調整 (同一チャネルへの送信は5秒以上間隔を空ける必要がある)
+            var wait = lastSendTime + SEND_INTERVAL - System.currentTimeMillis();
+            if (wait > 0) {
+                CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS).execute(this::flush);
+            } else {
+                CompletableFuture.runAsync(this::flush);
+            }
+        }
+
+        /**
+         * 溜まっているデータをまとめて送信
+         */
+        private synchronized void flush() {
+            var batch = new ArrayList<Pending>();
+            while (!pendings.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+                batch.add(pendings.poll());
+            }
+
+            CompletableFuture<Void> result;
+            try {
+                buffer.reset();
+                writePayload(config, batch.stream().map(p -> p.point).collect(Collectors.toList()), buffer);
+
+                log.trace("request > [POST] {} ({}件)", uri, batch.size());
+                if (log.isTraceEnabled()) {
+                    log.trace("payload > {}", buffer.toString(StandardCharsets.UTF_8));
+                }
+
+                // 追加登録なので冪等ではない(失敗したデータはスプールから再送する)
+                result = remoteApiPolicy.send(() -> HttpRequest.newBuilder(uri)
+                        .version(HttpClient.Version.HTTP_1_1)
+                        .POST(buffer.publisher())
+                        .header("Content-Type", "application/json"), BodyHandlers.discarding(), false).thenAccept(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(
+                                new IOException("Ambient Response Code " + response.statusCode()));
+                    }
+                });
+            } catch (IOException e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+
+            result.whenComplete((r, e) -> completed(batch, e));
+        }
+
+        /**
+         * 送信完了の反映と、次の送信の予約
+         */
+        private void completed(List<Pending> batch, Throwable error) {
+            synchronized (this) {
+                lastSendTime = System.currentTimeMillis();
+                if (pendings.isEmpty()) {
+                    busy = false;
+                } else {
+                    schedule();
+                }
+            }
+
+            batch.forEach(p -> {
+                if (error != null) {
+                    p.future.completeExceptionally(error);
+                } else {
+                    p.future.complete(null);
+                }
+            });
+        }
+    }
+
+    /**
+     * 内部の配列をそのまま送信できるバッファ
+     */
+    private static class PayloadBuffer extends ByteArrayOutputStream {
+        PayloadBuffer() {
+            super(1024);
+        }
+
+        /**
+         * 書き込んだ内容を送信するBodyPublisher(配列を複製しない)
+         */
+        HttpRequest.BodyPublisher publisher() {
+            return HttpRequest.BodyPublishers.ofByteArray(buf, 0, count);
+        }
     }
-}
\ No newline at end of file
+}
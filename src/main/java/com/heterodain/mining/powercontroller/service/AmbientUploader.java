@@ -0,0 +1,138 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.Ambient;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedTaskScheduler;
+import com.heterodain.mining.powercontroller.service.AmbientService.Point;
+import com.heterodain.mining.powercontroller.store.SpooledPoint;
+import com.heterodain.mining.powercontroller.store.TelemetrySpool;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ambientへの送信(スプール経由)
+ *
+ * 送信データはスプールに書き込んでから送信し、送信を確認できたものだけを確定する。
+ * 通信できない間のデータはスプールに残り、復旧後に古い順から、Ambientの送信間隔の上限の速さで再送する。
+ * スプールの読み込みはHttpクライアントのスレッドではなく、タスクスケジューラーのスレッドで行う。
+ */
+@Service
+@Slf4j
+public class AmbientUploader {
+    /** 1回の再送で読み込む最大データ数 */
+    private static final int REPLAY_BATCH_SIZE = 100;
+
+    @Autowired
+    private ServiceProperties serviceProperties;
+    @Autowired
+    private AmbientService ambientService;
+    @Autowired
+    private TelemetrySpool spool;
+    @Autowired
+    private InstrumentedTaskScheduler taskScheduler;
+
+    /** 送信中の場合はtrue */
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * データ送信(スプールに書き込んだ時点で戻る)
+     *
+     * @param config  API接続設定
+     * @param ts      タイムスタンプ
+     * @param comment コメント
+     * @param datas   送信データ(最大8個)
+     */
+    public void submit(Ambient config, ZonedDateTime ts, String comment, Double... datas) {
+        if (spool.isEnabled()) {
+            try {
+                spool.append(config.getChannelId(), ts.toInstant().toEpochMilli(), comment, datas);
+                replay();
+                return;
+            } catch (IOException e) {
+                log.error("送信データのスプールへの書き込みに失敗しました。直接送信します。", e);
+            }
+        }
+
+        ambientService.sendAsync(config, ts, comment, datas).whenComplete((r, e) -> {
+            if (e != null) {
+                log.error("Ambientへのデータ送信に失敗しました。", Futures.unwrap(e));
+            }
+        });
+    }
+
+    /**
+     * 未送信のデータを古い順に送信(送信中の場合は何もしない)
+     */
+    public void replay() {
+        var config = serviceProperties.getAmbient();
+        if (config == null || !spool.isEnabled() || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        replayNext(config);
+    }
+
+    /**
+     * 次の未送信データを送信し、成功したら続けて送信
+     */
+    private void replayNext(Ambient config) {
+        List<SpooledPoint> batch;
+        try {
+            batch = spool.peek(REPLAY_BATCH_SIZE);
+        } catch (IOException e) {
+            log.error("スプールからの読み込みに失敗しました。", e);
+            replaying.set(false);
+            return;
+        }
+        if (batch.isEmpty()) {
+            // 読み込んだ後に追記されたデータは、次の追記か定期的な再送で送信する
+            replaying.set(false);
+            return;
+        }
+
+        // 設定と異なるチャネルのデータは送信せずに確定する
+        var points = batch.stream().filter(p -> p.getChannelId() == config.getChannelId())
+                .map(p -> new Point(ZonedDateTime.ofInstant(Instant.ofEpochMilli(p.getTime()), ZoneId.systemDefault()),
+                        p.getComment(), p.getDatas()))
+                .collect(Collectors.toList());
+        if (points.size() < batch.size()) {
+            log.warn("送信先のチャネルが変更されたため、{}件のデータを破棄します。", batch.size() - points.size());
+        }
+        var send = points.isEmpty() ? CompletableFuture.<Void>completedFuture(null)
+                : ambientService.sendAllAsync(config, points);
+
+        send.whenComplete((r, e) -> {
+            if (e != null) {
+                log.error("Ambientへのデータ送信に失敗しました。次回に再送します。(未送信{}件)", spool.backlog(), Futures.unwrap(e));
+                replaying.set(false);
+                return;
+            }
+
+            try {
+                spool.ack(batch.get(batch.size() - 1));
+            } catch (IOException ex) {
+                log.error("スプールの送信済み位置の更新に失敗しました。", ex);
+                replaying.set(false);
+                return;
+            }
+            try {
+                taskScheduler.execute(() -> replayNext(config));
+            } catch (TaskRejectedException ex) {
+                // 終了処理中
+                replaying.set(false);
+            }
+        });
+    }
+}
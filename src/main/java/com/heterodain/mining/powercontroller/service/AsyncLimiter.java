@@ -0,0 +1,122 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 非同期処理の同時実行数の制限
+ *
+ * 実行中の処理が上限に達している場合は、どれかが完了するまで次の処理を開始しない(スレッドはブロックしない)。
+ * 期限を指定した場合は、期限までに開始できなかった処理を開始せずにTimeoutExceptionで失敗させる。
+ */
+public class AsyncLimiter {
+    /** 最大同時実行数 */
+    private final int maxConcurrency;
+    /** 開始待ちの処理 */
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+    /** 実行中の処理数 */
+    private int running;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maxConcurrency 最大同時実行数
+     */
+    public AsyncLimiter(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * 処理の実行を要求
+     *
+     * @param <T>  結果
+     * @param task 処理
+     * @return 処理結果
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        return enqueue(task, null);
+    }
+
+    /**
+     * 期限付きで処理の実行を要求
+     *
+     * @param <T>      結果
+     * @param task     処理
+     * @param deadline 開始の期限(System.nanoTime()の値)
+     * @return 処理結果(期限までに開始できなかった場合はTimeoutExceptionで失敗する)
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task, long deadline) {
+        return enqueue(task, deadline);
+    }
+
+    private <T> CompletableFuture<T> enqueue(Supplier<CompletableFuture<T>> task, Long deadline) {
+        var result = new CompletableFuture<T>();
+        Runnable start = () -> {
+            CompletableFuture<T> future;
+            try {
+                future = task.get();
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((value, e) -> {
+                release();
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        synchronized (this) {
+            if (running >= maxConcurrency) {
+                waiting.add(start);
+                if (deadline != null) {
+                    var delay = Math.max(0, deadline - System.nanoTime());
+                    CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> expire(start, result));
+                }
+                return result;
+            }
+            running++;
+        }
+        start.run();
+        return result;
+    }
+
+    /**
+     * 開始待ちの処理数
+     *
+     * @return 処理数
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * 開始を待っている処理を期限切れにする(開始済みの場合は何もしない)
+     */
+    private void expire(Runnable start, CompletableFuture<?> result) {
+        synchronized (this) {
+            if (!waiting.remove(start)) {
+                return;
+            }
+        }
+        result.completeExceptionally(new TimeoutException("開始待ちの期限を過ぎました。"));
+    }
+
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        next.run();
+    }
+}
@@ -0,0 +1,120 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.util.function.Consumer;
+
+import lombok.Getter;
+
+/**
+ * サーキットブレーカー
+ *
+ * 連続して失敗した回数がしきい値に達すると開き(OPEN)、一定時間は要求を送らずに失敗させる。
+ * 一定時間後に1件だけ試行し(HALF_OPEN)、成功すれば閉じ(CLOSED)、失敗すれば再び開く。
+ */
+public class CircuitBreaker {
+    /**
+     * 状態
+     */
+    public static enum STATE {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    /** 開くまでの連続失敗回数 */
+    private final int failureThreshold;
+    /** 開いている時間(ナノ秒) */
+    private final long openNanos;
+    /** 状態が変わった時の処理 */
+    private final Consumer<STATE> listener;
+
+    /** 状態 */
+    @Getter
+    private STATE state = STATE.CLOSED;
+    /** 連続失敗回数 */
+    private int failures;
+    /** 開いた時点のSystem.nanoTime */
+    private long openedAt;
+    /** 試行中の場合はtrue(HALF_OPEN) */
+    private boolean trialInFlight;
+
+    /**
+     * コンストラクタ
+     *
+     * @param failureThreshold 開くまでの連続失敗回数
+     * @param openNanos        開いている時間(ナノ秒)
+     * @param listener         状態が変わった時の処理
+     */
+    public CircuitBreaker(int failureThreshold, long openNanos, Consumer<STATE> listener) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        this.listener = listener;
+    }
+
+    /**
+     * 要求を送信してよいかどうか(送信する場合は、結果をonSuccess/onFailureで通知すること)
+     *
+     * @return 送信してよい場合はtrue
+     */
+    public boolean tryAcquire() {
+        STATE changed = null;
+        synchronized (this) {
+            switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                changed = state = STATE.HALF_OPEN;
+                trialInFlight = true;
+                break;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            }
+        }
+        listener.accept(changed);
+        return true;
+    }
+
+    /**
+     * 成功の通知
+     */
+    public void onSuccess() {
+        synchronized (this) {
+            failures = 0;
+            trialInFlight = false;
+            if (state == STATE.CLOSED) {
+                return;
+            }
+            state = STATE.CLOSED;
+        }
+        listener.accept(STATE.CLOSED);
+    }
+
+    /**
+     * 失敗の通知
+     */
+    public void onFailure() {
+        synchronized (this) {
+            trialInFlight = false;
+            failures++;
+            if (state == STATE.OPEN || (state == STATE.CLOSED && failures < failureThreshold)) {
+                return;
+            }
+            state = STATE.OPEN;
+            openedAt = System.nanoTime();
+        }
+        listener.accept(STATE.OPEN);
+    }
+
+    /**
+     * 要求を送信できる状態かどうか(開いていて、試行までの時間が経っていない場合だけfalse)
+     *
+     * @return 送信できる場合はtrue
+     */
+    public synchronized boolean isAvailable() {
+        return state != STATE.OPEN || System.nanoTime() - openedAt >= openNanos;
+    }
+}
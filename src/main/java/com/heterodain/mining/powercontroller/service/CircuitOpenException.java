@@ -0,0 +1,19 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.io.IOException;
+
+/**
+ * サーキットブレーカーが開いている(外部APIが停止中と判断した)ため、要求を送信しなかった
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * コンストラクタ
+     *
+     * @param host 送信先ホスト
+     */
+    public CircuitOpenException(String host) {
+        super(host + "は停止中と判断しているため、要求を送信しませんでした。");
+    }
+}
@@ -0,0 +1,83 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * 外部APIの非同期処理(CompletableFuture)の補助
+ */
+public final class Futures {
+    private Futures() {
+    }
+
+    /**
+     * 完了を待って結果を取得(起動時など、ブロックしてよい場合に使う)
+     *
+     * @param <T>    結果
+     * @param future 非同期処理
+     * @return 結果
+     * @throws IOException          処理が失敗した場合
+     * @throws InterruptedException
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            var cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * 非同期処理の例外から元の例外を取り出す
+     *
+     * @param e 例外(CompletionException、ExecutionException)
+     * @return 元の例外
+     */
+    public static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * 検査例外を投げる処理を、thenApplyなどに渡せる形に変換
+     *
+     * @param <T> 入力
+     * @param <R> 出力
+     * @param fn  処理
+     * @return 検査例外をCompletionExceptionに包む処理
+     */
+    public static <T, R> Function<T, R> checked(CheckedFunction<T, R> fn) {
+        return t -> {
+            try {
+                return fn.apply(t);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    /**
+     * 検査例外を投げる処理
+     *
+     * @param <T> 入力
+     * @param <R> 出力
+     */
+    @FunctionalInterface
+    public static interface CheckedFunction<T, R> {
+        R apply(T t) throws Exception;
+    }
+}
@@ -2,19 +2,23 @@ package com.heterodain.mining.powercontroller.service;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import javax.annotation.PostConstruct;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
 import com.heterodain.mining.powercontroller.config.ServiceProperties.HiveApi;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -30,24 +34,45 @@ import lombok.extern.slf4j.Slf4j;
 @Service
 @Slf4j
 public class HiveService {
-    private static final String HIVE_API_BASE_URL = "https://api2.hiveos.farm/api/v2";
-    private static final String GET_OC_PROFILE_URL = HIVE_API_BASE_URL + "/farms/%d/oc";
-    private static final String GET_WORKER_OC_URL = HIVE_API_BASE_URL + "/farms/%d/workers/%d";
-    private static final String SET_WORKER_OC_URL = HIVE_API_BASE_URL + "/farms/%d/workers/%d";
-
-    /** HTTP読み込みタイムアウト(秒) */
-    private static final int READ_TIMEOUT = 30;
+    private static final String GET_OC_PROFILE_PATH = "/farms/%d/oc";
+    private static final String GET_WORKER_OC_PATH = "/farms/%d/workers/%d";
+    private static final String SET_WORKER_OC_PATH = "/farms/%d/workers/%d";
 
-    /** Httpクライアント */
+    /** 外部APIの呼び出し */
     @Autowired
-    private HttpClient httpClient;
+    private RemoteApiPolicy remoteApiPolicy;
 
     /** JSONパーサー */
     @Autowired
     private ObjectMapper om;
 
+    /** サービス設定 */
+    @Autowired
+    private ServiceProperties serviceProperties;
+
+    /** メトリクス */
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** ワーカーのOCプロファイルIDのキャッシュ(キーは"ファームID/ワーカーID") */
+    private ReadThroughCache<String, Integer> workerOcProfileIdCache;
+    /** 全OCプロファイルのキャッシュ(キーはファームID) */
+    private ReadThroughCache<Integer, Map<Integer, OcProfile>> ocProfilesCache;
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public void init() {
+        var cacheConfig = serviceProperties.getCache();
+        workerOcProfileIdCache = new ReadThroughCache<>("hive_worker_oc_profile_id",
+                Duration.ofSeconds(cacheConfig.getWorkerTtl()), metricsRegistry);
+        ocProfilesCache = new ReadThroughCache<>("hive_oc_profiles", Duration.ofSeconds(cacheConfig.getOcProfilesTtl()),
+                metricsRegistry);
+    }
+
     /**
-     * ワーカーのOCプロファイルIDを取得
+     * ワーカーのOCプロファイルIDを取得(有効期限内はキャッシュから返す)
      * 
      * @param config Hive API接続設定
      * @return 現在設定されているOCプロファイルID
@@ -56,26 +81,26 @@ public class HiveService {
      */
     public Integer getWorkerOcProfileId(HiveApi config)
             throws IOException, InterruptedException {
+        return Futures.await(getWorkerOcProfileIdAsync(config));
+    }
 
-        // HTTP GET
-        var uri = URI.create(String.format(GET_WORKER_OC_URL, config.getFarmId(), config.getWorkerId()));
-        log.trace("request > [GET] {}", uri);
-
-        var request = HttpRequest.newBuilder(uri).GET()
-                .header("Authorization", "Bearer " + config.getPersonalToken())
-                .timeout(Duration.ofSeconds(READ_TIMEOUT)).build();
-        var response = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.statusCode() != 200) {
-            throw new IOException("Hive API Response Code " + response.statusCode());
-        }
-
-        JsonNode json;
-        try (var is = response.body()) {
-            json = om.readTree(is);
-        }
-        log.trace("response > {}", json);
+    /**
+     * ワーカーのOCプロファイルIDを取得(非同期、有効期限内はキャッシュから返す)
+     * 
+     * @param config Hive API接続設定
+     * @return 現在設定されているOCプロファイルID
+     */
+    public CompletableFuture<Integer> getWorkerOcProfileIdAsync(HiveApi config) {
+        return workerOcProfileIdCache.getAsync(workerKey(config), () -> fetchWorkerOcProfileId(config));
+    }
 
-        return Optional.ofNullable(json.get("oc_id")).map(node -> node.asInt()).orElse(null);
+    /**
+     * ワーカーのOCプロファイルIDの読み込み
+     */
+    private CompletableFuture<Integer> fetchWorkerOcProfileId(HiveApi config) {
+        var uri = URI.create(String.format(config.getBaseUrl() + GET_WORKER_OC_PATH, config.getFarmId(), config.getWorkerId()));
+        return getJson(config, uri).thenApply(
+                json -> Optional.ofNullable(json.get("oc_id")).map(node -> node.asInt()).orElse(null));
     }
 
     /**
@@ -89,43 +114,57 @@ public class HiveService {
      */
     public OcProfile changeWorkerOcProfile(HiveApi config, Integer ocProfileId)
             throws IOException, InterruptedException {
+        return Futures.await(getOcProfilesAsync(config)
+                .thenCompose(ocProfiles -> changeWorkerOcProfile(config, ocProfiles, ocProfileId)));
+    }
 
-        var ocProfiles = getOcProfiles(config);
+    /**
+     * ワーカーのOCプロファイルを変更(非同期)
+     */
+    private CompletableFuture<OcProfile> changeWorkerOcProfile(HiveApi config, Map<Integer, OcProfile> ocProfiles,
+            Integer ocProfileId) {
         log.debug("OC Profiles > {}", ocProfiles);
 
         var ocProfile = ocProfiles.get(ocProfileId);
         if (ocProfile == null) {
             String msg = String.format("該当するOCプロファイルが定義されていません。id=%d", ocProfileId);
-            throw new IllegalArgumentException(msg);
+            return CompletableFuture.failedFuture(new IllegalArgumentException(msg));
         }
 
         // 送信JSON構築
         var rootNode = om.createObjectNode();
         rootNode.put("oc_id", ocProfile.getId());
         rootNode.put("oc_apply_mode", "replace");
-        var payload = om.writeValueAsString(rootNode);
+        String payload;
+        try {
+            payload = om.writeValueAsString(rootNode);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
         // HTTP PATCH
-        var uri = URI.create(String.format(SET_WORKER_OC_URL, config.getFarmId(), config.getWorkerId()));
+        var uri = URI.create(String.format(config.getBaseUrl() + SET_WORKER_OC_PATH, config.getFarmId(), config.getWorkerId()));
         log.trace("request > [PATCH] {}", uri);
         log.trace("payload > {}", payload);
 
-        var request = HttpRequest.newBuilder(uri).method("PATCH", HttpRequest.BodyPublishers.ofString(payload))
+        return remoteApiPolicy.send(() -> HttpRequest.newBuilder(uri)
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(payload))
                 .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + config.getPersonalToken())
-                .timeout(Duration.ofSeconds(READ_TIMEOUT)).build();
-        var response = httpClient.send(request, BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            throw new IOException("Hive API Response Code " + response.statusCode());
-        }
+                .header("Authorization", "Bearer " + config.getPersonalToken()), BodyHandlers.ofString(), true)
+                .thenApply(Futures.checked(response -> {
+            if (response.statusCode() != 200) {
+                throw new IOException("Hive API Response Code " + response.statusCode());
+            }
 
-        log.trace("response > {}", response.body());
+            log.trace("response > {}", response.body());
+            workerOcProfileIdCache.put(workerKey(config), ocProfile.getId());
 
-        return ocProfile;
+            return ocProfile;
+        }));
     }
 
     /**
-     * 全OCプロファイル取得
+     * 全OCプロファイル取得(有効期限内はキャッシュから返す)
      * 
      * @param config Hive API接続設定
      * @return 全OCプロファイル
@@ -133,29 +172,48 @@ public class HiveService {
      * @throws InterruptedException
      */
     public Map<Integer, OcProfile> getOcProfiles(HiveApi config) throws IOException, InterruptedException {
+        return Futures.await(getOcProfilesAsync(config));
+    }
 
-        // HTTP GET
-        var uri = URI.create(String.format(GET_OC_PROFILE_URL, config.getFarmId()));
-        log.trace("request > [GET] {}", uri);
-
-        var request = HttpRequest.newBuilder(uri).GET()
-                .header("Authorization", "Bearer " + config.getPersonalToken())
-                .timeout(Duration.ofSeconds(READ_TIMEOUT)).build();
-        var response = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.statusCode() != 200) {
-            throw new IOException("Hive API Response Code " + response.statusCode());
-        }
+    /**
+     * 全OCプロファイル取得(非同期、有効期限内はキャッシュから返す)
+     * 
+     * @param config Hive API接続設定
+     * @return 全OCプロファイル
+     */
+    public CompletableFuture<Map<Integer, OcProfile>> getOcProfilesAsync(HiveApi config) {
+        return ocProfilesCache.getAsync(config.getFarmId(), () -> fetchOcProfiles(config));
+    }
 
-        JsonNode json;
-        try (var is = response.body()) {
-            json = om.readTree(is);
-        }
-        log.trace("response > {}", json);
+    /**
+     * 全OCプロファイルの読み込み
+     */
+    private CompletableFuture<Map<Integer, OcProfile>> fetchOcProfiles(HiveApi config) {
+        var uri = URI.create(String.format(config.getBaseUrl() + GET_OC_PROFILE_PATH, config.getFarmId()));
 
         // レスポンスのJSONから、OCプロファイル情報を抽出
-        return StreamSupport.stream(json.get("data").spliterator(), false)
+        return getJson(config, uri).thenApply(json -> StreamSupport.stream(json.get("data").spliterator(), false)
                 .map(oc -> new OcProfile(oc.get("id").asInt(), oc.get("name").asText(), oc.get("options")))
-                .collect(Collectors.toMap(OcProfile::getId, ocp -> ocp));
+                .collect(Collectors.toUnmodifiableMap(OcProfile::getId, ocp -> ocp)));
+    }
+
+    /**
+     * HTTP GETでJSONを取得
+     */
+    private CompletableFuture<JsonNode> getJson(HiveApi config, URI uri) {
+        log.trace("request > [GET] {}", uri);
+
+        return remoteApiPolicy.send(() -> HttpRequest.newBuilder(uri).GET()
+                .header("Authorization", "Bearer " + config.getPersonalToken()), BodyHandlers.ofByteArray(), true)
+                .thenApply(Futures.checked(response -> {
+            if (response.statusCode() != 200) {
+                throw new IOException("Hive API Response Code " + response.statusCode());
+            }
+
+            var json = om.readTree(response.body());
+            log.trace("response > {}", json);
+            return json;
+        }));
     }
 
     /**
@@ -166,20 +224,17 @@ public class HiveService {
      * @throws Exception
      */
     public OcProfile turnUpPowerLimit(HiveApi config, ControlProperties.Power powerConfig) throws Exception {
-        // OCプロファイル設定取得
-        var ocProfiles = getOcProfiles(config);
-        var currentOcProfileId = getWorkerOcProfileId(config);
-        var highOcProfileName = powerConfig.getHighProfileName();
-        var highOcProfile = ocProfiles.values().stream()
-                .filter(oc -> highOcProfileName.equals(oc.getName())).findFirst()
-                .orElseThrow(() -> new Exception("該当するOCプロファイルが見つかりませんでした。: " + highOcProfileName));
-
-        // Power Limitを上げる
-        if (!highOcProfile.getId().equals(currentOcProfileId)) {
-            changeWorkerOcProfile(config, highOcProfile.getId());
-        }
+        return Futures.await(turnUpPowerLimitAsync(config, powerConfig));
+    }
 
-        return highOcProfile;
+    /**
+     * リグのPower Limitを一段上げる(非同期)
+     * 
+     * @param config API接続設定
+     * @return 変更後のOCプロファイル
+     */
+    public CompletableFuture<OcProfile> turnUpPowerLimitAsync(HiveApi config, ControlProperties.Power powerConfig) {
+        return changePowerLimitAsync(config, powerConfig.getHighProfileName());
     }
 
     /**
@@ -190,20 +245,59 @@ public class HiveService {
      * @throws Exception
      */
     public OcProfile turnDownPowerLimit(HiveApi config, ControlProperties.Power powerConfig) throws Exception {
-        // OCプロファイル設定取得
-        var ocProfiles = getOcProfiles(config);
-        var currentOcProfileId = getWorkerOcProfileId(config);
-        var lowOcProfileName = powerConfig.getLowProfileName();
-        var lowOcProfile = ocProfiles.values().stream()
-                .filter(oc -> lowOcProfileName.equals(oc.getName())).findFirst()
-                .orElseThrow(() -> new Exception("該当するOCプロファイルが見つかりませんでした。: " + lowOcProfileName));
-
-        // Power Limitを下げる
-        if (!lowOcProfile.getId().equals(currentOcProfileId)) {
-            changeWorkerOcProfile(config, lowOcProfile.getId());
-        }
+        return Futures.await(turnDownPowerLimitAsync(config, powerConfig));
+    }
+
+    /**
+     * リグのPower Limitを一段下げる(非同期)
+     * 
+     * @param config API接続設定
+     * @return 変更後のOCプロファイル
+     */
+    public CompletableFuture<OcProfile> turnDownPowerLimitAsync(HiveApi config, ControlProperties.Power powerConfig) {
+        return changePowerLimitAsync(config, powerConfig.getLowProfileName());
+    }
+
+    /**
+     * 指定した名前のOCプロファイルに変更(既に設定されている場合は何もしない、非同期)
+     * 
+     * OCプロファイル一覧と現在のOCプロファイルIDは並行して取得する。
+     * 
+     * @param config        API接続設定
+     * @param ocProfileName OCプロファイル名
+     * @return 変更後のOCプロファイル
+     */
+    public CompletableFuture<OcProfile> changePowerLimitAsync(HiveApi config, String ocProfileName) {
+        return getOcProfilesAsync(config).thenCombine(getWorkerOcProfileIdAsync(config), (ocProfiles,
+                currentOcProfileId) -> Map.entry(ocProfiles, Optional.ofNullable(currentOcProfileId)))
+                .thenCompose(Futures.checked(state -> {
+                    var ocProfiles = state.getKey();
+                    var ocProfile = ocProfiles.values().stream()
+                            .filter(oc -> ocProfileName.equals(oc.getName())).findFirst()
+                            .orElseThrow(() -> new Exception("該当するOCプロファイルが見つかりませんでした。: " + ocProfileName));
+
+                    if (ocProfile.getId().equals(state.getValue().orElse(null))) {
+                        return CompletableFuture.completedFuture(ocProfile);
+                    }
+                    return changeWorkerOcProfile(config, ocProfiles, ocProfile.getId());
+                }));
+    }
+
+    /**
+     * Hive APIに要求を送信できる状態かどうか
+     * 
+     * @param config Hive API接続設定
+     * @return 送信できる場合はtrue(連続して失敗したため送信を止めている場合はfalse)
+     */
+    public boolean isAvailable(HiveApi config) {
+        return remoteApiPolicy.isAvailable(URI.create(config.getBaseUrl()));
+    }
 
-        return lowOcProfile;
+    /**
+     * ワーカーのキャッシュキー
+     */
+    private static String workerKey(HiveApi config) {
+        return config.getFarmId() + "/" + config.getWorkerId();
     }
 
     /**
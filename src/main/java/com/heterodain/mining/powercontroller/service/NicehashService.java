@@ -1,24 +1,35 @@
 package com.heterodain.mining.powercontroller.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
 import com.heterodain.mining.powercontroller.config.ServiceProperties.NicehashApi;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
 
 import org.apache.commons.codec.binary.Hex;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,6 +38,7 @@ import org.springframework.stereotype.Service;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -35,102 +47,127 @@ import lombok.extern.slf4j.Slf4j;
 @Service
 @Slf4j
 public class NicehashService {
-    private static final String HIVE_API_BASE_URL = "https://api2.nicehash.com/api/v2";
-    private static final String GET_SERVER_TIME_URL = HIVE_API_BASE_URL + "/time";
-    private static final String GET_RIG_STATUS_URL = HIVE_API_BASE_URL + "/mining/rigs2";
-    private static final String UPDATE_RIG_STATUS_URL = HIVE_API_BASE_URL + "/mining/rigs2";
-
-    /** HTTP読み込みタイムアウト(秒) */
-    private static final int READ_TIMEOUT = 30;
-
-    /** Httpクライアント */
+    private static final String GET_SERVER_TIME_PATH = "/time";
+    private static final String GET_RIG_STATUS_PATH = "/mining/rigs2";
+    private static final String UPDATE_RIG_STATUS_PATH = "/mining/rigs2";
+
+    /** サーバー時刻の再同期間隔(ナノ秒) */
+    private static final long CLOCK_SYNC_INTERVAL = TimeUnit.HOURS.toNanos(1);
+    /** 認証エラー(時刻のずれで発生する)のレスポンスコード */
+    private static final Set<Integer> AUTH_ERROR_CODES = Set.of(400, 401, 403);
+    /** 署名のアルゴリズム */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** 外部APIの呼び出し */
     @Autowired
-    private HttpClient httpClient;
+    private RemoteApiPolicy remoteApiPolicy;
 
     /** JSONパーサー */
     @Autowired
     private ObjectMapper om;
 
+    /** サービス設定 */
+    @Autowired
+    private ServiceProperties serviceProperties;
+
+    /** メトリクス */
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** リグ情報のキャッシュ(キーはリグID) */
+    private ReadThroughCache<String, RigStatus> rigStatusCache;
+    /** サーバー時刻の推定 */
+    private final ServerClock serverClock = new ServerClock();
+    /** 実行中のサーバー時刻の同期 */
+    private CompletableFuture<Boolean> clockSync;
+    /** 秘密キー毎の初期化済みHMAC */
+    private final Map<String, Mac> hmacs = new ConcurrentHashMap<>();
+
     /**
-     * リグ情報取得
+     * 初期化
+     */
+    @PostConstruct
+    public void init() {
+        var ttl = Duration.ofSeconds(serviceProperties.getCache().getRigStatusTtl());
+        rigStatusCache = new ReadThroughCache<>("nicehash_rig_status", ttl, metricsRegistry);
+    }
+
+    /**
+     * リグ情報取得(有効期限内はキャッシュから返す)
      * 
      * @param config API接続設定
      * @return リグ情報
      * @throws Exception
      */
     public RigStatus getRigStatus(NicehashApi config) throws Exception {
-        var time = getServerTime();
-        var uri = URI.create(GET_RIG_STATUS_URL);
-        var headers = createAuthHeader(config, time, "GET", uri, null);
-
-        log.trace("request > [GET] {}", uri);
-
-        var requestBuilder = HttpRequest.newBuilder(uri).GET().header("Accept", "application/json")
-                .timeout(Duration.ofSeconds(READ_TIMEOUT));
-        headers.entrySet().forEach(e -> requestBuilder.header(e.getKey(), e.getValue()));
-        var request = requestBuilder.build();
-
-        var response = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.statusCode() != 200) {
-            throw new IOException("Nicehash API Response Code " + response.statusCode());
-        }
+        return Futures.await(getRigStatusAsync(config));
+    }
 
-        try (var is = response.body()) {
-            var json = om.readTree(is);
-            log.trace("response > {}", json);
+    /**
+     * リグ情報取得(非同期、有効期限内はキャッシュから返す)
+     * 
+     * @param config API接続設定
+     * @return リグ情報
+     */
+    public CompletableFuture<RigStatus> getRigStatusAsync(NicehashApi config) {
+        return rigStatusCache.getAsync(config.getRigId(), () -> fetchRigStatus(config));
+    }
 
-            var rigsJson = (ArrayNode) json.get("miningRigs");
-            for (var rigJson : rigsJson) {
-                var rigStatus = om.treeToValue(rigJson, RigStatus.class);
-                if (config.getRigId().equals(rigStatus.getRigId())) {
-                    return rigStatus;
-                }
+    /**
+     * リグ情報の読み込み
+     */
+    private CompletableFuture<RigStatus> fetchRigStatus(NicehashApi config) {
+        var uri = URI.create(config.getBaseUrl() + GET_RIG_STATUS_PATH);
+        return sendSigned(config, "GET", uri, null).thenApply(Futures.checked(response -> {
+            if (response.statusCode() != 200) {
+                throw new IOException("Nicehash API Response Code " + response.statusCode());
             }
-            return null;
-        }
+            var rigStatus = parseRigStatus(new ByteArrayInputStream(response.body()), config.getRigId());
+            if (rigStatus == null) {
+                throw new IOException("Nicehash APIのレスポンスにリグが見つかりません。rigId=" + config.getRigId());
+            }
+            return rigStatus;
+        }));
     }
 
     /**
      * リグのPower Mode設定
      * 
      * @param config API接続設定
-     * @param time   時刻
      * @param mode   Power Mode
      * @return 設定の変更が成功した場合にtrue
      * @throws Exception
      */
     public boolean setRigPowerMode(NicehashApi config, POWER_MODE mode) throws Exception {
-        var time = getServerTime();
-        var uri = URI.create(UPDATE_RIG_STATUS_URL);
+        return Futures.await(setRigPowerModeAsync(config, mode));
+    }
+
+    /**
+     * リグのPower Mode設定(非同期)
+     * 
+     * @param config API接続設定
+     * @param mode   Power Mode
+     * @return 設定の変更が成功した場合にtrue
+     */
+    public CompletableFuture<Boolean> setRigPowerModeAsync(NicehashApi config, POWER_MODE mode) {
+        var uri = URI.create(config.getBaseUrl() + UPDATE_RIG_STATUS_PATH);
         var payload = "{\"rigId\":\"" + config.getRigId() + "\",\"action\":\"POWER_MODE\",\"options\":[\"" + mode
                 + "\"]}";
-        var headers = createAuthHeader(config, time, "POST", uri, payload);
-
-        log.trace("request > [POST] {}", uri);
-        log.trace("payload > {}", payload);
-
-        var requestBuilder = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(payload))
-                .header("Accept", "application/json")
-                .header("Content-type", "application/json")
-                .timeout(Duration.ofSeconds(READ_TIMEOUT));
-        headers.entrySet().forEach(e -> requestBuilder.header(e.getKey(), e.getValue()));
-        var request = requestBuilder.build();
-
-        var response = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.statusCode() != 200) {
-            throw new IOException("Nicehash API Response Code " + response.statusCode());
-        }
+        return sendSigned(config, "POST", uri, payload).thenApply(Futures.checked(response -> {
+            if (response.statusCode() != 200) {
+                throw new IOException("Nicehash API Response Code " + response.statusCode());
+            }
 
-        try (var is = response.body()) {
-            var json = om.readTree(is);
+            var json = om.readTree(response.body());
             log.trace("response > {}", json);
 
             if (json.get("success").asBoolean()) {
+                rigStatusCache.invalidate(config.getRigId());
                 return true;
             }
             log.warn(json.get("message").asText());
             return false;
-        }
+        }));
     }
 
     /**
@@ -141,20 +178,23 @@ public class NicehashService {
      * @throws Exception
      */
     public RigStatus turnUpPowerMode(NicehashApi config) throws Exception {
-        // リグのステータス取得
-        var rigStatus = getRigStatus(config);
-        var powerMode = rigStatus.getRigPowerMode();
-
-        // Power Modeを上げる
-        var newPowerMode = powerMode == POWER_MODE.LOW ? POWER_MODE.MEDIUM
-                : powerMode == POWER_MODE.MEDIUM ? POWER_MODE.HIGH : POWER_MODE.HIGH;
-        if (powerMode != newPowerMode) {
-            if (setRigPowerMode(config, newPowerMode)) {
-                rigStatus.setRigPowerMode(newPowerMode);
-            }
-        }
+        return Futures.await(turnUpPowerModeAsync(config));
+    }
 
-        return rigStatus;
+    /**
+     * リグのPower Modeを一段上げる(非同期)
+     * 
+     * @param config API接続設定
+     * @return 変更後のRig状態
+     */
+    public CompletableFuture<RigStatus> turnUpPowerModeAsync(NicehashApi config) {
+        return getRigStatusAsync(config).thenCompose(rigStatus -> {
+            // Power Modeを上げる
+            var powerMode = rigStatus.getRigPowerMode();
+            var newPowerMode = powerMode == POWER_MODE.LOW ? POWER_MODE.MEDIUM
+                    : powerMode == POWER_MODE.MEDIUM ? POWER_MODE.HIGH : POWER_MODE.HIGH;
+            return changePowerMode(config, rigStatus, newPowerMode);
+        });
     }
 
     /**
@@ -165,56 +205,232 @@ public class NicehashService {
      * @throws Exception
      */
     public RigStatus turnDownPowerMode(NicehashApi config) throws Exception {
-        // リグのステータス取得
-        var rigStatus = getRigStatus(config);
-        var powerMode = rigStatus.getRigPowerMode();
-
-        // Power Modeを下げる
-        var newPowerMode = powerMode == POWER_MODE.HIGH ? POWER_MODE.MEDIUM
-                : powerMode == POWER_MODE.MEDIUM ? POWER_MODE.LOW : POWER_MODE.LOW;
-        if (powerMode != newPowerMode) {
-            if (setRigPowerMode(config, newPowerMode)) {
-                rigStatus.setRigPowerMode(newPowerMode);
-            }
+        return Futures.await(turnDownPowerModeAsync(config));
+    }
+
+    /**
+     * リグのPower Modeを一段下げる(非同期)
+     * 
+     * @param config API接続設定
+     * @return 変更後のRig状態
+     */
+    public CompletableFuture<RigStatus> turnDownPowerModeAsync(NicehashApi config) {
+        return getRigStatusAsync(config).thenCompose(rigStatus -> {
+            // Power Modeを下げる
+            var powerMode = rigStatus.getRigPowerMode();
+            var newPowerMode = powerMode == POWER_MODE.HIGH ? POWER_MODE.MEDIUM
+                    : powerMode == POWER_MODE.MEDIUM ? POWER_MODE.LOW : POWER_MODE.LOW;
+            return changePowerMode(config, rigStatus, newPowerMode);
+        });
+    }
+
+    /**
+     * リグのPower Modeを指定した値に変更(既に設定されている場合は何もしない、非同期)
+     * 
+     * @param config API接続設定
+     * @param mode   Power Mode
+     * @return 変更後のRig状態
+     */
+    public CompletableFuture<RigStatus> changePowerModeAsync(NicehashApi config, POWER_MODE mode) {
+        return getRigStatusAsync(config).thenCompose(rigStatus -> changePowerMode(config, rigStatus, mode));
+    }
+
+    /**
+     * Power Modeが異なる場合だけ変更し、変更後のRig状態を返す
+     */
+    private CompletableFuture<RigStatus> changePowerMode(NicehashApi config, RigStatus rigStatus,
+            POWER_MODE newPowerMode) {
+        if (rigStatus.getRigPowerMode() == newPowerMode) {
+            return CompletableFuture.completedFuture(rigStatus);
         }
+        return setRigPowerModeAsync(config, newPowerMode).thenApply(success -> {
+            if (!success) {
+                return rigStatus;
+            }
+            // キャッシュしているインスタンスは他の呼び出し元と共有しているため、変更せずに置き換える
+            var changed = rigStatus.withRigPowerMode(newPowerMode);
+            rigStatusCache.put(config.getRigId(), changed);
+            return changed;
+        });
+    }
+
+    /**
+     * 認証ヘッダーを付けてリクエスト送信
+     * 
+     * 認証エラー(時刻のずれの可能性がある)の場合は、サーバー時刻を再同期して1回だけ再送する。
+     */
+    private CompletableFuture<HttpResponse<byte[]>> sendSigned(NicehashApi config, String method, URI uri,
+            String payload) {
+        return syncServerClock(config, false).thenCompose(synced -> sendSigned(config, method, uri, payload, synced));
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> sendSigned(NicehashApi config, String method, URI uri,
+            String payload, boolean synced) {
+        // 再試行する場合も、その時点の時刻とノンスで署名し直す
+        RemoteApiPolicy.RequestFactory request = () -> {
+            var headers = createAuthHeader(config, Long.toString(serverClock.now()), method, uri, payload);
+
+            log.trace("request > [{}] {}", method, uri);
+            var requestBuilder = HttpRequest.newBuilder(uri).header("Accept", "application/json");
+            if (payload != null) {
+                log.trace("payload > {}", payload);
+                requestBuilder.method(method, HttpRequest.BodyPublishers.ofString(payload))
+                        .header("Content-type", "application/json");
+            } else {
+                requestBuilder.method(method, HttpRequest.BodyPublishers.noBody());
+            }
+            headers.entrySet().forEach(e -> requestBuilder.header(e.getKey(), e.getValue()));
+            return requestBuilder;
+        };
+
+        // Power Modeの設定は同じ値を何度送っても結果が同じなので、GETと同様に再試行してよい
+        return remoteApiPolicy.send(request, BodyHandlers.ofByteArray(), true).thenCompose(response -> {
+            if (synced || !AUTH_ERROR_CODES.contains(response.statusCode())) {
+                return CompletableFuture.completedFuture(response);
+            }
+
+            log.warn("Nicehash APIの認証に失敗しました。(Response Code {}) サーバー時刻を再同期します。", response.statusCode());
+            return syncServerClock(config, true).thenCompose(resynced -> sendSigned(config, method, uri, payload, true));
+        });
+    }
+
+    /**
+     * サーバー時刻の同期(前回の同期から一定時間経過した場合、または強制する場合)
+     * 
+     * 同期中に要求された場合は、その同期の完了を待つ。
+     * 
+     * @param config API接続設定
+     * @param force  強制する場合はtrue
+     * @return 同期した場合はtrue
+     */
+    private CompletableFuture<Boolean> syncServerClock(NicehashApi config, boolean force) {
+        synchronized (serverClock) {
+            if (clockSync != null && !clockSync.isDone()) {
+                return clockSync;
+            }
+            if (!force && !serverClock.isExpired()) {
+                return CompletableFuture.completedFuture(false);
+            }
 
-        return rigStatus;
+            var start = System.nanoTime();
+            clockSync = getServerTime(config).thenApply(serverTime -> {
+                serverClock.update(serverTime, start, System.nanoTime());
+                return true;
+            });
+            return clockSync;
+        }
     }
 
     /**
      * Nicehashサーバーの時刻取得
      */
-    private String getServerTime() throws IOException, InterruptedException {
-        var uri = URI.create(GET_SERVER_TIME_URL);
+    private CompletableFuture<Long> getServerTime(NicehashApi config) {
+        var uri = URI.create(config.getBaseUrl() + GET_SERVER_TIME_PATH);
 
         log.trace("request > [GET] {}", uri);
 
-        var request = HttpRequest.newBuilder(uri).GET().header("Accept", "application/json")
-                .timeout(Duration.ofSeconds(READ_TIMEOUT)).build();
-        var response = httpClient.send(request, BodyHandlers.ofInputStream());
-        if (response.statusCode() != 200) {
-            throw new IOException("Nicehash API Response Code " + response.statusCode());
-        }
+        return remoteApiPolicy.send(() -> HttpRequest.newBuilder(uri).GET().header("Accept", "application/json"),
+                BodyHandlers.ofByteArray(), true).thenApply(Futures.checked(response -> {
+            if (response.statusCode() != 200) {
+                throw new IOException("Nicehash API Response Code " + response.statusCode());
+            }
 
-        try (var is = response.body()) {
-            var json = om.readTree(is);
+            var json = om.readTree(response.body());
             log.trace("response > {}", json);
 
-            return json.get("serverTime").asText();
+            return json.get("serverTime").asLong();
+        }));
+    }
+
+    /**
+     * Nicehash APIに要求を送信できる状態かどうか
+     * 
+     * @param config API接続設定
+     * @return 送信できる場合はtrue(連続して失敗したため送信を止めている場合はfalse)
+     */
+    public boolean isAvailable(NicehashApi config) {
+        return remoteApiPolicy.isAvailable(URI.create(config.getBaseUrl()));
+    }
+
+    /**
+     * リグ情報のレスポンスから指定したリグの情報を取り出す
+     * 
+     * レスポンスを先頭から順に読み、miningRigs以外の項目と対象外のリグは読み飛ばす(オブジェクトを生成しない)。
+     * 対象のリグを読み終えた時点で、残りは読まずに終了する。
+     * 
+     * @param is    レスポンス(rigs2)
+     * @param rigId リグID
+     * @return リグ情報(見つからない場合はnull)
+     * @throws IOException
+     */
+    RigStatus parseRigStatus(InputStream is, String rigId) throws IOException {
+        try (var parser = om.getFactory().createParser(is)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Nicehash API Response is not an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "miningRigs".equals(name)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        var rigStatus = readRigStatusIfMatch(parser, rigId);
+                        if (rigStatus != null) {
+                            log.trace("response > {}", rigStatus);
+                            return rigStatus;
+                        }
+                    }
+                    return null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 1リグ分のオブジェクトを読み、リグIDが一致する場合だけリグ情報に変換する
+     * 
+     * rigIdより前の項目だけを一時保存し、rigIdが一致しなければ残りの項目を読み飛ばす。
+     */
+    private RigStatus readRigStatusIfMatch(JsonParser parser, String rigId) throws IOException {
+        var buffer = new TokenBuffer(parser);
+        buffer.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if (!"rigId".equals(parser.getCurrentName())) {
+                buffer.copyCurrentStructure(parser);
+                continue;
+            }
+
+            parser.nextToken();
+            if (!rigId.equals(parser.getValueAsString())) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+                return null;
+            }
+
+            buffer.writeFieldName("rigId");
+            buffer.copyCurrentEvent(parser);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                buffer.copyCurrentStructure(parser);
+            }
+            buffer.writeEndObject();
+            try (var rigParser = buffer.asParser(om)) {
+                return om.readValue(rigParser, RigStatus.class);
+            }
         }
+        return null;
     }
 
     /**
      * 認証用リクエストヘッダ構築
      */
-    private Map<String, String> createAuthHeader(NicehashApi config, String time, String method, URI uri,
+    Map<String, String> createAuthHeader(NicehashApi config, String time, String method, URI uri,
             String payload)
             throws Exception {
         var nonce = UUID.randomUUID().toString();
 
-        var mac = Mac.getInstance("HmacSHA256");
-        var secret_key = new SecretKeySpec(config.getApiSecret().getBytes(StandardCharsets.UTF_8), "HmacSHA256");
-        mac.init(secret_key);
+        var mac = hmac(config.getApiSecret());
         mac.update(config.getApiKey().getBytes(StandardCharsets.UTF_8));
         mac.update((byte) 0);
         mac.update(time.getBytes(StandardCharsets.UTF_8));
@@ -247,6 +463,76 @@ public class NicehashService {
         return headers;
     }
 
+    /**
+     * 初期化済みのHMAC取得
+     * 
+     * 秘密キー毎に初期化したMacを保持し、その複製を返す(Mac.getInstanceとキーの初期化は最初の1回だけ)。
+     */
+    private Mac hmac(String apiSecret) throws Exception {
+        var prototype = hmacs.get(apiSecret);
+        if (prototype == null) {
+            prototype = Mac.getInstance(HMAC_ALGORITHM);
+            prototype.init(new SecretKeySpec(apiSecret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            hmacs.put(apiSecret, prototype);
+        }
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            var mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(apiSecret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            return mac;
+        }
+    }
+
+    /**
+     * サーバー時刻の推定
+     * 
+     * NTPと同様に、要求の送信から応答の受信までの中間の時点をサーバー時刻に対応付け、以降はSystem.nanoTimeの経過時間で進める。
+     * ローカルの時計が修正されても(ラズベリーパイは起動直後にNTPで大きく修正される)影響を受けない。
+     */
+    private static class ServerClock {
+        /** 同期時のサーバー時刻(エポックミリ秒) */
+        private long baseTime;
+        /** 同期時のSystem.nanoTime */
+        private long baseNanos;
+        /** 同期済みの場合はtrue */
+        private boolean synced;
+
+        /**
+         * 同期結果の反映
+         * 
+         * @param serverTime  サーバー時刻(エポックミリ秒)
+         * @param startNanos 要求送信時のSystem.nanoTime
+         * @param endNanos   応答受信時のSystem.nanoTime
+         */
+        synchronized void update(long serverTime, long startNanos, long endNanos) {
+            baseTime = serverTime;
+            baseNanos = startNanos + (endNanos - startNanos) / 2;
+            synced = true;
+
+            log.debug("Nicehashサーバー時刻を同期しました。offset={}ms, rtt={}ms", serverTime - System.currentTimeMillis(),
+                    (endNanos - startNanos) / 1_000_000);
+        }
+
+        /**
+         * 再同期が必要かどうか
+         * 
+         * @return 未同期、または前回の同期から一定時間経過した場合はtrue
+         */
+        synchronized boolean isExpired() {
+            return !synced || System.nanoTime() - baseNanos > CLOCK_SYNC_INTERVAL;
+        }
+
+        /**
+         * 現在のサーバー時刻
+         * 
+         * @return サーバー時刻(エポックミリ秒)
+         */
+        synchronized long now() {
+            return baseTime + (System.nanoTime() - baseNanos) / 1_000_000;
+        }
+    }
+
     /**
      * パワーモード
      */
@@ -276,6 +562,8 @@ public class NicehashService {
      * リグの情報
      */
     @JsonIgnoreProperties(ignoreUnknown = true)
+    @NoArgsConstructor
+    @AllArgsConstructor
     @Data
     public static class RigStatus {
         private String rigId;
@@ -283,6 +571,16 @@ public class NicehashService {
         private MINER_STATUS minerStatus;
         private List<Device> devices;
         private POWER_MODE rigPowerMode;
+
+        /**
+         * Power Modeだけを変えたリグ情報を作る
+         *
+         * @param rigPowerMode Power Mode
+         * @return リグ情報
+         */
+        public RigStatus withRigPowerMode(POWER_MODE rigPowerMode) {
+            return new RigStatus(rigId, name, minerStatus, devices, rigPowerMode);
+        }
     }
 
     /**
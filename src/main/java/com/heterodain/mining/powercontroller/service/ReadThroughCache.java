@@ -0,0 +1,132 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.heterodain.mining.powercontroller.metrics.Counter;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * 外部APIの読み込み結果のキャッシュ
+ *
+ * 有効期限内は保持している値を返し、期限切れの場合だけ読み込む。同じキーの読み込みが同時に要求された場合は、
+ * 最初の要求だけが読み込み、他の要求はその結果を待って共有する(single-flight)。
+ * 書き込み後はput()で書き込んだ状態に置き換えるか、invalidate()で破棄する。書き込み前に始まった読み込みの結果は保持しない。
+ *
+ * @param <K> キー
+ * @param <V> 値
+ */
+public class ReadThroughCache<K, V> {
+    /** 有効期限(ナノ秒) */
+    private final long ttl;
+    /** キャッシュしている値 */
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    /** 読み込み中の要求 */
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    /** 書き込み・破棄の回数(読み込み中に書き込まれたかの判定用) */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** 有効期限内の値を返した回数 */
+    private final Counter hits;
+    /** 読み込んだ回数 */
+    private final Counter misses;
+    /** 他の要求の読み込み結果を共有した回数 */
+    private final Counter shared;
+
+    /**
+     * コンストラクタ
+     *
+     * @param name            キャッシュ名(メトリクスのラベル)
+     * @param ttl             有効期限
+     * @param metricsRegistry メトリクス
+     */
+    public ReadThroughCache(String name, Duration ttl, MetricsRegistry metricsRegistry) {
+        this.ttl = ttl.toNanos();
+        var help = "外部APIのキャッシュの参照結果毎の回数";
+        hits = metricsRegistry.counter("cache_requests_total", help, "cache", name, "result", "hit");
+        misses = metricsRegistry.counter("cache_requests_total", help, "cache", name, "result", "miss");
+        shared = metricsRegistry.counter("cache_requests_total", help, "cache", name, "result", "shared");
+    }
+
+    /**
+     * 値の取得(期限切れの場合は読み込む)
+     *
+     * 読み込み中の要求がある場合は、その完了を待つFutureを返す。呼び出したスレッドはブロックしない。
+     *
+     * @param key    キー
+     * @param loader 読み込み処理(非同期)
+     * @return 値
+     */
+    public CompletableFuture<V> getAsync(K key, Supplier<CompletableFuture<V>> loader) {
+        var entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.loadedAt < ttl) {
+            hits.inc();
+            return CompletableFuture.completedFuture(entry.value);
+        }
+
+        var future = new CompletableFuture<V>();
+        var running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            shared.inc();
+            return running.copy();
+        }
+
+        misses.inc();
+        var startGeneration = generation.get();
+        CompletableFuture<V> load;
+        try {
+            load = loader.get();
+        } catch (RuntimeException e) {
+            load = CompletableFuture.failedFuture(e);
+        }
+        load.whenComplete((value, e) -> {
+            if (e == null && value != null && generation.get() == startGeneration) {
+                entries.put(key, new Entry<>(value, System.nanoTime()));
+            }
+            inFlight.remove(key, future);
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(value);
+            }
+        });
+        return future.copy();
+    }
+
+    /**
+     * 書き込んだ状態で値を置き換える
+     *
+     * @param key   キー
+     * @param value 値
+     */
+    public void put(K key, V value) {
+        generation.incrementAndGet();
+        entries.put(key, new Entry<>(value, System.nanoTime()));
+    }
+
+    /**
+     * 値の破棄
+     *
+     * @param key キー
+     */
+    public void invalidate(K key) {
+        generation.incrementAndGet();
+        entries.remove(key);
+    }
+
+    /**
+     * キャッシュしている値
+     */
+    @AllArgsConstructor
+    private static class Entry<V> {
+        private final V value;
+        /** 読み込んだ時点のSystem.nanoTime */
+        private final long loadedAt;
+    }
+}
@@ -0,0 +1,307 @@
+package com.heterodain.mining.powercontroller.service;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
+import com.heterodain.mining.powercontroller.metrics.Counter;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 外部APIへの送信の共通方針(Ambient、Nicehash、Hiveで共用)
+ *
+ * <ul>
+ * <li>呼び出し全体の期限を決め、各試行のタイムアウトは期限までの残り時間を超えないようにする。
+ * 期限は呼び出した時点から数え、同時送信数の制限で送信を待つ時間も含める</li>
+ * <li>失敗(通信エラー、5xx、429)した場合は、ジッター付きの指数バックオフで上限回数まで再試行する。
+ * 429でRetry-Afterが指定されている場合は、その時間以上待つ。
+ * 冪等でない要求は、接続できなかった(送信していない)場合だけ再試行する</li>
+ * <li>ホスト毎に同時に送信する要求数を制限する</li>
+ * <li>ホスト毎のサーキットブレーカーで、連続して失敗(429を含む)しているホストへの要求は送信せずに失敗させる</li>
+ * </ul>
+ */
+@Component
+@Slf4j
+public class RemoteApiPolicy {
+    /** レート制限のレスポンスコード */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /** Httpクライアント */
+    @Autowired
+    private HttpClient httpClient;
+
+    /** サービス設定 */
+    @Autowired
+    private ServiceProperties serviceProperties;
+
+    /** メトリクス */
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** ホスト毎の状態 */
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * 要求の送信
+     *
+     * 再試行する場合は、要求を作り直して送信する(タイムアウトは設定するので、要求側では設定しないこと)。
+     * 5xx・429のレスポンスは、再試行しても成功しなかった場合はそのまま返す。
+     *
+     * @param <T>        レスポンスボディ
+     * @param request    要求の作成処理(試行毎に呼ぶ)
+     * @param handler    レスポンスボディの処理
+     * @param idempotent 冪等な要求(何度送信しても結果が同じ)の場合はtrue
+     * @return レスポンス(サーキットブレーカーが開いている場合はCircuitOpenExceptionで失敗する)
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(RequestFactory request, BodyHandler<T> handler,
+            boolean idempotent) {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(serviceProperties.getResilience().getDeadline());
+        return attempt(request, handler, idempotent, deadline, 0);
+    }
+
+    /**
+     * 指定したURIのホストに要求を送信できる状態かどうか
+     *
+     * falseの場合は、要求を送信してもCircuitOpenExceptionで失敗する。
+     *
+     * @param uri URI
+     * @return 送信できる場合はtrue
+     */
+    public boolean isAvailable(URI uri) {
+        var host = hosts.get(uri.getHost());
+        return host == null || host.breaker.isAvailable();
+    }
+
+    /**
+     * 指定したURIのホストのサーキットブレーカーの状態
+     *
+     * @param uri URI
+     * @return 状態
+     */
+    public CircuitBreaker.STATE getState(URI uri) {
+        var host = hosts.get(uri.getHost());
+        return host == null ? CircuitBreaker.STATE.CLOSED : host.breaker.getState();
+    }
+
+    /**
+     * 1回の試行
+     */
+    private <T> CompletableFuture<HttpResponse<T>> attempt(RequestFactory factory, BodyHandler<T> handler,
+            boolean idempotent, long deadline, int retry) {
+        var config = serviceProperties.getResilience();
+        var remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new HttpTimeoutException("外部APIの呼び出し期限を過ぎました。"));
+        }
+
+        HttpRequest request;
+        try {
+            var timeout = Math.min(remaining, TimeUnit.SECONDS.toNanos(config.getAttemptTimeout()));
+            request = factory.create().timeout(Duration.ofNanos(timeout)).build();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        var host = hosts.computeIfAbsent(request.uri().getHost(), Host::new);
+        if (!host.breaker.isAvailable()) {
+            host.rejected.inc();
+            return CompletableFuture.failedFuture(new CircuitOpenException(host.name));
+        }
+
+        var sending = host.limiter.submit(() -> dispatch(host, factory, request, handler, deadline), deadline);
+        return sending.handle((response, e) -> {
+            var error = e == null ? null : Futures.unwrap(e);
+            if (error instanceof TimeoutException) {
+                error = new HttpTimeoutException("送信待ちの間に外部APIの呼び出し期限を過ぎました。");
+            }
+            var failed = error != null || isFailure(response);
+
+            // 冪等でない要求は、相手に届いていないことが確実な場合だけ再試行する
+            var retryable = failed && !(error instanceof CircuitOpenException) && (idempotent
+                    || error instanceof ConnectException || error instanceof HttpConnectTimeoutException);
+            var backoff = Math.max(backoff(retry), error == null ? retryAfter(response) : 0L);
+            if (!retryable || retry >= config.getMaxRetries() || System.nanoTime() + backoff >= deadline) {
+                return error == null ? CompletableFuture.completedFuture(response)
+                        : CompletableFuture.<HttpResponse<T>>failedFuture(error);
+            }
+
+            log.debug("{}への要求に失敗しました。{}ms後に再試行します。({})", host.name, TimeUnit.NANOSECONDS.toMillis(backoff),
+                    error != null ? error.toString() : "Response Code " + response.statusCode());
+            host.retries.inc();
+            var next = new CompletableFuture<HttpResponse<T>>();
+            CompletableFuture.delayedExecutor(backoff, TimeUnit.NANOSECONDS).execute(() -> attempt(factory, handler,
+                    idempotent, deadline, retry + 1).whenComplete((r, ex) -> {
+                        if (ex != null) {
+                            next.completeExceptionally(Futures.unwrap(ex));
+                        } else {
+                            next.complete(r);
+                        }
+                    }));
+            return next;
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * 同時送信数の制限を通過した要求の送信
+     *
+     * 送信を待つ間に期限までの残り時間が試行のタイムアウトより短くなった場合は、残り時間をタイムアウトにして要求を作り直す。
+     */
+    private <T> CompletableFuture<HttpResponse<T>> dispatch(Host host, RequestFactory factory, HttpRequest request,
+            BodyHandler<T> handler, long deadline) {
+        var remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new HttpTimeoutException("送信待ちの間に外部APIの呼び出し期限を過ぎました。"));
+        }
+        var sending = request;
+        if (request.timeout().map(Duration::toNanos).orElse(Long.MAX_VALUE) > remaining) {
+            try {
+                sending = factory.create().timeout(Duration.ofNanos(remaining)).build();
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        if (!host.breaker.tryAcquire()) {
+            host.rejected.inc();
+            return CompletableFuture.failedFuture(new CircuitOpenException(host.name));
+        }
+        return httpClient.sendAsync(sending, handler).whenComplete((response, e) -> {
+            if (e != null || isFailure(response)) {
+                host.breaker.onFailure();
+                host.failure.inc();
+            } else {
+                host.breaker.onSuccess();
+                host.success.inc();
+            }
+        });
+    }
+
+    /**
+     * 失敗のレスポンスかどうか(5xxとレート制限)
+     */
+    private static boolean isFailure(HttpResponse<?> response) {
+        return response.statusCode() >= 500 || response.statusCode() == TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * 429のRetry-Afterで指定された待ち時間(ナノ秒、秒数または日時。指定がない場合は0)
+     */
+    private static long retryAfter(HttpResponse<?> response) {
+        if (response.statusCode() != TOO_MANY_REQUESTS) {
+            return 0L;
+        }
+        var value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return 0L;
+        }
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(Long.parseLong(value.trim()), 0L));
+        } catch (NumberFormatException e) {
+            // 秒数でなければ日時
+        }
+        try {
+            var until = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(until.toEpochMilli() - System.currentTimeMillis(), 0L));
+        } catch (DateTimeParseException e) {
+            log.debug("Retry-Afterを解釈できません。: {}", value);
+            return 0L;
+        }
+    }
+
+    /**
+     * 再試行までの待ち時間(ナノ秒)
+     *
+     * 上限付きの指数バックオフの範囲から一様に選ぶ(フルジッター)。複数の要求が同時に失敗しても、再試行が重ならないようにする。
+     */
+    private long backoff(int retry) {
+        var config = serviceProperties.getResilience();
+        var max = Math.min(config.getMaxBackoff(), config.getBaseBackoff() * (1L << Math.min(retry, 20)));
+        return TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(max + 1));
+    }
+
+    /**
+     * 要求の作成処理
+     */
+    @FunctionalInterface
+    public interface RequestFactory {
+        /**
+         * 要求の作成
+         *
+         * @return 要求(タイムアウトは未設定)
+         * @throws Exception
+         */
+        HttpRequest.Builder create() throws Exception;
+    }
+
+    /**
+     * ホスト毎の状態
+     */
+    private class Host {
+        /** ホスト名 */
+        private final String name;
+        /** サーキットブレーカー */
+        private final CircuitBreaker breaker;
+        /** 同時送信数の制限 */
+        private final AsyncLimiter limiter;
+        /** 成功数 */
+        private final Counter success;
+        /** 失敗数 */
+        private final Counter failure;
+        /** サーキットブレーカーで拒否した数 */
+        private final Counter rejected;
+        /** 再試行数 */
+        private final Counter retries;
+
+        Host(String name) {
+            var config = serviceProperties.getResilience();
+            this.name = name;
+            this.breaker = new CircuitBreaker(config.getFailureThreshold(),
+                    TimeUnit.SECONDS.toNanos(config.getOpenDuration()), this::transitioned);
+            this.limiter = new AsyncLimiter(config.getMaxConcurrentPerHost());
+
+            var help = "外部APIへの要求数";
+            success = metricsRegistry.counter("remote_api_requests_total", help, "host", name, "result", "success");
+            failure = metricsRegistry.counter("remote_api_requests_total", help, "host", name, "result", "failure");
+            rejected = metricsRegistry.counter("remote_api_requests_total", help, "host", name, "result", "rejected");
+            retries = metricsRegistry.counter("remote_api_retries_total", "外部APIへの要求の再試行数", "host", name);
+            metricsRegistry.gauge("remote_api_circuit_state", "サーキットブレーカーの状態(0=CLOSED, 1=OPEN, 2=HALF_OPEN)",
+                    () -> breaker.getState().ordinal(), "host", name);
+        }
+
+        private void transitioned(CircuitBreaker.STATE state) {
+            switch (state) {
+            case OPEN:
+                log.warn("{}への要求が連続して失敗したため、{}秒間は要求を送信しません。", name,
+                        serviceProperties.getResilience().getOpenDuration());
+                break;
+            case HALF_OPEN:
+                log.info("{}への要求を試行します。", name);
+                break;
+            default:
+                log.info("{}への要求が成功しました。送信を再開します。", name);
+                break;
+            }
+        }
+    }
+}
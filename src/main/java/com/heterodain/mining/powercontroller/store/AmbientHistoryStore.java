@@ -0,0 +1,202 @@
+package com.heterodain.mining.powercontroller.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+
+import com.heterodain.mining.powercontroller.config.StoreProperties;
+import com.heterodain.mining.powercontroller.service.AmbientService.ReadData;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ambientから取得した過去データのローカルキャッシュ
+ *
+ * 確定した日(翌日以降に追加される可能性がない日)のデータを、チャネル・日付毎に1ファイルのバイナリ形式で保存する。
+ *
+ * <pre>
+ * ヘッダー(8byte): magic(int) count(int)
+ * レコード: created(long、エポックミリ秒) mask(byte) data(double)×マスクのビット数 commentLength(short) comment(UTF-8)
+ * </pre>
+ */
+@Component
+@Slf4j
+public class AmbientHistoryStore {
+    /** マジックナンバー("PVAH") */
+    private static final int MAGIC = 0x50564148;
+    /** ヘッダーサイズ */
+    private static final int HEADER_SIZE = 8;
+    /** Ambientのタイムスタンプの形式 */
+    private static final DateTimeFormatter CREATED_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    @Autowired
+    private StoreProperties storeProperties;
+
+    /** 保存先ディレクトリ */
+    private Path directory;
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        var config = storeProperties.getAmbientHistory();
+        if (config.isEnabled()) {
+            directory = Paths.get(config.getDirectory());
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * 保存済みの1日分のデータ取得
+     *
+     * @param channelId チャネルID
+     * @param date      日付
+     * @return 1日分のデータ(バイナリ形式、保存していない場合はnull)
+     * @throws IOException
+     */
+    public byte[] load(int channelId, LocalDate date) throws IOException {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(pathOf(channelId, date));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 1日分のデータを保存
+     *
+     * @param channelId チャネルID
+     * @param date      日付
+     * @param day       1日分のデータ(バイナリ形式)
+     */
+    public void save(int channelId, LocalDate date, byte[] day) {
+        if (directory == null) {
+            return;
+        }
+        var path = pathOf(channelId, date);
+        try {
+            Files.createDirectories(path.getParent());
+            var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, day);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Ambientのデータの保存に失敗しました。{}", path, e);
+        }
+    }
+
+    /**
+     * バイナリ形式のデータを1件ずつ復元
+     *
+     * @param day      1日分のデータ(バイナリ形式)
+     * @param consumer データ1件毎の処理(時刻順)
+     * @throws IOException データの形式が不正な場合
+     */
+    public static void decode(byte[] day, Consumer<ReadData> consumer) throws IOException {
+        var buf = ByteBuffer.wrap(day);
+        if (day.length < HEADER_SIZE || buf.getInt() != MAGIC) {
+            throw new IOException("Ambientのデータの形式が不正です。");
+        }
+        var count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            var data = new ReadData();
+            data.setCreated(CREATED_FORMAT.format(Instant.ofEpochMilli(buf.getLong())));
+            var mask = buf.get() & 0xff;
+            for (int j = 0; j < 8; j++) {
+                if ((mask & (1 << j)) != 0) {
+                    data.set(j + 1, buf.getDouble());
+                }
+            }
+            var commentLength = buf.getShort();
+            if (commentLength > 0) {
+                var commentBytes = new byte[commentLength];
+                buf.get(commentBytes);
+                data.setCmnt(new String(commentBytes, StandardCharsets.UTF_8));
+            }
+            consumer.accept(data);
+        }
+    }
+
+    private Path pathOf(int channelId, LocalDate date) {
+        return directory.resolve(Integer.toString(channelId)).resolve(date.format(DateTimeFormatter.ISO_DATE) + ".bin");
+    }
+
+    /**
+     * バイナリ形式への変換
+     */
+    public static class DayWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count;
+
+        public DayWriter() {
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * データ1件追加
+         *
+         * @param created タイムスタンプ(Ambientの形式)
+         * @param datas   データ(d1～d8、nullは値なし)
+         * @param comment コメント
+         * @throws IOException
+         */
+        public void add(String created, Double[] datas, String comment) throws IOException {
+            out.writeLong(Instant.parse(created).toEpochMilli());
+            var mask = 0;
+            for (int i = 0; i < datas.length; i++) {
+                if (datas[i] != null) {
+                    mask |= 1 << i;
+                }
+            }
+            out.writeByte(mask);
+            for (var data : datas) {
+                if (data != null) {
+                    out.writeDouble(data);
+                }
+            }
+            var commentBytes = comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(commentBytes.length);
+            out.write(commentBytes);
+            count++;
+        }
+
+        /**
+         * バイナリ形式のデータ取得
+         *
+         * @return 1日分のデータ
+         */
+        public byte[] toByteArray() {
+            var result = bytes.toByteArray();
+            ByteBuffer.wrap(result).putInt(4, count);
+            return result;
+        }
+    }
+}
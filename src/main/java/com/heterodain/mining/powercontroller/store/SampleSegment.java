@@ -0,0 +1,234 @@
+package com.heterodain.mining.powercontroller.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+import com.heterodain.mining.powercontroller.sample.SampleStats;
+import com.heterodain.mining.powercontroller.sample.WindowSummary;
+
+import lombok.Getter;
+
+/**
+ * 計測データのセグメントファイル
+ *
+ * 追記専用の固定長レコードのファイル。書き込み中のセグメントはメモリマップして追記し、ヘッダーのレコード数を更新する。
+ *
+ * <pre>
+ * ヘッダー(32byte): magic(int) version(int) recordSize(int) capacity(int) count(int) reserved(int) lastTime(long)
+ * レコード(72byte): time(long) duration(float) count(int) [mean,min,max](float×3)×4項目 stage(byte) reserved(byte×7)
+ * </pre>
+ */
+class SampleSegment implements Closeable {
+    /** マジックナンバー("PVSS") */
+    private static final int MAGIC = 0x50565353;
+    /** フォーマットバージョン */
+    private static final int VERSION = 1;
+    /** ヘッダーサイズ */
+    private static final int HEADER_SIZE = 32;
+    /** レコードサイズ */
+    static final int RECORD_SIZE = 72;
+    /** ヘッダー内のレコード数の位置 */
+    private static final int COUNT_OFFSET = 16;
+    /** ヘッダー内の最終時刻の位置 */
+    private static final int LAST_TIME_OFFSET = 24;
+
+    /** ファイルパス */
+    @Getter
+    private final Path path;
+    /** 先頭レコードの時刻(ファイル名) */
+    @Getter
+    private final long firstTime;
+    /** 最大レコード数 */
+    private final int capacity;
+    /** ファイルチャネル */
+    private final FileChannel channel;
+    /** 書き込み用のマップ(読み込み専用で開いた場合はnull) */
+    private final MappedByteBuffer mapped;
+    /** レコード数 */
+    @Getter
+    private int count;
+    /** 最終レコードの時刻 */
+    @Getter
+    private long lastTime;
+
+    private SampleSegment(Path path, long firstTime, int capacity, FileChannel channel, MappedByteBuffer mapped,
+            int count, long lastTime) {
+        this.path = path;
+        this.firstTime = firstTime;
+        this.capacity = capacity;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.count = count;
+        this.lastTime = lastTime;
+    }
+
+    /**
+     * 書き込み用に新規作成
+     *
+     * @param path      ファイルパス
+     * @param firstTime 先頭レコードの時刻
+     * @param capacity  最大レコード数
+     * @return セグメント
+     * @throws IOException
+     */
+    static SampleSegment create(Path path, long firstTime, int capacity) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            var mapped = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            mapped.putInt(8, RECORD_SIZE);
+            mapped.putInt(12, capacity);
+            mapped.putInt(COUNT_OFFSET, 0);
+            mapped.putLong(LAST_TIME_OFFSET, firstTime);
+            return new SampleSegment(path, firstTime, capacity, channel, mapped, 0, firstTime);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 既存のセグメントを開く
+     *
+     * @param path     ファイルパス
+     * @param writable 追記する場合はtrue
+     * @return セグメント
+     * @throws IOException
+     */
+    static SampleSegment open(Path path, boolean writable) throws IOException {
+        var firstTime = Long.parseLong(path.getFileName().toString().replace(".seg", ""));
+        var channel = writable ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("セグメントファイルの形式が不正です。" + path);
+            }
+            var capacity = header.getInt(12);
+            var count = header.getInt(COUNT_OFFSET);
+            var lastTime = header.getLong(LAST_TIME_OFFSET);
+            var mapped = writable ? channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE)
+                    : null;
+            return new SampleSegment(path, firstTime, capacity, channel, mapped, count, lastTime);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * セグメントが一杯かどうか
+     *
+     * @return 一杯の場合はtrue
+     */
+    boolean isFull() {
+        return count >= capacity;
+    }
+
+    /**
+     * レコード追記
+     *
+     * @param time    時刻
+     * @param summary 統計量
+     */
+    void append(long time, WindowSummary summary) {
+        var pos = HEADER_SIZE + count * RECORD_SIZE;
+        mapped.putLong(pos, time);
+        mapped.putFloat(pos + 8, (float) summary.getDuration());
+        mapped.putInt(pos + 12, (int) summary.getCount());
+        putStats(pos + 16, summary.getPvPower());
+        putStats(pos + 28, summary.getBattVolt());
+        putStats(pos + 40, summary.getLoadPower());
+        putStats(pos + 52, summary.getBattSOC());
+        mapped.put(pos + 64, (byte) (summary.getLastStage() == null ? -1 : summary.getLastStage().ordinal()));
+
+        // レコードを書き終えてからヘッダーを更新する
+        count++;
+        lastTime = time;
+        mapped.putLong(LAST_TIME_OFFSET, time);
+        mapped.putInt(COUNT_OFFSET, count);
+    }
+
+    /**
+     * 指定期間のレコード読み込み
+     *
+     * @param from     開始時刻(この時刻を含む)
+     * @param to       終了時刻(この時刻を含まない)
+     * @param consumer レコードの処理
+     * @throws IOException
+     */
+    void read(long from, long to, Consumer<StoredSample> consumer) throws IOException {
+        ByteBuffer buf;
+        if (mapped != null) {
+            buf = mapped.duplicate();
+        } else {
+            buf = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE);
+            while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+                // NOP
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            var pos = HEADER_SIZE + i * RECORD_SIZE;
+            var time = buf.getLong(pos);
+            if (time < from) {
+                continue;
+            }
+            if (time >= to) {
+                break;
+            }
+
+            var sample = new StoredSample();
+            sample.setTime(time);
+            sample.setDuration(buf.getFloat(pos + 8));
+            sample.setCount(buf.getInt(pos + 12));
+            sample.setPvPower(buf.getFloat(pos + 16));
+            sample.setPvPowerMin(buf.getFloat(pos + 20));
+            sample.setPvPowerMax(buf.getFloat(pos + 24));
+            sample.setBattVolt(buf.getFloat(pos + 28));
+            sample.setBattVoltMin(buf.getFloat(pos + 32));
+            sample.setBattVoltMax(buf.getFloat(pos + 36));
+            sample.setLoadPower(buf.getFloat(pos + 40));
+            sample.setLoadPowerMin(buf.getFloat(pos + 44));
+            sample.setLoadPowerMax(buf.getFloat(pos + 48));
+            sample.setBattSOC(buf.getFloat(pos + 52));
+            sample.setBattSOCMin(buf.getFloat(pos + 56));
+            sample.setBattSOCMax(buf.getFloat(pos + 60));
+            var stage = buf.get(pos + 64);
+            sample.setStage(stage < 0 ? null : STAGE.values()[stage]);
+            consumer.accept(sample);
+        }
+    }
+
+    /**
+     * ディスクへの書き出し
+     */
+    void force() {
+        if (mapped != null) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void putStats(int pos, SampleStats stats) {
+        mapped.putFloat(pos, (float) stats.getMean());
+        mapped.putFloat(pos + 4, (float) stats.getMin());
+        mapped.putFloat(pos + 8, (float) stats.getMax());
+    }
+}
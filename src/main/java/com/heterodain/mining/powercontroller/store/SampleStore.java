@@ -0,0 +1,388 @@
+package com.heterodain.mining.powercontroller.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.heterodain.mining.powercontroller.config.StoreProperties;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+import com.heterodain.mining.powercontroller.sample.SampleRing;
+import com.heterodain.mining.powercontroller.sample.WindowSummary;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 計測データの時系列ストア
+ *
+ * 計測データを生データ・1分値・15分値・1時間値のセグメントファイルに追記保存する。
+ * ポーリングスレッドはリングバッファに書き込むだけで、ファイルへの書き込みはflush()を呼ぶ別スレッドで行う。
+ * 1分値以上は生データから自動的に集計し、保存期間を過ぎたセグメントは削除する。
+ * 集計中の統計量はメモリ上にしかないため、起動時に下位の保存単位の保存済みデータから復元する。
+ */
+@Component
+@Slf4j
+public class SampleStore {
+    /** セグメントファイルの拡張子 */
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /** ディスクへの書き出し間隔(ミリ秒) */
+    private static final long FORCE_INTERVAL = 60 * 1000;
+
+    @Autowired
+    private StoreProperties storeProperties;
+
+    /** 未保存の計測データ */
+    private final SampleRing pending = new SampleRing("保存待ち", 1024);
+    /** 読み出し用の作業領域 */
+    private final WindowSummary work = new WindowSummary();
+    /** 集計中の統計量(1分値以上) */
+    private final Map<SampleTier, WindowSummary> rollups = new EnumMap<>(SampleTier.class);
+    /** 集計中の期間の開始時刻(1分値以上) */
+    private final Map<SampleTier, Long> bucketStarts = new EnumMap<>(SampleTier.class);
+    /** 書き込み中のセグメント */
+    private final Map<SampleTier, SampleSegment> activeSegments = new EnumMap<>(SampleTier.class);
+    /** セグメントのロック(ポーリングスレッドは取得しない) */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** 保存先ディレクトリ */
+    private Path directory;
+    /** 前回のディスク書き出し時刻 */
+    private long lastForceTime;
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        var config = storeProperties.getSamples();
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        directory = Paths.get(config.getDirectory());
+        for (var tier : SampleTier.values()) {
+            Files.createDirectories(tierDirectory(tier));
+            if (tier != SampleTier.RAW) {
+                rollups.put(tier, new WindowSummary());
+            }
+
+            // 最後のセグメントに空きがあれば追記する
+            var segments = listSegments(tier);
+            if (!segments.isEmpty()) {
+                var segment = SampleSegment.open(segments.get(segments.size() - 1), true);
+                if (segment.isFull()) {
+                    segment.close();
+                } else {
+                    activeSegments.put(tier, segment);
+                }
+            }
+        }
+        for (var tier : SampleTier.values()) {
+            if (tier != SampleTier.RAW) {
+                restoreRollup(tier);
+            }
+        }
+        log.info("計測データを{}に保存します。", directory.toAbsolutePath());
+    }
+
+    /**
+     * 計測データの保存要求(ポーリングスレッドから呼ぶ。ブロックしない)
+     *
+     * @param time 計測時刻(エポックミリ秒)
+     * @param data 計測データ
+     */
+    public void offer(long time, RealtimeData data) {
+        if (directory != null) {
+            pending.add(time, data);
+        }
+    }
+
+    /**
+     * 保存待ちの計測データをファイルに書き込む(1つのスレッドから定期的に呼ぶ)
+     */
+    public void flush() {
+        if (directory == null) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            pending.drain(pending.mark(), work, (time, summary) -> {
+                append(SampleTier.RAW, time, summary);
+                rollup(SampleTier.MINUTE, time, summary);
+            });
+
+            var now = System.currentTimeMillis();
+            if (now - lastForceTime >= FORCE_INTERVAL) {
+                activeSegments.values().forEach(SampleSegment::force);
+                lastForceTime = now;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 保存期間を過ぎたセグメントを削除
+     */
+    public void cleanup() {
+        if (directory == null) {
+            return;
+        }
+
+        var config = storeProperties.getSamples();
+        var now = System.currentTimeMillis();
+        cleanup(SampleTier.RAW, now - TimeUnit.DAYS.toMillis(config.getRawRetentionDays()));
+        cleanup(SampleTier.MINUTE, now - TimeUnit.DAYS.toMillis(config.getMinuteRetentionDays()));
+        cleanup(SampleTier.FIFTEEN_MINUTES, now - TimeUnit.DAYS.toMillis(config.getFifteenMinutesRetentionDays()));
+        cleanup(SampleTier.HOUR, now - TimeUnit.DAYS.toMillis(config.getHourRetentionDays()));
+    }
+
+    /**
+     * 期間を指定して計測データを読み込む
+     *
+     * @param tier     保存単位
+     * @param from     開始時刻(エポックミリ秒、この時刻を含む)
+     * @param to       終了時刻(エポックミリ秒、この時刻を含まない)
+     * @param consumer 計測データ1件毎の処理(時刻順)
+     * @throws IOException
+     */
+    public void query(SampleTier tier, long from, long to, Consumer<StoredSample> consumer) throws IOException {
+        if (directory == null) {
+            return;
+        }
+
+        lock.readLock().lock();
+        try {
+            var segments = listSegments(tier);
+            for (int i = 0; i < segments.size(); i++) {
+                var path = segments.get(i);
+                var firstTime = firstTimeOf(path);
+                var nextFirstTime = i + 1 < segments.size() ? firstTimeOf(segments.get(i + 1)) : Long.MAX_VALUE;
+                if (firstTime >= to || nextFirstTime <= from) {
+                    continue;
+                }
+
+                var active = activeSegments.get(tier);
+                if (active != null && active.getPath().equals(path)) {
+                    active.read(from, to, consumer);
+                } else {
+                    try (var segment = SampleSegment.open(path, false)) {
+                        segment.read(from, to, consumer);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 期間を指定して計測データを読み込む
+     *
+     * @param tier 保存単位
+     * @param from 開始時刻(エポックミリ秒、この時刻を含む)
+     * @param to   終了時刻(エポックミリ秒、この時刻を含まない)
+     * @return 計測データ(時刻順)
+     * @throws IOException
+     */
+    public List<StoredSample> query(SampleTier tier, long from, long to) throws IOException {
+        var result = new ArrayList<StoredSample>();
+        query(tier, from, to, result::add);
+        return result;
+    }
+
+    /**
+     * 終了処理
+     */
+    @PreDestroy
+    public void destroy() {
+        flush();
+
+        lock.writeLock().lock();
+        try {
+            for (var segment : activeSegments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    log.warn("セグメントのクローズに失敗しました。{}", segment.getPath(), e);
+                }
+            }
+            activeSegments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 前回の終了時に集計中だった統計量を、下位の保存単位の保存済みデータから復元する
+     *
+     * 保存済みの最後の集計期間より後のデータを集計し直す。途中で集計期間が変わった場合(異常終了で保存できなかった場合)は、
+     * その集計値を保存する。上位の保存単位はこの後に復元するので、ここでは渡さない。
+     * 偏差平方和は保存していないため、復元した分は0として扱う。
+     */
+    private void restoreRollup(SampleTier tier) {
+        var lower = SampleTier.values()[tier.ordinal() - 1];
+        var rollup = rollups.get(tier);
+        try {
+            var lowerLast = lastTimeOf(lower);
+            if (lowerLast == null) {
+                return;
+            }
+            var last = lastTimeOf(tier);
+            var from = last != null ? last + tier.getInterval() : tier.bucketOf(lowerLast);
+            query(lower, from, Long.MAX_VALUE, sample -> {
+                var bucket = tier.bucketOf(sample.getTime());
+                var current = bucketStarts.get(tier);
+                if (current != null && current != bucket && rollup.getCount() > 0) {
+                    append(tier, current, rollup);
+                    rollup.reset();
+                }
+                restore(rollup, sample);
+                bucketStarts.put(tier, bucket);
+            });
+            if (rollup.getCount() > 0) {
+                log.debug("集計中の統計量を復元しました。tier={}, 件数={}", tier, rollup.getCount());
+            }
+        } catch (IOException e) {
+            rollup.reset();
+            bucketStarts.remove(tier);
+            log.warn("集計中の統計量の復元に失敗しました。tier={}", tier, e);
+        }
+    }
+
+    /**
+     * 保存済みの最後のレコードの時刻(レコードがない場合はnull)
+     */
+    private Long lastTimeOf(SampleTier tier) throws IOException {
+        var active = activeSegments.get(tier);
+        if (active != null) {
+            return active.getCount() > 0 ? active.getLastTime() : null;
+        }
+        var segments = listSegments(tier);
+        if (segments.isEmpty()) {
+            return null;
+        }
+        try (var segment = SampleSegment.open(segments.get(segments.size() - 1), false)) {
+            return segment.getCount() > 0 ? segment.getLastTime() : null;
+        }
+    }
+
+    /**
+     * 保存済みのレコードを統計量にマージ
+     */
+    private static void restore(WindowSummary out, StoredSample sample) {
+        var count = sample.getCount();
+        var w = sample.getDuration();
+        out.getPvPower().merge(count, w, sample.getPvPower(), 0D, sample.getPvPowerMin(), sample.getPvPowerMax());
+        out.getBattVolt().merge(count, w, sample.getBattVolt(), 0D, sample.getBattVoltMin(), sample.getBattVoltMax());
+        out.getLoadPower().merge(count, w, sample.getLoadPower(), 0D, sample.getLoadPowerMin(),
+                sample.getLoadPowerMax());
+        out.getBattSOC().merge(count, w, sample.getBattSOC(), 0D, sample.getBattSOCMin(), sample.getBattSOCMax());
+        out.mergeStage(sample.getStage(), count);
+    }
+
+    /**
+     * 集計期間が変わったら集計値を保存して上位の保存単位に渡す
+     */
+    private void rollup(SampleTier tier, long time, WindowSummary summary) {
+        var rollup = rollups.get(tier);
+        var bucket = tier.bucketOf(time);
+        var current = bucketStarts.get(tier);
+        if (current != null && current != bucket && rollup.getCount() > 0) {
+            append(tier, current, rollup);
+            var next = tier.ordinal() + 1 < SampleTier.values().length ? SampleTier.values()[tier.ordinal() + 1]
+                    : null;
+            if (next != null) {
+                rollup(next, current, rollup);
+            }
+            rollup.reset();
+        }
+        rollup.merge(summary);
+        bucketStarts.put(tier, bucket);
+    }
+
+    /**
+     * セグメントに追記(必要に応じて新しいセグメントを作る)
+     */
+    private void append(SampleTier tier, long time, WindowSummary summary) {
+        try {
+            var segment = activeSegments.get(tier);
+            if (segment != null && (segment.isFull() || time - segment.getFirstTime() >= tier.getSegmentSpan())) {
+                segment.close();
+                segment = null;
+            }
+            if (segment == null) {
+                var path = tierDirectory(tier).resolve(time + SEGMENT_SUFFIX);
+                segment = SampleSegment.create(path, time, tier.getSegmentCapacity());
+                activeSegments.put(tier, segment);
+            }
+            segment.append(time, summary);
+        } catch (IOException e) {
+            log.error("計測データの保存に失敗しました。tier={}", tier, e);
+            var segment = activeSegments.remove(tier);
+            if (segment != null) {
+                try {
+                    segment.close();
+                } catch (IOException ex) {
+                    log.warn("セグメントのクローズに失敗しました。{}", segment.getPath(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定時刻より前のセグメントを削除(書き込み中のセグメントは残す)
+     */
+    private void cleanup(SampleTier tier, long cutoff) {
+        lock.writeLock().lock();
+        try {
+            var segments = listSegments(tier);
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                // 次のセグメントの開始時刻が期限より前なら、このセグメントのデータはすべて期限切れ
+                if (firstTimeOf(segments.get(i + 1)) > cutoff) {
+                    break;
+                }
+                Files.deleteIfExists(segments.get(i));
+                log.debug("期限切れのセグメントを削除しました。{}", segments.get(i));
+            }
+        } catch (IOException e) {
+            log.warn("セグメントの削除に失敗しました。tier={}", tier, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * セグメントファイルの一覧(時刻順)
+     */
+    private List<Path> listSegments(SampleTier tier) throws IOException {
+        try (var files = Files.list(tierDirectory(tier))) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted((a, b) -> Long.compare(firstTimeOf(a), firstTimeOf(b)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path tierDirectory(SampleTier tier) {
+        return directory.resolve(tier.name().toLowerCase());
+    }
+
+    private static long firstTimeOf(Path path) {
+        return Long.parseLong(path.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+    }
+}
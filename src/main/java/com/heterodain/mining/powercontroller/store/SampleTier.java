@@ -0,0 +1,37 @@
+package com.heterodain.mining.powercontroller.store;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 計測データの保存単位
+ */
+@AllArgsConstructor
+@Getter
+public enum SampleTier {
+    /** 生データ(サンプリング毎) */
+    RAW(0L, 24L * 60 * 60 * 1000, 200_000),
+    /** 1分値 */
+    MINUTE(60L * 1000, 30L * 24 * 60 * 60 * 1000, 45_000),
+    /** 15分値 */
+    FIFTEEN_MINUTES(15L * 60 * 1000, 365L * 24 * 60 * 60 * 1000, 36_000),
+    /** 1時間値 */
+    HOUR(60L * 60 * 1000, 5L * 365 * 24 * 60 * 60 * 1000, 44_000);
+
+    /** 集計間隔(ミリ秒、生データは0) */
+    private long interval;
+    /** 1セグメントに含める期間(ミリ秒) */
+    private long segmentSpan;
+    /** 1セグメントの最大レコード数 */
+    private int segmentCapacity;
+
+    /**
+     * 集計期間の開始時刻
+     *
+     * @param time 時刻(エポックミリ秒)
+     * @return 集計期間の開始時刻(エポックミリ秒)
+     */
+    public long bucketOf(long time) {
+        return interval == 0L ? time : time - Math.floorMod(time, interval);
+    }
+}
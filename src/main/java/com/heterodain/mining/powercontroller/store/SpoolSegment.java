@@ -0,0 +1,312 @@
+package com.heterodain.mining.powercontroller.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+
+/**
+ * 送信データのスプールのセグメントファイル
+ *
+ * 追記専用の可変長レコードのファイル。レコード毎にCRCを持ち、書き込み途中で電源が落ちた末尾のレコードは開く時に切り捨てる。
+ *
+ * <pre>
+ * ヘッダー(8byte): magic(int) version(int)
+ * レコード: length(int) crc(int) seq(long) channelId(int) time(long) mask(byte) data(double)×マスクのビット数
+ *          commentLength(short) comment(UTF-8)
+ * </pre>
+ */
+class SpoolSegment implements Closeable {
+    /** マジックナンバー("PVSP") */
+    private static final int MAGIC = 0x50565350;
+    /** フォーマットバージョン */
+    private static final int VERSION = 1;
+    /** ヘッダーサイズ */
+    static final int HEADER_SIZE = 8;
+    /** レコードのヘッダーサイズ(length, crc) */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** コメントの最大バイト数 */
+    private static final int MAX_COMMENT_BYTES = 1024;
+    /** レコードの最大サイズ */
+    private static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + 8 + 4 + 8 + 1 + 8 * 8 + 2 + MAX_COMMENT_BYTES;
+    /** 1回に読み込む最大バイト数 */
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    /** ファイルパス */
+    @Getter
+    private final Path path;
+    /** 先頭レコードのシーケンス番号(ファイル名) */
+    @Getter
+    private final long firstSeq;
+    /** ファイルチャネル */
+    private final FileChannel channel;
+    /** ファイルサイズ(有効なレコードの終端) */
+    @Getter
+    private long size;
+    /** 最終レコードのシーケンス番号(レコードがない場合はfirstSeq - 1) */
+    @Getter
+    private long lastSeq;
+    /** ディスクに書き出していない書き込みがある場合はtrue */
+    private boolean dirty;
+
+    private SpoolSegment(Path path, long firstSeq, FileChannel channel, long size, long lastSeq) {
+        this.path = path;
+        this.firstSeq = firstSeq;
+        this.channel = channel;
+        this.size = size;
+        this.lastSeq = lastSeq;
+    }
+
+    /**
+     * 書き込み用に新規作成
+     *
+     * @param path     ファイルパス
+     * @param firstSeq 先頭レコードのシーケンス番号
+     * @return セグメント
+     * @throws IOException
+     */
+    static SpoolSegment create(Path path, long firstSeq) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        var header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+        return new SpoolSegment(path, firstSeq, channel, HEADER_SIZE, firstSeq - 1);
+    }
+
+    /**
+     * 既存のセグメントを開く
+     *
+     * 追記する場合は全レコードを検査し、壊れたレコード以降を切り捨てる。
+     *
+     * @param path     ファイルパス
+     * @param writable 追記する場合はtrue
+     * @return セグメント
+     * @throws IOException
+     */
+    static SpoolSegment open(Path path, boolean writable) throws IOException {
+        var firstSeq = firstSeqOf(path);
+        var channel = writable ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("スプールファイルの形式が不正です。" + path);
+            }
+
+            var segment = new SpoolSegment(path, firstSeq, channel, channel.size(), firstSeq - 1);
+            if (writable) {
+                var valid = segment.scan();
+                if (valid < segment.size) {
+                    channel.truncate(valid);
+                    segment.size = valid;
+                }
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * コメントをレコードに書き込む形式に変換
+     *
+     * @param comment コメント
+     * @return UTF-8のバイト列
+     * @throws IOException コメントが長すぎる場合
+     */
+    static byte[] encodeComment(String comment) throws IOException {
+        var commentBytes = comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+        if (commentBytes.length > MAX_COMMENT_BYTES) {
+            throw new IOException("コメントが長すぎます。" + commentBytes.length + "byte");
+        }
+        return commentBytes;
+    }
+
+    /**
+     * レコード追記(ディスクへの書き出しはforce()で行う)
+     *
+     * @param seq       シーケンス番号
+     * @param channelId チャネルID
+     * @param time      時刻(エポックミリ秒)
+     * @param comment   コメント(encodeComment()で変換したもの)
+     * @param datas     送信データ(最大8個)
+     * @return 追記したバイト数
+     * @throws IOException
+     */
+    int append(long seq, int channelId, long time, byte[] commentBytes, Double[] datas) throws IOException {
+        var buf = ByteBuffer.allocate(MAX_RECORD_SIZE);
+        buf.position(RECORD_HEADER_SIZE);
+        buf.putLong(seq).putInt(channelId).putLong(time);
+        var maskPos = buf.position();
+        buf.put((byte) 0);
+        var mask = 0;
+        for (int i = 0; i < datas.length && i < 8; i++) {
+            if (datas[i] != null) {
+                mask |= 1 << i;
+                buf.putDouble(datas[i]);
+            }
+        }
+        buf.put(maskPos, (byte) mask);
+        buf.putShort((short) commentBytes.length).put(commentBytes);
+
+        var length = buf.position() - RECORD_HEADER_SIZE;
+        var crc = new CRC32();
+        crc.update(buf.array(), RECORD_HEADER_SIZE, length);
+        buf.putInt(0, length).putInt(4, (int) crc.getValue()).flip();
+
+        var pos = size;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        var written = (int) (pos - size);
+        size = pos;
+        lastSeq = seq;
+        dirty = true;
+        return written;
+    }
+
+    /**
+     * 指定位置からレコード読み込み
+     *
+     * @param offset 読み込み開始位置
+     * @param max    最大件数
+     * @param result 読み込んだレコードの格納先
+     * @return 読み込んだ最後のレコードの終端位置(読み込めなかった場合はoffset)
+     * @throws IOException
+     */
+    long read(long offset, int max, List<SpooledPoint> result) throws IOException {
+        var buf = ByteBuffer.allocate((int) Math.min(size - offset, READ_CHUNK_SIZE));
+        while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) >= 0) {
+            // NOP
+        }
+        buf.flip();
+
+        var pos = offset;
+        var count = 0;
+        while (count < max && buf.remaining() >= RECORD_HEADER_SIZE) {
+            var start = buf.position();
+            var point = decode(buf);
+            if (point == null) {
+                buf.position(start);
+                break;
+            }
+            pos = offset + buf.position();
+            point.setSegmentSeq(firstSeq);
+            point.setEndOffset(pos);
+            result.add(point);
+            count++;
+        }
+        return pos;
+    }
+
+    /**
+     * ディスクへの書き出し
+     *
+     * @throws IOException
+     */
+    void force() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * 全レコードを検査して、有効なレコードの終端位置を返す
+     */
+    private long scan() throws IOException {
+        var offset = (long) HEADER_SIZE;
+        var buf = ByteBuffer.allocate(READ_CHUNK_SIZE);
+        while (offset < size) {
+            buf.clear();
+            buf.limit((int) Math.min(size - offset, READ_CHUNK_SIZE));
+            while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) >= 0) {
+                // NOP
+            }
+            buf.flip();
+
+            var decoded = false;
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                var point = decode(buf);
+                if (point == null) {
+                    break;
+                }
+                lastSeq = point.getSeq();
+                decoded = true;
+            }
+            if (!decoded) {
+                break;
+            }
+            offset += buf.position();
+        }
+        return offset;
+    }
+
+    /**
+     * 1レコードの復元(不完全または壊れている場合はnull)
+     */
+    private static SpooledPoint decode(ByteBuffer buf) {
+        var start = buf.position();
+        var length = buf.getInt(start);
+        if (length <= 0 || length > MAX_RECORD_SIZE - RECORD_HEADER_SIZE
+                || buf.remaining() < RECORD_HEADER_SIZE + length) {
+            return null;
+        }
+        var crc = new CRC32();
+        crc.update(buf.array(), buf.arrayOffset() + start + RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != buf.getInt(start + 4)) {
+            return null;
+        }
+
+        buf.position(start + RECORD_HEADER_SIZE);
+        var point = new SpooledPoint();
+        point.setSeq(buf.getLong());
+        point.setChannelId(buf.getInt());
+        point.setTime(buf.getLong());
+        var mask = buf.get() & 0xff;
+        var datas = new Double[32 - Integer.numberOfLeadingZeros(mask)];
+        for (int i = 0; i < datas.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                datas[i] = buf.getDouble();
+            }
+        }
+        point.setDatas(datas);
+        var commentLength = buf.getShort();
+        if (commentLength > 0) {
+            var commentBytes = new byte[commentLength];
+            buf.get(commentBytes);
+            point.setComment(new String(commentBytes, StandardCharsets.UTF_8));
+        }
+        buf.position(start + RECORD_HEADER_SIZE + length);
+        return point;
+    }
+
+    /**
+     * ファイル名から先頭レコードのシーケンス番号を取得
+     *
+     * @param path ファイルパス
+     * @return シーケンス番号
+     */
+    static long firstSeqOf(Path path) {
+        var name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+}
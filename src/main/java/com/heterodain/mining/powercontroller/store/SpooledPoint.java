@@ -0,0 +1,32 @@
+package com.heterodain.mining.powercontroller.store;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * スプールに保存された送信データ
+ */
+@Data
+public class SpooledPoint {
+    /** シーケンス番号(保存順) */
+    private long seq;
+    /** 送信先のチャネルID */
+    private int channelId;
+    /** タイムスタンプ(エポックミリ秒) */
+    private long time;
+    /** コメント */
+    private String comment;
+    /** 送信データ(最大8個) */
+    private Double[] datas;
+
+    /** レコードがあるセグメント(先頭レコードのシーケンス番号) */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private long segmentSeq;
+    /** レコードの終端位置 */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private long endOffset;
+}
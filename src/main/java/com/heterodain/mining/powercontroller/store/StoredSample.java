@@ -0,0 +1,36 @@
+package com.heterodain.mining.powercontroller.store;
+
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.STAGE;
+
+import lombok.Data;
+
+/**
+ * 保存された計測データ
+ */
+@Data
+public class StoredSample {
+    /** 計測時刻または集計期間の開始時刻(エポックミリ秒) */
+    private long time;
+    /** データが代表する期間(秒) */
+    private double duration;
+    /** 集計したデータ件数 */
+    private int count;
+    /** 発電電力(W) - 平均,最小,最大 */
+    private double pvPower;
+    private double pvPowerMin;
+    private double pvPowerMax;
+    /** バッテリー電圧(V) - 平均,最小,最大 */
+    private double battVolt;
+    private double battVoltMin;
+    private double battVoltMax;
+    /** 負荷電力(W) - 平均,最小,最大 */
+    private double loadPower;
+    private double loadPowerMin;
+    private double loadPowerMax;
+    /** バッテリー残量(%) - 平均,最小,最大 */
+    private double battSOC;
+    private double battSOCMin;
+    private double battSOCMax;
+    /** 充電ステージ(期間内の最後の値) */
+    private STAGE stage;
+}
@@ -0,0 +1,340 @@
+package com.heterodain.mining.powercontroller.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.heterodain.mining.powercontroller.config.StoreProperties;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 送信データのスプール(先行書き込みログ)
+ *
+ * 外部サービスに送信するデータを、送信前にセグメントファイルに追記する。送信が確認されたデータはack()で確定し、
+ * 確定済みのデータだけのセグメントは削除する。未確定のデータは再起動後も保存順に読み出せる(同じデータが2回送信されることはある)。
+ * ディスクへの書き出し(fsync)はflush()でまとめて行う。合計サイズが上限を超えた場合は、未送信でも古いセグメントから削除する。
+ */
+@Component
+@Slf4j
+public class TelemetrySpool {
+    /** セグメントファイルの拡張子 */
+    private static final String SEGMENT_SUFFIX = ".spool";
+    /** 送信確定済みのシーケンス番号を保存するファイル */
+    private static final String ACK_FILE = "acked";
+
+    @Autowired
+    private StoreProperties storeProperties;
+
+    /** 保存先ディレクトリ */
+    private Path directory;
+    /** セグメントファイル(キーは先頭レコードのシーケンス番号) */
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    /** 書き込み中のセグメント */
+    private SpoolSegment active;
+    /** 次に追記するレコードのシーケンス番号 */
+    private long nextSeq = 1;
+    /** 送信確定済みのシーケンス番号 */
+    private long ackedSeq;
+    /** 未確定の先頭レコードがあるセグメント */
+    private long cursorSegment = 1;
+    /** 未確定の先頭レコードの位置 */
+    private long cursorOffset = SpoolSegment.HEADER_SIZE;
+    /** セグメントファイルの合計サイズ */
+    private long totalSize;
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public synchronized void init() throws IOException {
+        var config = storeProperties.getSpool();
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        directory = Paths.get(config.getDirectory());
+        Files.createDirectories(directory);
+        try (var files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .forEach(p -> segments.put(SpoolSegment.firstSeqOf(p), p));
+        }
+        ackedSeq = readAck();
+
+        if (!segments.isEmpty()) {
+            // 最後のセグメントに追記する(書き込み途中のレコードは切り捨てる)
+            active = SpoolSegment.open(segments.lastEntry().getValue(), true);
+            nextSeq = active.getLastSeq() + 1;
+            for (var path : segments.values()) {
+                totalSize += Files.size(path);
+            }
+        } else {
+            nextSeq = ackedSeq + 1;
+        }
+        ackedSeq = Math.min(ackedSeq, nextSeq - 1);
+        locateCursor();
+
+        if (backlog() > 0) {
+            log.info("未送信のデータが{}件あります。", backlog());
+        }
+        log.debug("送信データを{}にスプールします。", directory.toAbsolutePath());
+    }
+
+    /**
+     * スプールが有効かどうか
+     *
+     * @return 有効な場合はtrue
+     */
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * 送信データの追記(ディスクへの書き出しはflush()で行う)
+     *
+     * @param channelId 送信先のチャネルID
+     * @param time      タイムスタンプ(エポックミリ秒)
+     * @param comment   コメント
+     * @param datas     送信データ(最大8個)
+     * @throws IOException
+     */
+    public synchronized void append(int channelId, long time, String comment, Double... datas) throws IOException {
+        // 書き込めないデータでセグメントを切り替えないように、先に検証する
+        var commentBytes = SpoolSegment.encodeComment(comment);
+        var segmentSize = storeProperties.getSpool().getSegmentSize() * 1024L;
+        if (active == null || active.getSize() >= segmentSize) {
+            roll();
+        }
+        // シーケンス番号は書き込みに成功してから進める(失敗で欠番になると未確定の件数が0に戻らない)
+        totalSize += active.append(nextSeq, channelId, time, commentBytes, datas);
+        nextSeq++;
+
+        enforceLimit();
+    }
+
+    /**
+     * 未確定のデータを保存順に読み込む(確定はしない)
+     *
+     * @param max 最大件数
+     * @return 送信データ
+     * @throws IOException
+     */
+    public synchronized List<SpooledPoint> peek(int max) throws IOException {
+        var result = new ArrayList<SpooledPoint>();
+        if (!isEnabled()) {
+            return result;
+        }
+
+        var segmentSeq = cursorSegment;
+        var offset = cursorOffset;
+        while (result.size() < max) {
+            var path = segments.get(segmentSeq);
+            if (path == null) {
+                break;
+            }
+
+            var size = active.getFirstSeq() == segmentSeq ? active.getSize() : Files.size(path);
+            if (offset < size) {
+                long end;
+                if (active.getFirstSeq() == segmentSeq) {
+                    end = active.read(offset, max - result.size(), result);
+                } else {
+                    try (var segment = SpoolSegment.open(path, false)) {
+                        end = segment.read(offset, max - result.size(), result);
+                    }
+                }
+                if (end > offset) {
+                    offset = end;
+                    continue;
+                }
+                log.warn("スプールファイルが壊れているため、以降のデータを読み飛ばします。{} (位置={})", path, offset);
+            }
+
+            // セグメントを読み終えたら次のセグメントへ
+            var next = segments.higherKey(segmentSeq);
+            if (next == null) {
+                if (result.isEmpty() && backlog() > 0) {
+                    // 未確定のデータが残っているのに1件も読めない場合は、読めないデータを確定して件数を合わせる
+                    log.warn("読み込めない未送信のデータを{}件破棄します。", backlog());
+                    moveCursor(segmentSeq, size, nextSeq - 1);
+                }
+                break;
+            }
+            if (result.isEmpty()) {
+                moveCursor(next, SpoolSegment.HEADER_SIZE, next - 1);
+            }
+            segmentSeq = next;
+            offset = SpoolSegment.HEADER_SIZE;
+        }
+        return result;
+    }
+
+    /**
+     * 指定したデータまでの送信を確定する
+     *
+     * @param last 送信を確認した最後のデータ(peek()で読み込んだもの)
+     * @throws IOException
+     */
+    public synchronized void ack(SpooledPoint last) throws IOException {
+        if (last.getSeq() > ackedSeq) {
+            moveCursor(last.getSegmentSeq(), last.getEndOffset(), last.getSeq());
+        }
+    }
+
+    /**
+     * 未確定のデータ件数
+     *
+     * @return 件数
+     */
+    public synchronized long backlog() {
+        return nextSeq - 1 - ackedSeq;
+    }
+
+    /**
+     * 書き込んだデータをディスクに書き出す(1つのスレッドから定期的に呼ぶ)
+     */
+    public synchronized void flush() {
+        if (active == null) {
+            return;
+        }
+        try {
+            active.force();
+        } catch (IOException e) {
+            log.error("スプールファイルの書き出しに失敗しました。{}", active.getPath(), e);
+        }
+    }
+
+    /**
+     * 終了処理
+     */
+    @PreDestroy
+    public synchronized void destroy() {
+        if (active != null) {
+            try {
+                active.close();
+            } catch (IOException e) {
+                log.warn("スプールファイルのクローズに失敗しました。{}", active.getPath(), e);
+            }
+            active = null;
+        }
+    }
+
+    /**
+     * 新しいセグメントに切り替える
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            active.close();
+        }
+        var path = directory.resolve(nextSeq + SEGMENT_SUFFIX);
+        active = SpoolSegment.create(path, nextSeq);
+        segments.put(nextSeq, path);
+        totalSize += SpoolSegment.HEADER_SIZE;
+    }
+
+    /**
+     * 合計サイズが上限を超えた場合、古いセグメントから削除する(書き込み中のセグメントは残す)
+     */
+    private void enforceLimit() throws IOException {
+        var maxSize = storeProperties.getSpool().getMaxSize() * 1024L * 1024L;
+        while (totalSize > maxSize && segments.size() > 1) {
+            var oldest = segments.firstKey();
+            var next = segments.higherKey(oldest);
+            if (cursorSegment <= oldest) {
+                log.warn("スプールの容量を超えたため、未送信のデータを{}件破棄します。", next - 1 - ackedSeq);
+                moveCursor(next, SpoolSegment.HEADER_SIZE, next - 1);
+            } else {
+                deleteSegment(oldest);
+            }
+        }
+    }
+
+    /**
+     * 未確定の先頭位置を移動し、それより前だけのセグメントを削除する
+     */
+    private void moveCursor(long segmentSeq, long offset, long seq) throws IOException {
+        cursorSegment = segmentSeq;
+        cursorOffset = offset;
+        ackedSeq = Math.max(ackedSeq, seq);
+        writeAck();
+
+        while (!segments.isEmpty() && segments.firstKey() < cursorSegment) {
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    private void deleteSegment(long segmentSeq) throws IOException {
+        var path = segments.remove(segmentSeq);
+        totalSize -= Files.size(path);
+        Files.deleteIfExists(path);
+        log.debug("送信済みのスプールファイルを削除しました。{}", path);
+    }
+
+    /**
+     * 起動時に未確定の先頭位置を探す
+     */
+    private void locateCursor() throws IOException {
+        var entry = segments.floorEntry(ackedSeq + 1);
+        if (entry == null) {
+            // 確定済みの位置より後のセグメントしか残っていない
+            cursorSegment = segments.isEmpty() ? nextSeq : segments.firstKey();
+            cursorOffset = SpoolSegment.HEADER_SIZE;
+            ackedSeq = Math.max(ackedSeq, cursorSegment - 1);
+            return;
+        }
+
+        cursorSegment = entry.getKey();
+        cursorOffset = SpoolSegment.HEADER_SIZE;
+        var segment = active.getFirstSeq() == cursorSegment ? active : SpoolSegment.open(entry.getValue(), false);
+        try {
+            var points = new ArrayList<SpooledPoint>();
+            while (true) {
+                points.clear();
+                segment.read(cursorOffset, 1000, points);
+                var advanced = false;
+                for (var point : points) {
+                    if (point.getSeq() > ackedSeq) {
+                        return;
+                    }
+                    cursorOffset = point.getEndOffset();
+                    advanced = true;
+                }
+                if (!advanced) {
+                    return;
+                }
+            }
+        } finally {
+            if (segment != active) {
+                segment.close();
+            }
+        }
+    }
+
+    private long readAck() throws IOException {
+        var path = directory.resolve(ACK_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        var bytes = Files.readAllBytes(path);
+        return bytes.length == Long.BYTES ? ByteBuffer.wrap(bytes).getLong() : 0;
+    }
+
+    private void writeAck() throws IOException {
+        var tmp = directory.resolve(ACK_FILE + ".tmp");
+        Files.write(tmp, ByteBuffer.allocate(Long.BYTES).putLong(ackedSeq).array());
+        Files.move(tmp, directory.resolve(ACK_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,219 @@
+package com.heterodain.mining.powercontroller.task;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.HiveApi;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.NicehashApi;
+import com.heterodain.mining.powercontroller.device.MiningRigDevice;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+import com.heterodain.mining.powercontroller.service.HiveService.OcProfile;
+import com.heterodain.mining.powercontroller.service.NicehashService.RigStatus;
+
+import lombok.Getter;
+
+/**
+ * 1台のマイニングリグの制御状態
+ *
+ * 割り当てに使う段階は、Hive OSの場合はOCプロファイル、Nicehash OSの場合はPower Mode、どちらでもない場合はON/OFFのみの
+ * 1段階とする。両方を使う場合は、Power ModeをOCプロファイルの段階に比例した段階にする。
+ */
+public class MiningRig {
+    /** ON/OFFのみのリグの段階の名前 */
+    private static final String ON = "ON";
+
+    /** デバイス */
+    @Getter
+    private final MiningRigDevice device;
+    /** Nicehash API接続設定(Nicehash OSでない場合はnull) */
+    @Getter
+    private final NicehashApi nicehashConfig;
+    /** Hive API接続設定(Hive OSでない場合はnull) */
+    @Getter
+    private final HiveApi hiveConfig;
+    /** Power Modeの段階(Nicehash OSでない場合はnull) */
+    @Getter
+    private final PowerLadder powerModeLadder;
+    /** OCプロファイルの段階(Hive OSでない場合はnull) */
+    @Getter
+    private final PowerLadder profileLadder;
+    /** 割り当てに使う段階 */
+    @Getter
+    private final PowerLadder ladder;
+
+    /** リグの状態(Nicehash OS) */
+    @Getter
+    private volatile RigStatus rigStatus;
+    /** OCプロファイル(Hive OS) */
+    @Getter
+    private volatile OcProfile ocProfile;
+    /** 起動を検出した時刻(エポックミリ秒、停止中は0) */
+    @Getter
+    private volatile long startedAt;
+    /** 最後に起動・停止した時刻(エポックミリ秒) */
+    @Getter
+    private volatile long switchedAt;
+    /** 最後の操作が起動の場合はtrue */
+    private volatile boolean switchedOn;
+    /** 割り当てた段階(停止する場合はNONE) */
+    @Getter
+    private volatile int allocatedStep = PowerLadder.NONE;
+
+    /**
+     * コンストラクタ
+     *
+     * @param device          デバイス
+     * @param nicehashConfig  Nicehash API接続設定(Nicehash OSでない場合はnull)
+     * @param hiveConfig      Hive API接続設定(Hive OSでない場合はnull)
+     * @param powerConfig     電源制御の設定
+     * @param metricsRegistry メトリクス
+     */
+    public MiningRig(MiningRigDevice device, NicehashApi nicehashConfig, HiveApi hiveConfig,
+            ControlProperties.Power powerConfig, MetricsRegistry metricsRegistry) {
+        this.device = device;
+        this.nicehashConfig = nicehashConfig;
+        this.hiveConfig = hiveConfig;
+
+        var name = device.getName();
+        var ladderConfig = powerConfig.getLadder();
+        if (nicehashConfig != null) {
+            var steps = powerConfig.getPowerModeLadder().stream().map(Enum::name).collect(Collectors.toList());
+            powerModeLadder = new PowerLadder(name, "power_mode", steps, ladderConfig, metricsRegistry);
+        } else {
+            powerModeLadder = null;
+        }
+        if (hiveConfig != null) {
+            profileLadder = new PowerLadder(name, "oc_profile", powerConfig.profileLadderNames(), ladderConfig,
+                    metricsRegistry);
+        } else {
+            profileLadder = null;
+        }
+        if (profileLadder != null) {
+            ladder = profileLadder;
+        } else if (powerModeLadder != null) {
+            ladder = powerModeLadder;
+        } else {
+            ladder = new PowerLadder(name, "on_off", List.of(ON), ladderConfig, metricsRegistry);
+            ladder.reset(ON, 0L);
+        }
+
+        metricsRegistry.gauge("rig_running", "マイニングリグの電源状態(1:ON, 0:OFF)", () -> device.isStarted() ? 1 : 0,
+                "rig", name);
+        metricsRegistry.gauge("rig_allocated_step", "マイニングリグに割り当てた段階(停止する場合は-1)",
+                () -> allocatedStep, "rig", name);
+    }
+
+    /**
+     * 名前取得
+     *
+     * @return 名前
+     */
+    public String getName() {
+        return device.getName();
+    }
+
+    /**
+     * 電源状態取得
+     *
+     * @return 電源ONの場合はtrue
+     */
+    public boolean isStarted() {
+        return device.isStarted();
+    }
+
+    /**
+     * 電源状態の確認(起動を検出した時刻を更新)
+     *
+     * @param time 確認した時刻(エポックミリ秒)
+     */
+    public void refresh(long time) {
+        if (!device.isStarted()) {
+            startedAt = 0L;
+        } else if (startedAt == 0L) {
+            startedAt = time;
+        }
+    }
+
+    /**
+     * 起動・停止したことの通知
+     *
+     * @param time 電源スイッチを押した時刻(エポックミリ秒)
+     * @param on   起動の場合はtrue、停止の場合はfalse
+     */
+    public void switched(long time, boolean on) {
+        switchedAt = time;
+        switchedOn = on;
+    }
+
+    /**
+     * 起動してから一定時間内かどうか
+     *
+     * @param time     判断時刻(エポックミリ秒)
+     * @param duration 時間(ミリ秒)
+     * @return 起動してからduration以内で電源ONの場合はtrue
+     */
+    public boolean isStartedWithin(long time, long duration) {
+        return switchedOn && time - switchedAt < duration && device.isStarted();
+    }
+
+    /**
+     * 停止してから一定時間内かどうか
+     *
+     * @param time     判断時刻(エポックミリ秒)
+     * @param duration 時間(ミリ秒)
+     * @return 停止してからduration以内の場合はtrue(シャットダウン中で電源ONの場合も含む)
+     */
+    public boolean isStoppedWithin(long time, long duration) {
+        return !switchedOn && switchedAt != 0L && time - switchedAt < duration;
+    }
+
+    /**
+     * 割り当てた段階の設定
+     *
+     * @param step 段階(停止する場合はNONE)
+     */
+    public void allocate(int step) {
+        allocatedStep = step;
+    }
+
+    /**
+     * リグの状態を設定(Power Modeの段階も更新)
+     *
+     * @param rigStatus リグの状態
+     * @param time      取得・変更した時刻(エポックミリ秒)
+     */
+    public void setRigStatus(RigStatus rigStatus, long time) {
+        this.rigStatus = rigStatus;
+        if (powerModeLadder != null) {
+            powerModeLadder.reset(rigStatus == null ? null : rigStatus.getRigPowerMode().name(), time);
+        }
+    }
+
+    /**
+     * OCプロファイルを設定(OCプロファイルの段階も更新)
+     *
+     * @param ocProfile OCプロファイル
+     * @param time      取得・変更した時刻(エポックミリ秒)
+     */
+    public void setOcProfile(OcProfile ocProfile, long time) {
+        this.ocProfile = ocProfile;
+        if (profileLadder != null) {
+            profileLadder.reset(ocProfile == null ? null : ocProfile.getName(), time);
+        }
+    }
+
+    /**
+     * 割り当てに使う段階を、Power ModeまたはOCプロファイルの段階に変換
+     *
+     * @param target 変換先(powerModeLadderかprofileLadder)
+     * @param step   割り当てに使う段階
+     * @return 変換先の段階
+     */
+    public int stepOf(PowerLadder target, int step) {
+        if (target == ladder || ladder.getSteps().size() == 1) {
+            return step;
+        }
+        return (int) Math.round(step * (target.getSteps().size() - 1) / (double) (ladder.getSteps().size() - 1));
+    }
+}
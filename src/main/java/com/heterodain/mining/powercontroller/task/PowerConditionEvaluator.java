@@ -0,0 +1,135 @@
+package com.heterodain.mining.powercontroller.task;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.ControlProperties.EVALUATION;
+import com.heterodain.mining.powercontroller.config.ControlProperties.PowerCondition;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 電源ON/OFF条件の判定
+ *
+ * 条件毎に、1分毎の集計値(WINDOW)か計測毎の計測値(SAMPLE)で判定する。条件を満たし続けた時間が
+ * debounceに達した時点で切り替えを要求し、切り替えた後はholdの間、逆の切り替えを要求しない。
+ * SAMPLEで判定する条件は、計測毎に判定するため数秒で反応できる(電源OFF条件向け)。
+ *
+ * リグの起動直後は突入電流で電圧が一時的に下がるため、電源ON条件のholdを起動直後の猶予期間として使う。
+ * holdが0の場合、SAMPLEの電源OFF条件が起動時の電圧低下で成立し、起動と停止を繰り返すことがある。
+ * 追加のリグを起動した場合も猶予期間を延長する。
+ */
+@Component
+@Slf4j
+public class PowerConditionEvaluator {
+    /**
+     * 判定結果
+     */
+    public static enum ACTION {
+        NONE, POWER_ON, POWER_OFF;
+    }
+
+    @Autowired
+    private ControlProperties controlProperties;
+
+    /** 電源ON条件を満たし始めた時刻(エポックミリ秒、満たしていない場合は-1) */
+    private long powerOnSince = -1;
+    /** 電源OFF条件を満たし始めた時刻(エポックミリ秒、満たしていない場合は-1) */
+    private long powerOffSince = -1;
+    /** 電源ONを要求しない期限(エポックミリ秒) */
+    private long powerOnHoldUntil;
+    /** 電源OFFを要求しない期限(エポックミリ秒) */
+    private long powerOffHoldUntil;
+
+    /**
+     * 計測値での判定(SAMPLEの条件のみ)
+     *
+     * @param time       計測時刻(エポックミリ秒)
+     * @param data       計測値
+     * @param rigPowerOn リグの電源状態
+     * @return 判定結果
+     */
+    public synchronized ACTION onSample(long time, RealtimeData data, boolean rigPowerOn) {
+        return evaluate(EVALUATION.SAMPLE, time, data, data.getBattVolt(), data.getBattVolt(), rigPowerOn);
+    }
+
+    /**
+     * 集計値での判定(WINDOWの条件のみ)
+     *
+     * @param time         判定時刻(エポックミリ秒)
+     * @param summary      集計値
+     * @param onVoltage    電源ON条件の判定に使う電圧(voltageStatisticに応じた値)
+     * @param offVoltage   電源OFF条件の判定に使う電圧(voltageStatisticに応じた値)
+     * @param rigPowerOn   リグの電源状態
+     * @return 判定結果
+     */
+    public synchronized ACTION onWindow(long time, RealtimeData summary, double onVoltage, double offVoltage,
+            boolean rigPowerOn) {
+        return evaluate(EVALUATION.WINDOW, time, summary, onVoltage, offVoltage, rigPowerOn);
+    }
+
+    /**
+     * 電源を切り替えたことの通知(逆の切り替えをholdの間止める、電源ONの場合は起動直後の猶予期間になる)
+     *
+     * @param time 切り替えた時刻(エポックミリ秒)
+     * @param on   電源ONにした場合はtrue
+     */
+    public synchronized void switched(long time, boolean on) {
+        var powerConfig = controlProperties.getPower();
+        powerOnSince = -1;
+        powerOffSince = -1;
+        if (on) {
+            powerOffHoldUntil = Math.max(powerOffHoldUntil, time + holdMillis(powerConfig.getPowerOnCondition()));
+        } else {
+            powerOnHoldUntil = time + holdMillis(powerConfig.getPowerOffCondition());
+        }
+    }
+
+    private ACTION evaluate(EVALUATION evaluation, long time, RealtimeData data, double onVoltage,
+            double offVoltage, boolean rigPowerOn) {
+        var powerConfig = controlProperties.getPower();
+        if (rigPowerOn) {
+            powerOnSince = -1;
+            var condition = powerConfig.getPowerOffCondition();
+            if (condition == null || condition.getEvaluation() != evaluation) {
+                return ACTION.NONE;
+            }
+            var met = condition.lessEqual(data.getPvPower(), data.getBattSOC(), offVoltage, data.getStage());
+            powerOffSince = since(powerOffSince, met, time);
+            if (met && time - powerOffSince >= debounceMillis(condition) && time >= powerOffHoldUntil) {
+                log.debug("電源OFF条件を満たしました。({}) {}", evaluation, data);
+                return ACTION.POWER_OFF;
+            }
+        } else {
+            powerOffSince = -1;
+            var condition = powerConfig.getPowerOnCondition();
+            if (condition == null || condition.getEvaluation() != evaluation) {
+                return ACTION.NONE;
+            }
+            var met = condition.graterEqual(data.getPvPower(), data.getBattSOC(), onVoltage, data.getStage());
+            powerOnSince = since(powerOnSince, met, time);
+            if (met && time - powerOnSince >= debounceMillis(condition) && time >= powerOnHoldUntil) {
+                log.debug("電源ON条件を満たしました。({}) {}", evaluation, data);
+                return ACTION.POWER_ON;
+            }
+        }
+        return ACTION.NONE;
+    }
+
+    private static long since(long since, boolean met, long time) {
+        if (!met) {
+            return -1;
+        }
+        return since < 0 ? time : since;
+    }
+
+    private static long debounceMillis(PowerCondition condition) {
+        return condition.getDebounce() == null ? 0 : condition.getDebounce() * 1000L;
+    }
+
+    private static long holdMillis(PowerCondition condition) {
+        return condition == null || condition.getHold() == null ? 0 : condition.getHold() * 1000L;
+    }
+}
@@ -0,0 +1,202 @@
+package com.heterodain.mining.powercontroller.task;
+
+import java.util.List;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties.Ladder;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 1台のリグの電力の段階(OCプロファイル、Power Mode)
+ *
+ * 段階毎の消費電力を、その段階で安定している間の負荷電力から学習する(変更直後のminIntervalの間は学習しない)。
+ * 未学習の段階の消費電力は、学習済みの最も近い段階から1段あたりdefaultStepWattsの差として見込む。
+ *
+ * 変更直後はminIntervalの間判断しない。その後、誤差が大きい(調整感度の2倍超)場合はすぐに変更し、
+ * 小さい場合は誤差がintervalの間続いてから変更する。intervalは追従できている間は倍々にmaxIntervalまで延ばし、
+ * 変更するとminIntervalに戻す。どの段階にするかはRigAllocatorが全リグの見込みから判断し、判断する時機は
+ * 主リグの段階のisDue()で決める(他のリグの変更・起動・停止もchanged()で通知する)。
+ */
+@Slf4j
+public class PowerLadder {
+    /** 段階が不明な場合の値 */
+    public static final int NONE = -1;
+
+    /** リグの名前 */
+    private final String rig;
+    /** 名前 */
+    @Getter
+    private final String name;
+    /** 段階の名前(低い順) */
+    @Getter
+    private final List<String> steps;
+    /** 設定 */
+    private final Ladder config;
+
+    /** 段階毎の消費電力(W) */
+    private final double[] watts;
+    /** 段階毎の学習済みの場合はtrue */
+    private final boolean[] learned;
+
+    /** 現在の段階(不明な場合はNONE) */
+    @Getter
+    private int current = NONE;
+    /** 前回変更した時刻(エポックミリ秒) */
+    private long lastChange;
+    /** 誤差が小さい場合の判断間隔(ミリ秒) */
+    private long interval;
+    /** 調整感度を超える誤差が続いている期間の開始時刻(エポックミリ秒、誤差がない場合は-1) */
+    private long errorSince = -1;
+
+    /**
+     * コンストラクタ
+     *
+     * @param rig             リグの名前(メトリクスのラベル)
+     * @param name            名前(メトリクスのラベル)
+     * @param steps           段階の名前(低い順)
+     * @param config          設定
+     * @param metricsRegistry メトリクス
+     */
+    public PowerLadder(String rig, String name, List<String> steps, Ladder config, MetricsRegistry metricsRegistry) {
+        this.rig = rig;
+        this.name = name;
+        this.steps = List.copyOf(steps);
+        this.config = config;
+        this.watts = new double[steps.size()];
+        this.learned = new boolean[steps.size()];
+        this.interval = config.getMinInterval() * 1000L;
+
+        metricsRegistry.gauge("power_ladder_step", "電力の段階(0始まり、不明な場合は-1)", () -> getCurrent(), "rig", rig,
+                "ladder", name);
+        for (int i = 0; i < steps.size(); i++) {
+            var step = i;
+            metricsRegistry.gauge("power_ladder_watts", "電力の段階毎に学習した消費電力(W、未学習の場合はNaN)",
+                    () -> getLearnedWatts(step), "rig", rig, "ladder", name, "step", steps.get(i));
+        }
+    }
+
+    /**
+     * 現在の段階を名前で設定(変更した場合、起動時)
+     *
+     * @param stepName 段階の名前(段階にない場合は不明とする)
+     * @param time     変更した時刻(エポックミリ秒)
+     */
+    public synchronized void reset(String stepName, long time) {
+        current = steps.indexOf(stepName);
+        lastChange = time;
+    }
+
+    /**
+     * 段階を変更したことの通知
+     *
+     * @param stepName 変更後の段階の名前
+     * @param time     変更した時刻(エポックミリ秒)
+     */
+    public synchronized void changed(String stepName, long time) {
+        current = steps.indexOf(stepName);
+        changed(time);
+    }
+
+    /**
+     * 変更したことの通知(段階はそのまま、他のリグの段階の変更・起動・停止を含む)
+     *
+     * @param time 変更した時刻(エポックミリ秒)
+     */
+    public synchronized void changed(long time) {
+        lastChange = time;
+        interval = config.getMinInterval() * 1000L;
+        errorSince = -1;
+    }
+
+    /**
+     * 負荷電力の計測値から、現在の段階の消費電力を学習(変更直後のminIntervalの間は学習しない)
+     *
+     * @param time      計測時刻(エポックミリ秒)
+     * @param loadPower このリグの負荷電力(W、1分間の平均)
+     */
+    public synchronized void observe(long time, double loadPower) {
+        if (current == NONE || time - lastChange < config.getMinInterval() * 1000L) {
+            return;
+        }
+        if (learned[current]) {
+            watts[current] += config.getLearningRate() * (loadPower - watts[current]);
+        } else {
+            watts[current] = loadPower;
+            learned[current] = true;
+            log.debug("{}の{}の段階{}の消費電力を{}Wと学習しました。", rig, name, steps.get(current), loadPower);
+        }
+    }
+
+    /**
+     * 段階を判断する時機かどうか
+     *
+     * @param time       判断時刻(エポックミリ秒)
+     * @param error      消費電力の見込みと発電電力の差(W、絶対値)
+     * @param hysteresis 調整感度(W、差がこれ以下なら変更しない)
+     * @return 判断する場合はtrue
+     */
+    public synchronized boolean isDue(long time, double error, double hysteresis) {
+        if (time - lastChange < config.getMinInterval() * 1000L) {
+            // 変更直後は安定するまで待つ
+            return false;
+        }
+        if (error <= hysteresis) {
+            // 追従できている間は、小さな誤差に反応するまでの間隔を延ばす
+            errorSince = -1;
+            steady();
+            return false;
+        }
+        if (errorSince < 0) {
+            errorSince = time;
+        }
+        // 誤差が小さい場合は、interval続いてから追従する
+        return error > hysteresis * 2 || time - errorSince >= interval;
+    }
+
+    /**
+     * 判断した結果、変更しなかったことの通知(小さな誤差に反応するまでの間隔を延ばす)
+     */
+    public synchronized void steady() {
+        interval = Math.min(interval * 2, config.getMaxInterval() * 1000L);
+    }
+
+    /**
+     * 段階の消費電力の見込み
+     *
+     * @param step      段階
+     * @param loadPower 現在の段階の消費電力の見込み(W、学習済みの段階がない場合の基準)
+     * @return 消費電力(W)
+     */
+    public synchronized double estimate(int step, double loadPower) {
+        if (learned[step]) {
+            return watts[step];
+        }
+
+        // 学習済みの最も近い段階から見込む(同じ距離なら低い方)
+        for (int distance = 1; distance < steps.size(); distance++) {
+            for (var base : new int[] { step - distance, step + distance }) {
+                if (base >= 0 && base < steps.size() && learned[base]) {
+                    return watts[base] + (step - base) * config.getDefaultStepWatts();
+                }
+            }
+        }
+        var base = current == NONE ? 0 : current;
+        return loadPower + (step - base) * config.getDefaultStepWatts();
+    }
+
+    /**
+     * 段階の消費電力を学習済みかどうか
+     *
+     * @param step 段階
+     * @return 学習済みの場合はtrue(段階が不明な場合はfalse)
+     */
+    public synchronized boolean isLearned(int step) {
+        return step != NONE && learned[step];
+    }
+
+    private synchronized double getLearnedWatts(int step) {
+        return learned[step] ? watts[step] : Double.NaN;
+    }
+}
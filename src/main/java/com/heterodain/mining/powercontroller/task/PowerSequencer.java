@@ -0,0 +1,473 @@
+package com.heterodain.mining.powercontroller.task;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.device.CoolingFanDevice;
+import com.heterodain.mining.powercontroller.device.MiningRigDevice;
+import com.heterodain.mining.powercontroller.device.MiningRigGroup;
+import com.heterodain.mining.powercontroller.device.ModbusTransport;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedTaskScheduler;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * マイニングリグの電源ON/OFFシーケンス
+ *
+ * 負荷出力の接続、リグの電源スイッチ操作、冷却ファンの制御を状態遷移として管理する。各手順はタスクスケジューラーで
+ * 待ち時間の後に実行し、待っている間はスレッドを使わない。実行中のシーケンスはcancel()で中断でき、
+ * 逆方向のシーケンスを開始した場合も中断する。状態の変化はリスナーとメトリクスで確認できる。
+ *
+ * 起動シーケンスで起動するのは主リグのみで、2台目以降のリグは稼働中にstartRig()/stopRig()で1台ずつ起動・停止する。
+ * 停止シーケンスでは、起動している全リグを停止してから負荷出力をOFFする。
+ */
+@Component
+@Slf4j
+public class PowerSequencer {
+    /** 抵抗経由で負荷出力に接続してから、負荷出力をONするまでの時間(ミリ秒) */
+    private static final long PRECHARGE_MILLIS = 300;
+    /** 負荷出力をONしてから、抵抗をOFFするまでの時間(ミリ秒) */
+    private static final long CONNECT_MILLIS = 1000;
+    /** 抵抗をOFFしてから、リグを起動するまでの時間(ミリ秒) */
+    private static final long SETTLE_MILLIS = 4000;
+    /** 電源スイッチを押している時間(ミリ秒) */
+    private static final long SWITCH_PULSE_MILLIS = 300;
+    /** リグを起動してから、冷却ファンを始動するまでの時間(ミリ秒) */
+    private static final long FAN_DELAY_MILLIS = 100;
+    /** リグを停止してから、負荷出力をOFFするまでの時間(ミリ秒) */
+    private static final long SHUTDOWN_MILLIS = 20000;
+
+    /**
+     * シーケンスの状態
+     */
+    public static enum STATE {
+        /** 停止(リグ・冷却ファンとも停止) */
+        STOPPED(false),
+        /** 換気中(リグ停止中に冷却ファンを一定時間回す) */
+        VENTILATING(false),
+        /** 抵抗経由で負荷出力に接続中(突入電流の抑制) */
+        PRECHARGING(true),
+        /** 負荷出力ON、抵抗のOFF待ち */
+        CONNECTING(true),
+        /** DCDCコンバーターの安定待ち */
+        SETTLING(true),
+        /** 電源スイッチ押下中(起動) */
+        PRESSING_ON(true),
+        /** 冷却ファンの始動待ち */
+        STARTING_FAN(true),
+        /** 稼働中 */
+        RUNNING(false),
+        /** 電源スイッチ押下中(停止) */
+        PRESSING_OFF(true),
+        /** リグのシャットダウン待ち */
+        SHUTTING_DOWN(true),
+        /** 冷却中(リグ停止後に冷却ファンを回す) */
+        COOLING(false);
+
+        /** 電源の切り替え中の場合はtrue */
+        @Getter
+        private final boolean busy;
+
+        private STATE(boolean busy) {
+            this.busy = busy;
+        }
+    }
+
+    @Autowired
+    private ControlProperties controlProperties;
+    @Autowired
+    private PvControllerDevice pvControllerDevice;
+    @Autowired
+    private ModbusTransport modbusTransport;
+    @Autowired
+    private MiningRigGroup miningRigGroup;
+    @Autowired
+    private CoolingFanDevice coolingFanDevice;
+    @Autowired
+    private InstrumentedTaskScheduler taskScheduler;
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** 現在の状態 */
+    @Getter
+    private volatile STATE state = STATE.STOPPED;
+    /** 実行中のシーケンス */
+    private Sequence current;
+    /** 負荷出力をONにしている(ONにしようとした)場合はtrue */
+    private volatile boolean loadOutputOn;
+    /** 状態変化のリスナー */
+    private final List<Consumer<STATE>> listeners = new CopyOnWriteArrayList<>();
+    /** stopRig()でリグの電源スイッチを押した時刻(エポックミリ秒) */
+    private final Map<MiningRigDevice, Long> stopPressedAt = new HashMap<>();
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public void init() {
+        metricsRegistry.gauge("power_sequence_state", "電源シーケンスの状態(0:STOPPED～10:COOLING)",
+                () -> state.ordinal());
+    }
+
+    /**
+     * 状態変化のリスナーを追加
+     *
+     * @param listener リスナー(状態が変化した時、変化後の状態で呼ばれる)
+     */
+    public void addListener(Consumer<STATE> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 起動済みのリグを稼働中として扱う(アプリケーション起動時に、リグが既に起動していた場合)
+     */
+    public synchronized void adoptRunning() {
+        abort();
+        loadOutputOn = true;
+        coolingFanDevice.start();
+        transition(STATE.RUNNING);
+    }
+
+    /**
+     * 起動シーケンスを開始
+     *
+     * 停止・換気中・冷却中の場合に開始する(換気・冷却は中断する)。起動中・稼働中の場合は何もしない。
+     * 停止シーケンスの実行中の場合は、それを中断して開始する。
+     *
+     * @return 稼働中になったら完了
+     */
+    public synchronized CompletableFuture<STATE> start() {
+        var primary = miningRigGroup.getPrimary();
+        if (state == STATE.RUNNING) {
+            return CompletableFuture.completedFuture(state);
+        }
+        if (current != null && current.name.equals("start")) {
+            return current.result;
+        }
+
+        var steps = new ArrayList<Step>();
+        // DCDCコンバーターにいきなり接続すると、
+        // 突入電流でチャージコントローラーの保護回路が働いてしまうので、
+        // 5Ω抵抗経由で接続したあと、ダイレクトに接続する
+        steps.add(new Step(0, STATE.PRECHARGING, () -> pvControllerDevice.loadRegisterOn()));
+        steps.add(new Step(PRECHARGE_MILLIS, STATE.CONNECTING,
+                () -> switchLoadOutput(true)));
+        steps.add(new Step(CONNECT_MILLIS, STATE.SETTLING, () -> pvControllerDevice.loadRegisterOff()));
+        if (!primary.isStarted()) {
+            steps.add(new Step(SETTLE_MILLIS, STATE.PRESSING_ON, () -> primary.pressPowerSwitch(true)));
+            steps.add(new Step(SWITCH_PULSE_MILLIS, STATE.STARTING_FAN, () -> primary.releasePowerSwitch()));
+        }
+        steps.add(new Step(FAN_DELAY_MILLIS, STATE.RUNNING, () -> coolingFanDevice.start()));
+        return begin("start", steps);
+    }
+
+    /**
+     * 停止シーケンスを開始
+     *
+     * 起動しているリグを1台ずつ電源スイッチで停止し、シャットダウンを待ってから負荷出力をOFFする。
+     * その後、冷却ファンを設定時間回してから停止する。停止中(リグも負荷出力も停止)・停止シーケンスの実行中の場合は何もしない。
+     * 起動シーケンスの実行中の場合は、それを中断して開始する。
+     *
+     * @return 冷却を終えて停止したら完了
+     */
+    public synchronized CompletableFuture<STATE> stop() {
+        if ((state == STATE.STOPPED || state == STATE.VENTILATING) && !miningRigGroup.isAnyStarted()
+                && !loadOutputOn) {
+            return CompletableFuture.completedFuture(state);
+        }
+        if (current != null && current.name.equals("stop")) {
+            return current.result;
+        }
+        abort();
+
+        var steps = new ArrayList<Step>();
+        var now = System.currentTimeMillis();
+        var started = miningRigGroup.getRigs().stream().filter(MiningRigDevice::isStarted)
+                .collect(Collectors.toList());
+        // stopRig()で停止したシャットダウン中のリグは、電源スイッチを押さずにシャットダウンを待つ
+        var pressing = started.stream().filter(rig -> now - stopPressedAt.getOrDefault(rig, 0L) >= SHUTDOWN_MILLIS)
+                .collect(Collectors.toList());
+        for (int i = 0; i < pressing.size(); i++) {
+            var rig = pressing.get(i);
+            var last = i == pressing.size() - 1;
+            var delay = i == 0 ? 0 : SWITCH_PULSE_MILLIS;
+            steps.add(new Step(delay, STATE.PRESSING_OFF, () -> rig.pressPowerSwitch(false)));
+            steps.add(new Step(SWITCH_PULSE_MILLIS, last ? STATE.SHUTTING_DOWN : STATE.PRESSING_OFF,
+                    () -> rig.releasePowerSwitch()));
+        }
+        if (pressing.isEmpty() && !started.isEmpty()) {
+            steps.add(new Step(0, STATE.SHUTTING_DOWN, () -> {
+            }));
+        }
+        var shutdownMillis = started.isEmpty() ? 0L : SHUTDOWN_MILLIS;
+        steps.add(new Step(shutdownMillis, STATE.COOLING,
+                () -> switchLoadOutput(false)));
+        steps.add(new Step(controlProperties.getFan().getPowerOffDuration() * 60 * 1000L, STATE.STOPPED,
+                () -> coolingFanDevice.stop()));
+        return begin("stop", steps);
+    }
+
+    /**
+     * 稼働中に1台のリグを起動(電源スイッチを押して離す)
+     *
+     * 稼働中で、実行中のシーケンスがない場合のみ開始する。
+     *
+     * @param rig マイニングリグ
+     * @return 開始した場合はtrue
+     */
+    public synchronized boolean startRig(MiningRigDevice rig) {
+        return pressRig("rig-start", rig, true);
+    }
+
+    /**
+     * 稼働中に1台のリグを停止(電源スイッチを押して離す、シャットダウンは待たない)
+     *
+     * 稼働中で、実行中のシーケンスがない場合のみ開始する。SHUTDOWN_MILLISの間はシャットダウン中とみなし、
+     * 停止シーケンスで電源スイッチを押さない。
+     *
+     * @param rig マイニングリグ
+     * @return 開始した場合はtrue
+     */
+    public synchronized boolean stopRig(MiningRigDevice rig) {
+        return pressRig("rig-stop", rig, false);
+    }
+
+    /**
+     * 冷却ファンを一定時間回す(停止中の場合のみ)
+     *
+     * @param duration 回す時間
+     * @return 冷却ファンを停止したら完了
+     */
+    public synchronized CompletableFuture<STATE> ventilate(Duration duration) {
+        if (state != STATE.STOPPED) {
+            return CompletableFuture.completedFuture(state);
+        }
+
+        var steps = new ArrayList<Step>();
+        steps.add(new Step(0, STATE.VENTILATING, () -> coolingFanDevice.start()));
+        steps.add(new Step(duration.toMillis(), STATE.STOPPED, () -> coolingFanDevice.stop()));
+        return begin("ventilate", steps);
+    }
+
+    /**
+     * 実行中のシーケンスを中断
+     *
+     * 電源スイッチと抵抗はOFFにし、それ以外の出力はそのままにする。中断後の状態は、リグが起動していればRUNNING、
+     * 起動していなければ冷却ファンが回っていればCOOLING(設定時間後に停止)、回っていなければSTOPPEDになる。
+     * 起動シーケンスを負荷出力をONにした後で中断し、リグが起動していない場合は、停止シーケンスで負荷出力をOFFにする。
+     */
+    public synchronized void cancel() {
+        var sequence = current;
+        if (sequence == null) {
+            return;
+        }
+        abort();
+        if (miningRigGroup.isAnyStarted()) {
+            transition(STATE.RUNNING);
+        } else if (loadOutputOn && sequence.name.equals("start")) {
+            log.info("リグが起動していないため、負荷出力をOFFします。");
+            stop();
+        } else if (coolingFanDevice.isStarted()) {
+            var steps = new ArrayList<Step>();
+            steps.add(new Step(0, STATE.COOLING, () -> {
+            }));
+            steps.add(new Step(controlProperties.getFan().getPowerOffDuration() * 60 * 1000L, STATE.STOPPED,
+                    () -> coolingFanDevice.stop()));
+            begin("cool", steps);
+        } else {
+            transition(STATE.STOPPED);
+        }
+    }
+
+    /**
+     * 終了処理
+     */
+    @PreDestroy
+    public synchronized void destroy() {
+        abort();
+    }
+
+    /**
+     * 負荷出力のON/OFF
+     *
+     * ONの場合は、失敗しても負荷出力がONになっている可能性があるため、操作する前にONとして扱う。
+     */
+    private void switchLoadOutput(boolean on) throws Exception {
+        if (on) {
+            loadOutputOn = true;
+        }
+        pvControllerDevice.changeLoadSwith(modbusTransport, on);
+        loadOutputOn = on;
+    }
+
+    /**
+     * 稼働中のリグの電源スイッチ操作(状態はRUNNINGのまま)
+     */
+    private boolean pressRig(String name, MiningRigDevice rig, boolean start) {
+        if (state != STATE.RUNNING || current != null) {
+            return false;
+        }
+
+        if (!start) {
+            stopPressedAt.put(rig, System.currentTimeMillis());
+        }
+        var steps = new ArrayList<Step>();
+        steps.add(new Step(0, STATE.RUNNING, () -> rig.pressPowerSwitch(start)));
+        steps.add(new Step(SWITCH_PULSE_MILLIS, STATE.RUNNING, () -> rig.releasePowerSwitch()));
+        begin(name, steps);
+        return true;
+    }
+
+    /**
+     * シーケンスを開始(最初の手順を予約)
+     */
+    private CompletableFuture<STATE> begin(String name, List<Step> steps) {
+        abort();
+        var sequence = new Sequence(name, steps);
+        current = sequence;
+        log.debug("電源シーケンス({})を開始します。", name);
+        schedule(sequence);
+        return sequence.result;
+    }
+
+    /**
+     * 次の手順を予約
+     */
+    private void schedule(Sequence sequence) {
+        var step = sequence.steps.get(sequence.index);
+        sequence.next = taskScheduler.schedule(() -> runStep(sequence),
+                new Date(System.currentTimeMillis() + step.delay));
+    }
+
+    /**
+     * 手順を実行し、残りの手順があれば次を予約
+     */
+    private synchronized void runStep(Sequence sequence) {
+        if (current != sequence) {
+            return;
+        }
+
+        var step = sequence.steps.get(sequence.index);
+        try {
+            step.action.run();
+        } catch (Exception e) {
+            log.error("電源シーケンス({})の{}への遷移に失敗しました。", sequence.name, step.state, e);
+            count(sequence, "failed");
+            sequence.result.completeExceptionally(e);
+            cancel();
+            return;
+        }
+        transition(step.state);
+
+        sequence.index++;
+        if (sequence.index < sequence.steps.size()) {
+            schedule(sequence);
+        } else {
+            current = null;
+            count(sequence, "completed");
+            log.debug("電源シーケンス({})が完了しました。", sequence.name);
+            sequence.result.complete(state);
+        }
+    }
+
+    /**
+     * 実行中のシーケンスを止める(電源スイッチと抵抗はOFFにする)
+     */
+    private void abort() {
+        var sequence = current;
+        if (sequence == null) {
+            return;
+        }
+        current = null;
+        if (sequence.next != null) {
+            sequence.next.cancel(false);
+        }
+        // 稼働中のリグの電源スイッチ操作はRUNNINGのまま行うため、状態によらず全リグの電源スイッチを離す
+        miningRigGroup.getRigs().forEach(MiningRigDevice::releasePowerSwitch);
+        // 状態は手順の実行後に変わるため、起動シーケンスは状態によらず抵抗をOFFする(OFF済みでも問題ない)
+        if (sequence.name.equals("start")) {
+            pvControllerDevice.loadRegisterOff();
+        }
+        if (!sequence.result.isDone()) {
+            log.info("電源シーケンス({})を{}で中断しました。", sequence.name, state);
+            count(sequence, "cancelled");
+            sequence.result.cancel(false);
+        }
+    }
+
+    private void transition(STATE next) {
+        if (next == state) {
+            return;
+        }
+        log.debug("電源シーケンスの状態: {} -> {}", state, next);
+        state = next;
+        for (var listener : listeners) {
+            try {
+                listener.accept(next);
+            } catch (RuntimeException e) {
+                log.warn("電源シーケンスのリスナーでエラーが発生しました。", e);
+            }
+        }
+    }
+
+    private void count(Sequence sequence, String result) {
+        metricsRegistry.counter("power_sequences_total", "電源シーケンスの実行回数", "sequence", sequence.name, "result",
+                result).inc();
+    }
+
+    /**
+     * 手順の処理
+     */
+    @FunctionalInterface
+    private static interface Action {
+        void run() throws Exception;
+    }
+
+    /**
+     * 手順(前の手順からdelayミリ秒後にactionを実行し、stateに遷移する)
+     */
+    @AllArgsConstructor
+    private static class Step {
+        private final long delay;
+        private final STATE state;
+        private final Action action;
+    }
+
+    /**
+     * 実行中のシーケンス
+     */
+    private static class Sequence {
+        private final String name;
+        private final List<Step> steps;
+        private final CompletableFuture<STATE> result = new CompletableFuture<>();
+        /** 次に実行する手順 */
+        private int index;
+        /** 次の手順の実行予定 */
+        private ScheduledFuture<?> next;
+
+        Sequence(String name, List<Step> steps) {
+            this.name = name;
+            this.steps = steps;
+        }
+    }
+}
@@ -1,41 +1,43 @@
 package com.heterodain.mining.powercontroller.task;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.Future;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import com.ghgande.j2mod.modbus.net.SerialConnection;
-import com.ghgande.j2mod.modbus.util.SerialParameters;
-import com.heterodain.mining.powercontroller.config.DeviceProperties;
-import com.heterodain.mining.powercontroller.config.ServiceProperties;
 import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.ControlProperties.PowerCondition;
+import com.heterodain.mining.powercontroller.config.ControlProperties.STATISTIC;
 import com.heterodain.mining.powercontroller.device.BatteryHeaterDevice;
-import com.heterodain.mining.powercontroller.device.CoolingFanDevice;
 import com.heterodain.mining.powercontroller.device.Lm75aDevice;
-import com.heterodain.mining.powercontroller.device.MiningRigDevice;
-import com.heterodain.mining.powercontroller.device.PvControllerDevice;
-import com.heterodain.mining.powercontroller.device.RaspberryPiDevice;
+import com.heterodain.mining.powercontroller.device.MiningRigGroup;
+import com.heterodain.mining.powercontroller.device.ModbusTransport;
+import com.heterodain.mining.powercontroller.device.PvControllerBus;
 import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
-import com.heterodain.mining.powercontroller.service.AmbientService;
-import com.heterodain.mining.powercontroller.service.HiveService;
-import com.heterodain.mining.powercontroller.service.NicehashService;
-import com.heterodain.mining.powercontroller.service.HiveService.OcProfile;
-import com.heterodain.mining.powercontroller.service.NicehashService.RigStatus;
-import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+import com.heterodain.mining.powercontroller.device.RaspberryPiDevice;
+import com.heterodain.mining.powercontroller.metrics.InstrumentedTaskScheduler;
+import com.heterodain.mining.powercontroller.sample.SampleRing;
+import com.heterodain.mining.powercontroller.sample.WindowSummary;
+import com.heterodain.mining.powercontroller.service.Futures;
+import com.heterodain.mining.powercontroller.store.SampleStore;
+import com.heterodain.mining.powercontroller.task.PowerConditionEvaluator.ACTION;
+import com.heterodain.mining.powercontroller.task.PowerSequencer.STATE;
+import com.heterodain.mining.powercontroller.telemetry.TelemetryDispatcher;
+import com.heterodain.mining.powercontroller.telemetry.TelemetrySample;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
 import lombok.extern.slf4j.Slf4j;
@@ -46,118 +48,140 @@ import lombok.extern.slf4j.Slf4j;
 @Component
 @Slf4j
 public class PvControllerTasks {
-    @Autowired
-    private DeviceProperties deviceProperties;
-    @Autowired
-    private ServiceProperties serviceProperties;
     @Autowired
     private ControlProperties controlProperties;
 
     @Autowired
     private RaspberryPiDevice raspberryPiDevice;
     @Autowired
-    private PvControllerDevice pvControllerDevice;
+    private PvControllerBus pvControllerBus;
     @Autowired
-    private Lm75aDevice lm75aDevice;
+    private ModbusTransport modbusTransport;
     @Autowired
-    private MiningRigDevice miningRigDevice;
+    private Lm75aDevice lm75aDevice;
     @Autowired
-    private CoolingFanDevice coolingFanDevice;
+    private MiningRigGroup miningRigGroup;
     @Autowired
     private BatteryHeaterDevice batteryHeaterDevice;
 
     @Autowired
-    private AmbientService ambientService;
+    private TelemetryDispatcher telemetryDispatcher;
+
     @Autowired
-    private NicehashService nicehashService;
+    private SamplingCadence samplingCadence;
     @Autowired
-    private HiveService hiveService;
+    private PowerConditionEvaluator powerConditionEvaluator;
+    @Autowired
+    private PowerSequencer powerSequencer;
+    @Autowired
+    private PvForecaster pvForecaster;
+    @Autowired
+    private RigAllocator rigAllocator;
+    @Autowired
+    private SampleStore sampleStore;
 
     @Autowired
-    private ThreadPoolTaskExecutor taskExecutor;
+    private InstrumentedTaskScheduler taskScheduler;
 
-    /** RS485シリアル接続 */
-    private SerialConnection conn;
     /** 初期化済みフラグ */
     private boolean initialized = false;
-
-    /** 計測データ(3秒値) */
-    private List<RealtimeData> threeSecDatas = new ArrayList<>();
+    /** サンプリングタスク実行結果 */
+    private ScheduledFuture<?> realtimeFuture;
+    /** 前回のサンプリング時刻(エポックミリ秒) */
+    private long lastSampleTime;
+    /** 前回の電源制御以降に、合算から外したユニットがあった場合はtrue */
+    private volatile boolean droppedSinceControl;
+
+    /** 計測データ(3秒値、全ユニット合算) */
+    private SampleRing threeSecDatas = new SampleRing("3秒値", 512);
+    /** ユニット毎の計測データ(3秒値) */
+    private Map<Integer, SampleRing> unitThreeSecDatas = new ConcurrentHashMap<>();
     /** 計測データ(1分値) */
-    private List<RealtimeData> oneMinDatas = new ArrayList<>();
+    private SampleRing oneMinDatas = new SampleRing("1分値", 32);
     /** 計測データ(15分値) */
-    private List<RealtimeData> fifteenMinDatas = new ArrayList<>();
+    private SampleRing fifteenMinDatas = new SampleRing("15分値", 32);
+
+    /** 集計用の統計量(3秒値→1分値) */
+    private final WindowSummary threeSecSummary = new WindowSummary();
+    /** 集計用の統計量(ユニット毎の3秒値) */
+    private final WindowSummary unitSummary = new WindowSummary();
+    /** 集計用の統計量(1分値→3分値) */
+    private final WindowSummary oneMinSummary = new WindowSummary();
+    /** 集計用の統計量(3分値→15分値) */
+    private final WindowSummary fifteenMinSummary = new WindowSummary();
 
-    /** ファン停止タスク実行結果 */
-    private Future<?> fanStopFuture;
     /** PC起動時刻 */
-    private LocalDateTime pcStartTime;
+    private volatile LocalDateTime pcStartTime;
     /** シャットダウン要求 */
-    private boolean shutdownRequest = false;
-    /** リグの状態(Nicehash OS) */
-    private RigStatus currentRigStatus;
-    /** OCプロファイル(Hive OS) */
-    private OcProfile currentOcProfile;
+    private volatile boolean shutdownRequest = false;
 
     /**
      * 初期化
      */
     @PostConstruct
     public void init() throws Exception {
-        var pvcConfig = deviceProperties.getPvController();
-
-        // RS485シリアル接続
-        log.info("PVコントローラーに接続します。");
-
-        var serialParam = new SerialParameters();
-        serialParam.setPortName(pvcConfig.getComPort());
-        serialParam.setBaudRate(115200);
-        serialParam.setDatabits(8);
-        serialParam.setParity("None");
-        serialParam.setStopbits(1);
-        serialParam.setEncoding("rtu");
-        serialParam.setEcho(false);
-        conn = new SerialConnection(serialParam);
-        conn.open();
-
-        // 既にPCが起動中だった場合はファンを始動
-        if (miningRigDevice.isStarted()) {
-            coolingFanDevice.start();
-            pcStartTime = LocalDateTime.now();
-        }
-
-        // Nicehash OSのリグ状態取得
-        var nicehashConfig = serviceProperties.getNicehashApi();
-        if (nicehashConfig != null) {
-            currentRigStatus = nicehashService.getRigStatus(nicehashConfig);
-        }
+        // PVコントローラーに接続
+        modbusTransport.open();
 
-        // Hive OSのOCプロファイル取得
-        var hiveConfig = serviceProperties.getHiveApi();
-        if (hiveConfig != null) {
-            var ocProfileId = hiveService.getWorkerOcProfileId(hiveConfig);
-            currentOcProfile = hiveService.getOcProfiles(hiveConfig).get(ocProfileId);
+        // 既にPCが起動中だった場合は稼働中として扱う(ファンを始動)
+        if (miningRigGroup.isAnyStarted()) {
+            powerSequencer.adoptRunning();
+            pcStartTime = LocalDateTime.now();
         }
 
         initialized = true;
+
+        // PVコントローラーからのデータ取得を開始
+        realtimeFuture = taskScheduler.schedule("PvControllerTasks.realtime", this::realtime, samplingCadence);
     }
 
     /**
-     * 3秒毎にPVコントローラーからデータ取得
+     * PVコントローラーからデータ取得 (通常3秒毎、間隔はSamplingCadenceで調整)
      */
-    @Scheduled(initialDelay = 3 * 1000, fixedDelay = 3 * 1000)
     public void realtime() {
         if (!initialized) {
             return;
         }
 
-        try {
-            var data = pvControllerDevice.readCurrent(conn);
-            synchronized (threeSecDatas) {
-                threeSecDatas.add(data);
-            }
-        } catch (Exception e) {
-            log.error("PVコントローラーへのアクセスに失敗しました。", e);
+        var busData = pvControllerBus.readAll(modbusTransport);
+        samplingCadence.update(busData == null ? null : busData.getCombined(), miningRigGroup.isAnyStarted());
+        if (busData == null) {
+            log.error("PVコントローラーへのアクセスに失敗しました。");
+            return;
+        }
+
+        // このデータが代表する期間を設定(通信断の後は最大でも低速サンプリング間隔まで)
+        var now = System.currentTimeMillis();
+        var maxDuration = controlProperties.getSampling().getSlowInterval();
+        var duration = lastSampleTime == 0 ? samplingCadence.currentInterval()
+                : Math.min(now - lastSampleTime, maxDuration);
+        lastSampleTime = now;
+        busData.getUnits().values().forEach(data -> data.setDuration(duration / 1000D));
+        busData.getCombined().setDuration(duration / 1000D);
+
+        // ユニット毎の記録には、値を引き継いだユニットを含めない
+        if (pvControllerBus.getUnitCount() > 1) {
+            busData.getUnits().forEach((unitId, data) -> {
+                if (!busData.getCarriedUnits().contains(unitId)) {
+                    unitThreeSecDatas
+                            .computeIfAbsent(unitId, k -> new SampleRing("3秒値(unitId=" + unitId + ")", 512))
+                            .add(now, data);
+                }
+            });
+        }
+
+        // 合算から外したユニットがある場合、合算値が実際より小さいため記録せず、次の電源制御も見送る
+        if (!busData.getDroppedUnits().isEmpty()) {
+            log.debug("合算から外したユニットがあるため、合算値を使いません。unitIds={}", busData.getDroppedUnits());
+            droppedSinceControl = true;
+            return;
+        }
+        threeSecDatas.add(now, busData.getCombined());
+        sampleStore.offer(now, busData.getCombined());
+
+        // 値を引き継いだユニットがある場合は、計測毎の判定をしない
+        if (busData.isComplete()) {
+            evaluateSample(now, busData.getCombined());
         }
     }
 
@@ -166,102 +190,150 @@ public class PvControllerTasks {
      */
     @Scheduled(fixedDelay = 1 * 60 * 1000, initialDelay = 1 * 60 * 1000)
     public void powerControl() {
-        if (threeSecDatas.size() < 5) {
+        // 集計 (15秒分以上のデータが集まっていなければ次回に持ち越す)
+        var now = System.currentTimeMillis();
+        var upTo = threeSecDatas.mark();
+        if (!threeSecDatas.summarize(upTo, threeSecSummary) || threeSecSummary.getDuration() < 15D) {
             return;
         }
-
-        // 集計
-        RealtimeData summary;
-        synchronized (threeSecDatas) {
-            summary = RealtimeData.summary(threeSecDatas);
-            threeSecDatas.clear();
+        threeSecDatas.consume(upTo);
+        oneMinDatas.add(now, threeSecSummary);
+        var summary = threeSecSummary.toRealtimeData();
+        if (threeSecSummary.isStageChanged()) {
+            log.debug("集計期間内に充電ステージが変化しました。{}", threeSecSummary);
         }
-        synchronized (oneMinDatas) {
-            oneMinDatas.add(summary);
+        publishTelemetry(now, summary);
+        pvForecaster.update(now, summary.getPvPower());
+
+        unitThreeSecDatas.forEach((unitId, datas) -> {
+            var unitUpTo = datas.mark();
+            if (datas.summarize(unitUpTo, unitSummary)) {
+                log.debug("unitId={}: {}", unitId, unitSummary);
+                datas.consume(unitUpTo);
+            }
+        });
+
+        // 合算から外したユニットがあった期間は、集計値が実際より小さい可能性があるため、
+        // 条件による電源制御とリグの割り当てをしない(シャットダウン要求は処理する)
+        var partial = droppedSinceControl;
+        droppedSinceControl = false;
+        if (partial) {
+            log.warn("PVコントローラーの一部のユニットを読み込めなかったため、今回の電源制御を見送ります。");
         }
 
-        // リグの電源状態取得
-        var pcPowerOn = miningRigDevice.isStarted();
-
-        // 電源制御
-        try {
+        // 電源制御(WINDOWで判定する条件、電源の切り替え中は判定しない)
+        if (!powerSequencer.getState().isBusy()) {
+            var pcPowerOn = miningRigGroup.isAnyStarted();
             var powerConfig = controlProperties.getPower();
-            var powerOnCondition = powerConfig.getPowerOnCondition();
-            var powerOffCondition = powerConfig.getPowerOffCondition();
+            var action = partial ? ACTION.NONE
+                    : powerConditionEvaluator.onWindow(now, summary,
+                            conditionVoltage(powerConfig.getPowerOnCondition(), threeSecSummary),
+                            conditionVoltage(powerConfig.getPowerOffCondition(), threeSecSummary), pcPowerOn);
 
-            if (!pcPowerOn && powerOnCondition.graterEqual(summary.getPvPower(), summary.getBattSOC(),
-                    summary.getBattVolt(), summary.getStage())) {
+            if (!pcPowerOn && action == ACTION.POWER_ON) {
                 // 設定条件以上のとき、マイニングリグを起動
-
-                // DCDCコンバーターにいきなり接続すると、
-                // 突入電流でチャージコントローラーの保護回路が働いてしまうので、
-                // 5Ω抵抗経由で接続したあと、ダイレクトに接続する
-                pvControllerDevice.loadRegisterOn();
-                Thread.sleep(300);
-                pvControllerDevice.changeLoadSwith(conn, true);
-                Thread.sleep(1000);
-                pvControllerDevice.loadRegisterOff();
-
-                Thread.sleep(4000);
-
-                miningRigDevice.start();
-                pcStartTime = LocalDateTime.now();
-
-                if (fanStopFuture != null && !fanStopFuture.isDone()) {
-                    fanStopFuture.cancel(true);
-                }
-                Thread.sleep(100);
-                coolingFanDevice.start();
-
-            } else if (shutdownRequest || (pcPowerOn && powerOffCondition.lessEqual(summary.getPvPower(),
-                    summary.getBattSOC(), summary.getBattVolt(), summary.getStage()))) {
+                powerOn();
+            } else if (shutdownRequest || (pcPowerOn && action == ACTION.POWER_OFF)) {
                 // 設定条件以下のとき、マイニングリグを停止
+                powerOff();
+            }
+        }
 
-                miningRigDevice.stop();
+        // 各リグの起動・停止と電力の段階の制御
+        if (!partial && powerSequencer.getState() == STATE.RUNNING) {
+            rigAllocator.control(now, expectedPvPower(summary.getPvPower()), summary.getLoadPower());
+        }
+    }
 
-                Thread.sleep(20000);
+    /**
+     * 計測毎の電源ON/OFF条件(SAMPLE)の判定(電源の切り替え中は判定しない)
+     */
+    private void evaluateSample(long time, RealtimeData data) {
+        if (powerSequencer.getState().isBusy()) {
+            return;
+        }
 
-                pvControllerDevice.changeLoadSwith(conn, false);
+        var pcPowerOn = miningRigGroup.isAnyStarted();
+        var action = powerConditionEvaluator.onSample(time, data, pcPowerOn);
+        if (action == ACTION.POWER_OFF && pcPowerOn) {
+            log.info("電源OFF条件を満たしたため、マイニングリグを停止します。battVolt={}, pvPower={}", data.getBattVolt(),
+                    data.getPvPower());
+            powerOff();
+        } else if (action == ACTION.POWER_ON && !pcPowerOn) {
+            log.info("電源ON条件を満たしたため、マイニングリグを起動します。battVolt={}, pvPower={}", data.getBattVolt(),
+                    data.getPvPower());
+            powerOn();
+        }
+    }
 
-                // 指定時間待ってから冷却ファンを止める
-                if (taskExecutor.getActiveCount() == 0) {
-                    fanStopFuture = taskExecutor.submit(() -> {
-                        try {
-                            Thread.sleep(controlProperties.getFan().getPowerOffDuration() * 60 * 1000);
-                        } catch (InterruptedException ignore) {
-                            // NOP
-                        }
-                        coolingFanDevice.stop();
-                    });
-                }
+    /**
+     * マイニングリグの起動シーケンスを開始
+     */
+    private void powerOn() {
+        powerConditionEvaluator.switched(System.currentTimeMillis(), true);
+        samplingCadence.transition();
 
-                shutdownRequest = false;
+        powerSequencer.start().whenComplete((r, e) -> {
+            if (e == null) {
+                pcStartTime = LocalDateTime.now();
+            } else if (!(e instanceof CancellationException)) {
+                log.error("マイニングリグの起動に失敗しました。", Futures.unwrap(e));
             }
+        });
+    }
 
-        } catch (Exception e) {
-            log.error("電源制御に失敗しました。", e);
-        }
+    /**
+     * マイニングリグの停止シーケンスを開始
+     */
+    private void powerOff() {
+        powerConditionEvaluator.switched(System.currentTimeMillis(), false);
+        samplingCadence.transition();
+        shutdownRequest = false;
+
+        powerSequencer.stop().whenComplete((r, e) -> {
+            if (e != null && !(e instanceof CancellationException)) {
+                log.error("マイニングリグの停止に失敗しました。", Futures.unwrap(e));
+            }
+        });
     }
 
     /**
-     * 3分毎にAmbientにデータ送信
+     * 電源制御条件の判定に使う電圧取得
+     * 
+     * @param condition 電源制御の条件
+     * @param stats     集計期間内の統計量
+     * @return 電圧(平均値または最小値)
+     */
+    private double conditionVoltage(PowerCondition condition, WindowSummary stats) {
+        return condition.getVoltageStatistic() == STATISTIC.MIN ? stats.getBattVolt().getMin()
+                : stats.getBattVolt().getMean();
+    }
+
+    /**
+     * 3分毎に1分値を集計(15分値の元データ)
+     * 
+     * 計測データのシンクへの出力は1分毎にpublishTelemetryで行う(シンク毎に出力間隔の平均値を出力する)。
      */
     @Scheduled(cron = "0 */3 * * * *")
-    public void sendAmbient() throws Exception {
+    public void summarizeOneMin() {
         if (oneMinDatas.isEmpty()) {
             return;
         }
 
         // 集計
-        RealtimeData summary;
-        synchronized (oneMinDatas) {
-            summary = RealtimeData.summary(oneMinDatas);
-            oneMinDatas.clear();
-        }
-        synchronized (fifteenMinDatas) {
-            fifteenMinDatas.add(summary);
-        }
+        var upTo = oneMinDatas.mark();
+        oneMinDatas.summarize(upTo, oneMinSummary);
+        oneMinDatas.consume(upTo);
+        fifteenMinDatas.add(System.currentTimeMillis(), oneMinSummary);
+    }
 
+    /**
+     * 計測データをシンクに出力(キューに入れるだけで、出力の完了は待たない)
+     * 
+     * @param time    時刻(エポックミリ秒)
+     * @param summary 1分値
+     */
+    private void publishTelemetry(long time, RealtimeData summary) {
         // バッテリー温度取得
         Double battTemp;
         try {
@@ -271,38 +343,34 @@ public class PvControllerTasks {
             battTemp = null;
         }
 
-        // Ambient送信
-        var ambientConfig = serviceProperties.getAmbient();
-        if (ambientConfig != null) {
-            // Nicehash OSのPower Modeか、Hive OSのOCプロファイルの数値を取得(9=HIGH,11=MEDIUM,12=LOW)
-            Double powerModeOrLimitValue = currentRigStatus == null ? null
-                    : currentRigStatus.getRigPowerMode().getStatusValue();
-            if (powerModeOrLimitValue == null && currentOcProfile != null) {
-                powerModeOrLimitValue = currentOcProfile.getName()
-                        .equals(controlProperties.getPower().getHighProfileName()) ? 9D : 12D;
-            }
+        // 主リグのNicehash OSのPower Modeか、Hive OSのOCプロファイルの数値を取得(9=HIGH,11=MEDIUM,12=LOW)
+        var rigStatus = rigAllocator.getPrimary().getRigStatus();
+        var ocProfile = rigAllocator.getPrimary().getOcProfile();
+        Double powerModeOrLimitValue = rigStatus == null ? null : rigStatus.getRigPowerMode().getStatusValue();
+        if (powerModeOrLimitValue == null && ocProfile != null) {
+            powerModeOrLimitValue = ocProfile.getName().equals(controlProperties.getPower().getHighProfileName()) ? 9D
+                    : 12D;
+        }
 
-            try {
-                var sendDatas = new Double[] { summary.getPvPower(), summary.getBattVolt(), summary.getLoadPower(),
-                        powerModeOrLimitValue, battTemp };
-                log.debug("Ambientに3分値を送信します。pcPower={},battVolt={},loadPower={},rigPM/PL={},battTemp={}",
-                        sendDatas[0], sendDatas[1], sendDatas[2], sendDatas[3], sendDatas[4]);
+        var fields = new LinkedHashMap<String, Double>();
+        fields.put(TelemetrySample.PV_POWER, summary.getPvPower());
+        fields.put(TelemetrySample.BATT_VOLT, summary.getBattVolt());
+        fields.put(TelemetrySample.LOAD_POWER, summary.getLoadPower());
+        fields.put(TelemetrySample.POWER_MODE, powerModeOrLimitValue);
+        fields.put(TelemetrySample.BATT_TEMP, battTemp);
+        log.debug("計測データを出力します。{}", fields);
 
-                ambientService.send(ambientConfig, ZonedDateTime.now(), null, sendDatas);
-            } catch (Exception e) {
-                log.error("Ambientへのデータ送信に失敗しました。", e);
-            }
-        }
+        var duration = summary.getDuration() == null ? 60D : summary.getDuration();
+        telemetryDispatcher.publish(new TelemetrySample(time, duration, fields));
     }
 
     /**
      * 5分毎にバッテリー温度制御
      * 
      * @throws IOException
-     * @throws UnsupportedBusNumberException
      */
     @Scheduled(cron = "0 */5 * * * *")
-    public void batteryTempControl() throws UnsupportedBusNumberException, IOException {
+    public void batteryTempControl() throws IOException {
         var heaterConfig = controlProperties.getBatteryHeater();
         var hourRange = heaterConfig.getHourRange();
         var tempRange = heaterConfig.getTemperatureRange();
@@ -344,48 +412,32 @@ public class PvControllerTasks {
         if (fifteenMinDatas.isEmpty()) {
             return;
         }
+        if (rigAllocator.isChanging()) {
+            log.warn("前回のPowerMode/PowerLimitの変更が完了していないため、次回に持ち越します。");
+            return;
+        }
 
         // 集計
-        RealtimeData summary;
-        synchronized (fifteenMinDatas) {
-            summary = RealtimeData.summary(fifteenMinDatas);
-            fifteenMinDatas.clear();
-        }
+        var upTo = fifteenMinDatas.mark();
+        fifteenMinDatas.summarize(upTo, fifteenMinSummary);
+        fifteenMinDatas.consume(upTo);
+        var summary = fifteenMinSummary.toRealtimeData();
 
         // PC起動後15分間は制御しない
         if (pcStartTime == null || ChronoUnit.MINUTES.between(pcStartTime, LocalDateTime.now()) < 15) {
             return;
         }
 
-        var pcPowerOn = miningRigDevice.isStarted();
-        var histeresis = controlProperties.getPower().getHysteresis();
-
-        // Power Mode制御
-        var nicehashConfig = serviceProperties.getNicehashApi();
-        if (nicehashConfig != null) {
-            var oldPowerMode = currentRigStatus.getRigPowerMode();
-            if (pcPowerOn && (summary.getPvPower() - summary.getLoadPower()) > histeresis) {
-                currentRigStatus = nicehashService.turnUpPowerMode(nicehashConfig);
-            } else if (pcPowerOn && (summary.getLoadPower() - summary.getPvPower()) > histeresis) {
-                currentRigStatus = nicehashService.turnDownPowerMode(nicehashConfig);
-            }
-            if (oldPowerMode == currentRigStatus.getRigPowerMode()) {
-                log.info("リグのPowerModeを{}に変更しました。", currentRigStatus.getRigPowerMode());
-            }
-        }
+        var pvPower = expectedPvPower(summary.getPvPower());
 
-        // Power Limit制御
-        var hiveConfig = serviceProperties.getHiveApi();
-        if (hiveConfig != null) {
-            var oldOcProfileId = currentOcProfile.getId();
-            if (pcPowerOn && (summary.getPvPower() - summary.getLoadPower()) > histeresis) {
-                currentOcProfile = hiveService.turnUpPowerLimit(hiveConfig, controlProperties.getPower());
-            } else if (pcPowerOn && (summary.getLoadPower() - summary.getPvPower()) > histeresis) {
-                currentOcProfile = hiveService.turnDownPowerLimit(hiveConfig, controlProperties.getPower());
-            }
-            if (!oldOcProfileId.equals(currentOcProfile.getId())) {
-                log.info("ワーカーのOCプロファイルを{}に変更しました。", currentOcProfile.getName());
-            }
+        var pcPowerOn = miningRigGroup.isAnyStarted();
+        var histeresis = controlProperties.getPower().getHysteresis();
+        // 段階の制御が有効な場合は、1分毎にRigAllocatorで変更する
+        var stepwise = !controlProperties.getPower().getLadder().isEnabled();
+        var turnUp = stepwise && pcPowerOn && (pvPower - summary.getLoadPower()) > histeresis;
+        var turnDown = stepwise && pcPowerOn && (summary.getLoadPower() - pvPower) > histeresis;
+        if (turnUp || turnDown) {
+            rigAllocator.stepwise(turnUp);
         }
 
         // 起動失敗時にシャットダウン
@@ -395,21 +447,36 @@ public class PvControllerTasks {
         }
     }
 
+    /**
+     * PowerMode/PowerLimit制御に使う発電電力取得
+     * 
+     * 予測できる場合はhorizon分後の予測値を使う(発電量の変化より先に変更する)。
+     * 
+     * @param current 直近の発電電力(W、予測できない場合に使う)
+     * @return 発電電力(W)
+     */
+    private double expectedPvPower(double current) {
+        var forecastConfig = controlProperties.getForecast();
+        if (!forecastConfig.isEnabled()) {
+            return current;
+        }
+        var forecast = pvForecaster.forecast(System.currentTimeMillis(),
+                Duration.ofMinutes(forecastConfig.getHorizon()));
+        if (Double.isNaN(forecast)) {
+            return current;
+        }
+        log.debug("{}分後の発電電力の予測値: {}W (直近の平均: {}W)", forecastConfig.getHorizon(), forecast, current);
+        return forecast;
+    }
+
     /**
      * 15分毎にファンを回す
      */
     @Scheduled(cron = "0 */15 * * * *")
     public void fanControl() {
-        // PCが電源OFFかつ、クーリング中でなければファンを回す
-        var pcPowerOn = miningRigDevice.isStarted();
-        if (!pcPowerOn && taskExecutor.getActiveCount() == 0) {
-            try {
-                coolingFanDevice.start();
-                Thread.sleep(controlProperties.getFan().getDuration() * 1000);
-                coolingFanDevice.stop();
-            } catch (Exception e) {
-                log.error("ファン制御に失敗しました。", e);
-            }
+        // PCが電源OFFかつ、クーリング中でなければファンを回す(停止中の場合のみ)
+        if (!miningRigGroup.isAnyStarted()) {
+            powerSequencer.ventilate(Duration.ofSeconds(controlProperties.getFan().getDuration()));
         }
     }
 
@@ -418,10 +485,10 @@ public class PvControllerTasks {
      */
     @PreDestroy
     public void destroy() {
-        if (conn != null) {
-            log.info("PVコントローラーを切断します。");
-            conn.close();
+        if (realtimeFuture != null) {
+            realtimeFuture.cancel(false);
         }
+        modbusTransport.close();
 
         raspberryPiDevice.shutdown();
 
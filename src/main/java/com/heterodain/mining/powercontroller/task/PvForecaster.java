@@ -0,0 +1,290 @@
+package com.heterodain.mining.powercontroller.task;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.StoreProperties;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+import com.heterodain.mining.powercontroller.store.SampleStore;
+import com.heterodain.mining.powercontroller.store.SampleTier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 発電電力の予測
+ *
+ * 過去の日の15分毎の平均発電電力(時刻毎の傾向)と、直近の発電電力を指数平滑化した値から、数十分先の発電電力を予測する。
+ * 直近の発電電力と時刻毎の傾向との比(曇りなら1未満)は、予測する時間が先になるほど1に近づける。
+ * 時刻毎の傾向がない時間帯は、直近の発電電力がそのまま続くものとする。
+ *
+ * 時刻毎の傾向は、学習する度に最後に学習した時間帯と一緒にファイルに保存する。起動時は保存した傾向を読み込み、
+ * 停止中に保存された15分値のうち、最後に学習した時間帯より後のものだけを学習する(同じ時間帯を2回学習しない)。
+ */
+@Component
+@Slf4j
+public class PvForecaster {
+    /** 1日の時間帯の数(15分毎) */
+    private static final int SLOTS = 96;
+    /** 1つの時間帯の長さ(秒) */
+    private static final int SLOT_SECONDS = 15 * 60;
+    /** 時刻毎の傾向に対する比率の上限 */
+    private static final double MAX_RATIO = 3D;
+    /** 学習状態を保存するファイル */
+    private static final String STATE_FILE = "profile";
+
+    @Autowired
+    private ControlProperties controlProperties;
+    @Autowired
+    private StoreProperties storeProperties;
+    @Autowired
+    private SampleStore sampleStore;
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** 時間帯毎の平均発電電力(W) */
+    private final double[] profile = new double[SLOTS];
+    /** 時間帯毎の学習済み日数 */
+    private final int[] profileDays = new int[SLOTS];
+    /** 最後に学習した時間帯の終了時刻(エポックミリ秒、これより前の時間帯は学習しない) */
+    private long learnedUntil;
+    /** 学習状態を保存するファイル(保存しない場合はnull) */
+    private Path stateFile;
+
+    /** 集計中の時間帯の開始時刻(エポックミリ秒) */
+    private long slotStart = -1;
+    /** 集計中の時間帯の発電電力の合計(W) */
+    private double slotSum;
+    /** 集計中の時間帯のデータ件数 */
+    private int slotCount;
+
+    /** 平滑化した発電電力(W、未計測の場合はNaN) */
+    private double level = Double.NaN;
+    /** 平滑化した時刻毎の傾向に対する比率(時刻毎の傾向がない場合はNaN) */
+    private double ratio = Double.NaN;
+    /** 前回の更新時刻(エポックミリ秒) */
+    private long lastUpdate;
+
+    /**
+     * 初期化(保存した学習状態を読み込み、その後に保存された15分値から時刻毎の傾向を学習)
+     */
+    @PostConstruct
+    public void init() {
+        var config = controlProperties.getForecast();
+        var storeConfig = storeProperties.getForecast();
+        if (storeConfig.isEnabled()) {
+            try {
+                var directory = Paths.get(storeConfig.getDirectory());
+                Files.createDirectories(directory);
+                stateFile = directory.resolve(STATE_FILE);
+                loadState();
+            } catch (IOException e) {
+                log.warn("時刻毎の発電量の学習状態の読み込みに失敗しました。保存済みの15分値から学習し直します。", e);
+                Arrays.fill(profile, 0D);
+                Arrays.fill(profileDays, 0);
+                learnedUntil = 0L;
+            }
+        }
+
+        var now = System.currentTimeMillis();
+        var from = Math.max(learnedUntil, now - TimeUnit.DAYS.toMillis(config.getProfileDays()));
+        var to = SampleTier.FIFTEEN_MINUTES.bucketOf(now);
+        try {
+            sampleStore.query(SampleTier.FIFTEEN_MINUTES, from, to, s -> learn(s.getTime(), s.getPvPower(), false));
+        } catch (IOException e) {
+            log.warn("保存済みの15分値の読み込みに失敗しました。時刻毎の発電量は起動後のデータから学習します。", e);
+        }
+        saveState();
+
+        var learned = 0;
+        for (var days : profileDays) {
+            if (days > 0) {
+                learned++;
+            }
+        }
+        log.info("時刻毎の発電量を学習しました。(学習済みの時間帯: {}/{})", learned, SLOTS);
+
+        metricsRegistry.gauge("pv_forecast_watts", "発電電力の予測値(horizon分後)",
+                () -> forecast(System.currentTimeMillis(), Duration.ofMinutes(config.getHorizon())));
+        metricsRegistry.gauge("pv_forecast_ratio", "直近の発電電力の時刻毎の傾向に対する比率", this::getRatio);
+    }
+
+    /**
+     * 計測データの追加(1分毎)
+     *
+     * @param time    計測時刻(エポックミリ秒)
+     * @param pvPower 発電電力(W)
+     */
+    public synchronized void update(long time, double pvPower) {
+        var config = controlProperties.getForecast();
+
+        // 時間帯が変わったら、前の時間帯の平均を学習
+        var start = SampleTier.FIFTEEN_MINUTES.bucketOf(time);
+        if (start != slotStart) {
+            if (slotCount > 0) {
+                learn(slotStart, slotSum / slotCount, true);
+            }
+            slotStart = start;
+            slotSum = 0D;
+            slotCount = 0;
+        }
+        slotSum += pvPower;
+        slotCount++;
+
+        // 指数平滑化(計測間隔が一定でないため、経過時間から係数を求める)
+        var alpha = lastUpdate == 0L ? 1D
+                : 1D - Math.exp(-(double) (time - lastUpdate) / TimeUnit.MINUTES.toMillis(config.getSmoothing()));
+        lastUpdate = time;
+        level = Double.isNaN(level) ? pvPower : level + alpha * (pvPower - level);
+
+        var expected = profileAt(time);
+        if (Double.isNaN(expected) || expected < config.getMinProfilePower()) {
+            // 夜間や学習前の時間帯は比率を求めない(前日の夕方の比率を翌朝に持ち越さない)
+            ratio = Double.NaN;
+        } else {
+            var current = Math.min(pvPower / expected, MAX_RATIO);
+            ratio = Double.isNaN(ratio) ? current : ratio + alpha * (current - ratio);
+        }
+    }
+
+    /**
+     * 発電電力の予測
+     *
+     * @param time  現在時刻(エポックミリ秒)
+     * @param ahead 予測する時間
+     * @return 予測値(W、データがない場合はNaN)
+     */
+    public synchronized double forecast(long time, Duration ahead) {
+        var expected = profileAt(time + ahead.toMillis());
+        if (Double.isNaN(expected)) {
+            // 時刻毎の傾向がない場合は、直近の発電電力が続くものとする
+            return level;
+        }
+        if (Double.isNaN(ratio)) {
+            // 直近の比率がない場合(日の出前など)は、時刻毎の傾向どおりとする
+            return expected;
+        }
+
+        var persistence = TimeUnit.MINUTES.toMillis(controlProperties.getForecast().getPersistence());
+        var weight = Math.exp(-(double) ahead.toMillis() / persistence);
+        return Math.max(0D, expected * (1D + (ratio - 1D) * weight));
+    }
+
+    /**
+     * 直近の発電電力の時刻毎の傾向に対する比率取得
+     *
+     * @return 比率(時刻毎の傾向がない場合はNaN)
+     */
+    public synchronized double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * 時間帯の平均発電電力を学習(直近profileDays日分の移動平均に近い値になる)
+     *
+     * @param start   時間帯の開始時刻(エポックミリ秒)
+     * @param pvPower 平均発電電力(W)
+     * @param save    学習状態をファイルに保存する場合はtrue
+     */
+    private synchronized void learn(long start, double pvPower, boolean save) {
+        if (start < learnedUntil) {
+            // 学習済みの時間帯
+            return;
+        }
+        var slot = slotOf(start);
+        var days = Math.min(profileDays[slot], controlProperties.getForecast().getProfileDays() - 1);
+        profile[slot] = (profile[slot] * days + pvPower) / (days + 1);
+        profileDays[slot] = days + 1;
+        learnedUntil = start + TimeUnit.SECONDS.toMillis(SLOT_SECONDS);
+        if (save) {
+            saveState();
+        }
+    }
+
+    /**
+     * 学習状態の読み込み
+     *
+     * <pre>
+     * learnedUntil(long) [profile(double) profileDays(int)]×96
+     * </pre>
+     */
+    private void loadState() throws IOException {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        var buf = ByteBuffer.wrap(Files.readAllBytes(stateFile));
+        if (buf.remaining() != Long.BYTES + SLOTS * (Double.BYTES + Integer.BYTES)) {
+            throw new IOException("学習状態のファイルの形式が不正です。" + stateFile);
+        }
+        learnedUntil = buf.getLong();
+        for (int i = 0; i < SLOTS; i++) {
+            profile[i] = buf.getDouble();
+            profileDays[i] = buf.getInt();
+        }
+    }
+
+    /**
+     * 学習状態の保存
+     */
+    private synchronized void saveState() {
+        if (stateFile == null) {
+            return;
+        }
+        var buf = ByteBuffer.allocate(Long.BYTES + SLOTS * (Double.BYTES + Integer.BYTES));
+        buf.putLong(learnedUntil);
+        for (int i = 0; i < SLOTS; i++) {
+            buf.putDouble(profile[i]).putInt(profileDays[i]);
+        }
+        try {
+            var tmp = stateFile.resolveSibling(STATE_FILE + ".tmp");
+            Files.write(tmp, buf.array());
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("時刻毎の発電量の学習状態の保存に失敗しました。{}", stateFile, e);
+        }
+    }
+
+    /**
+     * 時刻の平均発電電力取得(前後の時間帯の中央の値から線形補間)
+     */
+    private double profileAt(long time) {
+        var position = secondOfDay(time) / (double) SLOT_SECONDS - 0.5D;
+        var floor = Math.floor(position);
+        var before = Math.floorMod((int) floor, SLOTS);
+        var after = (before + 1) % SLOTS;
+        if (profileDays[before] == 0 && profileDays[after] == 0) {
+            return Double.NaN;
+        } else if (profileDays[before] == 0) {
+            return profile[after];
+        } else if (profileDays[after] == 0) {
+            return profile[before];
+        }
+        var fraction = position - floor;
+        return profile[before] + (profile[after] - profile[before]) * fraction;
+    }
+
+    /**
+     * 時刻の時間帯(0～95)
+     */
+    private static int slotOf(long time) {
+        return secondOfDay(time) / SLOT_SECONDS;
+    }
+
+    private static int secondOfDay(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalTime().toSecondOfDay();
+    }
+}
@@ -0,0 +1,504 @@
+package com.heterodain.mining.powercontroller.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.DeviceProperties;
+import com.heterodain.mining.powercontroller.config.DeviceProperties.Rig;
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.HiveApi;
+import com.heterodain.mining.powercontroller.config.ServiceProperties.NicehashApi;
+import com.heterodain.mining.powercontroller.device.MiningRigGroup;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+import com.heterodain.mining.powercontroller.service.Futures;
+import com.heterodain.mining.powercontroller.service.HiveService;
+import com.heterodain.mining.powercontroller.service.NicehashService;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 複数のマイニングリグへの余剰電力の割り当て
+ *
+ * 発電電力(予測値)+調整感度に収まる範囲で、優先度の高い順にリグを最低の段階で動かし、残りの電力で動かすリグの段階を
+ * 優先度の高い順に1段ずつ上げる(同じ電力なら、少ない台数を高い段階で動かすより多い台数を低い段階で動かす)。
+ * 先頭のリグ(主リグ)は電源ON/OFFの条件で起動・停止するため、割り当てでは停止しない。
+ *
+ * 判断する時機は、全リグの消費電力の見込みと発電電力の差から、主リグの段階(PowerLadder)の判断間隔で決める。
+ * 起動・停止は1回の判断で1台ずつ行い、2台目以降のリグは突入電流が重ならないようにstagger秒以上空けて起動する。
+ *
+ * 負荷電力はリグ毎に計測できないため、リグ毎の消費電力は、他の稼働中のリグが全て学習済みの段階にある間だけ、
+ * 負荷電力から他のリグの見込みを引いた値で学習する。未学習のリグの消費電力は、負荷電力を稼働中の台数で割った値で見込む。
+ */
+@Component
+@Slf4j
+public class RigAllocator {
+    /** リグ起動後、段階を制御しない時間(ミリ秒) */
+    private static final long WARMUP_MILLIS = 15 * 60 * 1000L;
+
+    @Autowired
+    private ServiceProperties serviceProperties;
+    @Autowired
+    private ControlProperties controlProperties;
+    @Autowired
+    private DeviceProperties deviceProperties;
+    @Autowired
+    private MiningRigGroup miningRigGroup;
+    @Autowired
+    private NicehashService nicehashService;
+    @Autowired
+    private HiveService hiveService;
+    @Autowired
+    private PowerSequencer powerSequencer;
+    @Autowired
+    private PowerConditionEvaluator powerConditionEvaluator;
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** マイニングリグ(優先度の高い順) */
+    @Getter
+    private List<MiningRig> rigs;
+
+    /** 前回リグを起動・停止した時刻(エポックミリ秒) */
+    private long lastSwitch;
+    /** 実行中のPowerMode/PowerLimitの変更 */
+    private CompletableFuture<Void> changeFuture;
+
+    /**
+     * 初期化(各リグのPower Mode・OCプロファイルを取得)
+     */
+    @PostConstruct
+    public void init() throws Exception {
+        var rigConfigs = deviceProperties.getAllRigs();
+        var devices = miningRigGroup.getRigs();
+        var now = System.currentTimeMillis();
+
+        rigs = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            var single = devices.size() == 1;
+            var nicehashConfig = nicehashConfig(rigConfigs.get(i), single);
+            var hiveConfig = hiveConfig(rigConfigs.get(i), single);
+            var rig = new MiningRig(devices.get(i), nicehashConfig, hiveConfig, controlProperties.getPower(),
+                    metricsRegistry);
+
+            // Nicehash OSのリグ状態取得
+            if (nicehashConfig != null) {
+                rig.setRigStatus(nicehashService.getRigStatus(nicehashConfig), now);
+            }
+            // Hive OSのOCプロファイル取得
+            if (hiveConfig != null) {
+                var ocProfileId = hiveService.getWorkerOcProfileId(hiveConfig);
+                rig.setOcProfile(hiveService.getOcProfiles(hiveConfig).get(ocProfileId), now);
+            }
+            rig.refresh(now);
+            rigs.add(rig);
+        }
+        lastSwitch = now;
+    }
+
+    /**
+     * 主リグ取得
+     *
+     * @return 先頭のマイニングリグ
+     */
+    public MiningRig getPrimary() {
+        return rigs.get(0);
+    }
+
+    /**
+     * PowerMode/PowerLimitの変更中かどうか
+     *
+     * @return 変更中の場合はtrue
+     */
+    public boolean isChanging() {
+        return changeFuture != null && !changeFuture.isDone();
+    }
+
+    /**
+     * 発電電力に合わせて各リグの起動・停止と段階を制御(1分毎、稼働中の場合のみ)
+     *
+     * 段階の制御が無効な場合は、各リグの段階はそのままで起動・停止のみ行う。
+     *
+     * @param time      判断時刻(エポックミリ秒)
+     * @param pvPower   発電電力(W、予測値)
+     * @param loadPower 負荷電力(W、1分間の平均)
+     */
+    public synchronized void control(long time, double pvPower, double loadPower) {
+        rigs.forEach(rig -> rig.refresh(time));
+        var primary = getPrimary();
+        // 主リグの起動後15分間は制御しない
+        if (primary.getStartedAt() == 0L || time - primary.getStartedAt() < WARMUP_MILLIS) {
+            return;
+        }
+        if (isChanging()) {
+            return;
+        }
+
+        var powerConfig = controlProperties.getPower();
+        var ladderConfig = powerConfig.getLadder();
+        var allocationConfig = powerConfig.getAllocation();
+        var hysteresis = powerConfig.getHysteresis();
+        var running = rigs.stream().filter(MiningRig::isStarted).count();
+        var reference = loadPower / Math.max(running, 1);
+
+        // 段階毎の消費電力の学習(起動・停止直後は他のリグの消費電力が安定しないため学習しない)
+        if (time - lastSwitch >= ladderConfig.getMinInterval() * 1000L) {
+            for (var rig : rigs) {
+                if (!warmedUp(rig, time)) {
+                    continue;
+                }
+                var others = 0D;
+                var othersLearned = true;
+                for (var other : rigs) {
+                    if (other != rig && other.isStarted()) {
+                        others += estimate(other, currentStep(other), reference);
+                        othersLearned &= other.getLadder().isLearned(other.getLadder().getCurrent());
+                    }
+                }
+                if (othersLearned) {
+                    rig.getLadder().observe(time, loadPower - others);
+                }
+            }
+        }
+
+        var consumption = 0D;
+        for (var rig : rigs) {
+            if (rig.isStarted()) {
+                consumption += estimate(rig, currentStep(rig), reference);
+            }
+        }
+        var cadence = primary.getLadder();
+        if (!cadence.isDue(time, Math.abs(pvPower - consumption), hysteresis)) {
+            return;
+        }
+
+        var steps = allocate(time, pvPower + hysteresis, reference);
+        log.debug("発電電力{}W、負荷電力{}W(見込み{}W)のため段階を割り当てました。{}", pvPower, loadPower, consumption,
+                describe(steps));
+
+        // 停止(優先度の低い順に1台ずつ、シャットダウン中のリグは除く)
+        var minOffTime = allocationConfig.getMinOffTime() * 1000L;
+        for (int i = rigs.size() - 1; i > 0; i--) {
+            var rig = rigs.get(i);
+            if (rig.isStarted() && steps[i] == PowerLadder.NONE && !rig.isStoppedWithin(time, minOffTime)) {
+                if (powerSequencer.stopRig(rig.getDevice())) {
+                    rig.switched(time, false);
+                    switched(time);
+                }
+                // 停止する分の電力を見込んだ段階の変更は、停止してから判断し直す
+                return;
+            }
+        }
+
+        // 起動(優先度の高い順に1台ずつ、前回の起動からstagger秒以上空ける)
+        for (int i = 1; i < rigs.size(); i++) {
+            var rig = rigs.get(i);
+            if (!rig.isStarted() && steps[i] != PowerLadder.NONE) {
+                if (time - lastStartOf(time) < allocationConfig.getStagger() * 1000L) {
+                    // 起動を待つ間は、起動する分の電力を空けておく
+                    break;
+                }
+                if (powerSequencer.startRig(rig.getDevice())) {
+                    rig.switched(time, true);
+                    switched(time);
+                    // 起動時の電圧低下で全台を停止しないように、電源OFF条件の判定を止める
+                    powerConditionEvaluator.switched(time, true);
+                }
+                return;
+            }
+        }
+
+        // 段階の変更
+        var changes = new ArrayList<CompletableFuture<?>>();
+        for (int i = 0; i < rigs.size(); i++) {
+            var rig = rigs.get(i);
+            if (rig.isStarted() && steps[i] != PowerLadder.NONE && steps[i] != rig.getLadder().getCurrent()
+                    && available(rig)) {
+                changeStep(rig, steps[i], changes);
+            }
+        }
+        if (!changes.isEmpty()) {
+            changeFuture = CompletableFuture.allOf(changes.toArray(CompletableFuture[]::new));
+            cadence.changed(time);
+        } else {
+            cadence.steady();
+        }
+    }
+
+    /**
+     * 稼働中の各リグのPower Mode/OCプロファイルを一段ずつ変更(15分毎、段階の制御が無効な場合)
+     *
+     * @param turnUp 上げる場合はtrue、下げる場合はfalse
+     */
+    public synchronized void stepwise(boolean turnUp) {
+        if (isChanging()) {
+            return;
+        }
+
+        // Nicehash OSとHive OSへの変更は並行して行い、完了は待たない
+        var now = System.currentTimeMillis();
+        var changes = new ArrayList<CompletableFuture<?>>();
+        for (var rig : rigs) {
+            rig.refresh(now);
+            if (!warmedUp(rig, now)) {
+                continue;
+            }
+
+            // Power Mode制御
+            var nicehashConfig = rig.getNicehashConfig();
+            if (nicehashConfig != null && !nicehashService.isAvailable(nicehashConfig)) {
+                // 連続して失敗しているため、変更せずに最後に取得した状態を維持する
+                log.warn("Nicehash APIが停止中のため、リグ({})のPowerModeは{}のまま変更しません。", rig.getName(),
+                        rig.getRigStatus() == null ? null : rig.getRigStatus().getRigPowerMode());
+            } else if (nicehashConfig != null) {
+                var oldPowerMode = rig.getRigStatus() == null ? null : rig.getRigStatus().getRigPowerMode();
+                var change = turnUp ? nicehashService.turnUpPowerModeAsync(nicehashConfig)
+                        : nicehashService.turnDownPowerModeAsync(nicehashConfig);
+                changes.add(change.whenComplete((rigStatus, e) -> {
+                    if (e != null) {
+                        log.error("リグ({})のPowerModeの変更に失敗しました。", rig.getName(), Futures.unwrap(e));
+                        return;
+                    }
+                    rig.setRigStatus(rigStatus, System.currentTimeMillis());
+                    if (oldPowerMode != rigStatus.getRigPowerMode()) {
+                        log.info("リグ({})のPowerModeを{}に変更しました。", rig.getName(), rigStatus.getRigPowerMode());
+                    }
+                }));
+            }
+
+            // Power Limit制御
+            var hiveConfig = rig.getHiveConfig();
+            if (hiveConfig != null && !hiveService.isAvailable(hiveConfig)) {
+                log.warn("Hive APIが停止中のため、ワーカー({})のOCプロファイルは{}のまま変更しません。", rig.getName(),
+                        rig.getOcProfile() == null ? null : rig.getOcProfile().getName());
+            } else if (hiveConfig != null) {
+                var oldOcProfileId = rig.getOcProfile() == null ? null : rig.getOcProfile().getId();
+                var change = turnUp ? hiveService.turnUpPowerLimitAsync(hiveConfig, controlProperties.getPower())
+                        : hiveService.turnDownPowerLimitAsync(hiveConfig, controlProperties.getPower());
+                changes.add(change.whenComplete((ocProfile, e) -> {
+                    if (e != null) {
+                        log.error("ワーカー({})のOCプロファイルの変更に失敗しました。", rig.getName(), Futures.unwrap(e));
+                        return;
+                    }
+                    rig.setOcProfile(ocProfile, System.currentTimeMillis());
+                    if (!ocProfile.getId().equals(oldOcProfileId)) {
+                        log.info("ワーカー({})のOCプロファイルを{}に変更しました。", rig.getName(), ocProfile.getName());
+                    }
+                }));
+            }
+        }
+        changeFuture = CompletableFuture.allOf(changes.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * 各リグの段階の割り当て
+     *
+     * @param time      判断時刻(エポックミリ秒)
+     * @param budget    割り当てる電力(W)
+     * @param reference 未学習のリグの消費電力の見込み(W)
+     * @return リグ毎の段階(停止する場合はNONE)
+     */
+    private int[] allocate(long time, double budget, double reference) {
+        var powerConfig = controlProperties.getPower();
+        var minOnTime = powerConfig.getAllocation().getMinOnTime() * 1000L;
+        var minOffTime = powerConfig.getAllocation().getMinOffTime() * 1000L;
+        var steps = new int[rigs.size()];
+        var lowest = new int[rigs.size()];
+        var highest = new int[rigs.size()];
+        var used = 0D;
+        Arrays.fill(steps, PowerLadder.NONE);
+
+        // 停止できないリグ(主リグ、起動してからminOnTime秒以内のリグ)は、最低の段階で動かす
+        for (int i = 0; i < rigs.size(); i++) {
+            var rig = rigs.get(i);
+            // 起動後15分間・段階の制御が無効な場合は、段階を変更しない
+            var adjustable = powerConfig.getLadder().isEnabled() && warmedUp(rig, time);
+            lowest[i] = adjustable ? 0 : currentStep(rig);
+            highest[i] = adjustable ? rig.getLadder().getSteps().size() - 1 : currentStep(rig);
+            if (i == 0 || rig.isStartedWithin(time, minOnTime)) {
+                steps[i] = lowest[i];
+                used += estimate(rig, steps[i], reference);
+            }
+        }
+
+        // 優先度の高い順に、最低の段階で動かせるリグを加える(停止してからminOffTime秒以内のリグは起動しない)
+        for (int i = 1; i < rigs.size(); i++) {
+            var rig = rigs.get(i);
+            if (steps[i] != PowerLadder.NONE || rig.isStoppedWithin(time, minOffTime)) {
+                continue;
+            }
+            var watts = estimate(rig, lowest[i], reference);
+            if (used + watts <= budget) {
+                steps[i] = lowest[i];
+                used += watts;
+            }
+        }
+
+        // 残りの電力で、優先度の高い順に1段ずつ上げる
+        var raised = true;
+        while (raised) {
+            raised = false;
+            for (int i = 0; i < rigs.size(); i++) {
+                if (steps[i] == PowerLadder.NONE || steps[i] >= highest[i]) {
+                    continue;
+                }
+                var rig = rigs.get(i);
+                var delta = estimate(rig, steps[i] + 1, reference) - estimate(rig, steps[i], reference);
+                if (used + delta <= budget) {
+                    steps[i]++;
+                    used += delta;
+                    raised = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < rigs.size(); i++) {
+            rigs.get(i).allocate(steps[i]);
+        }
+        return steps;
+    }
+
+    /**
+     * リグの段階を変更(Nicehash OSとHive OSへの変更は並行して行い、完了は待たない)
+     */
+    private void changeStep(MiningRig rig, int step, List<CompletableFuture<?>> changes) {
+        // Power Mode制御
+        var powerModeLadder = rig.getPowerModeLadder();
+        if (powerModeLadder != null) {
+            var powerMode = controlProperties.getPower().getPowerModeLadder().get(rig.stepOf(powerModeLadder, step));
+            var change = nicehashService.changePowerModeAsync(rig.getNicehashConfig(), powerMode);
+            changes.add(change.whenComplete((rigStatus, e) -> {
+                if (e != null) {
+                    log.error("リグ({})のPowerModeの変更に失敗しました。", rig.getName(), Futures.unwrap(e));
+                    return;
+                }
+                rig.setRigStatus(rigStatus, System.currentTimeMillis());
+                log.info("リグ({})のPowerModeを{}に変更しました。", rig.getName(), rigStatus.getRigPowerMode());
+            }));
+        }
+
+        // Power Limit制御
+        var profileLadder = rig.getProfileLadder();
+        if (profileLadder != null) {
+            var ocProfileName = profileLadder.getSteps().get(rig.stepOf(profileLadder, step));
+            var change = hiveService.changePowerLimitAsync(rig.getHiveConfig(), ocProfileName);
+            changes.add(change.whenComplete((ocProfile, e) -> {
+                if (e != null) {
+                    log.error("ワーカー({})のOCプロファイルの変更に失敗しました。", rig.getName(), Futures.unwrap(e));
+                    return;
+                }
+                rig.setOcProfile(ocProfile, System.currentTimeMillis());
+                log.info("ワーカー({})のOCプロファイルを{}に変更しました。", rig.getName(), ocProfile.getName());
+            }));
+        }
+    }
+
+    /**
+     * リグを起動・停止したことの記録
+     */
+    private void switched(long time) {
+        lastSwitch = time;
+        getPrimary().getLadder().changed(time);
+    }
+
+    /**
+     * 最後にリグを起動した時刻(主リグは起動を検出した時刻)
+     */
+    private long lastStartOf(long time) {
+        var last = getPrimary().getStartedAt();
+        for (var rig : rigs) {
+            if (rig.isStartedWithin(time, Long.MAX_VALUE)) {
+                last = Math.max(last, rig.getSwitchedAt());
+            }
+        }
+        return last;
+    }
+
+    /**
+     * 起動後15分以上経ったかどうか
+     */
+    private static boolean warmedUp(MiningRig rig, long time) {
+        return rig.getStartedAt() != 0L && time - rig.getStartedAt() >= WARMUP_MILLIS;
+    }
+
+    /**
+     * 段階を変更できるかどうか(APIが連続して失敗している場合はfalse)
+     */
+    private boolean available(MiningRig rig) {
+        if (rig.getNicehashConfig() != null && !nicehashService.isAvailable(rig.getNicehashConfig())) {
+            log.warn("Nicehash APIが停止中のため、リグ({})のPowerModeは{}のまま変更しません。", rig.getName(),
+                    rig.getRigStatus() == null ? null : rig.getRigStatus().getRigPowerMode());
+            return false;
+        }
+        if (rig.getHiveConfig() != null && !hiveService.isAvailable(rig.getHiveConfig())) {
+            log.warn("Hive APIが停止中のため、ワーカー({})のOCプロファイルは{}のまま変更しません。", rig.getName(),
+                    rig.getOcProfile() == null ? null : rig.getOcProfile().getName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 現在の段階(不明な場合は最低の段階とみなす)
+     */
+    private static int currentStep(MiningRig rig) {
+        var current = rig.getLadder().getCurrent();
+        return current == PowerLadder.NONE ? 0 : current;
+    }
+
+    /**
+     * リグの段階の消費電力の見込み
+     */
+    private static double estimate(MiningRig rig, int step, double reference) {
+        return rig.getLadder().estimate(step, reference);
+    }
+
+    /**
+     * 割り当て結果のログ出力用の文字列
+     */
+    private String describe(int[] steps) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < rigs.size(); i++) {
+            var ladder = rigs.get(i).getLadder();
+            sb.append(i == 0 ? "" : ", ").append(rigs.get(i).getName()).append('=')
+                    .append(steps[i] == PowerLadder.NONE ? "OFF" : ladder.getSteps().get(steps[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * リグのNicehash API接続設定(リグIDがなく、複数台の場合はnull)
+     */
+    private NicehashApi nicehashConfig(Rig rigConfig, boolean single) {
+        var config = serviceProperties.getNicehashApi();
+        if (config == null) {
+            return null;
+        }
+        if (rigConfig.getRigId() != null) {
+            return config.withRigId(rigConfig.getRigId());
+        }
+        return single ? config : null;
+    }
+
+    /**
+     * リグのHive API接続設定(ワーカーIDがなく、複数台の場合はnull)
+     */
+    private HiveApi hiveConfig(Rig rigConfig, boolean single) {
+        var config = serviceProperties.getHiveApi();
+        if (config == null) {
+            return null;
+        }
+        if (rigConfig.getWorkerId() != null) {
+            return config.withWorkerId(rigConfig.getWorkerId());
+        }
+        return single ? config : null;
+    }
+}
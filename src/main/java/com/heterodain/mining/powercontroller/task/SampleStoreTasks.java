@@ -0,0 +1,39 @@
+package com.heterodain.mining.powercontroller.task;
+
+import com.heterodain.mining.powercontroller.store.SampleStore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 計測データ保存関連の非同期タスク
+ */
+@Component
+@Slf4j
+public class SampleStoreTasks {
+    @Autowired
+    private SampleStore sampleStore;
+
+    /**
+     * 1秒毎に保存待ちの計測データをファイルに書き込む
+     */
+    @Scheduled(initialDelay = 1000, fixedDelay = 1000)
+    public void flush() {
+        try {
+            sampleStore.flush();
+        } catch (Exception e) {
+            log.error("計測データの保存に失敗しました。", e);
+        }
+    }
+
+    /**
+     * 1時間毎に保存期間を過ぎた計測データを削除
+     */
+    @Scheduled(cron = "0 7 * * * *")
+    public void cleanup() {
+        sampleStore.cleanup();
+    }
+}
@@ -0,0 +1,122 @@
+package com.heterodain.mining.powercontroller.task;
+
+import java.util.Date;
+
+import com.heterodain.mining.powercontroller.config.ControlProperties;
+import com.heterodain.mining.powercontroller.config.ControlProperties.PowerCondition;
+import com.heterodain.mining.powercontroller.device.PvControllerDevice.RealtimeData;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * PVコントローラーのサンプリング間隔制御
+ *
+ * 電源ON/OFFの前後や、計測値が電源ON/OFF条件のしきい値に近いときは高速に、
+ * 発電がなくリグも停止しているときは低速にサンプリングする。
+ */
+@Component
+@Slf4j
+public class SamplingCadence implements Trigger {
+    @Autowired
+    private ControlProperties controlProperties;
+
+    /** 直近の計測データ */
+    private volatile RealtimeData latest;
+    /** リグの電源状態 */
+    private volatile boolean rigPowerOn;
+    /** 高速サンプリングを続ける期限(エポックミリ秒) */
+    private volatile long transitionUntil;
+    /** 現在のサンプリング間隔(ミリ秒) */
+    private volatile long interval;
+
+    /**
+     * 計測結果の通知
+     *
+     * @param data       計測データ(取得できなかった場合はnull)
+     * @param rigPowerOn リグの電源状態
+     */
+    public void update(RealtimeData data, boolean rigPowerOn) {
+        this.latest = data;
+        this.rigPowerOn = rigPowerOn;
+    }
+
+    /**
+     * 電源ON/OFFの開始を通知(しばらく高速サンプリングする)
+     */
+    public void transition() {
+        var duration = controlProperties.getSampling().getTransitionDuration() * 1000L;
+        transitionUntil = System.currentTimeMillis() + duration;
+    }
+
+    /**
+     * 現在のサンプリング間隔取得
+     *
+     * @return サンプリング間隔(ミリ秒)
+     */
+    public long currentInterval() {
+        var config = controlProperties.getSampling();
+        var data = latest;
+
+        long next;
+        if (System.currentTimeMillis() < transitionUntil) {
+            next = config.getFastInterval();
+        } else if (data == null) {
+            next = config.getNormalInterval();
+        } else if (!rigPowerOn && data.getPvPower() <= 0D) {
+            next = config.getSlowInterval();
+        } else if (isNearThreshold(data)) {
+            next = config.getFastInterval();
+        } else {
+            next = config.getNormalInterval();
+        }
+
+        if (next != interval) {
+            log.debug("サンプリング間隔を{}msに変更します。", next);
+            interval = next;
+        }
+        return next;
+    }
+
+    @Override
+    public Date nextExecutionTime(TriggerContext triggerContext) {
+        var lastCompletion = triggerContext.lastCompletionTime();
+        var base = lastCompletion == null ? System.currentTimeMillis() : lastCompletion.getTime();
+        var delay = lastCompletion == null ? controlProperties.getSampling().getNormalInterval() : currentInterval();
+        return new Date(base + delay);
+    }
+
+    /**
+     * 計測値が電源ON/OFF条件のしきい値付近かどうか
+     */
+    private boolean isNearThreshold(RealtimeData data) {
+        var powerConfig = controlProperties.getPower();
+        var condition = rigPowerOn ? powerConfig.getPowerOffCondition() : powerConfig.getPowerOnCondition();
+        return isNear(condition, data);
+    }
+
+    private boolean isNear(PowerCondition condition, RealtimeData data) {
+        if (condition == null) {
+            return false;
+        }
+
+        var config = controlProperties.getSampling();
+        if (condition.getVoltage() != null
+                && Math.abs(data.getBattVolt() - condition.getVoltage()) <= config.getVoltageMargin()) {
+            return true;
+        }
+        if (condition.getPower() != null
+                && Math.abs(data.getPvPower() - condition.getPower()) <= config.getPowerMargin()) {
+            return true;
+        }
+        if (condition.getSoc() != null
+                && Math.abs(data.getBattSOC() - condition.getSoc()) <= config.getSocMargin()) {
+            return true;
+        }
+        return false;
+    }
+}
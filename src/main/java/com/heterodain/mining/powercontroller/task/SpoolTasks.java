@@ -0,0 +1,35 @@
+package com.heterodain.mining.powercontroller.task;
+
+import com.heterodain.mining.powercontroller.service.AmbientUploader;
+import com.heterodain.mining.powercontroller.store.TelemetrySpool;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * 送信データのスプール関連の非同期タスク
+ */
+@Component
+public class SpoolTasks {
+    @Autowired
+    private TelemetrySpool spool;
+    @Autowired
+    private AmbientUploader ambientUploader;
+
+    /**
+     * 1秒毎にスプールに追記したデータをディスクに書き出す
+     */
+    @Scheduled(initialDelay = 1000, fixedDelay = 1000)
+    public void flush() {
+        spool.flush();
+    }
+
+    /**
+     * 1分毎に未送信のデータを再送
+     */
+    @Scheduled(initialDelay = 10 * 1000, fixedDelay = 60 * 1000)
+    public void replay() {
+        ambientUploader.replay();
+    }
+}
@@ -0,0 +1,52 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import com.heterodain.mining.powercontroller.config.ServiceProperties;
+import com.heterodain.mining.powercontroller.config.TelemetryProperties;
+import com.heterodain.mining.powercontroller.service.AmbientUploader;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Ambientへの出力
+ *
+ * 設定した項目を順にd1～d8に割り当て、スプール経由で送信する(送信の完了は待たない)。
+ */
+@Component
+public class AmbientSink implements TelemetrySink {
+    /** Ambientのデータ項目数 */
+    private static final int MAX_FIELDS = 8;
+
+    @Autowired
+    private ServiceProperties serviceProperties;
+    @Autowired
+    private TelemetryProperties telemetryProperties;
+    @Autowired
+    private AmbientUploader ambientUploader;
+
+    @Override
+    public String getName() {
+        return "ambient";
+    }
+
+    @Override
+    public TelemetryProperties.Sink getSettings() {
+        return telemetryProperties.getAmbient();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return serviceProperties.getAmbient() != null && getSettings().isEnabled();
+    }
+
+    @Override
+    public void write(TelemetrySample sample) {
+        var datas = fieldsOf(sample).stream().limit(MAX_FIELDS).map(sample::get).toArray(Double[]::new);
+        var ts = ZonedDateTime.ofInstant(Instant.ofEpochMilli(sample.getTime()), ZoneId.systemDefault());
+        ambientUploader.submit(serviceProperties.getAmbient(), ts, null, datas);
+    }
+}
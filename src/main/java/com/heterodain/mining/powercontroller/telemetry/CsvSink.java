@@ -0,0 +1,96 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import com.heterodain.mining.powercontroller.config.TelemetryProperties;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * CSVファイルへの出力
+ *
+ * 1日1ファイル(telemetry-yyyy-MM-dd.csv)に追記する。新しいファイルには見出し行を書く。
+ */
+@Component
+@Slf4j
+public class CsvSink implements TelemetrySink {
+    /** 時刻の形式 */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+
+    @Autowired
+    private TelemetryProperties telemetryProperties;
+
+    /** 出力中のファイルの日付 */
+    private LocalDate currentDate;
+    /** 出力中のファイル */
+    private BufferedWriter writer;
+
+    @Override
+    public String getName() {
+        return "csv";
+    }
+
+    @Override
+    public TelemetryProperties.Sink getSettings() {
+        return telemetryProperties.getCsv();
+    }
+
+    @Override
+    public synchronized void write(TelemetrySample sample) throws IOException {
+        var time = Instant.ofEpochMilli(sample.getTime()).atZone(ZoneId.systemDefault());
+        var fields = fieldsOf(sample);
+        if (!time.toLocalDate().equals(currentDate)) {
+            close();
+            open(time.toLocalDate(), String.join(",", fields));
+        }
+
+        var line = new StringBuilder(128).append(time.format(TIME_FORMAT));
+        for (var name : fields) {
+            var value = sample.get(name);
+            line.append(',');
+            if (value != null) {
+                line.append(value);
+            }
+        }
+        writer.write(line.append('\n').toString());
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("CSVファイルのクローズに失敗しました。", e);
+            }
+            writer = null;
+            currentDate = null;
+        }
+    }
+
+    private void open(LocalDate date, String header) throws IOException {
+        var directory = Paths.get(telemetryProperties.getCsv().getDirectory());
+        Files.createDirectories(directory);
+        var path = directory.resolve("telemetry-" + date.format(DateTimeFormatter.ISO_DATE) + ".csv");
+        var exists = Files.exists(path);
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        currentDate = date;
+        if (!exists) {
+            writer.write("time," + header + "\n");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.heterodain.mining.powercontroller.config.TelemetryProperties;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * InfluxDBラインプロトコル(UDP)での出力
+ *
+ * 1件毎に1行(measurement,タグ 項目=値,... 時刻(ナノ秒))を1つのデータグラムで送る。値がない項目は送らない。
+ */
+@Component
+@Slf4j
+public class InfluxSink implements TelemetrySink {
+    @Autowired
+    private TelemetryProperties telemetryProperties;
+
+    /** 送信用チャネル */
+    private DatagramChannel channel;
+
+    @Override
+    public String getName() {
+        return "influx";
+    }
+
+    @Override
+    public TelemetryProperties.Sink getSettings() {
+        return telemetryProperties.getInflux();
+    }
+
+    @Override
+    public synchronized void write(TelemetrySample sample) throws IOException {
+        var line = toLine(sample);
+        if (line == null) {
+            return;
+        }
+        if (channel == null) {
+            var config = telemetryProperties.getInflux();
+            channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(config.getHost(), config.getPort()));
+        }
+        try {
+            channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("InfluxDBへの送信チャネルのクローズに失敗しました。", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * ラインプロトコルの1行に変換(出力する値がない場合はnull)
+     */
+    String toLine(TelemetrySample sample) {
+        var config = telemetryProperties.getInflux();
+        var line = new StringBuilder(128).append(escape(config.getMeasurement(), false));
+        config.getTags().forEach((key, value) -> line.append(',').append(escape(key, true)).append('=')
+                .append(escape(value, true)));
+
+        var separator = ' ';
+        for (var name : fieldsOf(sample)) {
+            var value = sample.get(name);
+            if (value == null || value.isNaN() || value.isInfinite()) {
+                continue;
+            }
+            line.append(separator).append(escape(name, true)).append('=').append(value);
+            separator = ',';
+        }
+        if (separator == ' ') {
+            return null;
+        }
+        return line.append(' ').append(sample.getTime() * 1_000_000L).append('\n').toString();
+    }
+
+    /**
+     * ラインプロトコルのエスケープ(メジャーメント名はカンマと空白、タグと項目名は加えて等号)
+     */
+    private static String escape(String text, boolean escapeEquals) {
+        var sb = new StringBuilder(text.length());
+        for (var c : text.toCharArray()) {
+            if (c == ',' || c == ' ' || (escapeEquals && c == '=')) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
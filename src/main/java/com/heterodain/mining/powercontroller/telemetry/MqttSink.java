@@ -0,0 +1,162 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.mining.powercontroller.config.TelemetryProperties;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * MQTTブローカーへの出力
+ *
+ * 1件毎にJSON({"time":エポックミリ秒,項目:値,...})をQoS 0でパブリッシュする。
+ * QoS 0のパブリッシュだけを使うため、クライアントライブラリは使わずにMQTT 3.1.1のパケットを直接送る。
+ * 接続は使い回し、送信に失敗した場合は次回に接続し直す。
+ */
+@Component
+@Slf4j
+public class MqttSink implements TelemetrySink {
+    /** 接続・読み込みタイムアウト(ミリ秒) */
+    private static final int TIMEOUT = 10_000;
+
+    @Autowired
+    private TelemetryProperties telemetryProperties;
+    @Autowired
+    private ObjectMapper om;
+
+    /** ブローカーとの接続 */
+    private Socket socket;
+
+    @Override
+    public String getName() {
+        return "mqtt";
+    }
+
+    @Override
+    public TelemetryProperties.Sink getSettings() {
+        return telemetryProperties.getMqtt();
+    }
+
+    @Override
+    public synchronized void write(TelemetrySample sample) throws IOException {
+        var json = om.createObjectNode();
+        json.put("time", sample.getTime());
+        for (var name : fieldsOf(sample)) {
+            json.put(name, sample.get(name));
+        }
+
+        var config = telemetryProperties.getMqtt();
+        var packet = new ByteArrayOutputStream(256);
+        writeString(packet, config.getTopic());
+        packet.write(om.writeValueAsBytes(json));
+        try {
+            if (socket == null) {
+                connect();
+            }
+            send(socket.getOutputStream(), 0x30 | (config.isRetain() ? 0x01 : 0), packet);
+        } catch (IOException e) {
+            closeSocket();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                send(socket.getOutputStream(), 0xe0, new ByteArrayOutputStream());
+            } catch (IOException e) {
+                log.debug("MQTTブローカーへの切断の通知に失敗しました。", e);
+            }
+            closeSocket();
+        }
+    }
+
+    /**
+     * 接続(CONNECTを送り、CONNACKを確認する)
+     */
+    private void connect() throws IOException {
+        var config = telemetryProperties.getMqtt();
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(config.getHost(), config.getPort()), TIMEOUT);
+        socket.setSoTimeout(TIMEOUT);
+
+        var packet = new ByteArrayOutputStream(64);
+        writeString(packet, "MQTT");
+        packet.write(4); // プロトコルレベル(3.1.1)
+        var flags = 0x02; // クリーンセッション
+        if (config.getUsername() != null) {
+            flags |= 0x80;
+            if (config.getPassword() != null) {
+                flags |= 0x40;
+            }
+        }
+        packet.write(flags);
+        packet.write(0); // キープアライブなし
+        packet.write(0);
+        writeString(packet, config.getClientId());
+        if (config.getUsername() != null) {
+            writeString(packet, config.getUsername());
+            if (config.getPassword() != null) {
+                writeString(packet, config.getPassword());
+            }
+        }
+        send(socket.getOutputStream(), 0x10, packet);
+
+        var in = new DataInputStream(socket.getInputStream());
+        var header = in.readUnsignedByte();
+        var length = in.readUnsignedByte();
+        var ack = new byte[length];
+        in.readFully(ack);
+        if (header != 0x20 || length != 2 || ack[1] != 0) {
+            throw new IOException("MQTTブローカーへの接続が拒否されました。(return code " + (length == 2 ? ack[1] : -1) + ")");
+        }
+        log.debug("MQTTブローカーに接続しました。{}:{}", config.getHost(), config.getPort());
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("MQTTブローカーとの接続のクローズに失敗しました。", e);
+        }
+        socket = null;
+    }
+
+    /**
+     * パケット送信(固定ヘッダー、残りの長さ、本体)
+     */
+    private static void send(OutputStream out, int type, ByteArrayOutputStream body) throws IOException {
+        var packet = new ByteArrayOutputStream(body.size() + 5);
+        packet.write(type);
+        var length = body.size();
+        do {
+            var b = length % 128;
+            length /= 128;
+            packet.write(length > 0 ? b | 0x80 : b);
+        } while (length > 0);
+        body.writeTo(packet);
+        packet.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * UTF-8文字列(長さ2byte + 本体)の書き込み
+     */
+    private static void writeString(ByteArrayOutputStream out, String text) {
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >> 8);
+        out.write(bytes.length & 0xff);
+        out.writeBytes(bytes);
+    }
+}
@@ -0,0 +1,216 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.heterodain.mining.powercontroller.config.TelemetryProperties.OVERFLOW;
+import com.heterodain.mining.powercontroller.metrics.Counter;
+import com.heterodain.mining.powercontroller.metrics.MetricsRegistry;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 計測データを全ての有効なシンクに出力する
+ *
+ * publish()はシンク毎のキューに入れてすぐに戻る(制御処理を待たせない)。シンク毎に出力間隔の平均値を作り、
+ * キューから1件ずつ順に出力する。平均値は各データが代表する期間で重み付けし、出力期間は出力間隔の倍数の時刻で区切る
+ * (3分間隔なら毎時0分・3分・6分…)。シンク同士は並行して出力するので、遅いシンクが他のシンクを待たせることはない。
+ * キューが一杯の場合は、シンクの設定に従って古いデータか新しいデータを破棄する。
+ */
+@Component
+@Slf4j
+public class TelemetryDispatcher {
+    /** 出力間隔の判定の許容誤差(出力間隔に対する割合) */
+    private static final double INTERVAL_TOLERANCE = 0.1;
+
+    @Autowired
+    private List<TelemetrySink> sinks;
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+
+    /** 有効なシンクのキュー */
+    private final List<SinkQueue> queues = new ArrayList<>();
+    /** 出力処理のスレッド */
+    private ExecutorService executor;
+
+    /**
+     * 初期化
+     */
+    @PostConstruct
+    public void init() {
+        for (var sink : sinks) {
+            if (sink.isEnabled()) {
+                queues.add(new SinkQueue(sink));
+                log.info("計測データを{}に出力します。(間隔{}秒)", sink.getName(), sink.getSettings().getInterval());
+            }
+        }
+        if (queues.isEmpty()) {
+            return;
+        }
+
+        var threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(queues.size(), r -> {
+            var thread = new Thread(r, "telemetry-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 計測データを出力(キューに入れてすぐに戻る)
+     *
+     * @param sample 計測データ(1分値)
+     */
+    public void publish(TelemetrySample sample) {
+        for (var queue : queues) {
+            queue.accumulate(sample);
+        }
+    }
+
+    /**
+     * 終了処理(出力中のデータは最大5秒待つ)
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        queues.forEach(queue -> queue.sink.close());
+    }
+
+    /**
+     * シンク毎の平均値の集計と出力待ちのキュー
+     */
+    private class SinkQueue {
+        private final TelemetrySink sink;
+        /** 出力待ちの計測データ */
+        private final Deque<TelemetrySample> pendings = new ArrayDeque<>();
+        /** 集計中の項目毎の重み付きの合計と重みの合計 */
+        private final Map<String, double[]> sums = new LinkedHashMap<>();
+        /** 集計中の期間の開始時刻(エポックミリ秒、出力間隔の倍数、集計中でない場合は-1) */
+        private long windowStart = -1;
+        /** 集計中の期間に含まれるデータの期間の合計(秒) */
+        private double windowDuration;
+        /** 出力中の場合はtrue */
+        private boolean busy;
+
+        private final Counter written;
+        private final Counter failed;
+        private final Counter dropped;
+
+        SinkQueue(TelemetrySink sink) {
+            this.sink = sink;
+            var help = "シンクへの計測データの出力数";
+            written = metricsRegistry.counter("telemetry_samples_total", help, "sink", sink.getName(), "result",
+                    "written");
+            failed = metricsRegistry.counter("telemetry_samples_total", help, "sink", sink.getName(), "result",
+                    "failed");
+            dropped = metricsRegistry.counter("telemetry_samples_total", help, "sink", sink.getName(), "result",
+                    "dropped");
+            metricsRegistry.gauge("telemetry_queue_size", "シンクの出力待ちの計測データ数", this::size, "sink",
+                    sink.getName());
+        }
+
+        /**
+         * 出力期間の平均値に加え、出力期間の終わりに達したらキューに入れる
+         *
+         * データは代表する期間の中央の時刻で出力期間に振り分ける。次の出力期間のデータが来た場合も、集計中の期間を出力する。
+         */
+        synchronized void accumulate(TelemetrySample sample) {
+            var interval = sink.getSettings().getInterval() * 1000L;
+            var duration = sample.getDuration() > 0D ? sample.getDuration() : 1D;
+            var middle = sample.getTime() - (long) (duration * 500);
+            var start = middle - Math.floorMod(middle, interval);
+            if (windowStart >= 0 && start != windowStart) {
+                emit(interval);
+            }
+            windowStart = start;
+
+            sample.getFields().forEach((name, value) -> {
+                var sum = sums.computeIfAbsent(name, k -> new double[2]);
+                if (value != null) {
+                    sum[0] += value * duration;
+                    sum[1] += duration;
+                }
+            });
+            windowDuration += duration;
+
+            if (sample.getTime() >= windowStart + interval - (long) (interval * INTERVAL_TOLERANCE)) {
+                emit(interval);
+            }
+        }
+
+        /**
+         * 集計中の期間の平均値をキューに入れる(時刻は出力期間の終わり)
+         */
+        private void emit(long interval) {
+            var fields = new LinkedHashMap<String, Double>();
+            sums.forEach((name, sum) -> fields.put(name, sum[1] > 0D ? sum[0] / sum[1] : null));
+            var sample = new TelemetrySample(windowStart + interval, windowDuration, fields);
+            sums.clear();
+            windowStart = -1;
+            windowDuration = 0D;
+            offer(sample);
+        }
+
+        private void offer(TelemetrySample sample) {
+            if (pendings.size() >= sink.getSettings().getQueueCapacity()) {
+                dropped.inc();
+                if (sink.getSettings().getOverflow() == OVERFLOW.DROP_NEWEST) {
+                    log.warn("{}への出力が滞っているため、計測データを破棄しました。", sink.getName());
+                    return;
+                }
+                pendings.poll();
+                log.warn("{}への出力が滞っているため、古い計測データを破棄しました。", sink.getName());
+            }
+            pendings.add(sample);
+            if (!busy) {
+                busy = true;
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * キューが空になるまで順に出力
+         */
+        private void drain() {
+            while (true) {
+                TelemetrySample sample;
+                synchronized (this) {
+                    sample = pendings.poll();
+                    if (sample == null) {
+                        busy = false;
+                        return;
+                    }
+                }
+
+                try {
+                    sink.write(sample);
+                    written.inc();
+                } catch (Exception e) {
+                    failed.inc();
+                    log.error("{}への計測データの出力に失敗しました。", sink.getName(), e);
+                }
+            }
+        }
+
+        private synchronized double size() {
+            return pendings.size();
+        }
+    }
+}
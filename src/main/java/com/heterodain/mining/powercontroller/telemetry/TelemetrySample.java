@@ -0,0 +1,56 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * シンクに出力する計測データ
+ */
+@Getter
+@ToString
+public class TelemetrySample {
+    /** 発電電力(W) */
+    public static final String PV_POWER = "pvPower";
+    /** バッテリー電圧(V) */
+    public static final String BATT_VOLT = "battVolt";
+    /** 負荷電力(W) */
+    public static final String LOAD_POWER = "loadPower";
+    /** リグのPower Mode/OCプロファイルの数値(9=HIGH, 11=MEDIUM, 12=LOW) */
+    public static final String POWER_MODE = "powerMode";
+    /** バッテリー温度(℃) */
+    public static final String BATT_TEMP = "battTemp";
+
+    /** 時刻(エポックミリ秒、値が代表する期間の終わり) */
+    private final long time;
+    /** 値が代表する期間(秒) */
+    private final double duration;
+    /** 項目名毎の値(値がない項目はnull) */
+    private final Map<String, Double> fields;
+
+    /**
+     * コンストラクタ
+     *
+     * @param time     時刻(エポックミリ秒、値が代表する期間の終わり)
+     * @param duration 値が代表する期間(秒)
+     * @param fields   項目名毎の値(順序を保持する)
+     */
+    public TelemetrySample(long time, double duration, LinkedHashMap<String, Double> fields) {
+        this.time = time;
+        this.duration = duration;
+        this.fields = Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * 値の取得
+     *
+     * @param name 項目名
+     * @return 値(ない場合はnull)
+     */
+    public Double get(String name) {
+        return fields.get(name);
+    }
+}
@@ -0,0 +1,62 @@
+package com.heterodain.mining.powercontroller.telemetry;
+
+import java.util.Collection;
+
+import com.heterodain.mining.powercontroller.config.TelemetryProperties;
+
+/**
+ * 計測データの出力先(シンク)
+ *
+ * Springのコンポーネントとして実装すると、TelemetryDispatcherが有効なシンクに出力する。
+ * write()はシンク毎に1つずつ順に呼ばれ、他のシンクや制御処理とは別のスレッドで実行される(ブロックしてよい)。
+ */
+public interface TelemetrySink {
+    /**
+     * シンク名(ログとメトリクスのラベル)
+     *
+     * @return シンク名
+     */
+    String getName();
+
+    /**
+     * シンクの設定
+     *
+     * @return 設定
+     */
+    TelemetryProperties.Sink getSettings();
+
+    /**
+     * 出力するかどうか
+     *
+     * @return 出力する場合はtrue
+     */
+    default boolean isEnabled() {
+        return getSettings().isEnabled();
+    }
+
+    /**
+     * 出力する項目名
+     *
+     * @param sample 計測データ
+     * @return 設定した項目名(省略時は計測データの全項目名)
+     */
+    default Collection<String> fieldsOf(TelemetrySample sample) {
+        var fields = getSettings().getFields();
+        return fields == null || fields.isEmpty() ? sample.getFields().keySet() : fields;
+    }
+
+    /**
+     * 計測データの出力
+     *
+     * @param sample 計測データ(設定した出力間隔の平均値)
+     * @throws Exception
+     */
+    void write(TelemetrySample sample) throws Exception;
+
+    /**
+     * 終了処理
+     */
+    default void close() {
+        // NOP
+    }
+}
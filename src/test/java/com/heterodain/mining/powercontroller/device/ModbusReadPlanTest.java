@@ -0,0 +1,142 @@
+package com.heterodain.mining.powercontroller.device;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ModbusReadPlanのテスト
+ */
+class ModbusReadPlanTest {
+    /** PvControllerDeviceと同じレジスタ */
+    private static final int[] ADDRESSES = { 0x3102, 0x3103, 0x3104, 0x310E, 0x310F, 0x311A, 0x3201 };
+
+    @Test
+    void mergesRegistersWithinGap() {
+        var plan = new ModbusReadPlan(16, ADDRESSES);
+
+        var blocks = plan.getBlocks();
+        assertEquals(2, blocks.size());
+        assertEquals(0x3102, blocks.get(0).getStart());
+        assertEquals(25, blocks.get(0).getCount());
+        assertEquals(3, blocks.get(0).getSegments().size());
+        assertEquals(0x3201, blocks.get(1).getStart());
+        assertEquals(1, blocks.get(1).getCount());
+    }
+
+    @Test
+    void doesNotMergeBeyondMaxRegisters() {
+        var plan = new ModbusReadPlan(1000, 0x0000, 0x0100);
+
+        assertEquals(2, plan.getBlocks().size());
+    }
+
+    @Test
+    void readsValuesIntoBuffer() throws Exception {
+        var plan = new ModbusReadPlan(16, ADDRESSES);
+        var transport = new FakeTransport();
+        transport.values.put(0x3102, 0x1234);
+        transport.values.put(0x3103, 0x0002);
+        transport.values.put(0x3104, 2650);
+        transport.values.put(0x3201, 0x0008);
+
+        var buffer = plan.newBuffer();
+        plan.read(transport, 1, 1, buffer);
+
+        assertEquals(2, transport.requests.size());
+        assertEquals(0x1234 + 2L * 0x10000, plan.getLong(buffer, 0x3102));
+        assertEquals(2650, plan.get(buffer, 0x3104));
+        assertEquals(0x0008, plan.get(buffer, 0x3201));
+    }
+
+    @Test
+    void splitsMergedBlockOnSlaveException() throws Exception {
+        var plan = new ModbusReadPlan(16, ADDRESSES);
+        var transport = new FakeTransport();
+        // 結合した領域の隙間に、機器が読み込みを拒否するレジスタがある
+        transport.undefined.add(0x3110);
+        transport.values.put(0x3104, 2650);
+        transport.values.put(0x311A, 80);
+
+        var buffer = plan.newBuffer();
+        plan.read(transport, 1, 1, buffer);
+
+        // 結合読み込みの失敗の後、セグメント毎に読み直す
+        assertEquals(1 + 3 + 1, transport.requests.size());
+        assertEquals(2650, plan.get(buffer, 0x3104));
+        assertEquals(80, plan.get(buffer, 0x311A));
+        assertEquals(4, plan.getBlocks().size());
+
+        // 以降は分割後のプランで読み込み、失敗する要求は送らない
+        transport.requests.clear();
+        plan.read(transport, 1, 1, buffer);
+        assertEquals(4, transport.requests.size());
+        assertTrue(transport.requests.stream().noneMatch(r -> r[0] <= 0x3110 && 0x3110 < r[0] + r[1]));
+        assertEquals(80, plan.get(buffer, 0x311A));
+    }
+
+    @Test
+    void rethrowsSlaveExceptionOfSingleSegment() {
+        var plan = new ModbusReadPlan(16, ADDRESSES);
+        var transport = new FakeTransport();
+        transport.undefined.add(0x3201);
+
+        var buffer = plan.newBuffer();
+        assertThrows(ModbusSlaveException.class, () -> plan.read(transport, 1, 1, buffer));
+        assertEquals(2, plan.getBlocks().size());
+    }
+
+    /**
+     * 入力レジスタの読み込みだけに応答する通信路
+     */
+    private static class FakeTransport implements ModbusTransport {
+        /** レジスタの値(ないものは0) */
+        private final Map<Integer, Integer> values = new HashMap<>();
+        /** 例外応答を返すレジスタ */
+        private final Set<Integer> undefined = new HashSet<>();
+        /** 受け取った要求([先頭アドレス, レジスタ数]) */
+        private final List<int[]> requests = new ArrayList<>();
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public ModbusResponse execute(ModbusRequest request, int retries) throws ModbusException {
+            var req = (ReadInputRegistersRequest) request;
+            requests.add(new int[] { req.getReference(), req.getWordCount() });
+            var registers = new InputRegister[req.getWordCount()];
+            for (int i = 0; i < registers.length; i++) {
+                var address = req.getReference() + i;
+                if (undefined.contains(address)) {
+                    throw new ModbusSlaveException(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+                }
+                registers[i] = new SimpleInputRegister(values.getOrDefault(address, 0));
+            }
+            return new ReadInputRegistersResponse(registers);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.heterodain.mining.powercontroller.sample;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * SampleStatsのテスト
+ */
+class SampleStatsTest {
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    void weightedMeanAndVariance() {
+        var stats = new SampleStats();
+        stats.add(10D, 1D);
+        stats.add(20D, 3D);
+
+        assertEquals(2, stats.getCount());
+        assertEquals(4D, stats.getWeight(), EPSILON);
+        assertEquals(17.5D, stats.getMean(), EPSILON);
+        // (1 * 7.5^2 + 3 * 2.5^2) / 4
+        assertEquals(18.75D, stats.getVariance(), EPSILON);
+        assertEquals(10D, stats.getMin(), EPSILON);
+        assertEquals(20D, stats.getMax(), EPSILON);
+    }
+
+    @Test
+    void zeroWeightIsIgnored() {
+        var stats = new SampleStats();
+        stats.add(10D, 1D);
+        stats.add(1000D, 0D);
+
+        assertEquals(1, stats.getCount());
+        assertEquals(10D, stats.getMean(), EPSILON);
+        assertEquals(10D, stats.getMax(), EPSILON);
+    }
+
+    @Test
+    void mergeMatchesSequentialAdd() {
+        var random = new Random(1);
+        var all = new SampleStats();
+        var merged = new SampleStats();
+        // 3秒値→1分値→15分値のように、大きさの違う部分集合を重み付きでマージする
+        for (var size : new int[] { 1, 20, 7, 300, 2 }) {
+            var part = new SampleStats();
+            for (int i = 0; i < size; i++) {
+                var value = 20D + random.nextGaussian() * 5D;
+                var w = 1D + random.nextDouble() * 4D;
+                all.add(value, w);
+                part.add(value, w);
+            }
+            merged.merge(part);
+        }
+
+        assertEquals(all.getCount(), merged.getCount());
+        assertEquals(all.getWeight(), merged.getWeight(), EPSILON);
+        assertEquals(all.getMean(), merged.getMean(), EPSILON);
+        assertEquals(all.getM2(), merged.getM2(), 1e-6);
+        assertEquals(all.getVariance(), merged.getVariance(), EPSILON);
+        assertEquals(all.getMin(), merged.getMin(), 0D);
+        assertEquals(all.getMax(), merged.getMax(), 0D);
+    }
+
+    @Test
+    void mergeWithEmpty() {
+        var stats = new SampleStats();
+        stats.add(5D, 2D);
+        stats.add(7D, 2D);
+
+        // 空の統計量をマージしても変わらない
+        stats.merge(new SampleStats());
+        assertEquals(2, stats.getCount());
+        assertEquals(6D, stats.getMean(), EPSILON);
+
+        // 空の統計量にマージすると同じ値になる
+        var empty = new SampleStats();
+        empty.merge(stats);
+        assertEquals(stats.getCount(), empty.getCount());
+        assertEquals(stats.getWeight(), empty.getWeight(), EPSILON);
+        assertEquals(stats.getMean(), empty.getMean(), EPSILON);
+        assertEquals(stats.getM2(), empty.getM2(), EPSILON);
+        assertEquals(5D, empty.getMin(), 0D);
+        assertEquals(7D, empty.getMax(), 0D);
+    }
+
+    @Test
+    void resetClearsEverything() {
+        var stats = new SampleStats();
+        stats.add(5D, 1D);
+        stats.reset();
+
+        assertEquals(0, stats.getCount());
+        assertEquals(0D, stats.getWeight(), 0D);
+        assertEquals(0D, stats.getVariance(), 0D);
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertTrue(Double.isNaN(stats.getMax()));
+    }
+}
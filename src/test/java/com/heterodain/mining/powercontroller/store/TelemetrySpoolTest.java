@@ -0,0 +1,184 @@
+package com.heterodain.mining.powercontroller.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.heterodain.mining.powercontroller.config.StoreProperties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * TelemetrySpoolのテスト
+ */
+class TelemetrySpoolTest {
+    /** 1レコードが239byteになるコメント(1KBのセグメントに5レコード) */
+    private static final String COMMENT = "x".repeat(200);
+    /** 1レコードのサイズ */
+    private static final int RECORD_SIZE = 239;
+
+    @TempDir
+    Path directory;
+
+    private TelemetrySpool spool;
+
+    @AfterEach
+    void tearDown() {
+        if (spool != null) {
+            spool.destroy();
+        }
+    }
+
+    @Test
+    void peekAndAckSurviveRestart() throws Exception {
+        spool = open();
+        append(5);
+
+        var points = spool.peek(10);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), seqs(points));
+        assertEquals(1.0D, points.get(0).getDatas()[0].doubleValue());
+        assertEquals(COMMENT, points.get(0).getComment());
+
+        spool.ack(points.get(2));
+        assertEquals(2, spool.backlog());
+
+        spool = reopen();
+        assertEquals(2, spool.backlog());
+        assertEquals(List.of(4L, 5L), seqs(spool.peek(10)));
+    }
+
+    @Test
+    void sequenceContinuesFromAckFile() throws Exception {
+        spool = open();
+        append(3);
+        var points = spool.peek(10);
+        spool.ack(points.get(points.size() - 1));
+        spool.destroy();
+
+        // セグメントが残っていない場合は、確定済みのシーケンス番号の次から振る
+        try (var files = Files.list(directory)) {
+            for (var path : files.filter(p -> p.toString().endsWith(".spool")).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+        spool = open();
+        assertEquals(0, spool.backlog());
+        append(1);
+        assertEquals(List.of(4L), seqs(spool.peek(10)));
+    }
+
+    @Test
+    void truncatesTornTailOnOpen() throws Exception {
+        spool = open();
+        append(3);
+        spool.destroy();
+
+        // 書き込み途中で電源が落ちたレコード(長さだけ書けている)
+        var segment = directory.resolve("1.spool");
+        var validSize = Files.size(segment);
+        Files.write(segment, ByteBuffer.allocate(6).putInt(RECORD_SIZE - 8).putShort((short) 0).array(),
+                StandardOpenOption.APPEND);
+
+        spool = open();
+        assertEquals(3, spool.backlog());
+        assertEquals(validSize, Files.size(segment));
+
+        append(1);
+        assertEquals(List.of(1L, 2L, 3L, 4L), seqs(spool.peek(10)));
+    }
+
+    @Test
+    void dropsRecordsFromBadCrcOnOpen() throws Exception {
+        spool = open();
+        append(3);
+        spool.destroy();
+
+        // 2件目のデータを壊すと、2件目以降を切り捨てて2件目から振り直す
+        corrupt(directory.resolve("1.spool"), SpoolSegment.HEADER_SIZE + RECORD_SIZE + 30);
+
+        spool = open();
+        assertEquals(1, spool.backlog());
+        append(1);
+        assertEquals(List.of(1L, 2L), seqs(spool.peek(10)));
+    }
+
+    @Test
+    void skipsBadRecordInClosedSegment() throws Exception {
+        spool = open();
+        append(8);
+        assertTrue(Files.exists(directory.resolve("6.spool")));
+
+        // 書き込みを終えたセグメントの2件目が壊れた場合は、そのセグメントの残りを読み飛ばす
+        corrupt(directory.resolve("1.spool"), SpoolSegment.HEADER_SIZE + RECORD_SIZE + 30);
+
+        var points = spool.peek(100);
+        assertEquals(List.of(1L, 6L, 7L, 8L), seqs(points));
+
+        spool.ack(points.get(points.size() - 1));
+        assertEquals(0, spool.backlog());
+        assertFalse(Files.exists(directory.resolve("1.spool")));
+    }
+
+    @Test
+    void discardsUnreadableBacklog() throws Exception {
+        spool = open();
+        append(2);
+
+        // 未確定のデータが1件も読めない場合は、破棄して未確定の件数を0にする
+        corrupt(directory.resolve("1.spool"), SpoolSegment.HEADER_SIZE + 30);
+
+        assertTrue(spool.peek(10).isEmpty());
+        assertEquals(0, spool.backlog());
+
+        spool = reopen();
+        assertEquals(0, spool.backlog());
+    }
+
+    private TelemetrySpool open() throws Exception {
+        var properties = new StoreProperties();
+        properties.getSpool().setDirectory(directory.toString());
+        properties.getSpool().setSegmentSize(1);
+
+        var result = new TelemetrySpool();
+        var field = TelemetrySpool.class.getDeclaredField("storeProperties");
+        field.setAccessible(true);
+        field.set(result, properties);
+        result.init();
+        return result;
+    }
+
+    private TelemetrySpool reopen() throws Exception {
+        spool.destroy();
+        return open();
+    }
+
+    private void append(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            spool.append(1, 1000L * i, COMMENT, (double) (i + 1));
+        }
+    }
+
+    private static List<Long> seqs(List<SpooledPoint> points) {
+        return points.stream().map(SpooledPoint::getSeq).collect(Collectors.toList());
+    }
+
+    private static void corrupt(Path path, long position) throws IOException {
+        try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(position);
+            var b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+    }
+}